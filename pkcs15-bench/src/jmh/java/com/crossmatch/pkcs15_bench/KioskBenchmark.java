@@ -0,0 +1,165 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.ApduProfiles;
+import com.crossmatch.pkcs15_engine.BiometricContainer;
+import com.crossmatch.pkcs15_engine.BufferPool;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardPipeline;
+import com.crossmatch.pkcs15_engine.CertificateContainer;
+import com.crossmatch.pkcs15_engine.Chuid;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.PrintedInformation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.security.MessageDigest;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cards per minute at a checkpoint where cards follow each other into one
+ * reader: each card is read in full with the PIN, then parsed and matched.
+ * <p>
+ *     SEQUENTIAL does both on one thread, as Pkcs15IntentService does.
+ *     PIPELINED runs them through a {@link CardPipeline}, so the next card is
+ *     read while the previous one is processed. The match is a stand-in that
+ *     keeps a core busy for matchMillis; 0 leaves only the parse.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+public class KioskBenchmark {
+    private static final String PIN = "123456";
+    private static final int CARDS = 10;
+    private static final String READER = "virtual";
+
+    @Param({ "CONTACT_T1", "CONTACTLESS" })
+    public String link;
+
+    @Param({ "0", "250" })
+    public int matchMillis;
+
+    @Param({ "SEQUENTIAL", "PIPELINED" })
+    public String mode;
+
+    private VirtualPivCard card;
+    private BufferPool pool;
+    private ApduProfiles profiles;
+    private CardPipeline<Map<PivContainer, byte[]>, Integer> pipeline;
+    private volatile CountDownLatch published;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        card = VirtualPivCard.typical(PIN, LinkModel.find(link));
+        pool = new BufferPool();
+        profiles = new ApduProfiles();
+        pipeline = new CardPipeline<>("kiosk", new CardPipeline.Stages<Map<PivContainer, byte[]>, Integer>() {
+            @Override
+            public Map<PivContainer, byte[]> read(String reader) throws CardException {
+                return readCard();
+            }
+
+            @Override
+            public Integer process(Map<PivContainer, byte[]> containers) throws Exception {
+                return processCard(containers);
+            }
+
+            @Override
+            public void publish(CardPipeline.Outcome<Integer> outcome) {
+                if (outcome.getError() != null)
+                    throw new IllegalStateException(outcome.getError());
+                published.countDown();
+            }
+        }, 2, CardPipeline.DEFAULT_CAPACITY);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CARDS)
+    public int cards() throws Exception {
+        int digest = 0;
+        if (mode.equals("SEQUENTIAL")) {
+            for (int i = 0; i < CARDS; i++)
+                digest += processCard(readCard());
+        } else {
+            published = new CountDownLatch(CARDS);
+            for (int i = 0; i < CARDS; i++)
+                pipeline.submit(READER);
+            if (!published.await(5, TimeUnit.MINUTES))
+                throw new IllegalStateException("pipeline stalled");
+        }
+        return digest;
+    }
+
+    /** the I/O stage: insert, SELECT, VERIFY and every container, copied out */
+    private Map<PivContainer, byte[]> readCard() throws CardException {
+        card.insert();
+        PivCardReader piv = new PivCardReader(card, pool, profiles);
+        Map<PivContainer, byte[]> containers = new EnumMap<>(PivContainer.class);
+        card.beginTransaction();
+        try {
+            piv.select();
+            containers.put(PivContainer.CHUID, piv.readContainer(PivContainer.CHUID));
+            piv.verifyPin(PIN);
+            for (PivContainer container : PivContainer.values())
+                if (container != PivContainer.CHUID)
+                    containers.put(container, piv.readContainer(container));
+        } finally {
+            card.endTransaction();
+        }
+        return containers;
+    }
+
+    /** the CPU stage: typed parse of every container, then the match */
+    private int processCard(Map<PivContainer, byte[]> containers) throws Exception {
+        int n = Chuid.parse(containers.get(PivContainer.CHUID)).getFascn().length;
+        for (Map.Entry<PivContainer, byte[]> entry : containers.entrySet()) {
+            switch (entry.getKey()) {
+                case FINGERPRINTS:
+                case FACIAL_IMAGE:
+                    n += BiometricContainer.parse(entry.getValue()).getSignatureBlockLength();
+                    break;
+                case PRINTED_INFORMATION:
+                    n += PrintedInformation.parse(entry.getValue()).hashCode();
+                    break;
+                case CERT_PIV_AUTHENTICATION:
+                case CERT_DIGITAL_SIGNATURE:
+                case CERT_KEY_MANAGEMENT:
+                case CERT_CARD_AUTHENTICATION:
+                    n += CertificateContainer.parse(entry.getValue()).getCertificate().length;
+                    break;
+                default:
+                    n += entry.getValue().length;
+            }
+        }
+        // hash the templates over and over for as long as a match would take
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[] templates = containers.get(PivContainer.FINGERPRINTS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(matchMillis);
+        do {
+            sha.update(templates);
+            n += sha.digest()[0];
+        } while (System.nanoTime() - deadline < 0);
+        return n;
+    }
+}
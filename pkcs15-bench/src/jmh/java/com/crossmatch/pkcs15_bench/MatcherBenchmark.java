@@ -0,0 +1,87 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.MinutiaeGallery;
+import com.crossmatch.pkcs15_engine.MinutiaeMatcher;
+import com.crossmatch.pkcs15_engine.MinutiaeTemplate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fingerprint matches per second.
+ * <p>
+ *     oneToOne is a single comparison on one thread. oneToN searches a
+ *     gallery of GALLERY fingers with an impostor, so every finger is
+ *     compared; divide by threads for matches per second per core.
+ *     earlyExit searches with a genuine impression at the default threshold
+ *     and reports searches, not matches, per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MatcherBenchmark {
+    private static final int GALLERY = 2000;
+    private static final int MINUTIAE = 40;
+
+    @Param({ "1", "2", "4" })
+    public int threads;
+
+    private MinutiaeGallery gallery;
+    private final MinutiaeMatcher matcher = new MinutiaeMatcher();
+    private MinutiaeMatcher.Finger probe;
+    private MinutiaeMatcher.Finger enrolled;
+    private MinutiaeTemplate impostor;
+    private MinutiaeTemplate genuine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(378);
+        gallery = new MinutiaeGallery(threads);
+        MinutiaeTemplate[] fingers = new MinutiaeTemplate[GALLERY];
+        for (int i = 0; i < GALLERY; i++) {
+            fingers[i] = SyntheticFingers.finger(random, 2, MINUTIAE);
+            gallery.add("person " + i, fingers[i]);
+        }
+        impostor = SyntheticFingers.impression(SyntheticFingers.finger(random, 2, MINUTIAE), random);
+        genuine = SyntheticFingers.impression(fingers[GALLERY * 3 / 4], random);
+        enrolled = MinutiaeMatcher.Finger.of(fingers[0], 0);
+        probe = MinutiaeMatcher.Finger.of(SyntheticFingers.impression(fingers[0], random), 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        gallery.shutdown();
+    }
+
+    @Benchmark
+    public int oneToOne() {
+        return matcher.score(probe, enrolled);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GALLERY)
+    public int oneToN() {
+        // over 100 is never reached, so the whole gallery is scanned
+        return gallery.identify(impostor, 101).getScore();
+    }
+
+    @Benchmark
+    public int earlyExit() {
+        return gallery.identify(genuine, MinutiaeMatcher.DEFAULT_THRESHOLD).getScore();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.ApduProfiles;
+import com.crossmatch.pkcs15_engine.BiometricContainer;
+import com.crossmatch.pkcs15_engine.BufferPool;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CertificateContainer;
+import com.crossmatch.pkcs15_engine.Chuid;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.PrintedInformation;
+import com.crossmatch.pkcs15_engine.ResponseBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The card read path as Pkcs15IntentService runs it: insert and connect,
+ * transaction, SELECT, VERIFY, GET DATA for each container and the typed parse.
+ * <p>
+ *     Each invocation is one card. With the NONE link the score is the engine
+ *     cost alone; the other links add the modelled reader and card time.
+ *     Allocation per card is gc.alloc.rate.norm from the gc profiler.
+ *     Readers share one buffer pool, as the readers of a CardSession do.
+ * <p>
+ *     With apdu EXTENDED the card takes extended length GET DATA. The APDU
+ *     profile is learned on the first card of the trial and reused after, as
+ *     CardSessionManager does for later insertions of the same card model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadPathBenchmark {
+    private static final String PIN = "123456";
+
+    @Param({ "NONE", "CONTACT_T0", "CONTACT_T1", "CONTACTLESS" })
+    public String link;
+
+    @Param({ "SHORT", "EXTENDED" })
+    public String apdu;
+
+    private VirtualPivCard card;
+    private BufferPool pool;
+    private ApduProfiles profiles;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        card = VirtualPivCard.typical(PIN, LinkModel.find(link));
+        if (apdu.equals("EXTENDED"))
+            card.withExtendedLength();
+        pool = new BufferPool();
+        profiles = new ApduProfiles();
+    }
+
+    /** insert to a decoded CHUID, what the cache needs to identify the card */
+    @Benchmark
+    public Chuid timeToChuid() throws CardException {
+        card.insert();
+        PivCardReader piv = new PivCardReader(card, pool, profiles);
+        card.beginTransaction();
+        try {
+            piv.select();
+            return Chuid.parse(piv.readContainer(PivContainer.CHUID));
+        } finally {
+            card.endTransaction();
+        }
+    }
+
+    /** insert to decoded fingerprint templates, what a match needs */
+    @Benchmark
+    public BiometricContainer timeToFingerprints(Blackhole bh) throws CardException {
+        card.insert();
+        PivCardReader piv = new PivCardReader(card, pool, profiles);
+        card.beginTransaction();
+        try {
+            piv.select();
+            bh.consume(Chuid.parse(piv.readContainer(PivContainer.CHUID)));
+            piv.verifyPin(PIN);
+            return BiometricContainer.parse(piv.readContainer(PivContainer.FINGERPRINTS));
+        } finally {
+            card.endTransaction();
+        }
+    }
+
+    /**
+     * every container the app knows, each parsed as the app displays it,
+     * from a pooled buffer since nothing is kept past the parse
+     */
+    @Benchmark
+    public void fullCard(Blackhole bh) throws CardException {
+        card.insert();
+        PivCardReader piv = new PivCardReader(card, pool, profiles);
+        ResponseBuffer out = pool.acquire();
+        card.beginTransaction();
+        try {
+            piv.select();
+            bh.consume(Chuid.parse(piv.readContainer(PivContainer.CHUID, out)));
+            piv.verifyPin(PIN);
+            for (PivContainer container : PivContainer.values()) {
+                if (container == PivContainer.CHUID)
+                    continue;
+                ByteBuffer data = piv.readContainer(container, out);
+                switch (container) {
+                    case FINGERPRINTS:
+                    case FACIAL_IMAGE:
+                        bh.consume(BiometricContainer.parse(data));
+                        break;
+                    case PRINTED_INFORMATION:
+                        bh.consume(PrintedInformation.parse(data));
+                        break;
+                    case CERT_PIV_AUTHENTICATION:
+                    case CERT_DIGITAL_SIGNATURE:
+                    case CERT_KEY_MANAGEMENT:
+                    case CERT_CARD_AUTHENTICATION:
+                        bh.consume(CertificateContainer.parse(data));
+                        break;
+                    default:
+                        bh.consume(data);
+                }
+            }
+        } finally {
+            card.endTransaction();
+            pool.release(out);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Timing of the link between the reader and the card, used by
+ * {@link VirtualPivCard} to delay each exchange the way a real card would.
+ * <p>
+ *     An exchange costs a fixed turnaround (reader, driver and the card
+ *     processing the command) plus the time to move the command and response
+ *     bytes at the link rate. Connect covers power up, ATR and PPS, or
+ *     anticollision and RATS for contactless.
+ * <p>
+ *     The presets are rough figures for the Sentry readers and a typical PIV
+ *     card. Tune them against device traces before comparing absolute numbers;
+ *     relative changes are what the benchmarks are for.
+ */
+public final class LinkModel {
+    /** no delays, measures engine CPU and allocation only */
+    public static final LinkModel NONE = new LinkModel("NONE", 0, 0, 0);
+    /** contact, T=0 at 115200 bit/s, 12 etu per character */
+    public static final LinkModel CONTACT_T0 = new LinkModel("CONTACT_T0", 45000000L, 3000000L, 9600);
+    /** contact, T=1 at 115200 bit/s, 11 etu per character */
+    public static final LinkModel CONTACT_T1 = new LinkModel("CONTACT_T1", 45000000L, 2500000L, 10470);
+    /** ISO 14443-4 at 424 kbit/s with frame overhead */
+    public static final LinkModel CONTACTLESS = new LinkModel("CONTACTLESS", 15000000L, 1500000L, 40000);
+
+    private final String name;
+    private final long connectNanos;
+    private final long exchangeNanos;
+    private final int bytesPerSecond;
+
+    /**
+     * @param name label for reports
+     * @param connectNanos time from insert to the card being ready for the first APDU
+     * @param exchangeNanos fixed cost of every command/response pair
+     * @param bytesPerSecond link throughput, 0 for unlimited
+     */
+    public LinkModel(String name, long connectNanos, long exchangeNanos, int bytesPerSecond) {
+        this.name = name;
+        this.connectNanos = connectNanos;
+        this.exchangeNanos = exchangeNanos;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public static LinkModel find(String name) {
+        for (LinkModel model : new LinkModel[] { NONE, CONTACT_T0, CONTACT_T1, CONTACTLESS })
+            if (model.name.equals(name))
+                return model;
+        throw new IllegalArgumentException("Unknown link model " + name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @param bytes command plus response length
+     * @return modelled time for one exchange
+     */
+    public long exchangeNanos(int bytes) {
+        if (bytesPerSecond == 0)
+            return exchangeNanos;
+        return exchangeNanos + bytes * 1000000000L / bytesPerSecond;
+    }
+
+    /**
+     * Wait for the given time. Parks for most of it and spins the last part,
+     * since parking alone overshoots by tens of microseconds.
+     */
+    static void delay(long nanos) {
+        if (nanos <= 0)
+            return;
+        long deadline = System.nanoTime() + nanos;
+        long remaining = nanos;
+        while (remaining > 100000L) {
+            LockSupport.parkNanos(remaining - 100000L);
+            remaining = deadline - System.nanoTime();
+        }
+        while (deadline - System.nanoTime() > 0) {
+            // spin
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.MinutiaeTemplate;
+
+import java.util.Random;
+
+/**
+ * Random fingers and noisy impressions of them, to fill a matcher gallery
+ * without real enrolment data.
+ */
+public final class SyntheticFingers {
+    private static final int CENTER_X = 250;
+    private static final int CENTER_Y = 300;
+
+    private SyntheticFingers() {
+    }
+
+    /**
+     * @return one view of count minutiae spread over a 500 ppi image
+     */
+    public static MinutiaeTemplate finger(Random random, int position, int count) {
+        short[] x = new short[count];
+        short[] y = new short[count];
+        short[] angle = new short[count];
+        byte[] type = new byte[count];
+        for (int i = 0; i < count; i++) {
+            boolean spaced;
+            do {
+                x[i] = (short) (60 + random.nextInt(380));
+                y[i] = (short) (60 + random.nextInt(480));
+                spaced = true;
+                for (int j = 0; j < i && spaced; j++)
+                    spaced = Math.abs(x[i] - x[j]) + Math.abs(y[i] - y[j]) > 20;
+            } while (!spaced);
+            angle[i] = (short) random.nextInt(360);
+            type[i] = (byte) (1 + random.nextInt(2));
+        }
+        return MinutiaeTemplate.of(new int[] { 0, count }, new byte[] { (byte) position }, x, y, angle, type);
+    }
+
+    /**
+     * Another capture of the finger: turned up to 30 degrees, moved up to
+     * 40 pixels, a quarter of the minutiae missed and six false ones added
+     */
+    public static MinutiaeTemplate impression(MinutiaeTemplate finger, Random random) {
+        int rotation = random.nextInt(61) - 30;
+        int dx = random.nextInt(81) - 40;
+        int dy = random.nextInt(81) - 40;
+        int spurious = 6;
+        int n = finger.getMinutiaCount();
+        short[] x = new short[n + spurious];
+        short[] y = new short[n + spurious];
+        short[] angle = new short[n + spurious];
+        byte[] type = new byte[n + spurious];
+        double sin = Math.sin(Math.toRadians(rotation));
+        double cos = Math.cos(Math.toRadians(rotation));
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (random.nextDouble() < 0.25)
+                continue;
+            double px = finger.getX(i) - CENTER_X;
+            double py = CENTER_Y - finger.getY(i);
+            x[m] = (short) Math.round(CENTER_X + px * cos - py * sin + dx + random.nextGaussian() * 2);
+            y[m] = (short) Math.round(CENTER_Y - (px * sin + py * cos - dy + random.nextGaussian() * 2));
+            angle[m] = (short) (((finger.getAngle(i) + rotation + (int) Math.round(random.nextGaussian() * 4))
+                    % 360 + 360) % 360);
+            type[m] = (byte) finger.getType(i);
+            m++;
+        }
+        for (int i = 0; i < spurious; i++, m++) {
+            x[m] = (short) (60 + random.nextInt(380));
+            y[m] = (short) (60 + random.nextInt(480));
+            angle[m] = (short) random.nextInt(360);
+            type[m] = MinutiaeTemplate.TYPE_RIDGE_ENDING;
+        }
+        return MinutiaeTemplate.of(new int[] { 0, m }, new byte[] { (byte) finger.getFingerPosition(0) },
+                truncate(x, m), truncate(y, m), truncate(angle, m), truncate(type, m));
+    }
+
+    private static short[] truncate(short[] values, int length) {
+        short[] copy = new short[length];
+        System.arraycopy(values, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static byte[] truncate(byte[] values, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(values, 0, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.BiometricContainer;
+import com.crossmatch.pkcs15_engine.Hex;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Container contents for {@link VirtualPivCard}, laid out as in
+ * NIST SP 800-73-4 with filler where the real card has signatures or images.
+ */
+final class VirtualCardContents {
+    // SS 9999 FS 9999 FS 999999 FS 0 FS 1 FS 0000000000 3 0000 1 ES LRC
+    static final byte[] FASCN = Hex.decode("d4e739da739ced39ce739d836858210842108421c84210c3eb");
+    static final byte[] GUID = Hex.decode("a0a1a2a3a4a5a6a7a8a9aaabacadaeaf");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private VirtualCardContents() {
+    }
+
+    static byte[] cardCapabilityContainer() {
+        return concat(
+                tlv(0xF0, Hex.decode("a00000011601020304050607080910111213")),
+                tlv(0xF1, new byte[] { 0x21 }),
+                tlv(0xF2, new byte[] { 0x21 }),
+                tlv(0xF3, new byte[0]),
+                tlv(0xF4, new byte[] { 0x00 }),
+                tlv(0xF5, new byte[] { 0x10 }),
+                tlv(0xF6, new byte[0]),
+                tlv(0xF7, new byte[0]),
+                tlv(0xFA, new byte[0]),
+                tlv(0xFB, new byte[0]),
+                tlv(0xFC, new byte[0]),
+                tlv(0xFD, new byte[0]),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] chuid() {
+        return concat(
+                tlv(0x30, FASCN),
+                tlv(0x34, GUID),
+                tlv(0x35, "20301231".getBytes(ASCII)),
+                // CMS signed data with the content signing certificate
+                tlv(0x3E, filler(1500)),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] certificate(int length) {
+        return concat(
+                tlv(0x70, filler(length)),
+                tlv(0x71, new byte[] { 0x00 }),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] fingerprints() {
+        // two INCITS 378 minutiae views and a CMS signature block
+        return concat(
+                tlv(0xBC, biometricRecord(BiometricContainer.TYPE_FINGERPRINT, 2 * 600, 1500)),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] facialImage(int imageLength) {
+        return concat(
+                tlv(0xBC, biometricRecord(BiometricContainer.TYPE_FACIAL_IMAGE, imageLength, 1500)),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] printedInformation() {
+        return concat(
+                tlv(0x01, "DOE, JOHN Q".getBytes(ASCII)),
+                tlv(0x02, "Employee".getBytes(ASCII)),
+                tlv(0x04, "2030DEC31".getBytes(ASCII)),
+                tlv(0x05, "0000000001".getBytes(ASCII)),
+                tlv(0x06, "Crossmatch Test".getBytes(ASCII)),
+                tlv(0xFE, new byte[0]));
+    }
+
+    static byte[] securityObject() {
+        return concat(
+                tlv(0xBA, Hex.decode("3000010203040506")),
+                tlv(0xBB, filler(1000)),
+                tlv(0xFE, new byte[0]));
+    }
+
+    /**
+     * CBEFF record: 88 byte header, biometric data block and signature block
+     */
+    private static byte[] biometricRecord(int type, int bdbLength, int sbLength) {
+        ByteBuffer record = ByteBuffer.allocate(BiometricContainer.CBEFF_HEADER_LENGTH + bdbLength + sbLength);
+        record.put((byte) 0x03).put((byte) 0x0D).putInt(bdbLength).putShort((short) sbLength);
+        record.putShort((short) 0x001B).putShort((short) 0x0201);
+        record.putShort((short) 2020).put(new byte[] { 6, 1, 12, 30, 0, 0x5A });
+        record.position(36);
+        record.put(new byte[] { 0, 0, (byte) type, 0x02, 100 });
+        record.put("Crossmatch".getBytes(ASCII));
+        record.position(59);
+        record.put(FASCN);
+        record.position(BiometricContainer.CBEFF_HEADER_LENGTH);
+        record.put(filler(bdbLength + sbLength));
+        return record.array();
+    }
+
+    static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 8);
+        if (tag > 0xFFFF)
+            out.write(tag >> 16);
+        if (tag > 0xFF)
+            out.write(tag >> 8);
+        out.write(tag);
+        int n = value.length;
+        if (n < 0x80) {
+            out.write(n);
+        } else if (n < 0x100) {
+            out.write(0x81);
+            out.write(n);
+        } else {
+            out.write(0x82);
+            out.write(n >> 8);
+            out.write(n);
+        }
+        out.write(value, 0, n);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] filler(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte) (i * 7 + 3);
+        return b;
+    }
+}
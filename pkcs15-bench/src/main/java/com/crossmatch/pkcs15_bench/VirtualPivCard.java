@@ -0,0 +1,207 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.Apdu;
+import com.crossmatch.pkcs15_engine.Atr;
+import com.crossmatch.pkcs15_engine.CardTransport;
+import com.crossmatch.pkcs15_engine.Hex;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Virtual PIV card that answers the APDUs the app sends (SELECT, VERIFY,
+ * GET DATA and GET RESPONSE) and delays every exchange according to a
+ * {@link LinkModel}.
+ * <p>
+ *     Responses are limited to 256 bytes and the rest is left for GET RESPONSE,
+ *     as with short APDUs over T=0. {@link #withExtendedLength()} turns it into
+ *     a T=1 card whose ATR advertises extended Lc/Le and which answers an
+ *     extended GET DATA with the whole object. {@link #insert()} stands for the
+ *     card being inserted and connected to, and is charged the model's connect time.
+ */
+public class VirtualPivCard implements CardTransport {
+    static final byte[] ATR = Hex.decode("3bf81300008131fe15597562696b657934d4");
+    /** T=0 and T=1, card capabilities say command chaining and extended Lc/Le */
+    static final byte[] EXTENDED_ATR = Hex.decode("3b8a8001807301c0c00000000000");
+    private static final byte[] SELECT_RESPONSE = Hex.decode("61114f0600001000010079074f05a000000308");
+
+    private final Map<Integer, byte[]> objects = new HashMap<>();
+    private final Map<Integer, Boolean> protectedObjects = new HashMap<>();
+    private final String pin;
+    private final LinkModel link;
+    private byte[] atr = ATR;
+    private boolean extendedLength = false;
+    private boolean selected = false;
+    private boolean verified = false;
+    private byte[] pending = null;
+    private int pendingOffset = 0;
+
+    private int exchangeCount = 0;
+    private long bytesTransferred = 0;
+
+    public VirtualPivCard(String pin, LinkModel link) {
+        this.pin = pin;
+        this.link = link;
+    }
+
+    /**
+     * Card with every container the app reads, sized like a typical issued
+     * PIV card: signed CHUID, four 1.2 KB certificates, two fingerprint
+     * templates and a 12 KB facial image.
+     */
+    public static VirtualPivCard typical(String pin, LinkModel link) {
+        VirtualPivCard card = new VirtualPivCard(pin, link);
+        card.put(PivContainer.CARD_CAPABILITY_CONTAINER, VirtualCardContents.cardCapabilityContainer());
+        card.put(PivContainer.CHUID, VirtualCardContents.chuid());
+        card.put(PivContainer.CERT_PIV_AUTHENTICATION, VirtualCardContents.certificate(1200));
+        card.put(PivContainer.CERT_CARD_AUTHENTICATION, VirtualCardContents.certificate(1100));
+        card.put(PivContainer.CERT_DIGITAL_SIGNATURE, VirtualCardContents.certificate(1250));
+        card.put(PivContainer.CERT_KEY_MANAGEMENT, VirtualCardContents.certificate(1250));
+        card.put(PivContainer.FINGERPRINTS, VirtualCardContents.fingerprints());
+        card.put(PivContainer.FACIAL_IMAGE, VirtualCardContents.facialImage(12 * 1024));
+        card.put(PivContainer.PRINTED_INFORMATION, VirtualCardContents.printedInformation());
+        card.put(PivContainer.SECURITY_OBJECT, VirtualCardContents.securityObject());
+        return card;
+    }
+
+    /**
+     * Talk T=1 and answer extended length GET DATA
+     */
+    public VirtualPivCard withExtendedLength() {
+        atr = EXTENDED_ATR;
+        extendedLength = true;
+        return this;
+    }
+
+    /**
+     * Store a container, wrapping the contents in a 53 tag like a real card
+     */
+    public VirtualPivCard put(PivContainer container, byte[] contents) {
+        objects.put(container.getTag(), VirtualCardContents.tlv(0x53, contents));
+        protectedObjects.put(container.getTag(), container.isPinRequired());
+        return this;
+    }
+
+    /**
+     * Simulate card insertion and connect: resets the applet state and waits
+     * for the modelled connect time.
+     */
+    public void insert() {
+        selected = false;
+        verified = false;
+        pending = null;
+        LinkModel.delay(link.getConnectNanos());
+    }
+
+    public int getExchangeCount() {
+        return exchangeCount;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    @Override
+    public byte[] getAtr() {
+        return atr;
+    }
+
+    @Override
+    public int getProtocol() {
+        return extendedLength ? Atr.PROTOCOL_T1 : Atr.PROTOCOL_T0;
+    }
+
+    @Override
+    public byte[] transmit(byte[] cmd) {
+        byte[] response = process(cmd);
+        exchangeCount++;
+        bytesTransferred += cmd.length + response.length;
+        LinkModel.delay(link.exchangeNanos(cmd.length + response.length));
+        return response;
+    }
+
+    private byte[] process(byte[] cmd) {
+        int ins = cmd[1] & 0xFF;
+        switch (ins) {
+            case 0xA4:
+                byte[] aid = Arrays.copyOfRange(cmd, 5, 5 + (cmd[4] & 0xFF));
+                if (!Arrays.equals(aid, PivCardReader.PIV_AID))
+                    return sw(Apdu.SW_FILE_NOT_FOUND);
+                selected = true;
+                verified = false;
+                return respond(SELECT_RESPONSE);
+            case 0x20:
+                if (!selected)
+                    return sw(0x6985);
+                verified = Arrays.equals(cmd, Apdu.verify(pin));
+                return sw(verified ? Apdu.SW_OK : 0x63C2);
+            case 0xCB:
+                if (!selected)
+                    return sw(0x6985);
+                boolean extended = Apdu.isExtended(cmd);
+                if (extended && !extendedLength)
+                    return sw(Apdu.SW_WRONG_LENGTH);
+                int t = extended ? 9 : 7;
+                int tag = ((cmd[t] & 0xFF) << 16) | ((cmd[t + 1] & 0xFF) << 8) | (cmd[t + 2] & 0xFF);
+                byte[] object = objects.get(tag);
+                if (object == null)
+                    return sw(Apdu.SW_FILE_NOT_FOUND);
+                if (protectedObjects.get(tag) && !verified)
+                    return sw(Apdu.SW_SECURITY_NOT_SATISFIED);
+                if (extended) {
+                    pending = object;
+                    pendingOffset = 0;
+                    return next(object.length);
+                }
+                return respond(object);
+            case 0xC0:
+                if (pending == null)
+                    return sw(0x6985);
+                return next(cmd[4] & 0xFF);
+            default:
+                return sw(0x6D00);
+        }
+    }
+
+    private byte[] respond(byte[] data) {
+        pending = data;
+        pendingOffset = 0;
+        return next(256);
+    }
+
+    private byte[] next(int le) {
+        if (le == 0)
+            le = 256;
+        int n = Math.min(le, pending.length - pendingOffset);
+        int remaining = pending.length - pendingOffset - n;
+        // one new array per response, as PcscJni.transmit returns
+        byte[] out = new byte[n + 2];
+        System.arraycopy(pending, pendingOffset, out, 0, n);
+        pendingOffset += n;
+        // 6100 means 256 or more bytes are still waiting
+        int status = remaining == 0 ? Apdu.SW_OK : 0x6100 | (remaining >= 256 ? 0 : remaining);
+        out[n] = (byte) (status >> 8);
+        out[n + 1] = (byte) status;
+        if (remaining == 0)
+            pending = null;
+        return out;
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    @Override
+    public void beginTransaction() {
+    }
+
+    @Override
+    public void endTransaction() {
+    }
+}
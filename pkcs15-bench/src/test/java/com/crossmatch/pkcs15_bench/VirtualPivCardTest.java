@@ -0,0 +1,80 @@
+package com.crossmatch.pkcs15_bench;
+
+import com.crossmatch.pkcs15_engine.BiometricContainer;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CertificateContainer;
+import com.crossmatch.pkcs15_engine.Chuid;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.PrintedInformation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The virtual card must serve the same read path as a real card, otherwise
+ * the benchmarks measure something the app never does
+ */
+public class VirtualPivCardTest {
+    @Test
+    public void typicalCardParses() throws CardException {
+        VirtualPivCard card = VirtualPivCard.typical("123456", LinkModel.NONE);
+        card.insert();
+        PivCardReader piv = new PivCardReader(card);
+        piv.select();
+        assertEquals("9999-9999-999999-0-1-0000000000-3-0000-1",
+                Chuid.parse(piv.readContainer(PivContainer.CHUID)).getFascnString());
+        piv.verifyPin("123456");
+
+        BiometricContainer fingers = BiometricContainer.parse(piv.readContainer(PivContainer.FINGERPRINTS));
+        assertEquals(BiometricContainer.TYPE_FINGERPRINT, fingers.getBiometricType());
+        assertEquals(1200, fingers.getBiometricDataLength());
+        BiometricContainer face = BiometricContainer.parse(piv.readContainer(PivContainer.FACIAL_IMAGE));
+        assertEquals(12 * 1024, face.getBiometricDataLength());
+        assertEquals(1200, CertificateContainer.parse(
+                piv.readContainer(PivContainer.CERT_PIV_AUTHENTICATION)).getCertificate().length);
+        assertEquals("DOE, JOHN Q", PrintedInformation.parse(
+                piv.readContainer(PivContainer.PRINTED_INFORMATION)).getName());
+        // a 12 KB image needs GET RESPONSE chaining
+        assertTrue(card.getExchangeCount() > 50);
+    }
+
+    @Test
+    public void extendedLengthReadsEachContainerInOneExchange() throws CardException {
+        VirtualPivCard card = VirtualPivCard.typical("123456", LinkModel.NONE).withExtendedLength();
+        card.insert();
+        PivCardReader piv = new PivCardReader(card);
+        piv.select();
+        piv.verifyPin("123456");
+        int before = card.getExchangeCount();
+        BiometricContainer face = BiometricContainer.parse(piv.readContainer(PivContainer.FACIAL_IMAGE));
+        assertEquals(12 * 1024, face.getBiometricDataLength());
+        assertEquals(before + 1, card.getExchangeCount());
+        assertTrue(piv.getApduProfile().isExtendedLength());
+    }
+
+    @Test
+    public void protectedContainersNeedPin() throws CardException {
+        VirtualPivCard card = VirtualPivCard.typical("123456", LinkModel.NONE);
+        card.insert();
+        PivCardReader piv = new PivCardReader(card);
+        piv.select();
+        try {
+            piv.readContainer(PivContainer.FINGERPRINTS);
+            fail();
+        } catch (CardException ex) {
+            assertEquals(0x6982, ex.getStatusWord());
+        }
+    }
+
+    @Test
+    public void linkModelChargesTransferTime() {
+        LinkModel link = LinkModel.CONTACT_T0;
+        // 9600 bytes per second, so 960 bytes are 100 ms on top of the turnaround
+        assertEquals(link.exchangeNanos(0) + 100000000L, link.exchangeNanos(960));
+        long start = System.nanoTime();
+        LinkModel.delay(2000000L);
+        assertTrue(System.nanoTime() - start >= 2000000L);
+    }
+}
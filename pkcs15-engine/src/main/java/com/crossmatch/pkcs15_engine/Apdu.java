@@ -0,0 +1,172 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Builders for the ISO 7816-4 / NIST SP 800-73 command APDUs used to read
+ * a PIV card, and helpers for the status words they return.
+ */
+public final class Apdu {
+    public static final int SW_OK = 0x9000;
+    public static final int SW_FILE_NOT_FOUND = 0x6A82;
+    public static final int SW_SECURITY_NOT_SATISFIED = 0x6982;
+    public static final int SW_PIN_BLOCKED = 0x6983;
+    public static final int SW_WRONG_LENGTH = 0x6700;
+
+    static final byte CLA = 0x00;
+    static final byte INS_VERIFY = 0x20;
+    static final byte INS_SELECT = (byte) 0xA4;
+    static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    static final byte INS_GET_DATA = (byte) 0xCB;
+
+    /** PIV key reference for the card application PIN */
+    static final byte PIV_APPLICATION_PIN = (byte) 0x80;
+    static final int PIV_PIN_LENGTH = 8;
+
+    private Apdu() {
+    }
+
+    /**
+     * SELECT by application identifier, asking for the FCI in the response
+     *
+     * @param aid application identifier
+     * @return command APDU
+     */
+    public static byte[] select(byte[] aid) {
+        byte[] cmd = new byte[5 + aid.length + 1];
+        cmd[0] = CLA;
+        cmd[1] = INS_SELECT;
+        cmd[2] = 0x04;
+        cmd[3] = 0x00;
+        cmd[4] = (byte) aid.length;
+        System.arraycopy(aid, 0, cmd, 5, aid.length);
+        cmd[cmd.length - 1] = 0x00;
+        return cmd;
+    }
+
+    /**
+     * PIV GET DATA for the data object with the given BER-TLV tag
+     *
+     * @param tag data object tag, e.g. 5FC102 for the CHUID
+     * @return command APDU
+     */
+    public static byte[] getData(byte[] tag) {
+        return getData(tag, false);
+    }
+
+    /**
+     * PIV GET DATA, optionally as an extended length APDU with Le 0000 so the
+     * card returns up to 65536 bytes in one response
+     *
+     * @param tag data object tag
+     * @param extended true for the extended form (T=1 only)
+     * @return command APDU
+     */
+    public static byte[] getData(byte[] tag, boolean extended) {
+        if (extended) {
+            int lc = 2 + tag.length;
+            byte[] cmd = new byte[7 + lc + 2];
+            cmd[0] = CLA;
+            cmd[1] = INS_GET_DATA;
+            cmd[2] = 0x3F;
+            cmd[3] = (byte) 0xFF;
+            cmd[4] = 0x00;
+            cmd[5] = (byte) (lc >> 8);
+            cmd[6] = (byte) lc;
+            cmd[7] = 0x5C;
+            cmd[8] = (byte) tag.length;
+            System.arraycopy(tag, 0, cmd, 9, tag.length);
+            // Le 0000, the last two bytes, is already zero
+            return cmd;
+        }
+        byte[] cmd = new byte[5 + 2 + tag.length + 1];
+        cmd[0] = CLA;
+        cmd[1] = INS_GET_DATA;
+        cmd[2] = 0x3F;
+        cmd[3] = (byte) 0xFF;
+        cmd[4] = (byte) (2 + tag.length);
+        cmd[5] = 0x5C;
+        cmd[6] = (byte) tag.length;
+        System.arraycopy(tag, 0, cmd, 7, tag.length);
+        cmd[cmd.length - 1] = 0x00;
+        return cmd;
+    }
+
+    /**
+     * @return true if the PIN fits a PIV VERIFY: 1 to 8 printable ASCII characters
+     */
+    public static boolean isValidPin(String pin) {
+        if (pin == null || pin.isEmpty() || pin.length() > PIV_PIN_LENGTH)
+            return false;
+        for (int i = 0; i < pin.length(); i++) {
+            char c = pin.charAt(i);
+            if (c <= 0x20 || c >= 0x7F)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * PIV VERIFY of the application PIN. The PIN is padded to 8 bytes with 0xFF.
+     *
+     * @param pin ASCII PIN, 1 to 8 characters
+     * @return command APDU
+     * @throws IllegalArgumentException if the PIN is not valid, see {@link #isValidPin}
+     */
+    public static byte[] verify(String pin) {
+        if (!isValidPin(pin))
+            throw new IllegalArgumentException("PIN must be 1 to " + PIV_PIN_LENGTH + " ASCII characters");
+
+        byte[] cmd = new byte[5 + PIV_PIN_LENGTH];
+        cmd[0] = CLA;
+        cmd[1] = INS_VERIFY;
+        cmd[2] = 0x00;
+        cmd[3] = PIV_APPLICATION_PIN;
+        cmd[4] = PIV_PIN_LENGTH;
+        for (int i = 0; i < PIV_PIN_LENGTH; i++)
+            cmd[5 + i] = i < pin.length() ? (byte) pin.charAt(i) : (byte) 0xFF;
+        return cmd;
+    }
+
+    /**
+     * PIV VERIFY with P1 FF, which resets the security status of the
+     * application PIN (SP 800-73-4 part 2, 3.2.1)
+     *
+     * @return command APDU
+     */
+    public static byte[] resetPin() {
+        return new byte[] { CLA, INS_VERIFY, (byte) 0xFF, PIV_APPLICATION_PIN };
+    }
+
+    /**
+     * GET RESPONSE used to fetch the remaining bytes after a 61xx status
+     *
+     * @param le number of bytes to fetch, 0 means 256
+     * @return command APDU
+     */
+    public static byte[] getResponse(int le) {
+        return new byte[] { CLA, INS_GET_RESPONSE, 0x00, 0x00, (byte) le };
+    }
+
+    /**
+     * @return true if the command uses extended Lc/Le fields
+     */
+    public static boolean isExtended(byte[] command) {
+        return command.length > 5 && command[4] == 0x00;
+    }
+
+    /**
+     * @param response response APDU
+     * @return SW1 SW2 of the response as an int
+     */
+    public static int sw(byte[] response) {
+        if (response == null || response.length < 2)
+            return CardException.NO_STATUS;
+        return ((response[response.length - 2] & 0xFF) << 8) | (response[response.length - 1] & 0xFF);
+    }
+
+    public static String swToString(int sw) {
+        return sw == CardException.NO_STATUS ? "none" : String.format("%04X", sw);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * How to size the APDUs sent to one card model: short APDUs with up to 256
+ * bytes per response and GET RESPONSE for the rest, or extended length APDUs
+ * that return a whole container in one exchange.
+ * <p>
+ *     A profile derived from the ATR alone is a guess until the first GET DATA
+ *     has shown that the card and the reader driver both take extended APDUs.
+ *     {@link PivCardReader} makes that check once and records the confirmed
+ *     profile in {@link ApduProfiles}, so later insertions skip it.
+ */
+public final class ApduProfile {
+    public static final int SHORT_MAX_LE = 256;
+    public static final int EXTENDED_MAX_LE = 65536;
+
+    /** short APDUs, known to work with every card */
+    public static final ApduProfile SHORT = new ApduProfile(false, true);
+    /** extended APDUs, confirmed on the card */
+    public static final ApduProfile EXTENDED = new ApduProfile(true, true);
+    /** extended APDUs are worth trying but not confirmed yet */
+    static final ApduProfile EXTENDED_UNCONFIRMED = new ApduProfile(true, false);
+
+    private final boolean extendedLength;
+    private final boolean confirmed;
+
+    private ApduProfile(boolean extendedLength, boolean confirmed) {
+        this.extendedLength = extendedLength;
+        this.confirmed = confirmed;
+    }
+
+    /**
+     * Pick the APDU form for a card from its ATR and the negotiated protocol.
+     * T=0 cannot carry extended APDUs without ENVELOPE, so T=0 is always short.
+     * A T=1 card that says nothing in its historical bytes is tried with
+     * extended APDUs, since most current PIV cards take them.
+     *
+     * @param atr parsed ATR
+     * @param protocol negotiated protocol, Atr.PROTOCOL_T0 or Atr.PROTOCOL_T1
+     * @return profile to start with
+     */
+    public static ApduProfile fromAtr(Atr atr, int protocol) {
+        if (protocol != Atr.PROTOCOL_T1)
+            return SHORT;
+        Boolean extended = atr.getExtendedLength();
+        if (extended != null && !extended)
+            return SHORT;
+        return EXTENDED_UNCONFIRMED;
+    }
+
+    public boolean isExtendedLength() {
+        return extendedLength;
+    }
+
+    /**
+     * @return true once the profile has been seen to work on the card
+     */
+    public boolean isConfirmed() {
+        return confirmed;
+    }
+
+    @Override
+    public String toString() {
+        return (extendedLength ? "extended" : "short") + (confirmed ? "" : "?");
+    }
+}
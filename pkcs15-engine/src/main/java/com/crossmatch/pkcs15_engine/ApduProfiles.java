@@ -0,0 +1,51 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Confirmed {@link ApduProfile} of each card model seen, keyed by ATR.
+ * Cards of one model share an ATR, so the first insertion learns the profile
+ * and the next ones start with it. Least recently used ATRs are dropped
+ * beyond the size limit.
+ */
+public class ApduProfiles {
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    private final Map<String, ApduProfile> profiles;
+
+    public ApduProfiles() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ApduProfiles(final int maxEntries) {
+        profiles = new LinkedHashMap<String, ApduProfile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ApduProfile> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return profile learned for the ATR, or null if the card model is new
+     */
+    public synchronized ApduProfile get(byte[] atr) {
+        return atr == null ? null : profiles.get(Hex.encode(atr));
+    }
+
+    /**
+     * Remember a confirmed profile for the ATR
+     */
+    public synchronized void put(byte[] atr, ApduProfile profile) {
+        if (atr != null && profile.isConfirmed())
+            profiles.put(Hex.encode(atr), profile);
+    }
+
+    public synchronized int size() {
+        return profiles.size();
+    }
+}
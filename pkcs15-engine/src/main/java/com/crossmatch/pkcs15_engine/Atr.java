@@ -0,0 +1,181 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Arrays;
+
+/**
+ * Fields of an ISO 7816-3 answer to reset that matter to the read path:
+ * the protocols the card offers, TA1, the T=1 IFSC and the card capabilities
+ * from the historical bytes (ISO 7816-4 compact-TLV, tag 7).
+ * <p>
+ *     Parsing is lenient. A truncated or odd ATR gives what could be read and
+ *     leaves the rest unknown, since the card is still usable with short APDUs.
+ */
+public final class Atr {
+    public static final int PROTOCOL_T0 = 1;
+    public static final int PROTOCOL_T1 = 2;
+
+    /** third software function byte of the card capabilities */
+    private static final int CAPS_COMMAND_CHAINING = 0x80;
+    private static final int CAPS_EXTENDED_LENGTH = 0x40;
+
+    private final byte[] bytes;
+    private int protocols = 0;
+    private int ta1 = -1;
+    private int ifsc = -1;
+    private byte[] historical = new byte[0];
+    private int capabilities = -1;
+
+    private Atr(byte[] bytes) {
+        this.bytes = bytes.clone();
+    }
+
+    /**
+     * @param atr ATR as returned by the reader
+     * @return parsed ATR
+     */
+    public static Atr parse(byte[] atr) {
+        Atr out = new Atr(atr);
+        if (atr.length < 2)
+            return out;
+
+        int t0 = atr[1] & 0xFF;
+        int y = t0 >> 4;
+        int k = t0 & 0x0F;
+        int pos = 2;
+        int i = 1;
+        int lastProtocol = -1;
+        boolean anyTd = false;
+        while (pos < atr.length) {
+            if ((y & 0x1) != 0) {
+                if (pos >= atr.length)
+                    return out;
+                int ta = atr[pos++] & 0xFF;
+                if (i == 1)
+                    out.ta1 = ta;
+                else if (i > 2 && lastProtocol == 1 && out.ifsc < 0)
+                    out.ifsc = ta;
+            }
+            if ((y & 0x2) != 0)
+                pos++;
+            if ((y & 0x4) != 0)
+                pos++;
+            if ((y & 0x8) == 0)
+                break;
+            if (pos >= atr.length)
+                return out;
+            int td = atr[pos++] & 0xFF;
+            anyTd = true;
+            lastProtocol = td & 0x0F;
+            if (lastProtocol == 0)
+                out.protocols |= PROTOCOL_T0;
+            else if (lastProtocol == 1)
+                out.protocols |= PROTOCOL_T1;
+            y = td >> 4;
+            i++;
+        }
+        // without TD1 the card only speaks T=0
+        if (!anyTd)
+            out.protocols = PROTOCOL_T0;
+
+        if (pos + k > atr.length)
+            return out;
+        out.historical = Arrays.copyOfRange(atr, pos, pos + k);
+        out.capabilities = capabilities(out.historical);
+        return out;
+    }
+
+    /**
+     * Find the third card capabilities byte in the historical bytes
+     *
+     * @return the byte, or -1 if the card does not say
+     */
+    private static int capabilities(byte[] historical) {
+        if (historical.length == 0)
+            return -1;
+        int category = historical[0] & 0xFF;
+        int end;
+        if (category == 0x00)
+            end = historical.length - 3; // status indicator follows the objects
+        else if (category == 0x80)
+            end = historical.length;
+        else
+            return -1;
+
+        int pos = 1;
+        while (pos < end) {
+            int tag = (historical[pos] & 0xF0) >> 4;
+            int len = historical[pos] & 0x0F;
+            pos++;
+            if (pos + len > end)
+                return -1;
+            if (tag == 0x7)
+                return len >= 3 ? historical[pos + 2] & 0xFF : -1;
+            pos += len;
+        }
+        return -1;
+    }
+
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * @return PROTOCOL_T0 and/or PROTOCOL_T1
+     */
+    public int getProtocols() {
+        return protocols;
+    }
+
+    public boolean offersT1() {
+        return (protocols & PROTOCOL_T1) != 0;
+    }
+
+    /**
+     * @return TA1 (Fi and Di), or -1 if absent, which means the default 0x11
+     */
+    public int getTa1() {
+        return ta1;
+    }
+
+    /**
+     * @return information field size of the card for T=1, or -1 if absent (default 32)
+     */
+    public int getIfsc() {
+        return ifsc;
+    }
+
+    public byte[] getHistoricalBytes() {
+        return historical.clone();
+    }
+
+    /**
+     * @return true if the card says it supports extended Lc and Le, null if it does not say
+     */
+    public Boolean getExtendedLength() {
+        return capabilities < 0 ? null : (capabilities & CAPS_EXTENDED_LENGTH) != 0;
+    }
+
+    /**
+     * @return true if the card says it supports command chaining, null if it does not say
+     */
+    public Boolean getCommandChaining() {
+        return capabilities < 0 ? null : (capabilities & CAPS_COMMAND_CHAINING) != 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(offersT1() ? ((protocols & PROTOCOL_T0) != 0 ? "T=0,T=1" : "T=1") : "T=0");
+        if (ta1 >= 0)
+            sb.append(String.format(" TA1=%02X", ta1));
+        if (ifsc >= 0)
+            sb.append(" IFSC=").append(ifsc);
+        Boolean extended = getExtendedLength();
+        if (extended != null)
+            sb.append(extended ? " extended" : " short");
+        return sb.toString();
+    }
+}
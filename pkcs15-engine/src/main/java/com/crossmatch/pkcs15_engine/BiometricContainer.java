@@ -0,0 +1,194 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cardholder fingerprints or facial image container (SP 800-76-2).
+ * <p>
+ *     The container holds one BC element made of a fixed 88 byte CBEFF header,
+ *     the biometric data block (INCITS 378 minutiae or 385 face image) and the
+ *     CMS signature block. Header fields are read straight from the container.
+ */
+public final class BiometricContainer {
+    static final int TAG_BIOMETRIC = 0xBC;
+    public static final int CBEFF_HEADER_LENGTH = 88;
+
+    // offsets into the CBEFF header
+    private static final int HDR_VERSION = 0;
+    private static final int HDR_SECURITY_OPTIONS = 1;
+    private static final int HDR_BDB_LENGTH = 2;
+    private static final int HDR_SB_LENGTH = 6;
+    private static final int HDR_FORMAT_OWNER = 8;
+    private static final int HDR_FORMAT_TYPE = 10;
+    private static final int HDR_CREATION_DATE = 12;
+    private static final int HDR_VALIDITY = 20;
+    private static final int HDR_BIOMETRIC_TYPE = 36;
+    private static final int HDR_DATA_TYPE = 39;
+    private static final int HDR_QUALITY = 40;
+    private static final int HDR_CREATOR = 41;
+    private static final int HDR_FASCN = 59;
+
+    /** biometric type of fingerprint and facial image data */
+    public static final int TYPE_FINGERPRINT = 0x000008;
+    public static final int TYPE_FACIAL_IMAGE = 0x000002;
+
+    /** security option bits */
+    public static final int SECURITY_SIGNED = 0x01;
+
+    private final ByteBuffer buf;
+    private final int header;
+    private final int blockEnd;
+
+    private BiometricContainer(ByteBuffer buf, int header, int blockEnd) {
+        this.buf = buf;
+        this.header = header;
+        this.blockEnd = blockEnd;
+    }
+
+    /**
+     * @param container container contents between position and limit, without the 53 tag
+     * @return parsed container
+     * @throws CardException if there is no complete CBEFF record
+     */
+    public static BiometricContainer parse(ByteBuffer container) throws CardException {
+        TlvReader tlv = new TlvReader(container);
+        if (!tlv.find(TAG_BIOMETRIC))
+            throw new CardException("No biometric record in container");
+        if (tlv.valueLength() < CBEFF_HEADER_LENGTH)
+            throw new CardException("CBEFF header truncated");
+
+        BiometricContainer bio = new BiometricContainer(container, tlv.valueOffset(), tlv.valueEnd());
+        long needed = (long) CBEFF_HEADER_LENGTH + bio.getBiometricDataLength() + bio.getSignatureBlockLength();
+        if (needed > tlv.valueLength())
+            throw new CardException("CBEFF record is " + tlv.valueLength() + " bytes, header says " + needed);
+        return bio;
+    }
+
+    public static BiometricContainer parse(byte[] container) throws CardException {
+        return parse(ByteBuffer.wrap(container));
+    }
+
+    public int getHeaderVersion() {
+        return u8(HDR_VERSION);
+    }
+
+    public int getSecurityOptions() {
+        return u8(HDR_SECURITY_OPTIONS);
+    }
+
+    public boolean isSigned() {
+        return (getSecurityOptions() & SECURITY_SIGNED) != 0;
+    }
+
+    public int getBiometricDataLength() {
+        return buf.getInt(header + HDR_BDB_LENGTH);
+    }
+
+    public int getSignatureBlockLength() {
+        return u16(HDR_SB_LENGTH);
+    }
+
+    /**
+     * @return CBEFF format owner, 0x001B for INCITS
+     */
+    public int getFormatOwner() {
+        return u16(HDR_FORMAT_OWNER);
+    }
+
+    /**
+     * @return CBEFF format type, 0x0201 for INCITS 378 minutiae, 0x0501 for INCITS 385 face
+     */
+    public int getFormatType() {
+        return u16(HDR_FORMAT_TYPE);
+    }
+
+    /**
+     * @return creation date as YYYYMMDDhhmmssZ, from the 8 byte binary header field
+     */
+    public String getCreationDate() {
+        return dateTime(header + HDR_CREATION_DATE);
+    }
+
+    /**
+     * @return validity period as two YYYYMMDDhhmmssZ dates separated by '-'
+     */
+    public String getValidityPeriod() {
+        return dateTime(header + HDR_VALIDITY) + "-" + dateTime(header + HDR_VALIDITY + 8);
+    }
+
+    public int getBiometricType() {
+        return (u8(HDR_BIOMETRIC_TYPE) << 16) | u16(HDR_BIOMETRIC_TYPE + 1);
+    }
+
+    public int getBiometricDataType() {
+        return u8(HDR_DATA_TYPE);
+    }
+
+    public int getBiometricDataQuality() {
+        return buf.get(header + HDR_QUALITY);
+    }
+
+    /**
+     * @return creator string, up to 18 ASCII characters
+     */
+    public String getCreator() {
+        int length = 0;
+        while (length < 18 && buf.get(header + HDR_CREATOR + length) != 0)
+            length++;
+        return TlvReader.ascii(buf, header + HDR_CREATOR, length);
+    }
+
+    /**
+     * @return FASC-N of the card the biometric was bound to
+     */
+    public byte[] getFascn() {
+        return TlvReader.copy(buf, header + HDR_FASCN, 25);
+    }
+
+    /**
+     * @return view of the biometric data block, sharing the container data
+     */
+    public ByteBuffer getBiometricData() {
+        return TlvReader.view(buf, header + CBEFF_HEADER_LENGTH, getBiometricDataLength());
+    }
+
+    /**
+     * @return view of the CMS signature block, empty if unsigned
+     */
+    public ByteBuffer getSignatureBlock() {
+        int offset = header + CBEFF_HEADER_LENGTH + getBiometricDataLength();
+        return TlvReader.view(buf, offset, Math.min(getSignatureBlockLength(), blockEnd - offset));
+    }
+
+    /**
+     * @return view of the data covered by the signature, the header and the biometric data block
+     */
+    public ByteBuffer getSignedContent() {
+        return TlvReader.view(buf, header, CBEFF_HEADER_LENGTH + getBiometricDataLength());
+    }
+
+    private int u8(int offset) {
+        return buf.get(header + offset) & 0xFF;
+    }
+
+    private int u16(int offset) {
+        return buf.getShort(header + offset) & 0xFFFF;
+    }
+
+    private String dateTime(int offset) {
+        // YYYY MM DD hh mm ss Z, binary with a two byte year
+        int year = buf.getShort(offset) & 0xFFFF;
+        StringBuilder sb = new StringBuilder(15);
+        sb.append(year);
+        for (int i = 2; i < 7; i++) {
+            int v = buf.get(offset + i) & 0xFF;
+            if (v < 10)
+                sb.append('0');
+            sb.append(v);
+        }
+        return sb.append('Z').toString();
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.ArrayDeque;
+
+/**
+ * Small pool of {@link ResponseBuffer}s so that assembling container
+ * responses does not allocate a new array for every read.
+ * <p>
+ *     Buffers are zeroed on release. The pool keeps at most maxBuffers and
+ *     drops buffers that grew past maxRetainedBytes, so one large facial image
+ *     does not pin its memory for good on a small heap.
+ */
+public final class BufferPool {
+    /** fits every container but the facial image without growing */
+    public static final int DEFAULT_BUFFER_BYTES = 8 * 1024;
+    public static final int DEFAULT_MAX_BUFFERS = 2;
+    public static final int DEFAULT_MAX_RETAINED_BYTES = 64 * 1024;
+
+    private final ArrayDeque<ResponseBuffer> free = new ArrayDeque<>();
+    private final int bufferBytes;
+    private final int maxBuffers;
+    private final int maxRetainedBytes;
+    private int created = 0;
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_BYTES, DEFAULT_MAX_BUFFERS, DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    public BufferPool(int bufferBytes, int maxBuffers, int maxRetainedBytes) {
+        this.bufferBytes = bufferBytes;
+        this.maxBuffers = maxBuffers;
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @return an empty buffer, pooled if one is free
+     */
+    public synchronized ResponseBuffer acquire() {
+        ResponseBuffer buffer = free.poll();
+        if (buffer != null)
+            return buffer;
+        created++;
+        return new ResponseBuffer(bufferBytes);
+    }
+
+    /**
+     * Zero the buffer and keep it for reuse. The caller must not touch it
+     * or any view of it afterwards.
+     */
+    public void release(ResponseBuffer buffer) {
+        buffer.wipe();
+        synchronized (this) {
+            if (free.size() < maxBuffers && buffer.capacity() <= maxRetainedBytes)
+                free.push(buffer);
+        }
+    }
+
+    /**
+     * @return number of buffers allocated so far, for tests and diagnostics
+     */
+    public synchronized int getCreated() {
+        return created;
+    }
+}
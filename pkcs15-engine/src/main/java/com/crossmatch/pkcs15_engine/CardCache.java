@@ -0,0 +1,234 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of container contents for cards that have been read before.
+ * <p>
+ *     Entries are keyed by {@link CardIdentity} and container, and evicted
+ *     least recently used first once the total size goes over the byte budget,
+ *     so one large facial image does not push out the CHUIDs of many cards.
+ * <p>
+ *     A card is only served from the cache after {@link #validate} has seen
+ *     the same ATR and the same CHUID bytes on the card that was just inserted.
+ *     Both can be copied to another card, so containers that need the PIN are
+ *     never cached: a PIN verified on a card with a cloned CHUID must not
+ *     unlock the biometrics of the card the CHUID belongs to.
+ * <p>
+ *     The {@link Pkcs15Index} of a validated card is kept with its identity
+ *     and dropped with it.
+ */
+public class CardCache {
+    /** where a cached container came from */
+    public static final int SOURCE_READ = 0;
+    public static final int SOURCE_PREFETCH = 1;
+
+    private final long maxBytes;
+    private long usedBytes = 0;
+
+    // access ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<CardIdentity, CardRecord> cards = new HashMap<>();
+
+    private static final class Key {
+        final CardIdentity identity;
+        final PivContainer container;
+
+        Key(CardIdentity identity, PivContainer container) {
+            this.identity = identity;
+            this.container = container;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return identity.equals(other.identity) && container == other.container;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * identity.hashCode() + container.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final byte[] data;
+        final int source;
+
+        Entry(byte[] data, int source) {
+            this.data = data;
+            this.source = source;
+        }
+    }
+
+    private static final class CardRecord {
+        final byte[] atr;
+        final byte[] chuid;
+        int entryCount = 0;
+        Pkcs15Index index = null;
+
+        CardRecord(byte[] atr, byte[] chuid) {
+            this.atr = atr;
+            this.chuid = chuid;
+        }
+    }
+
+    /**
+     * @param maxBytes total size of cached container data to keep
+     */
+    public CardCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Check a freshly inserted card against the cache. If the ATR or the
+     * CHUID no longer match what was cached for this identity everything
+     * cached for it is dropped.
+     *
+     * @param atr ATR of the inserted card
+     * @param chuid CHUID read from the inserted card
+     * @return identity of the card, or null if the CHUID cannot identify it
+     */
+    public synchronized CardIdentity validate(byte[] atr, byte[] chuid) {
+        CardIdentity identity = CardIdentity.fromChuid(chuid);
+        if (identity == null)
+            return null;
+
+        CardRecord record = cards.get(identity);
+        if (record != null && (!Arrays.equals(record.atr, atr) || !Arrays.equals(record.chuid, chuid))) {
+            // card was re-issued or re-personalised, nothing cached can be trusted
+            invalidate(identity);
+            record = null;
+        }
+        if (record == null) {
+            // the CHUID is cached like any other container and keeps the record alive
+            byte[] copy = chuid.clone();
+            cards.put(identity, new CardRecord(atr, copy));
+            store(identity, PivContainer.CHUID, copy, SOURCE_READ);
+        }
+        trim();
+        return identity;
+    }
+
+    /**
+     * @param identity identity returned by {@link #validate}
+     * @param container container to look up
+     * @return cached contents or null, always null for a PIN protected container
+     */
+    public synchronized byte[] get(CardIdentity identity, PivContainer container) {
+        if (identity == null || container.isPinRequired())
+            return null;
+        Entry entry = entries.get(new Key(identity, container));
+        return entry == null ? null : entry.data;
+    }
+
+    /**
+     * @return SOURCE_READ or SOURCE_PREFETCH, or -1 if the container is not cached
+     */
+    public synchronized int getSource(CardIdentity identity, PivContainer container) {
+        Entry entry = identity == null ? null : entries.get(new Key(identity, container));
+        return entry == null ? -1 : entry.source;
+    }
+
+    /**
+     * @param identity identity returned by {@link #validate}
+     * @return the object index stored for the card, or null
+     */
+    public synchronized Pkcs15Index getIndex(CardIdentity identity) {
+        CardRecord record = identity == null ? null : cards.get(identity);
+        return record == null ? null : record.index;
+    }
+
+    /**
+     * Keep the object index of a validated card for its next insertion
+     */
+    public synchronized void putIndex(CardIdentity identity, Pkcs15Index index) {
+        CardRecord record = identity == null ? null : cards.get(identity);
+        if (record != null)
+            record.index = index;
+    }
+
+    public synchronized void put(CardIdentity identity, PivContainer container, byte[] data) {
+        put(identity, container, data, SOURCE_READ);
+    }
+
+    /**
+     * Keep a container read from a validated card. PIN protected containers
+     * are not kept.
+     *
+     * @param source SOURCE_READ or SOURCE_PREFETCH
+     */
+    public synchronized void put(CardIdentity identity, PivContainer container, byte[] data, int source) {
+        if (identity == null || data.length > maxBytes || container.isPinRequired())
+            return;
+        if (!cards.containsKey(identity))
+            return;     // not validated, we don't know this is the same card
+        if (container == PivContainer.CHUID)
+            return;     // kept by validate()
+
+        store(identity, container, data, source);
+        trim();
+    }
+
+    private void store(CardIdentity identity, PivContainer container, byte[] data, int source) {
+        Entry old = entries.put(new Key(identity, container), new Entry(data, source));
+        if (old != null)
+            usedBytes -= old.data.length;
+        else
+            cards.get(identity).entryCount++;
+        usedBytes += data.length;
+    }
+
+    /**
+     * Drop everything cached for a card
+     */
+    public synchronized void invalidate(CardIdentity identity) {
+        CardRecord record = cards.remove(identity);
+        if (record == null)
+            return;
+
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            if (e.getKey().identity.equals(identity)) {
+                usedBytes -= e.getValue().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        cards.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Evict least recently used containers until we are back under budget
+     */
+    private void trim() {
+        Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Key, Entry> e = it.next();
+            usedBytes -= e.getValue().data.length;
+            it.remove();
+
+            CardRecord record = cards.get(e.getKey().identity);
+            if (record != null && --record.entryCount == 0)
+                cards.remove(e.getKey().identity);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Raised when the card or the transport to it fails.
+ * <p>
+ *     If the failure came from the card itself the ISO 7816 status word is
+ *     available from {@link #getStatusWord()}, otherwise it is {@link #NO_STATUS}.
+ */
+public class CardException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public static final int NO_STATUS = -1;
+
+    private final int statusWord;
+
+    public CardException(String message) {
+        super(message);
+        statusWord = NO_STATUS;
+    }
+
+    public CardException(String message, int statusWord) {
+        super(message + " (SW=" + Apdu.swToString(statusWord) + ")");
+        this.statusWord = statusWord;
+    }
+
+    public CardException(String message, Throwable cause) {
+        super(message, cause);
+        statusWord = NO_STATUS;
+    }
+
+    public int getStatusWord() {
+        return statusWord;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Arrays;
+
+/**
+ * Stable identity of a PIV card taken from its CHUID: the FASC-N (tag 30)
+ * and the card GUID (tag 34). These do not change for the life of the card,
+ * unlike the ATR which is shared by every card of the same model.
+ */
+public final class CardIdentity {
+    private final byte[] fascn;
+    private final byte[] guid;
+
+    CardIdentity(byte[] fascn, byte[] guid) {
+        this.fascn = fascn;
+        this.guid = guid;
+    }
+
+    /**
+     * @param chuid CHUID container contents
+     * @return identity, or null if the CHUID is malformed or has neither a FASC-N nor a GUID
+     */
+    public static CardIdentity fromChuid(byte[] chuid) {
+        Chuid parsed;
+        try {
+            parsed = Chuid.parse(chuid);
+        } catch (CardException e) {
+            return null;
+        }
+
+        byte[] fascn = parsed.getFascn();
+        byte[] guid = parsed.getGuid();
+        if (fascn == null && guid == null)
+            return null;
+        return new CardIdentity(fascn, guid);
+    }
+
+    public byte[] getFascn() {
+        return fascn;
+    }
+
+    public byte[] getGuid() {
+        return guid;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CardIdentity))
+            return false;
+        CardIdentity other = (CardIdentity) o;
+        return Arrays.equals(fascn, other.fascn) && Arrays.equals(guid, other.guid);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(fascn) + Arrays.hashCode(guid);
+    }
+
+    @Override
+    public String toString() {
+        return "FASC-N " + Hex.encode(fascn) + " GUID " + Hex.encode(guid);
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A unit of card work run by {@link CardJobScheduler}.
+ * <p>
+ *     Jobs carry a priority, a timeout and optionally a key: a job submitted
+ *     while an equal-keyed job is still queued is merged into the queued one
+ *     instead of running twice. A job that is cancelled, times out or whose
+ *     card is removed is either dropped from the queue ({@link #onDropped}) or,
+ *     if it is already running, told to stop ({@link #onCancel}), which should
+ *     unblock whatever native call the job is waiting in.
+ */
+public abstract class CardJob {
+    /** user is waiting for the result */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** speculative work such as prefetch */
+    public static final int PRIORITY_BACKGROUND = 10;
+
+    /** reasons passed to {@link #onDropped(int)} */
+    public static final int DROPPED_CANCELLED = 1;
+    public static final int DROPPED_EXPIRED = 2;
+    public static final int DROPPED_SHUTDOWN = 3;
+
+    static final int STATE_NEW = 0;
+    static final int STATE_QUEUED = 1;
+    static final int STATE_RUNNING = 2;
+    static final int STATE_FINISHED = 3;
+
+    private final String key;
+    private final int priority;
+    private final long timeoutNanos;
+    private volatile String reader;
+    private volatile boolean cancelled = false;
+    private volatile boolean expired = false;
+
+    // managed by the scheduler under its lock
+    CardJobScheduler scheduler = null;
+    int state = STATE_NEW;
+    long sequence;
+    long deadlineNanos;
+    ScheduledFuture<?> timer;
+
+    /**
+     * @param reader reader the job uses, or null if not known yet
+     * @param key jobs with equal keys are merged while queued, null for never
+     * @param priority PRIORITY_INTERACTIVE or PRIORITY_BACKGROUND, lower runs first
+     * @param timeoutMillis time from submit to cancel, 0 for no deadline
+     */
+    protected CardJob(String reader, String key, int priority, long timeoutMillis) {
+        this.reader = reader;
+        this.key = key;
+        this.priority = priority;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+    }
+
+    /**
+     * Do the work. Called on a scheduler worker; should check
+     * {@link #isCancelled()} between steps.
+     */
+    protected abstract void run();
+
+    /**
+     * Called once, on the cancelling thread, when the job is cancelled while
+     * running. Stop the job, e.g. cancel the PCSC call or destroy the process.
+     */
+    protected void onCancel() {
+    }
+
+    /**
+     * Called once when the job is removed from the queue without running,
+     * so the job can tell whoever is waiting for its result
+     *
+     * @param reason DROPPED_CANCELLED, DROPPED_EXPIRED or DROPPED_SHUTDOWN
+     */
+    protected void onDropped(int reason) {
+    }
+
+    /**
+     * Called once, on the worker, when {@link #run()} throws, so the job can
+     * tell whoever is waiting for its result
+     */
+    protected void onFailed(RuntimeException ex) {
+    }
+
+    /**
+     * Called under the scheduler lock when a job with the same key is submitted
+     * while this one is still queued.
+     *
+     * @return true if this job also serves the duplicate, which is then not queued
+     */
+    protected boolean merge(CardJob duplicate) {
+        return true;
+    }
+
+    /**
+     * Cancel the job: drop it if it is queued, stop it if it is running
+     *
+     * @return false if the job had already finished or been cancelled
+     */
+    public boolean cancel() {
+        CardJobScheduler s = scheduler;
+        if (s == null) {
+            cancelled = true;
+            return true;
+        }
+        return s.cancel(this, DROPPED_CANCELLED);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the job was cancelled because its deadline passed
+     */
+    public boolean isExpired() {
+        return expired;
+    }
+
+    void markCancelled(boolean byDeadline) {
+        expired = byDeadline;
+        cancelled = true;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    public String getReader() {
+        return reader;
+    }
+
+    /**
+     * Set the reader once it is known, so the job is cancelled with the card
+     */
+    protected void setReader(String reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + (key != null ? "[" + key + "]" : "");
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link CardJob}s on a few worker threads, interactive jobs before
+ * background ones and in submit order within a priority.
+ * <p>
+ *     Several workers are used so a job stuck on one card cannot hold up
+ *     the others; jobs for the same card still take turns on the card
+ *     session. Deadlines are enforced by a timer thread that cancels the job,
+ *     queued or running. A job that throws is told through
+ *     {@link CardJob#onFailed} and reported to the {@link Listener}, and the
+ *     worker goes on. All queue state is guarded by the scheduler monitor.
+ */
+public final class CardJobScheduler {
+    public interface Listener {
+        /**
+         * Called on the worker when a job's run throws, after the job was told
+         */
+        void onJobFailed(CardJob job, RuntimeException ex);
+    }
+
+    private final PriorityQueue<CardJob> queue = new PriorityQueue<>(16, new Comparator<CardJob>() {
+        @Override
+        public int compare(CardJob a, CardJob b) {
+            if (a.getPriority() != b.getPriority())
+                return a.getPriority() < b.getPriority() ? -1 : 1;
+            return Long.compare(a.sequence, b.sequence);
+        }
+    });
+    private final Map<String, CardJob> queuedByKey = new HashMap<>();
+    private final List<CardJob> running = new ArrayList<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final Thread[] workers;
+    private long nextSequence = 0;
+    private boolean shutdown = false;
+    private volatile Listener listener = null;
+
+    public CardJobScheduler(final String name, int workerCount) {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-deadline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name + "-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param listener told about failed jobs, e.g. to log them, or null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Queue a job
+     *
+     * @return the job that will do the work: the given one, or the queued
+     *         job it was merged into
+     */
+    public CardJob submit(final CardJob job) {
+        int dropped = 0;
+        synchronized (this) {
+            if (job.state != CardJob.STATE_NEW)
+                throw new IllegalStateException(job + " was already submitted");
+            if (job.getKey() != null) {
+                CardJob queued = queuedByKey.get(job.getKey());
+                if (queued != null && queued.merge(job))
+                    return queued;
+            }
+            job.scheduler = this;
+            if (shutdown || job.isCancelled()) {
+                job.state = CardJob.STATE_FINISHED;
+                dropped = shutdown ? CardJob.DROPPED_SHUTDOWN : CardJob.DROPPED_CANCELLED;
+            } else {
+                job.sequence = nextSequence++;
+                job.state = CardJob.STATE_QUEUED;
+                queue.add(job);
+                if (job.getKey() != null)
+                    queuedByKey.put(job.getKey(), job);
+                if (job.getTimeoutNanos() > 0) {
+                    job.deadlineNanos = System.nanoTime() + job.getTimeoutNanos();
+                    job.timer = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            cancel(job, CardJob.DROPPED_EXPIRED);
+                        }
+                    }, job.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+                }
+                notify();
+            }
+        }
+        if (dropped != 0) {
+            job.markCancelled(false);
+            job.onDropped(dropped);
+        }
+        return job;
+    }
+
+    /**
+     * Cancel every queued and running job for a reader, e.g. when its card was removed
+     *
+     * @return number of jobs cancelled
+     */
+    public int cancelReader(String reader) {
+        List<CardJob> matches = new ArrayList<>();
+        synchronized (this) {
+            for (CardJob job : queue)
+                if (reader.equals(job.getReader()))
+                    matches.add(job);
+            for (CardJob job : running)
+                if (reader.equals(job.getReader()))
+                    matches.add(job);
+        }
+        int n = 0;
+        for (CardJob job : matches)
+            if (cancel(job, CardJob.DROPPED_CANCELLED))
+                n++;
+        return n;
+    }
+
+    boolean cancel(CardJob job, int reason) {
+        boolean wasQueued;
+        synchronized (this) {
+            if (job.state == CardJob.STATE_FINISHED || job.isCancelled())
+                return false;
+            job.markCancelled(reason == CardJob.DROPPED_EXPIRED);
+            wasQueued = job.state == CardJob.STATE_QUEUED;
+            if (wasQueued) {
+                queue.remove(job);
+                unindex(job);
+                finish(job);
+            }
+        }
+        // callbacks outside the lock, they may block on the card or a process
+        if (wasQueued)
+            job.onDropped(reason);
+        else
+            job.onCancel();
+        return true;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized int getRunning() {
+        return running.size();
+    }
+
+    /**
+     * Cancel everything and stop the workers once their current jobs return
+     */
+    public void shutdown() {
+        List<CardJob> all;
+        synchronized (this) {
+            shutdown = true;
+            all = new ArrayList<>(queue);
+            all.addAll(running);
+            notifyAll();
+        }
+        for (CardJob job : all)
+            cancel(job, CardJob.DROPPED_SHUTDOWN);
+        timer.shutdownNow();
+    }
+
+    private void work() {
+        while (true) {
+            CardJob job;
+            synchronized (this) {
+                while (queue.isEmpty() && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown)
+                    return;
+                job = queue.poll();
+                unindex(job);
+                job.state = CardJob.STATE_RUNNING;
+                running.add(job);
+            }
+            try {
+                job.run();
+            } catch (RuntimeException ex) {
+                // a failing job must not take the worker with it
+                failed(job, ex);
+            } finally {
+                synchronized (this) {
+                    running.remove(job);
+                    finish(job);
+                }
+            }
+        }
+    }
+
+    private void failed(CardJob job, RuntimeException ex) {
+        try {
+            job.onFailed(ex);
+        } catch (RuntimeException again) {
+            ex.addSuppressed(again);
+        }
+        Listener l = listener;
+        if (l != null)
+            l.onJobFailed(job, ex);
+    }
+
+    private void unindex(CardJob job) {
+        if (job.getKey() != null && queuedByKey.get(job.getKey()) == job)
+            queuedByKey.remove(job.getKey());
+    }
+
+    private void finish(CardJob job) {
+        job.state = CardJob.STATE_FINISHED;
+        if (job.timer != null) {
+            job.timer.cancel(false);
+            job.timer = null;
+        }
+    }
+}
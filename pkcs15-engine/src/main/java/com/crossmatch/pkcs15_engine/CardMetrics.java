@@ -0,0 +1,181 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters for the card pipeline, from reader
+ * enumeration to parsed data.
+ * <p>
+ *     Every structure is allocated in the constructor and updated with atomic
+ *     operations only, so recording from the reader workers, the intent
+ *     service and the UI thread never blocks. Callers time a phase with
+ *     System.nanoTime() and pass the elapsed time to {@link #record}.
+ */
+public final class CardMetrics {
+    public enum Phase {
+        // loading the PC/SC JNI library, once per process
+        NATIVE_LOAD("native library load"),
+        ESTABLISH_CONTEXT("establishContext"),
+        LIST_READERS("listReaders"),
+        // from getStatus reporting a reader change to its state event being
+        // published, including any time the change was held back to debounce
+        READER_EVENT("reader event to broadcast"),
+        ATR_FETCH("getStatusChange ATR"),
+        CONNECT("connect"),
+        TRANSMIT("transmit"),
+        PROCESS_SPAWN("process spawn"),
+        // from spawn to the first byte of output
+        FIRST_OUTPUT("first output byte"),
+        // from spawn to exit
+        PROCESS_EXIT("process exit"),
+        PARSE("parse"),
+        // signature checks still running once the last container was read
+        VERIFY_WAIT("signature check wait"),
+        // 1:N search of the fingerprint gallery
+        MATCH("fingerprint match"),
+        // one PIV read request, from establishContext to the last container sent
+        CARD_READ("card read"),
+        // from the app being opened to the first card event reaching it
+        FIRST_EVENT("launch to first card event");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    // distinct PCSC error codes tracked, further codes are counted together
+    static final int FAILURE_SLOTS = 32;
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final LatencyHistogram[] histograms;
+    private final AtomicLong cards = new AtomicLong();
+    private final AtomicLongArray failureCodes = new AtomicLongArray(FAILURE_SLOTS);
+    private final AtomicLongArray failureCounts = new AtomicLongArray(FAILURE_SLOTS);
+    private final AtomicLong otherFailures = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+
+    public CardMetrics() {
+        histograms = new LatencyHistogram[Phase.values().length];
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+        for (int i = 0; i < FAILURE_SLOTS; i++)
+            failureCodes.set(i, EMPTY);
+    }
+
+    public void record(Phase phase, long nanos) {
+        histograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Record the time since start, for the common
+     * {@code long t = System.nanoTime(); ...; metrics.since(phase, t)} pattern
+     */
+    public void since(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    /** count a card insertion */
+    public void cardSeen() {
+        cards.incrementAndGet();
+    }
+
+    public long getCards() {
+        return cards.get();
+    }
+
+    public double getCardsPerHour() {
+        double hours = (System.nanoTime() - startNanos) / 3.6e12;
+        return hours <= 0 ? 0 : cards.get() / hours;
+    }
+
+    /**
+     * Count a failure by error code, e.g. PcscException.errorCode()
+     */
+    public void failure(int code) {
+        // open addressing, a slot is claimed once with CAS and never freed
+        int start = (code * 0x9E3779B9 >>> 27) & (FAILURE_SLOTS - 1);
+        for (int i = 0; i < FAILURE_SLOTS; i++) {
+            int slot = (start + i) & (FAILURE_SLOTS - 1);
+            long current = failureCodes.get(slot);
+            if (current == EMPTY) {
+                if (failureCodes.compareAndSet(slot, EMPTY, code)) {
+                    failureCounts.incrementAndGet(slot);
+                    return;
+                }
+                current = failureCodes.get(slot);
+            }
+            if (current == code) {
+                failureCounts.incrementAndGet(slot);
+                return;
+            }
+        }
+        otherFailures.incrementAndGet();
+    }
+
+    /**
+     * @return number of failures recorded with the code
+     */
+    public long getFailures(int code) {
+        for (int i = 0; i < FAILURE_SLOTS; i++)
+            if (failureCodes.get(i) == code)
+                return failureCounts.get(i);
+        return 0;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+        cards.set(0);
+        // keep the codes so slots stay claimed, only the counts start again
+        for (int i = 0; i < FAILURE_SLOTS; i++)
+            failureCounts.set(i, 0);
+        otherFailures.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return plain text report, one line per phase then the counters
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-22s %7s %9s %9s %9s\n", "phase (ms)", "count", "p50", "p99", "max"));
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram h = histograms[phase.ordinal()];
+            if (h.getCount() == 0)
+                continue;
+            sb.append(String.format(Locale.US, "%-22s %7d %9.3f %9.3f %9.3f\n", phase.getLabel(), h.getCount(),
+                    h.getPercentileNanos(50) / 1e6, h.getPercentileNanos(99) / 1e6, h.getMaxNanos() / 1e6));
+        }
+        sb.append(String.format(Locale.US, "cards: %d (%.1f/hour)\n", cards.get(), getCardsPerHour()));
+        sb.append("failures:");
+        boolean any = false;
+        for (int i = 0; i < FAILURE_SLOTS; i++) {
+            long n = failureCounts.get(i);
+            if (n == 0)
+                continue;
+            sb.append(String.format(Locale.US, " 0x%08X=%d", (int) failureCodes.get(i), n));
+            any = true;
+        }
+        if (otherFailures.get() > 0) {
+            sb.append(" other=").append(otherFailures.get());
+            any = true;
+        }
+        sb.append(any ? "\n" : " none\n");
+        return sb.toString();
+    }
+}
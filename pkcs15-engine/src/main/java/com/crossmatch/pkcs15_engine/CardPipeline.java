@@ -0,0 +1,332 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Card processing for a steady stream of cards, in three stages so the next
+ * card is read while the previous one is still being checked:
+ * <ol>
+ *     <li>card I/O, on one thread per reader</li>
+ *     <li>parse, verify and match, on a pool of workers</li>
+ *     <li>publication, on one thread, in the order the reads finished</li>
+ * </ol>
+ * <p>
+ *     At most {@code capacity} cards are between the start of their read and
+ *     the end of their publication. When that many are in flight the reader
+ *     threads wait before reading the next card, so a slow processing stage
+ *     holds cards in the reader rather than piling up read data.
+ * <p>
+ *     A publication that throws is counted and passed to the {@link Listener},
+ *     and the next card is published as usual.
+ *
+ * @param <C> what the read stage hands to the processing stage
+ * @param <R> result of the processing stage
+ */
+public final class CardPipeline<C, R> {
+    public static final int DEFAULT_CAPACITY = 4;
+
+    public interface Stages<C, R> {
+        /**
+         * Read the card in the reader. Runs on the reader's thread and should
+         * do card I/O only, anything else delays the next card.
+         */
+        C read(String reader) throws Exception;
+
+        /**
+         * Decode, verify and match a card that was read. Runs on a worker,
+         * possibly next to the processing of other cards.
+         */
+        R process(C card) throws Exception;
+
+        /**
+         * Hand on the outcome of a card. Runs on the publisher thread, one
+         * card at a time.
+         */
+        void publish(Outcome<R> outcome);
+    }
+
+    public interface Listener<R> {
+        /**
+         * Called on the publisher thread when publishing an outcome threw
+         */
+        void onPublishFailed(Outcome<R> outcome, RuntimeException ex);
+    }
+
+    /** what became of one card */
+    public static final class Outcome<R> {
+        private final String reader;
+        private final long sequence;
+        private final R result;
+        private final Exception error;
+        private final long readNanos;
+        private final long processNanos;
+        private final long totalNanos;
+
+        Outcome(String reader, long sequence, R result, Exception error, long readNanos, long processNanos,
+                long totalNanos) {
+            this.reader = reader;
+            this.sequence = sequence;
+            this.result = result;
+            this.error = error;
+            this.readNanos = readNanos;
+            this.processNanos = processNanos;
+            this.totalNanos = totalNanos;
+        }
+
+        public String getReader() {
+            return reader;
+        }
+
+        /**
+         * @return position of the card in publication order, from 0
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return result of the processing stage, null if a stage failed
+         */
+        public R getResult() {
+            return result;
+        }
+
+        /**
+         * @return exception of the stage that failed, or null
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public long getReadNanos() {
+            return readNanos;
+        }
+
+        public long getProcessNanos() {
+            return processNanos;
+        }
+
+        /**
+         * @return time from {@link #submit} to publication
+         */
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+    }
+
+    private final class Card {
+        final String reader;
+        final long submitted;
+        long sequence;
+        long readNanos;
+        volatile long processNanos;
+        Exception error;
+        FutureTask<R> task;
+
+        Card(String reader, long submitted) {
+            this.reader = reader;
+            this.submitted = submitted;
+        }
+    }
+
+    private final String name;
+    private final Stages<C, R> stages;
+    private final Semaphore slots;
+    private final ExecutorService workers;
+    // guarded by itself
+    private final Map<String, ExecutorService> readers = new HashMap<>();
+    // in read completion order, bounded by the slots
+    private final BlockingQueue<Card> toPublish = new LinkedBlockingQueue<>();
+    private final Thread publisher;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+    private volatile Listener<R> listener = null;
+    private long nextSequence = 0;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param name prefix of the thread names
+     * @param stages what to do with each card
+     * @param workerCount threads of the processing stage
+     * @param capacity cards in flight at most, at least 1
+     */
+    public CardPipeline(String name, Stages<C, R> stages, int workerCount, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity " + capacity);
+        this.name = name;
+        this.stages = stages;
+        this.slots = new Semaphore(capacity);
+        this.workers = Executors.newFixedThreadPool(workerCount, daemon(name + "-worker"));
+        publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                publishAll();
+            }
+        }, name + "-publish");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * Read the card in the reader once the reader's earlier cards are read
+     * and there is room in the pipeline. Returns at once.
+     */
+    public void submit(final String reader) {
+        if (shutdown)
+            throw new IllegalStateException(name + " is shut down");
+        final long submitted = System.nanoTime();
+        readerThread(reader).execute(new Runnable() {
+            @Override
+            public void run() {
+                readCard(reader, submitted);
+            }
+        });
+    }
+
+    /**
+     * @return number of cards published so far
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return number of publications that threw
+     */
+    public long getPublishFailures() {
+        return publishFailures.get();
+    }
+
+    /**
+     * @param listener told about publications that threw, e.g. to log them, or null
+     */
+    public void setListener(Listener<R> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stop all stages. Cards in flight are dropped without being published.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (readers) {
+            for (ExecutorService reader : readers.values())
+                reader.shutdownNow();
+        }
+        workers.shutdownNow();
+        publisher.interrupt();
+    }
+
+    private ExecutorService readerThread(String reader) {
+        synchronized (readers) {
+            ExecutorService thread = readers.get(reader);
+            if (thread == null) {
+                thread = Executors.newSingleThreadExecutor(daemon(name + "-" + reader));
+                readers.put(reader, thread);
+            }
+            return thread;
+        }
+    }
+
+    private void readCard(String reader, long submitted) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            return;     // shut down
+        }
+        final Card card = new Card(reader, submitted);
+        C data = null;
+        long start = System.nanoTime();
+        try {
+            data = stages.read(reader);
+        } catch (Exception ex) {
+            card.error = ex;
+        }
+        card.readNanos = System.nanoTime() - start;
+
+        if (card.error == null) {
+            final C read = data;
+            card.task = new FutureTask<>(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        return stages.process(read);
+                    } finally {
+                        card.processNanos = System.nanoTime() - start;
+                    }
+                }
+            });
+        }
+        // sequence and queue order must agree when several readers finish at once
+        synchronized (toPublish) {
+            card.sequence = nextSequence++;
+            toPublish.add(card);
+        }
+        if (card.task != null)
+            workers.execute(card.task);
+    }
+
+    private void publishAll() {
+        while (!shutdown) {
+            Card card;
+            try {
+                card = toPublish.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            R result = null;
+            Exception error = card.error;
+            if (card.task != null) {
+                try {
+                    result = card.task.get();
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (ExecutionException ex) {
+                    error = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+            }
+            Outcome<R> outcome = new Outcome<>(card.reader, card.sequence, result, error, card.readNanos,
+                    card.processNanos, System.nanoTime() - card.submitted);
+            try {
+                stages.publish(outcome);
+            } catch (RuntimeException ex) {
+                // one bad publication must not stop the pipeline, but it must show
+                publishFailures.incrementAndGet();
+                Listener<R> l = listener;
+                if (l != null)
+                    l.onPublishFailed(outcome, ex);
+            } finally {
+                published.incrementAndGet();
+                slots.release();
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(final String prefix) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count++);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
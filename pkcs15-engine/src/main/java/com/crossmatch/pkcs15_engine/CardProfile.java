@@ -0,0 +1,127 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * A card model: the ATR pattern that identifies it, the protocol to connect
+ * with and the {@link ReadPlan} for its containers.
+ * <p>
+ *     Text form, fields separated by {@code ;}:
+ *     {@code name; atr; mask; protocol; plan}, where mask is ANDed with the
+ *     ATR before comparing (empty for an exact match), protocol is
+ *     {@code T=0}, {@code T=1} or {@code any}, and plan is the
+ *     {@link ReadPlan} text form.
+ */
+public final class CardProfile {
+    private final String name;
+    private final byte[] atr;
+    private final byte[] mask;
+    private final int protocol;
+    private final ReadPlan plan;
+
+    /**
+     * @param name shown in logs
+     * @param atr ATR, with the masked out bits zero
+     * @param mask bits of the ATR that must match, null for an exact match
+     * @param protocol Atr.PROTOCOL_T0, Atr.PROTOCOL_T1 or 0 for whatever the reader negotiates
+     * @param plan containers of the card
+     */
+    public CardProfile(String name, byte[] atr, byte[] mask, int protocol, ReadPlan plan) {
+        if (mask != null && mask.length != atr.length)
+            throw new IllegalArgumentException("ATR mask of " + name + " does not match the ATR length");
+        this.name = name;
+        this.atr = atr.clone();
+        this.mask = mask == null ? null : mask.clone();
+        this.protocol = protocol;
+        this.plan = plan;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return ATR, with the masked out bits as given
+     */
+    public byte[] getAtr() {
+        return atr.clone();
+    }
+
+    /**
+     * @return Atr.PROTOCOL_T0, Atr.PROTOCOL_T1 or 0 if any
+     */
+    public int getProtocol() {
+        return protocol;
+    }
+
+    public ReadPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * @return true if the ATR belongs to this card model
+     */
+    public boolean matches(byte[] candidate) {
+        if (candidate == null || candidate.length != atr.length)
+            return false;
+        for (int i = 0; i < atr.length; i++) {
+            int m = mask == null ? 0xFF : mask[i];
+            if ((candidate[i] & m) != (atr[i] & m))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the same card model with another plan
+     */
+    CardProfile withPlan(ReadPlan plan) {
+        return new CardProfile(name, atr, mask, protocol, plan);
+    }
+
+    /**
+     * @param line profile in the text form described above
+     * @return profile
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static CardProfile parse(String line) {
+        String[] fields = line.split(";", -1);
+        if (fields.length != 5)
+            throw new IllegalArgumentException("Expected 5 fields separated by ';'");
+        byte[] atr = decode(fields[1].trim());
+        String maskHex = fields[2].trim();
+        byte[] mask = maskHex.isEmpty() ? null : decode(maskHex);
+        String p = fields[3].trim();
+        int protocol;
+        if (p.equalsIgnoreCase("T=0"))
+            protocol = Atr.PROTOCOL_T0;
+        else if (p.equalsIgnoreCase("T=1"))
+            protocol = Atr.PROTOCOL_T1;
+        else if (p.equalsIgnoreCase("any") || p.isEmpty())
+            protocol = 0;
+        else
+            throw new IllegalArgumentException("Unknown protocol " + p);
+        return new CardProfile(fields[0].trim(), atr, mask, protocol, ReadPlan.parse(fields[4]));
+    }
+
+    private static byte[] decode(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0 || !hex.matches("[0-9a-fA-F]+"))
+            throw new IllegalArgumentException("Bad hex " + hex);
+        return Hex.decode(hex);
+    }
+
+    /**
+     * @return the profile in the text form read by {@link #parse}
+     */
+    public String format() {
+        return name + "; " + Hex.encode(atr) + "; " + (mask == null ? "" : Hex.encode(mask)) + "; "
+                + (protocol == Atr.PROTOCOL_T0 ? "T=0" : protocol == Atr.PROTOCOL_T1 ? "T=1" : "any") + "; "
+                + plan.format();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Card models by ATR, so a read knows up front which containers a card has
+ * and which need the PIN instead of finding out one status word at a time.
+ * <p>
+ *     Configured profiles are matched by ATR and mask in the order they were
+ *     added. A card that matches none of them is read the usual way and what
+ *     the reads find (size, PIN required) is recorded by
+ *     {@link #learn} in a learned profile for its exact ATR. The next card
+ *     with that ATR gets the learned plan. Least recently used learned
+ *     profiles are dropped beyond the size limit.
+ */
+public class CardProfileRegistry {
+    public static final int DEFAULT_MAX_LEARNED = 32;
+
+    private final List<CardProfile> configured = new ArrayList<>();
+    private final Map<String, CardProfile> learned;
+    private boolean learnedChanged = false;
+
+    public CardProfileRegistry() {
+        this(DEFAULT_MAX_LEARNED);
+    }
+
+    public CardProfileRegistry(final int maxLearned) {
+        learned = new LinkedHashMap<String, CardProfile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CardProfile> eldest) {
+                return size() > maxLearned;
+            }
+        };
+    }
+
+    public synchronized void add(CardProfile profile) {
+        configured.add(profile);
+    }
+
+    /**
+     * Add the profiles in the text form of {@link CardProfile}, one per line.
+     * Blank lines and lines starting with # are skipped.
+     *
+     * @return number of profiles added
+     * @throws IOException if reading fails or a line is malformed
+     */
+    public int load(BufferedReader in) throws IOException {
+        List<CardProfile> profiles = parse(in);
+        synchronized (this) {
+            configured.addAll(profiles);
+        }
+        return profiles.size();
+    }
+
+    /**
+     * Add previously learned profiles, as written by {@link #writeLearned}.
+     * Absent containers saved by older versions are dropped.
+     *
+     * @return number of profiles added
+     * @throws IOException if reading fails or a line is malformed
+     */
+    public int loadLearned(BufferedReader in) throws IOException {
+        List<CardProfile> profiles = parse(in);
+        synchronized (this) {
+            for (CardProfile profile : profiles)
+                learned.put(Hex.encode(profile.getAtr()), profile.withPlan(profile.getPlan().withoutAbsent()));
+        }
+        return profiles.size();
+    }
+
+    private static List<CardProfile> parse(BufferedReader in) throws IOException {
+        List<CardProfile> profiles = new ArrayList<>();
+        String line;
+        int number = 0;
+        while ((line = in.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            try {
+                profiles.add(CardProfile.parse(line));
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Line " + number + ": " + ex.getMessage());
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * @return profile of the card model, or null if it is unknown
+     */
+    public synchronized CardProfile find(byte[] atr) {
+        if (atr == null)
+            return null;
+        for (CardProfile profile : configured) {
+            if (profile.matches(atr))
+                return profile;
+        }
+        return learned.get(Hex.encode(atr));
+    }
+
+    /**
+     * @return plan of the card model, or null if it is unknown
+     */
+    public ReadPlan findPlan(byte[] atr) {
+        CardProfile profile = find(atr);
+        return profile == null ? null : profile.getPlan();
+    }
+
+    /**
+     * Record the outcome of reading a container from a card that has no
+     * configured profile. Only outcomes that say something about the card
+     * model are kept: the size of a container that was read and PIN required
+     * (6982). Not found (6A82) is about the card, not the model, and is not kept.
+     *
+     * @param atr ATR of the card
+     * @param protocol negotiated protocol
+     * @param container container that was read
+     * @param size contents size if the read worked, otherwise ReadPlan.SIZE_UNKNOWN
+     * @param sw status word if the read failed, 0 if it worked
+     */
+    public synchronized void learn(byte[] atr, int protocol, PivContainer container, int size, int sw) {
+        if (atr == null)
+            return;
+        for (CardProfile profile : configured) {
+            if (profile.matches(atr))
+                return;
+        }
+        String key = Hex.encode(atr);
+        CardProfile profile = learned.get(key);
+        if (profile == null) {
+            profile = new CardProfile("learned " + key, atr, null, protocol,
+                    new ReadPlan(Collections.<ReadPlan.Step>emptyList(), Collections.<PivContainer>emptySet()));
+        }
+        ReadPlan plan = profile.getPlan().with(container, size, sw);
+        if (plan == profile.getPlan())
+            return;
+        learned.put(key, profile.withPlan(plan));
+        learnedChanged = true;
+    }
+
+    /**
+     * @return true once, after learned profiles changed since the last call
+     */
+    public synchronized boolean takeLearnedChanged() {
+        boolean changed = learnedChanged;
+        learnedChanged = false;
+        return changed;
+    }
+
+    /**
+     * Write the learned profiles in the text form read by {@link #loadLearned}
+     */
+    public void writeLearned(Writer out) throws IOException {
+        List<CardProfile> profiles;
+        synchronized (this) {
+            profiles = new ArrayList<>(learned.values());
+        }
+        for (CardProfile profile : profiles)
+            out.write(profile.format() + "\n");
+    }
+
+    public synchronized int getLearnedCount() {
+        return learned.size();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Minimal view of a connected smartcard used by the APDU engine.
+ * <p>
+ *     On the Sentry this is backed by PcscJni, in unit tests and benchmarks
+ *     it is backed by a simulated card so the read path can run on any JVM.
+ */
+public interface CardTransport {
+
+    /**
+     * @return ATR of the connected card, or null if unknown
+     */
+    byte[] getAtr();
+
+    /**
+     * @return negotiated protocol, {@link Atr#PROTOCOL_T0} or {@link Atr#PROTOCOL_T1}
+     */
+    int getProtocol();
+
+    /**
+     * Send a single command APDU to the card and return the raw response
+     * including the trailing SW1 SW2 status bytes.
+     *
+     * @param command command APDU
+     * @return response APDU
+     * @throws CardException if the transport fails
+     */
+    byte[] transmit(byte[] command) throws CardException;
+
+    /**
+     * Get exclusive access to the card for a group of commands
+     *
+     * @throws CardException if the transport fails
+     */
+    void beginTransaction() throws CardException;
+
+    /**
+     * Release exclusive access to the card, leaving it in its current state
+     *
+     * @throws CardException if the transport fails
+     */
+    void endTransaction() throws CardException;
+}
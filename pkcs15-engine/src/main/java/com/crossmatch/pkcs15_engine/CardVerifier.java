@@ -0,0 +1,266 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Checks the signed containers of a card against a {@link TrustPathCache}:
+ * the CHUID issuer signature, the X.509 certificates and the CBEFF
+ * signatures of the biometric containers.
+ * <p>
+ *     Checks run on a small fork-join pool. A {@link Session} takes each
+ *     container as soon as it has been read, so the checks overlap with the
+ *     reads of the containers that follow, and {@link Session#getResults()}
+ *     waits for them at the end. A biometric signature block that does not
+ *     carry its signer certificate is checked with the CHUID signer, as
+ *     SP 800-76 allows.
+ */
+public final class CardVerifier {
+    public static final int DEFAULT_PARALLELISM = 2;
+
+    private final TrustPathCache trust;
+    private final ForkJoinPool pool;
+
+    /**
+     * Outcome of the check of one container
+     */
+    public static final class Result {
+        public enum Status {
+            /** signature and trust path check out */
+            VALID,
+            /** the signature does not match the contents */
+            INVALID,
+            /** the signature matches but the signer does not chain to the trust store */
+            UNTRUSTED,
+            /** the container carries no signature */
+            UNSIGNED,
+            /** the container or signature could not be decoded */
+            ERROR
+        }
+
+        private final PivContainer container;
+        private final Status status;
+        private final String detail;
+        // for the CHUID, the content signer the biometric blocks may rely on
+        final X509Certificate signer;
+
+        Result(PivContainer container, Status status, String detail, X509Certificate signer) {
+            this.container = container;
+            this.status = status;
+            this.detail = detail;
+            this.signer = signer;
+        }
+
+        public PivContainer getContainer() {
+            return container;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return why the check failed, or the signer subject if it passed
+         */
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return container.getLabel() + ": " + status + (detail == null ? "" : " (" + detail + ")");
+        }
+    }
+
+    /**
+     * @param trust trust anchors and the paths validated so far
+     * @param parallelism number of checks run at the same time
+     */
+    public CardVerifier(TrustPathCache trust, int parallelism) {
+        this.trust = trust;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public TrustPathCache getTrust() {
+        return trust;
+    }
+
+    /**
+     * @return new session for the checks of one card read
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * @return true for the containers this class knows how to check
+     */
+    public static boolean isSigned(PivContainer container) {
+        switch (container) {
+            case CHUID:
+            case CERT_PIV_AUTHENTICATION:
+            case CERT_DIGITAL_SIGNATURE:
+            case CERT_KEY_MANAGEMENT:
+            case CERT_CARD_AUTHENTICATION:
+            case FINGERPRINTS:
+            case FACIAL_IMAGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The checks of one card read. Containers may be submitted from one
+     * thread while the checks of earlier ones run.
+     */
+    public final class Session {
+        // certificates must be valid now, not when the checks get to run
+        private final Date at = new Date();
+        // guarded by this, in submission order
+        private final Map<PivContainer, ForkJoinTask<Result>> tasks = new EnumMap<>(PivContainer.class);
+        private final List<PivContainer> order = new ArrayList<>();
+
+        private Session() {
+        }
+
+        /**
+         * Start checking a container. Containers that carry no signature and
+         * containers already submitted are ignored.
+         *
+         * @param data container contents without the 53 tag, not modified afterwards
+         */
+        public synchronized void submit(final PivContainer container, final byte[] data) {
+            if (!isSigned(container) || tasks.containsKey(container))
+                return;
+            tasks.put(container, pool.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return check(container, data);
+                }
+            }));
+            order.add(container);
+        }
+
+        /**
+         * Wait for every submitted check
+         *
+         * @return results in submission order
+         */
+        public List<Result> getResults() {
+            List<ForkJoinTask<Result>> pending = new ArrayList<>();
+            synchronized (this) {
+                for (PivContainer container : order)
+                    pending.add(tasks.get(container));
+            }
+            List<Result> results = new ArrayList<>(pending.size());
+            for (ForkJoinTask<Result> task : pending)
+                results.add(task.join());
+            return Collections.unmodifiableList(results);
+        }
+
+        private synchronized ForkJoinTask<Result> chuidTask() {
+            return tasks.get(PivContainer.CHUID);
+        }
+
+        private Result check(PivContainer container, byte[] data) {
+            try {
+                switch (container) {
+                    case CHUID:
+                        return checkChuid(data);
+                    case FINGERPRINTS:
+                    case FACIAL_IMAGE:
+                        return checkBiometric(container, data);
+                    default:
+                        return checkCertificate(container, data);
+                }
+            } catch (CardException ex) {
+                return new Result(container, Result.Status.ERROR, ex.getMessage(), null);
+            }
+        }
+
+        private Result checkChuid(byte[] data) throws CardException {
+            Chuid chuid = Chuid.parse(data);
+            if (!chuid.hasIssuerSignature())
+                return new Result(PivContainer.CHUID, Result.Status.UNSIGNED, null, null);
+            SignedData cms = SignedData.parse(chuid.getIssuerSignatureView());
+            X509Certificate signer = cms.findSigner();
+            if (signer == null)
+                return new Result(PivContainer.CHUID, Result.Status.ERROR, "No signer certificate", null);
+            return checkSignature(PivContainer.CHUID, cms, chuid.getSignedContentView(), signer);
+        }
+
+        private Result checkBiometric(PivContainer container, byte[] data) throws CardException {
+            BiometricContainer bio = BiometricContainer.parse(data);
+            if (!bio.isSigned() || bio.getSignatureBlockLength() == 0)
+                return new Result(container, Result.Status.UNSIGNED, null, null);
+            SignedData cms = SignedData.parse(bio.getSignatureBlock());
+            X509Certificate signer = cms.findSigner();
+            if (signer == null) {
+                // joining inside the pool lets it run the CHUID check meanwhile
+                ForkJoinTask<Result> chuid = chuidTask();
+                X509Certificate chuidSigner = chuid == null ? null : chuid.join().signer;
+                if (chuidSigner != null && cms.isSigner(chuidSigner))
+                    signer = chuidSigner;
+            }
+            if (signer == null)
+                return new Result(container, Result.Status.UNTRUSTED, "Signer certificate not on the card", null);
+            return checkSignature(container, cms, bio.getSignedContent(), signer);
+        }
+
+        private Result checkSignature(PivContainer container, SignedData cms, ByteBuffer content,
+                                      X509Certificate signer) {
+            try {
+                cms.verify(content, signer);
+            } catch (SignatureException ex) {
+                return new Result(container, Result.Status.INVALID, ex.getMessage(), null);
+            } catch (GeneralSecurityException ex) {
+                return new Result(container, Result.Status.ERROR, ex.getMessage(), null);
+            }
+            return checkTrust(container, signer, cms.getCertificates(), signer);
+        }
+
+        private Result checkCertificate(PivContainer container, byte[] data) throws CardException {
+            CertificateContainer cc = CertificateContainer.parse(data);
+            X509Certificate cert;
+            try {
+                cert = cc.toX509Certificate();
+            } catch (CertificateException ex) {
+                return new Result(container, Result.Status.ERROR, ex.getMessage(), null);
+            } catch (IOException ex) {
+                return new Result(container, Result.Status.ERROR, "Cannot decompress: " + ex.getMessage(), null);
+            }
+            return checkTrust(container, cert, Collections.<X509Certificate>emptyList(), null);
+        }
+
+        private Result checkTrust(PivContainer container, X509Certificate cert, List<X509Certificate> extra,
+                                  X509Certificate signer) {
+            try {
+                trust.validate(cert, extra, at);
+            } catch (CertificateException ex) {
+                return new Result(container, Result.Status.UNTRUSTED, ex.getMessage(), signer);
+            }
+            return new Result(container, Result.Status.VALID, cert.getSubjectX500Principal().getName(), signer);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * X.509 certificate container (SP 800-73-4 Part 1, Appendix A)
+ */
+public final class CertificateContainer {
+    static final int TAG_CERTIFICATE = 0x70;
+    static final int TAG_CERT_INFO = 0x71;
+
+    private static final int CERT_INFO_COMPRESSED = 0x01;
+    // a certificate comes in at most one extended response, inflated it is
+    // a few times that at most; anything larger is not a certificate
+    static final int MAX_INFLATED_SIZE = 4 * ApduProfile.EXTENDED_MAX_LE;
+
+    private final ByteBuffer buf;
+    private final int certOffset;
+    private final int certLength;
+    private final int certInfo;
+
+    private CertificateContainer(ByteBuffer buf, int certOffset, int certLength, int certInfo) {
+        this.buf = buf;
+        this.certOffset = certOffset;
+        this.certLength = certLength;
+        this.certInfo = certInfo;
+    }
+
+    /**
+     * @param container container contents between position and limit, without the 53 tag
+     * @return parsed container
+     * @throws CardException if there is no certificate
+     */
+    public static CertificateContainer parse(ByteBuffer container) throws CardException {
+        int certOffset = -1;
+        int certLength = 0;
+        int certInfo = 0;
+
+        TlvReader tlv = new TlvReader(container);
+        while (tlv.next()) {
+            if (tlv.tag() == TAG_CERTIFICATE) {
+                certOffset = tlv.valueOffset();
+                certLength = tlv.valueLength();
+            } else if (tlv.tag() == TAG_CERT_INFO && tlv.valueLength() > 0) {
+                certInfo = container.get(tlv.valueOffset()) & 0xFF;
+            }
+        }
+        if (certOffset < 0)
+            throw new CardException("No certificate in container");
+        return new CertificateContainer(container, certOffset, certLength, certInfo);
+    }
+
+    public static CertificateContainer parse(byte[] container) throws CardException {
+        return parse(ByteBuffer.wrap(container));
+    }
+
+    /**
+     * @return true if the certificate is gzip compressed
+     */
+    public boolean isCompressed() {
+        return (certInfo & CERT_INFO_COMPRESSED) != 0;
+    }
+
+    /**
+     * @return DER certificate, or gzip data if {@link #isCompressed()}
+     */
+    public byte[] getCertificate() {
+        return TlvReader.copy(buf, certOffset, certLength);
+    }
+
+    /**
+     * @return view of the certificate sharing the container data
+     */
+    public ByteBuffer getCertificateView() {
+        return TlvReader.view(buf, certOffset, certLength);
+    }
+
+    /**
+     * @return the certificate, decompressed if needed
+     * @throws CertificateException if it is not a valid certificate
+     * @throws IOException if the compressed data cannot be inflated or
+     *          inflates past MAX_INFLATED_SIZE
+     */
+    public X509Certificate toX509Certificate() throws CertificateException, IOException {
+        InputStream in = new ByteArrayInputStream(getCertificate());
+        if (isCompressed())
+            in = new ByteArrayInputStream(gunzip(getCertificate()));
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 2);
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (out.size() + n > MAX_INFLATED_SIZE)
+                    throw new IOException("Compressed certificate inflates past " + MAX_INFLATED_SIZE + " bytes");
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
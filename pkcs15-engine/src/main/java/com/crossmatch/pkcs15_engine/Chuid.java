@@ -0,0 +1,183 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Card Holder Unique Identifier (SP 800-73-4 Part 1, Appendix A).
+ * <p>
+ *     Parsing records where each field sits in the container and copies
+ *     nothing; accessors copy or decode only the field asked for.
+ */
+public final class Chuid {
+    static final int TAG_BUFFER_LENGTH = 0xEE;
+    static final int TAG_FASCN = 0x30;
+    static final int TAG_ORGANIZATION_ID = 0x32;
+    static final int TAG_DUNS = 0x33;
+    static final int TAG_GUID = 0x34;
+    static final int TAG_EXPIRATION_DATE = 0x35;
+    static final int TAG_CARDHOLDER_UUID = 0x36;
+    static final int TAG_ISSUER_SIGNATURE = 0x3E;
+    static final int TAG_ERROR_DETECTION = 0xFE;
+
+    // FASC-N 5 bit characters: 4 data bits, least significant first, then odd parity
+    private static final int FASCN_SS = 0x0B;
+    private static final int FASCN_FS = 0x0D;
+    private static final int FASCN_ES = 0x0F;
+    private static final int FASCN_LENGTH = 25;
+
+    private final ByteBuffer buf;
+    private int fascnOffset = -1, fascnLength;
+    private int guidOffset = -1, guidLength;
+    private int expirationOffset = -1, expirationLength;
+    private int uuidOffset = -1, uuidLength;
+    private int signatureElement = -1, signatureOffset = -1, signatureLength;
+
+    private Chuid(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * @param container CHUID contents between position and limit, without the 53 tag
+     * @return parsed CHUID
+     * @throws CardException if the container is malformed
+     */
+    public static Chuid parse(ByteBuffer container) throws CardException {
+        Chuid chuid = new Chuid(container);
+        TlvReader tlv = new TlvReader(container);
+        while (tlv.next()) {
+            switch (tlv.tag()) {
+                case TAG_FASCN:
+                    chuid.fascnOffset = tlv.valueOffset();
+                    chuid.fascnLength = tlv.valueLength();
+                    break;
+                case TAG_GUID:
+                    chuid.guidOffset = tlv.valueOffset();
+                    chuid.guidLength = tlv.valueLength();
+                    break;
+                case TAG_EXPIRATION_DATE:
+                    chuid.expirationOffset = tlv.valueOffset();
+                    chuid.expirationLength = tlv.valueLength();
+                    break;
+                case TAG_CARDHOLDER_UUID:
+                    chuid.uuidOffset = tlv.valueOffset();
+                    chuid.uuidLength = tlv.valueLength();
+                    break;
+                case TAG_ISSUER_SIGNATURE:
+                    chuid.signatureElement = tlv.elementOffset();
+                    chuid.signatureOffset = tlv.valueOffset();
+                    chuid.signatureLength = tlv.valueLength();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return chuid;
+    }
+
+    public static Chuid parse(byte[] container) throws CardException {
+        return parse(ByteBuffer.wrap(container));
+    }
+
+    /**
+     * @return raw 25 byte FASC-N, or null if absent
+     */
+    public byte[] getFascn() {
+        return fascnOffset < 0 ? null : TlvReader.copy(buf, fascnOffset, fascnLength);
+    }
+
+    /**
+     * Decode the FASC-N into its fields:
+     * agency code, system code, credential number, credential series,
+     * individual credential issue, person identifier, organizational
+     * category, organizational identifier and person/organization association,
+     * joined with '-'.
+     *
+     * @return decoded FASC-N, or null if absent or not a valid encoding
+     */
+    public String getFascnString() {
+        if (fascnOffset < 0 || fascnLength != FASCN_LENGTH)
+            return null;
+
+        StringBuilder sb = new StringBuilder(40);
+        int bitBuffer = 0;
+        int bits = 0;
+        for (int i = 0; i < fascnLength; i++) {
+            bitBuffer = (bitBuffer << 8) | (buf.get(fascnOffset + i) & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                bits -= 5;
+                int c = (bitBuffer >> bits) & 0x1F;
+                // 4 data bits are sent least significant bit first
+                int d = ((c >> 4) & 1) | ((c >> 2) & 2) | (c & 4) | ((c << 2) & 8);
+                if (Integer.bitCount(c) % 2 == 0)
+                    return null;    // odd parity
+                if (d == FASCN_ES)
+                    return sb.toString();
+                if (d == FASCN_SS)
+                    continue;
+                if (d == FASCN_FS) {
+                    sb.append('-');
+                } else if (d <= 9) {
+                    sb.append((char) ('0' + d));
+                    // PI, OC, OI and POA follow each other without field separators
+                    if (sb.length() == 31 || sb.length() == 33 || sb.length() == 38)
+                        sb.append('-');
+                } else {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 16 byte card GUID, or null if absent
+     */
+    public byte[] getGuid() {
+        return guidOffset < 0 ? null : TlvReader.copy(buf, guidOffset, guidLength);
+    }
+
+    /**
+     * @return expiration date as YYYYMMDD, or null if absent
+     */
+    public String getExpirationDate() {
+        return expirationOffset < 0 ? null : TlvReader.ascii(buf, expirationOffset, expirationLength);
+    }
+
+    /**
+     * @return cardholder UUID, or null if absent
+     */
+    public byte[] getCardholderUuid() {
+        return uuidOffset < 0 ? null : TlvReader.copy(buf, uuidOffset, uuidLength);
+    }
+
+    public boolean hasIssuerSignature() {
+        return signatureOffset >= 0 && signatureLength > 0;
+    }
+
+    /**
+     * @return CMS SignedData of the issuer asymmetric signature, or null if absent
+     */
+    public byte[] getIssuerSignature() {
+        return hasIssuerSignature() ? TlvReader.copy(buf, signatureOffset, signatureLength) : null;
+    }
+
+    /**
+     * @return view of the issuer signature sharing the container data, or null if absent
+     */
+    public ByteBuffer getIssuerSignatureView() {
+        return hasIssuerSignature() ? TlvReader.view(buf, signatureOffset, signatureLength) : null;
+    }
+
+    /**
+     * @return view of the signed content, everything in front of the issuer signature
+     */
+    public ByteBuffer getSignedContentView() {
+        int start = buf.position();
+        int end = signatureElement < 0 ? buf.limit() : signatureElement;
+        return TlvReader.view(buf, start, end - start);
+    }
+}
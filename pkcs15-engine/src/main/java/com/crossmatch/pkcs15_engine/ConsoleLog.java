@@ -0,0 +1,120 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Bounded log of text lines for the on-screen console.
+ * <p>
+ *     Text is appended in pieces as it arrives and split into lines, the last
+ *     one staying open until its newline comes. Lines are kept in a ring, and
+ *     the oldest are dropped once there are more than maxLines or their total
+ *     length goes over maxChars, so a long session or a large dump costs the
+ *     same as a short one. Appending never copies the lines already held.
+ *     Line numbers given to {@link #getLine} start at the oldest line held.
+ */
+public final class ConsoleLog {
+    public static final int DEFAULT_MAX_LINES = 2000;
+    public static final int DEFAULT_MAX_CHARS = 256 * 1024;
+
+    private final String[] lines;
+    private final int maxChars;
+    private int first = 0;
+    private int count = 0;
+    private int chars = 0;
+    private long dropped = 0;
+    // text of the last line until its newline arrives, shown as a line of its own
+    private final StringBuilder open = new StringBuilder();
+
+    public ConsoleLog() {
+        this(DEFAULT_MAX_LINES, DEFAULT_MAX_CHARS);
+    }
+
+    public ConsoleLog(int maxLines, int maxChars) {
+        this.lines = new String[maxLines];
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @param text any number of lines, the last one may be incomplete
+     */
+    public synchronized void append(CharSequence text) {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != '\n')
+                continue;
+            open.append(text, start, i);
+            String line = open.toString();
+            open.setLength(0);
+            add(line);
+            start = i + 1;
+        }
+        open.append(text, start, text.length());
+        // an open line longer than the whole budget would never be dropped
+        if (open.length() > maxChars) {
+            String line = open.toString();
+            open.setLength(0);
+            add(line);
+        }
+        trim();
+    }
+
+    private void add(String line) {
+        if (line.length() > maxChars)
+            line = line.substring(0, maxChars);
+        if (count == lines.length)
+            dropOldest();
+        lines[(first + count) % lines.length] = line;
+        count++;
+        chars += line.length();
+        trim();
+    }
+
+    private void trim() {
+        while (chars + open.length() > maxChars && count > 0)
+            dropOldest();
+    }
+
+    private void dropOldest() {
+        chars -= lines[first].length();
+        lines[first] = null;
+        first = (first + 1) % lines.length;
+        count--;
+        dropped++;
+    }
+
+    /**
+     * @return lines held, including the open last line if it has any text
+     */
+    public synchronized int getLineCount() {
+        return count + (open.length() > 0 ? 1 : 0);
+    }
+
+    /**
+     * @param index 0 for the oldest line held
+     */
+    public synchronized String getLine(int index) {
+        if (index == count && open.length() > 0)
+            return open.toString();
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Line " + index + " of " + getLineCount());
+        return lines[(first + index) % lines.length];
+    }
+
+    /**
+     * @return number of lines dropped to stay in bounds since the log was created
+     */
+    public synchronized long getDroppedLines() {
+        return dropped;
+    }
+
+    public synchronized int getCharCount() {
+        return chars + open.length();
+    }
+
+    public synchronized void clear() {
+        while (count > 0)
+            dropOldest();
+        open.setLength(0);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Raw container contents in a file, for results too large to pass around as
+ * a byte array or hex text. The producer writes the bytes once with
+ * {@link #write}, hands over a descriptor of the file, and the consumer maps
+ * it with {@link #map} instead of copying it onto the heap.
+ */
+public final class ContainerFile {
+    /** results larger than this go through a file rather than the result Bundle */
+    public static final int DEFAULT_THRESHOLD = 8 * 1024;
+
+    private ContainerFile() {
+    }
+
+    /**
+     * Write the contents to a new file in dir
+     *
+     * @param dir directory private to the application
+     * @param container container the contents came from, names the file
+     * @param data container contents, written from position to limit
+     * @return the new file, the caller deletes it
+     * @throws IOException if the file cannot be written, nothing is left behind then
+     */
+    public static File write(File dir, PivContainer container, ByteBuffer data) throws IOException {
+        File file = File.createTempFile(container.getPath() + "-", ".bin", dir);
+        boolean written = false;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining())
+                channel.write(src);
+            written = true;
+        } finally {
+            out.close();
+            if (!written)
+                file.delete();
+        }
+        return file;
+    }
+
+    /**
+     * Map the whole file read-only. The mapping stays valid after the
+     * channel is closed.
+     *
+     * @param channel channel of the file, for example from the stream of a passed descriptor
+     * @return the contents
+     */
+    public static MappedByteBuffer map(FileChannel channel) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * One data object as reported by pkcs15-tool. Fields the tool did not
+ * print are null, or -1 for the size.
+ */
+public final class DataObjectRecord {
+    String path;
+    String oid;
+    String label;
+    String applicationName;
+    String authId;
+    int size = -1;
+    byte[] data;
+
+    DataObjectRecord() {
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    /**
+     * @return AuthID of the PIN protecting the object, null if not protected
+     */
+    public String getAuthId() {
+        return authId;
+    }
+
+    /**
+     * @return size in bytes, or -1 if not reported
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return decoded contents, or null if the tool did not print them
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Path:").append(path).append(' ').append(oid);
+        if (size >= 0)
+            sb.append(" Size:").append(size);
+        if (authId != null)
+            sb.append(" AuthID:").append(authId);
+        if (label != null)
+            sb.append(' ').append(label);
+        if (data != null)
+            sb.append(" [").append(data.length).append(" bytes]");
+        return sb.toString();
+    }
+}
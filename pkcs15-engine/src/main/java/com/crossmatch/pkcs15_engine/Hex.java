@@ -0,0 +1,72 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Table driven hex encoding for ATRs, APDUs and container dumps.
+ */
+public final class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    public static String encode(byte[] data) {
+        return data == null ? "" : encode(data, 0, data.length);
+    }
+
+    public static String encode(byte[] data, int offset, int length) {
+        char[] out = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            out[i * 2] = DIGITS[b >>> 4];
+            out[i * 2 + 1] = DIGITS[b & 0x0F];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Decode a hex string, ignoring spaces and colons
+     *
+     * @param hex hex string
+     * @return decoded bytes
+     */
+    public static byte[] decode(String hex) {
+        byte[] out = new byte[hex.length() / 2];
+        int n = 0;
+        int hi = -1;
+        for (int i = 0; i < hex.length(); i++) {
+            int d = Character.digit(hex.charAt(i), 16);
+            if (d < 0)
+                continue;
+            if (hi < 0) {
+                hi = d;
+            } else {
+                out[n++] = (byte) ((hi << 4) | d);
+                hi = -1;
+            }
+        }
+        if (n == out.length)
+            return out;
+        byte[] trimmed = new byte[n];
+        System.arraycopy(out, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    /**
+     * Format data as lines of 16 space separated bytes for on-screen display
+     *
+     * @param data bytes to dump
+     * @return formatted dump
+     */
+    public static String dump(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 3 + data.length / 16 + 1);
+        for (int i = 0; i < data.length; i++) {
+            int b = data[i] & 0xFF;
+            sb.append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0F]);
+            sb.append((i % 16 == 15 || i == data.length - 1) ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Enrolled fingerprint templates for 1:N search.
+ * <p>
+ *     A search splits the gallery into slices and matches them on a
+ *     fork-join pool, one matcher per slice. With a threshold, the first
+ *     template to reach it ends the search on every slice, so a hit near
+ *     the start of a slice costs little; without one every template is
+ *     compared and the best is returned.
+ */
+public final class MinutiaeGallery {
+    // slices per thread, so one slow slice does not leave the other threads idle
+    private static final int SLICES_PER_THREAD = 4;
+
+    /** the outcome of a search */
+    public static final class Match {
+        private final String id;
+        private final int score;
+        private final int compared;
+
+        Match(String id, int score, int compared) {
+            this.id = id;
+            this.score = score;
+            this.compared = compared;
+        }
+
+        /**
+         * @return id of the best template, null if the gallery was empty
+         */
+        public String getId() {
+            return id;
+        }
+
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * @return number of templates compared before the search ended
+         */
+        public int getCompared() {
+            return compared;
+        }
+
+        @Override
+        public String toString() {
+            return id == null ? "no templates" : id + " (score " + score + ", " + compared + " compared)";
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    // guarded by this, enrolment order
+    private final List<String> ids = new ArrayList<>();
+    private final List<MinutiaeMatcher.Finger[]> fingers = new ArrayList<>();
+
+    /**
+     * @param parallelism threads a search runs on
+     */
+    public MinutiaeGallery(int parallelism) {
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public synchronized void add(String id, MinutiaeTemplate template) {
+        ids.add(id);
+        fingers.add(MinutiaeMatcher.Finger.of(template));
+    }
+
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Search the gallery for the probe
+     *
+     * @param threshold score that ends the search, above 100 to compare every template
+     * @return the first template found at or above the threshold, otherwise the best one
+     */
+    public Match identify(MinutiaeTemplate probe, final int threshold) {
+        final String[] idSnapshot;
+        final MinutiaeMatcher.Finger[][] snapshot;
+        synchronized (this) {
+            idSnapshot = ids.toArray(new String[ids.size()]);
+            snapshot = fingers.toArray(new MinutiaeMatcher.Finger[fingers.size()][]);
+        }
+        final MinutiaeMatcher.Finger[] probeFingers = MinutiaeMatcher.Finger.of(probe);
+        final AtomicBoolean found = new AtomicBoolean();
+        int slices = Math.max(1, Math.min(snapshot.length, parallelism * SLICES_PER_THREAD));
+
+        List<Callable<Match>> tasks = new ArrayList<>(slices);
+        for (int s = 0; s < slices; s++) {
+            final int from = (int) ((long) snapshot.length * s / slices);
+            final int to = (int) ((long) snapshot.length * (s + 1) / slices);
+            tasks.add(new Callable<Match>() {
+                @Override
+                public Match call() {
+                    MinutiaeMatcher matcher = new MinutiaeMatcher();
+                    int best = -1;
+                    int bestScore = 0;
+                    int compared = 0;
+                    for (int i = from; i < to && !found.get(); i++) {
+                        int score = matcher.score(probeFingers, snapshot[i], threshold);
+                        compared++;
+                        if (score > bestScore || best < 0) {
+                            best = i;
+                            bestScore = score;
+                        }
+                        if (score >= threshold) {
+                            found.set(true);
+                            break;
+                        }
+                    }
+                    return new Match(best < 0 ? null : idSnapshot[best], bestScore, compared);
+                }
+            });
+        }
+
+        String id = null;
+        int score = 0;
+        int compared = 0;
+        for (Future<Match> future : pool.invokeAll(tasks)) {
+            Match slice;
+            try {
+                slice = future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException("Gallery search failed", ex.getCause());
+            }
+            compared += slice.compared;
+            if (slice.id != null && (id == null || slice.score > score)) {
+                id = slice.id;
+                score = slice.score;
+            }
+        }
+        return new Match(id, score, compared);
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Arrays;
+
+/**
+ * Minutiae matcher for one finger against another.
+ * <p>
+ *     Each minutia is described by its two nearest neighbours: distance,
+ *     direction from the minutia and their own direction, all relative to the
+ *     minutia so they do not change with rotation or translation. Pairs of
+ *     minutiae with matching descriptors are candidate alignments; for the
+ *     best few, the probe is rotated and moved onto the gallery finger and
+ *     minutiae that land close enough, pointing the same way, are paired.
+ *     The score is the share of minutiae paired under the best alignment,
+ *     0 to 100.
+ * <p>
+ *     Fingers are prepared once with {@link Finger#of}. A matcher keeps its
+ *     scratch arrays between calls, so use one per thread.
+ */
+public final class MinutiaeMatcher {
+    /** score from which two fingers are taken to be the same */
+    public static final int DEFAULT_THRESHOLD = 40;
+
+    private static final int NEIGHBOURS = 2;
+    // alignments tried per comparison, best descriptor agreement first
+    private static final int MAX_CANDIDATES = 12;
+    // fewer minutiae than this cannot be told apart from chance
+    private static final int MIN_MINUTIAE = 6;
+    // tolerances at 500 ppi: 12 pixels is 0.6 mm
+    private static final int DESCRIPTOR_DISTANCE = 10;
+    private static final int DESCRIPTOR_ANGLE = 20;
+    private static final int PAIR_DISTANCE = 12;
+    private static final int PAIR_ANGLE = 20;
+
+    // sine and cosine of whole degrees, scaled by 1024
+    private static final int[] SIN = new int[360];
+    private static final int[] COS = new int[360];
+
+    static {
+        for (int i = 0; i < 360; i++) {
+            SIN[i] = (int) Math.round(Math.sin(Math.toRadians(i)) * 1024);
+            COS[i] = (int) Math.round(Math.cos(Math.toRadians(i)) * 1024);
+        }
+    }
+
+    /**
+     * One finger view ready for matching, minutiae and their neighbour
+     * descriptors in parallel arrays. Immutable.
+     */
+    public static final class Finger {
+        final int position;
+        final int count;
+        final int[] x;
+        final int[] y;      // upwards, so angles and coordinates turn the same way
+        final int[] angle;
+        // NEIGHBOURS per minutia, nearest first
+        final int[] distance;
+        final int[] direction;
+        final int[] orientation;
+
+        private Finger(MinutiaeTemplate template, int view) {
+            position = template.getFingerPosition(view);
+            count = template.getMinutiaCount(view);
+            int start = template.getViewStart(view);
+            x = new int[count];
+            y = new int[count];
+            angle = new int[count];
+            for (int i = 0; i < count; i++) {
+                x[i] = template.getX(start + i);
+                y[i] = -template.getY(start + i);
+                angle[i] = template.getAngle(start + i);
+            }
+
+            distance = new int[count * NEIGHBOURS];
+            direction = new int[count * NEIGHBOURS];
+            orientation = new int[count * NEIGHBOURS];
+            int[] nearest = new int[NEIGHBOURS];
+            long[] nearestD2 = new long[NEIGHBOURS];
+            for (int i = 0; i < count; i++) {
+                int found = 0;
+                for (int j = 0; j < count; j++) {
+                    if (j == i)
+                        continue;
+                    long dx = x[j] - x[i];
+                    long dy = y[j] - y[i];
+                    long d2 = dx * dx + dy * dy;
+                    // insertion into the short sorted list
+                    int k = found < NEIGHBOURS ? found++ : NEIGHBOURS;
+                    while (k > 0 && nearestD2[k - 1] > d2) {
+                        if (k < NEIGHBOURS) {
+                            nearestD2[k] = nearestD2[k - 1];
+                            nearest[k] = nearest[k - 1];
+                        }
+                        k--;
+                    }
+                    if (k < NEIGHBOURS) {
+                        nearestD2[k] = d2;
+                        nearest[k] = j;
+                    }
+                }
+                for (int k = 0; k < NEIGHBOURS; k++) {
+                    int d = i * NEIGHBOURS + k;
+                    if (k >= found) {
+                        distance[d] = -1;
+                        continue;
+                    }
+                    int j = nearest[k];
+                    distance[d] = (int) Math.round(Math.sqrt(nearestD2[k]));
+                    int toward = (int) Math.round(Math.toDegrees(Math.atan2(y[j] - y[i], x[j] - x[i])));
+                    direction[d] = normalize(toward - angle[i]);
+                    orientation[d] = normalize(angle[j] - angle[i]);
+                }
+            }
+        }
+
+        /**
+         * Prepare one view of a template
+         */
+        public static Finger of(MinutiaeTemplate template, int view) {
+            return new Finger(template, view);
+        }
+
+        /**
+         * Prepare every view of a template
+         */
+        public static Finger[] of(MinutiaeTemplate template) {
+            Finger[] fingers = new Finger[template.getViewCount()];
+            for (int v = 0; v < fingers.length; v++)
+                fingers[v] = new Finger(template, v);
+            return fingers;
+        }
+
+        /**
+         * @return finger position code, 0 if unknown
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public int getMinutiaCount() {
+            return count;
+        }
+    }
+
+    // candidate alignments, sorted by descriptor error
+    private final int[] candidateProbe = new int[MAX_CANDIDATES];
+    private final int[] candidateGallery = new int[MAX_CANDIDATES];
+    private final int[] candidateError = new int[MAX_CANDIDATES];
+    // gallery minutiae paired in the current alignment are marked with the alignment number
+    private int[] pairedIn = new int[64];
+    private int alignment = 0;
+
+    /**
+     * @return similarity of the two fingers, 0 to 100
+     */
+    public int score(Finger probe, Finger gallery) {
+        return score(probe, gallery, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #score(Finger, Finger)}, but stop trying alignments once
+     * one reaches enough. The result is then at least enough, not necessarily
+     * the best score.
+     */
+    public int score(Finger probe, Finger gallery, int enough) {
+        if (probe.count < MIN_MINUTIAE || gallery.count < MIN_MINUTIAE)
+            return 0;
+        if (pairedIn.length < gallery.count)
+            pairedIn = new int[Math.max(gallery.count, pairedIn.length * 2)];
+
+        int candidates = findCandidates(probe, gallery);
+        int bestPaired = 0;
+        int best = 0;
+        for (int c = 0; c < candidates; c++) {
+            int paired = pair(probe, gallery, candidateProbe[c], candidateGallery[c]);
+            if (paired > bestPaired) {
+                bestPaired = paired;
+                best = Math.min(100, 200 * paired / (probe.count + gallery.count));
+                if (best >= enough)
+                    break;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Best score over the views of the two templates that show the same
+     * finger, or any two views where the finger is not known
+     */
+    public int score(Finger[] probe, Finger[] gallery, int enough) {
+        int best = 0;
+        for (Finger p : probe) {
+            for (Finger g : gallery) {
+                if (p.position != 0 && g.position != 0 && p.position != g.position)
+                    continue;
+                best = Math.max(best, score(p, g, enough));
+                if (best >= enough)
+                    return best;
+            }
+        }
+        return best;
+    }
+
+    private int findCandidates(Finger probe, Finger gallery) {
+        int n = 0;
+        for (int i = 0; i < probe.count; i++) {
+            for (int j = 0; j < gallery.count; j++) {
+                // neighbours in the same order, or swapped when their distances are close
+                int error = Math.min(descriptorError(probe, i, 0, 1, gallery, j),
+                        descriptorError(probe, i, 1, 0, gallery, j));
+                if (error == Integer.MAX_VALUE || (n == MAX_CANDIDATES && error >= candidateError[n - 1]))
+                    continue;
+                int k = n < MAX_CANDIDATES ? n++ : MAX_CANDIDATES - 1;
+                while (k > 0 && candidateError[k - 1] > error) {
+                    candidateError[k] = candidateError[k - 1];
+                    candidateProbe[k] = candidateProbe[k - 1];
+                    candidateGallery[k] = candidateGallery[k - 1];
+                    k--;
+                }
+                candidateError[k] = error;
+                candidateProbe[k] = i;
+                candidateGallery[k] = j;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return summed differences of the descriptors, or MAX_VALUE if any is over its tolerance
+     */
+    private static int descriptorError(Finger probe, int i, int first, int second, Finger gallery, int j) {
+        int error = 0;
+        for (int k = 0; k < NEIGHBOURS; k++) {
+            int p = i * NEIGHBOURS + (k == 0 ? first : second);
+            int g = j * NEIGHBOURS + k;
+            if (probe.distance[p] < 0 || gallery.distance[g] < 0)
+                return Integer.MAX_VALUE;
+            int dd = Math.abs(probe.distance[p] - gallery.distance[g]);
+            int da = angleDifference(probe.direction[p], gallery.direction[g]);
+            int doo = angleDifference(probe.orientation[p], gallery.orientation[g]);
+            if (dd > DESCRIPTOR_DISTANCE || da > DESCRIPTOR_ANGLE || doo > DESCRIPTOR_ANGLE)
+                return Integer.MAX_VALUE;
+            error += dd * 2 + da + doo;
+        }
+        return error;
+    }
+
+    /**
+     * Move the probe so minutia i lies on gallery minutia j, then pair
+     * each probe minutia with the nearest free gallery minutia that agrees
+     *
+     * @return number of pairs
+     */
+    private int pair(Finger probe, Finger gallery, int i, int j) {
+        if (++alignment == Integer.MAX_VALUE) {
+            Arrays.fill(pairedIn, 0);
+            alignment = 1;
+        }
+        int rotation = normalize(gallery.angle[j] - probe.angle[i]);
+        int sin = SIN[rotation];
+        int cos = COS[rotation];
+        int paired = 0;
+        for (int k = 0; k < probe.count; k++) {
+            int dx = probe.x[k] - probe.x[i];
+            int dy = probe.y[k] - probe.y[i];
+            int tx = gallery.x[j] + ((dx * cos - dy * sin) >> 10);
+            int ty = gallery.y[j] + ((dx * sin + dy * cos) >> 10);
+            int ta = normalize(probe.angle[k] + rotation);
+
+            int nearest = -1;
+            int nearestD2 = PAIR_DISTANCE * PAIR_DISTANCE + 1;
+            for (int l = 0; l < gallery.count; l++) {
+                if (pairedIn[l] == alignment)
+                    continue;
+                int ex = gallery.x[l] - tx;
+                if (ex > PAIR_DISTANCE || ex < -PAIR_DISTANCE)
+                    continue;
+                int ey = gallery.y[l] - ty;
+                int d2 = ex * ex + ey * ey;
+                if (d2 < nearestD2 && angleDifference(gallery.angle[l], ta) <= PAIR_ANGLE) {
+                    nearestD2 = d2;
+                    nearest = l;
+                }
+            }
+            if (nearest >= 0) {
+                pairedIn[nearest] = alignment;
+                paired++;
+            }
+        }
+        return paired;
+    }
+
+    private static int normalize(int degrees) {
+        degrees %= 360;
+        return degrees < 0 ? degrees + 360 : degrees;
+    }
+
+    private static int angleDifference(int a, int b) {
+        int d = Math.abs(a - b);
+        return d > 180 ? 360 - d : d;
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finger minutiae record, INCITS 378-2004 as profiled by SP 800-76 for the
+ * PIV fingerprint container, or ISO/IEC 19794-2:2005.
+ * <p>
+ *     The minutiae of all finger views are kept in parallel primitive arrays,
+ *     view after view, so a template is a handful of arrays whatever the
+ *     number of minutiae and the matcher walks them without indirection.
+ *     Angles are converted to whole degrees, counter-clockwise from the x
+ *     axis, whichever format they came in.
+ */
+public final class MinutiaeTemplate {
+    /** CBEFF format of an INCITS 378 record */
+    public static final int FORMAT_OWNER_INCITS = 0x001B;
+    public static final int FORMAT_TYPE_INCITS_378 = 0x0201;
+
+    public static final int TYPE_OTHER = 0;
+    public static final int TYPE_RIDGE_ENDING = 1;
+    public static final int TYPE_BIFURCATION = 2;
+
+    // by finger position code
+    private static final String[] FINGER_NAMES = {
+            null, "right thumb", "right index", "right middle", "right ring", "right little",
+            "left thumb", "left index", "left middle", "left ring", "left little",
+    };
+
+    private static final int MAGIC = 0x464D5200;   // "FMR\0"
+    private static final int VERSION_20 = 0x20323000;  // " 20\0"
+    private static final int INCITS_HEADER_LENGTH = 26;
+    private static final int ISO_HEADER_LENGTH = 24;
+    private static final int VIEW_HEADER_LENGTH = 4;
+    private static final int MINUTIA_LENGTH = 6;
+
+    private final int width;
+    private final int height;
+    private final int xResolution;
+    private final int yResolution;
+
+    // per view
+    private final int[] viewStart;     // index of the first minutia, viewStart[viewCount] is the total
+    private final byte[] fingerPosition;
+    private final byte[] impressionType;
+    private final byte[] fingerQuality;
+
+    // per minutia
+    private final short[] x;
+    private final short[] y;
+    private final short[] angle;
+    private final byte[] type;
+    private final byte[] quality;
+
+    private MinutiaeTemplate(int width, int height, int xResolution, int yResolution, int[] viewStart,
+                             byte[] fingerPosition, byte[] impressionType, byte[] fingerQuality,
+                             short[] x, short[] y, short[] angle, byte[] type, byte[] quality) {
+        this.width = width;
+        this.height = height;
+        this.xResolution = xResolution;
+        this.yResolution = yResolution;
+        this.viewStart = viewStart;
+        this.fingerPosition = fingerPosition;
+        this.impressionType = impressionType;
+        this.fingerQuality = fingerQuality;
+        this.x = x;
+        this.y = y;
+        this.angle = angle;
+        this.type = type;
+        this.quality = quality;
+    }
+
+    /**
+     * Decode the record in the biometric data block of a fingerprint container
+     *
+     * @throws CardException if the block is not an INCITS 378 record
+     */
+    public static MinutiaeTemplate parse(BiometricContainer container) throws CardException {
+        if (container.getFormatOwner() != FORMAT_OWNER_INCITS || container.getFormatType() != FORMAT_TYPE_INCITS_378)
+            throw new CardException("Not a minutiae record: format " + Integer.toHexString(container.getFormatOwner())
+                    + "/" + Integer.toHexString(container.getFormatType()));
+        return parse(container.getBiometricData());
+    }
+
+    /**
+     * Decode a minutiae record. The format is told apart by the record
+     * length field, 2 bytes in INCITS 378 and 4 bytes in ISO 19794-2.
+     *
+     * @param record record between position and limit, not modified
+     * @throws CardException if the record is malformed
+     */
+    public static MinutiaeTemplate parse(ByteBuffer record) throws CardException {
+        int base = record.position();
+        int length = record.remaining();
+        if (length < ISO_HEADER_LENGTH || record.getInt(base) != MAGIC)
+            throw new CardException("Not a minutiae record");
+        if (record.getInt(base + 4) != VERSION_20)
+            throw new CardException("Unsupported minutiae record version");
+
+        boolean iso;
+        if (length >= INCITS_HEADER_LENGTH && (record.getShort(base + 8) & 0xFFFF) == length)
+            iso = false;
+        else if (record.getInt(base + 8) == length)
+            iso = true;
+        else
+            throw new CardException("Minutiae record length does not match its data");
+
+        // INCITS has the CBEFF product identifier between the length and the capture equipment
+        int p = base + (iso ? 14 : 16);
+        int width = record.getShort(p) & 0xFFFF;
+        int height = record.getShort(p + 2) & 0xFFFF;
+        int xResolution = record.getShort(p + 4) & 0xFFFF;
+        int yResolution = record.getShort(p + 6) & 0xFFFF;
+        int viewCount = record.get(p + 8) & 0xFF;
+        p = base + (iso ? ISO_HEADER_LENGTH : INCITS_HEADER_LENGTH);
+        int end = base + length;
+
+        // first pass for the sizes, so the arrays are allocated once
+        int total = 0;
+        int q = p;
+        for (int v = 0; v < viewCount; v++) {
+            if (q + VIEW_HEADER_LENGTH > end)
+                throw new CardException("Minutiae record truncated in view " + v);
+            int count = record.get(q + 3) & 0xFF;
+            q += VIEW_HEADER_LENGTH + count * MINUTIA_LENGTH;
+            if (q + 2 > end)
+                throw new CardException("Minutiae record truncated in view " + v);
+            q += 2 + (record.getShort(q) & 0xFFFF);
+            total += count;
+        }
+        if (q > end)
+            throw new CardException("Minutiae record truncated");
+
+        int[] viewStart = new int[viewCount + 1];
+        byte[] fingerPosition = new byte[viewCount];
+        byte[] impressionType = new byte[viewCount];
+        byte[] fingerQuality = new byte[viewCount];
+        short[] x = new short[total];
+        short[] y = new short[total];
+        short[] angle = new short[total];
+        byte[] type = new byte[total];
+        byte[] quality = new byte[total];
+
+        int m = 0;
+        for (int v = 0; v < viewCount; v++) {
+            viewStart[v] = m;
+            fingerPosition[v] = record.get(p);
+            impressionType[v] = (byte) (record.get(p + 1) & 0x0F);
+            fingerQuality[v] = record.get(p + 2);
+            int count = record.get(p + 3) & 0xFF;
+            p += VIEW_HEADER_LENGTH;
+            for (int i = 0; i < count; i++, m++, p += MINUTIA_LENGTH) {
+                int xField = record.getShort(p) & 0xFFFF;
+                type[m] = (byte) (xField >> 14);
+                x[m] = (short) (xField & 0x3FFF);
+                y[m] = (short) (record.getShort(p + 2) & 0x3FFF);
+                int a = record.get(p + 4) & 0xFF;
+                // INCITS counts in 2 degree steps, ISO in 256ths of a turn
+                angle[m] = (short) (iso ? (a * 360 + 128) / 256 % 360 : a * 2 % 360);
+                quality[m] = record.get(p + 5);
+            }
+            // skip the extended data, ridge counts and cores are not used
+            p += 2 + (record.getShort(p) & 0xFFFF);
+        }
+        viewStart[viewCount] = m;
+        return new MinutiaeTemplate(width, height, xResolution, yResolution, viewStart,
+                fingerPosition, impressionType, fingerQuality, x, y, angle, type, quality);
+    }
+
+    /**
+     * Build a template from minutiae already in memory, for enrolment from
+     * another source and for tests
+     *
+     * @param viewStart index of the first minutia of each view, then the total
+     * @param fingerPosition finger of each view, 0 if unknown
+     */
+    public static MinutiaeTemplate of(int[] viewStart, byte[] fingerPosition,
+                                      short[] x, short[] y, short[] angle, byte[] type) {
+        int views = fingerPosition.length;
+        return new MinutiaeTemplate(0, 0, 197, 197, viewStart.clone(), fingerPosition.clone(),
+                new byte[views], new byte[views], x.clone(), y.clone(), angle.clone(), type.clone(),
+                new byte[x.length]);
+    }
+
+    /**
+     * Encode as an INCITS 378-2004 record, without extended data
+     */
+    public byte[] toIncits378() {
+        int length = INCITS_HEADER_LENGTH + getViewCount() * (VIEW_HEADER_LENGTH + 2) + getMinutiaCount() * MINUTIA_LENGTH;
+        ByteBuffer out = ByteBuffer.allocate(length);
+        out.putInt(MAGIC).putInt(VERSION_20).putShort((short) length);
+        out.putInt(0).putShort((short) 0);
+        out.putShort((short) width).putShort((short) height).putShort((short) xResolution).putShort((short) yResolution);
+        out.put((byte) getViewCount()).put((byte) 0);
+        for (int v = 0; v < getViewCount(); v++) {
+            out.put(fingerPosition[v]).put(impressionType[v]).put(fingerQuality[v]).put((byte) getMinutiaCount(v));
+            for (int m = viewStart[v]; m < viewStart[v + 1]; m++) {
+                out.putShort((short) ((type[m] << 14) | x[m]));
+                out.putShort(y[m]);
+                out.put((byte) (angle[m] / 2));
+                out.put(quality[m]);
+            }
+            out.putShort((short) 0);
+        }
+        return out.array();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return horizontal resolution in pixels per cm, 197 for the 500 ppi PIV requires
+     */
+    public int getXResolution() {
+        return xResolution;
+    }
+
+    public int getYResolution() {
+        return yResolution;
+    }
+
+    public int getViewCount() {
+        return fingerPosition.length;
+    }
+
+    /**
+     * @return total number of minutiae over all views
+     */
+    public int getMinutiaCount() {
+        return viewStart[viewStart.length - 1];
+    }
+
+    public int getMinutiaCount(int view) {
+        return viewStart[view + 1] - viewStart[view];
+    }
+
+    /**
+     * @return index of the first minutia of the view in the minutia arrays
+     */
+    public int getViewStart(int view) {
+        return viewStart[view];
+    }
+
+    /**
+     * @return finger position code, 1 right thumb to 10 left little, 0 unknown
+     */
+    public int getFingerPosition(int view) {
+        return fingerPosition[view];
+    }
+
+    public int getImpressionType(int view) {
+        return impressionType[view];
+    }
+
+    public int getFingerQuality(int view) {
+        return fingerQuality[view] & 0xFF;
+    }
+
+    public int getX(int minutia) {
+        return x[minutia];
+    }
+
+    public int getY(int minutia) {
+        return y[minutia];
+    }
+
+    /**
+     * @return direction in degrees, 0 to 359
+     */
+    public int getAngle(int minutia) {
+        return angle[minutia];
+    }
+
+    /**
+     * @return TYPE_RIDGE_ENDING, TYPE_BIFURCATION or TYPE_OTHER
+     */
+    public int getType(int minutia) {
+        return type[minutia];
+    }
+
+    public int getQuality(int minutia) {
+        return quality[minutia] & 0xFF;
+    }
+
+    /**
+     * @return name of a finger position code
+     */
+    public static String fingerName(int position) {
+        return position > 0 && position < FINGER_NAMES.length ? FINGER_NAMES[position] : "unknown finger";
+    }
+}
@@ -0,0 +1,371 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * In-process reader for PIV containers.
+ * <p>
+ *     Talks directly to the card with SELECT, VERIFY and GET DATA instead of
+ *     running pkcs15-tool, so the PC/SC connection, the selected applet and the
+ *     PIN security status are kept between reads.
+ *     All card access goes through a {@link CardTransport}.
+ * <p>
+ *     Responses are assembled in pooled buffers sized from the TLV length of
+ *     the first chunk, and the transport's response arrays are zeroed once
+ *     copied, so a container read allocates little beyond its result.
+ * <p>
+ *     Containers are read with extended length GET DATA when the ATR and the
+ *     negotiated protocol allow it, so a facial image takes one exchange
+ *     instead of dozens of GET RESPONSE round trips. The first read on a new
+ *     card model checks that extended APDUs really work and falls back to
+ *     short APDUs if not; the result is kept per ATR in {@link ApduProfiles}.
+ */
+public class PivCardReader {
+    /** PIV card application AID (NIST SP 800-73-4) */
+    public static final byte[] PIV_AID = new byte[] {
+            (byte) 0xA0, 0x00, 0x00, 0x03, 0x08, 0x00, 0x00, 0x10, 0x00, 0x01, 0x00 };
+
+    private static final int TAG_DATA_OBJECT = 0x53;
+    // largest size hint taken from a card, one extended response and its
+    // header; anything longer the buffer grows to as the data arrives
+    static final int MAX_LENGTH_HINT = ApduProfile.EXTENDED_MAX_LE + 5;
+
+    private final CardTransport transport;
+    private final BufferPool pool;
+    private final ApduProfiles profiles;
+    private ApduProfile profile = null;
+    private boolean selected = false;
+    private boolean pinVerified = false;
+
+    public PivCardReader(CardTransport transport) {
+        this(transport, new BufferPool(), new ApduProfiles());
+    }
+
+    public PivCardReader(CardTransport transport, BufferPool pool) {
+        this(transport, pool, new ApduProfiles());
+    }
+
+    /**
+     * @param transport connected card
+     * @param pool buffers for assembling responses
+     * @param profiles APDU profiles learned from earlier cards, updated by this reader
+     */
+    public PivCardReader(CardTransport transport, BufferPool pool, ApduProfiles profiles) {
+        this.transport = transport;
+        this.pool = pool;
+        this.profiles = profiles;
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    public CardTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Select the PIV application
+     *
+     * @return application property template returned by the card
+     * @throws CardException if the card has no PIV application
+     */
+    public byte[] select() throws CardException {
+        ResponseBuffer out = pool.acquire();
+        try {
+            int sw = exchange(Apdu.select(PIV_AID), out);
+            if (sw != Apdu.SW_OK)
+                throw new CardException("SELECT PIV application failed", sw);
+            selected = true;
+            pinVerified = false;
+            return out.copy(0, out.length());
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    /**
+     * Verify the card holder PIN so the AuthID protected containers can be read
+     *
+     * @param pin ASCII PIN
+     * @throws CardException if the PIN is malformed, wrong or blocked
+     */
+    public void verifyPin(String pin) throws CardException {
+        // caller input, checked before it can cost a try on the card
+        if (!Apdu.isValidPin(pin))
+            throw new CardException("PIN must be 1 to 8 ASCII characters");
+        if (!selected)
+            select();
+
+        byte[] command = Apdu.verify(pin);
+        ResponseBuffer out = pool.acquire();
+        int sw;
+        try {
+            sw = exchange(command, out);
+        } finally {
+            pool.release(out);
+            // the command holds the PIN
+            Arrays.fill(command, (byte) 0);
+        }
+        if (sw == Apdu.SW_OK) {
+            pinVerified = true;
+            return;
+        }
+        pinVerified = false;
+        if ((sw & 0xFFF0) == 0x63C0)
+            throw new CardException("Wrong PIN, " + (sw & 0x0F) + " tries left", sw);
+        if (sw == Apdu.SW_PIN_BLOCKED)
+            throw new CardException("PIN is blocked", sw);
+        throw new CardException("VERIFY failed", sw);
+    }
+
+    /**
+     * Drop the PIN status, so protected containers need a new VERIFY
+     *
+     * @return false if the card does not support the reset; the application
+     *          must then be selected again before the status is really gone
+     * @throws CardException if the card cannot be reached
+     */
+    public boolean resetPin() throws CardException {
+        pinVerified = false;
+        ResponseBuffer out = pool.acquire();
+        try {
+            return exchange(Apdu.resetPin(), out) == Apdu.SW_OK;
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    /**
+     * @return APDU profile in use for this card
+     */
+    public ApduProfile getApduProfile() {
+        if (profile == null) {
+            byte[] atr = transport.getAtr();
+            profile = profiles.get(atr);
+            if (profile == null)
+                profile = atr == null ? ApduProfile.SHORT : ApduProfile.fromAtr(Atr.parse(atr), transport.getProtocol());
+        }
+        return profile;
+    }
+
+    /**
+     * @return true if the PIV application is known to be selected
+     */
+    public boolean isSelected() {
+        return selected;
+    }
+
+    /**
+     * Forget the selected application and the PIN status, after the card was
+     * reset. The next read selects the application again.
+     */
+    public void forgetState() {
+        selected = false;
+        pinVerified = false;
+    }
+
+    /**
+     * @return true if the PIN was verified since the application was selected
+     */
+    public boolean isPinVerified() {
+        return pinVerified;
+    }
+
+    /**
+     * Read a container and return its contents without the outer 53 tag
+     *
+     * @param container container to read
+     * @return container contents
+     * @throws CardException if the container cannot be read
+     */
+    public byte[] readContainer(PivContainer container) throws CardException {
+        ResponseBuffer out = pool.acquire();
+        try {
+            getData(container.getTagBytes(), out);
+            TlvReader tlv = dataObject(out);
+            return out.copy(tlv.valueOffset(), tlv.valueEnd());
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    /**
+     * Read a container into a buffer from the pool, for callers that parse
+     * the contents and do not keep them. Release the buffer to the pool
+     * with {@link BufferPool#release} when done with the view.
+     *
+     * @param container container to read
+     * @param out buffer from {@link #getBufferPool()}, cleared first
+     * @return read-only view of the contents without the outer 53 tag
+     * @throws CardException if the container cannot be read
+     */
+    public ByteBuffer readContainer(PivContainer container, ResponseBuffer out) throws CardException {
+        out.clear();
+        getData(container.getTagBytes(), out);
+        TlvReader tlv = dataObject(out);
+        ByteBuffer view = out.view();
+        view.position(tlv.valueOffset()).limit(tlv.valueEnd());
+        return view.slice();
+    }
+
+    /**
+     * GET DATA for the given tag
+     *
+     * @param tag data object tag
+     * @return the raw 53 data object returned by the card
+     * @throws CardException if the object is missing or protected
+     */
+    public byte[] getData(byte[] tag) throws CardException {
+        ResponseBuffer out = pool.acquire();
+        try {
+            getData(tag, out);
+            return out.copy(0, out.length());
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    private void getData(byte[] tag, ResponseBuffer out) throws CardException {
+        if (!selected)
+            select();
+
+        ApduProfile p = getApduProfile();
+        int sw;
+        if (!p.isExtendedLength())
+            sw = exchange(Apdu.getData(tag), out);
+        else if (p.isConfirmed())
+            sw = exchange(Apdu.getData(tag, true), out);
+        else
+            sw = probeExtended(tag, out);
+        if (sw == Apdu.SW_OK)
+            return;
+        if (sw == Apdu.SW_SECURITY_NOT_SATISFIED)
+            throw new CardException("PIN required to read " + Hex.encode(tag), sw);
+        if (sw == Apdu.SW_FILE_NOT_FOUND)
+            throw new CardException("Data object " + Hex.encode(tag) + " not found", sw);
+        throw new CardException("GET DATA " + Hex.encode(tag) + " failed", sw);
+    }
+
+    /**
+     * GET DATA with an extended APDU on a card model that has not been seen
+     * to take them. A card or reader that rejects it gets the short form and
+     * the card model is marked short; a success marks it extended. Missing or
+     * protected objects do not tell either way, the next read tries again.
+     *
+     * @param out empty buffer
+     * @return status word of the read that was kept
+     */
+    private int probeExtended(byte[] tag, ResponseBuffer out) throws CardException {
+        int sw;
+        try {
+            sw = exchange(Apdu.getData(tag, true), out);
+        } catch (CardException ex) {
+            // the reader driver may refuse the length; if the card is gone
+            // the short read fails as well and nothing is learned
+            out.clear();
+            sw = exchange(Apdu.getData(tag), out);
+            learn(ApduProfile.SHORT);
+            return sw;
+        }
+        if (sw == Apdu.SW_OK) {
+            learn(ApduProfile.EXTENDED);
+            return sw;
+        }
+        if (sw == Apdu.SW_FILE_NOT_FOUND || sw == Apdu.SW_SECURITY_NOT_SATISFIED)
+            return sw;
+        out.clear();
+        sw = exchange(Apdu.getData(tag), out);
+        learn(ApduProfile.SHORT);
+        return sw;
+    }
+
+    private void learn(ApduProfile confirmed) {
+        profile = confirmed;
+        profiles.put(transport.getAtr(), confirmed);
+    }
+
+    /**
+     * Send a command and collect the complete response data, following
+     * 61xx (more data available) and 6Cxx (wrong Le) replies.
+     *
+     * @param command command APDU
+     * @param out receives the response data without status words
+     * @return final status word
+     * @throws CardException if the transport fails
+     */
+    int exchange(byte[] command, ResponseBuffer out) throws CardException {
+        byte[] response = transmit(command);
+        int sw = Apdu.sw(response);
+
+        boolean first = true;
+        while (true) {
+            if (sw == CardException.NO_STATUS)
+                throw new CardException("Short response from card");
+            int n = response.length - 2;
+            if (first) {
+                // size the buffer for the whole object once instead of growing per chunk
+                out.ensureCapacity(out.length() + declaredLength(response, n));
+                first = false;
+            }
+            out.append(response, 0, n);
+            Arrays.fill(response, 0, n, (byte) 0);
+            if ((sw & 0xFF00) != 0x6100)
+                return sw;
+            response = transmit(Apdu.getResponse(sw & 0xFF));
+            sw = Apdu.sw(response);
+        }
+    }
+
+    /**
+     * Send one command, and send it again with the length the card asked for
+     * if it answers 6Cxx (wrong Le). This covers the first command and every
+     * GET RESPONSE after it.
+     */
+    private byte[] transmit(byte[] command) throws CardException {
+        byte[] response = transport.transmit(command);
+        int sw = Apdu.sw(response);
+        if ((sw & 0xFF00) == 0x6C00 && !Apdu.isExtended(command)) {
+            byte[] retry = command.clone();
+            retry[retry.length - 1] = (byte) sw;
+            response = transport.transmit(retry);
+        }
+        return response;
+    }
+
+    /**
+     * Total length of a BER-TLV object with a one byte tag from the header at
+     * the start of the first response chunk
+     *
+     * @return tag, length and value size up to MAX_LENGTH_HINT, or n if the
+     *         header is not complete
+     */
+    static int declaredLength(byte[] chunk, int n) {
+        if (n < 2 || (chunk[0] & 0x1F) == 0x1F)
+            return n;
+        int first = chunk[1] & 0xFF;
+        if (first < 0x80)
+            return 2 + first;
+        int count = first & 0x7F;
+        if (count == 0 || count > 3 || n < 2 + count)
+            return n;
+        int length = 0;
+        for (int i = 0; i < count; i++)
+            length = (length << 8) | (chunk[2 + i] & 0xFF);
+        return Math.min(2 + count + length, Math.max(n, MAX_LENGTH_HINT));
+    }
+
+    /**
+     * Find the 53 data object of a GET DATA response
+     */
+    private static TlvReader dataObject(ResponseBuffer out) throws CardException {
+        TlvReader tlv = new TlvReader(ByteBuffer.wrap(out.array(), 0, out.length()));
+        if (!tlv.next() || tlv.tag() != TAG_DATA_OBJECT)
+            throw new CardException("Response is not a PIV data object");
+        return tlv;
+    }
+}
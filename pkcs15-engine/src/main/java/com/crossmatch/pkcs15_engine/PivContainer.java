@@ -0,0 +1,95 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The PIV data objects this application knows how to read.
+ * <p>
+ *     OID, path and label match what pkcs15-tool --list-data-objects reports
+ *     so the native engine and the pkcs15-tool path can be used interchangeably.
+ *     The tag is the BER-TLV tag passed to GET DATA (NIST SP 800-73-4 Part 1).
+ */
+public enum PivContainer {
+    CARD_CAPABILITY_CONTAINER("2.16.840.1.101.3.7.1.219.0", "db00", 0x5FC107, false, "Card Capability Container"),
+    CHUID("2.16.840.1.101.3.7.2.48.0", "3000", 0x5FC102, false, "Card Holder Unique Identifier"),
+    FINGERPRINTS("2.16.840.1.101.3.7.2.96.16", "6010", 0x5FC103, true, "Cardholder Fingerprints"),
+    PRINTED_INFORMATION("2.16.840.1.101.3.7.2.48.1", "3001", 0x5FC109, true, "Printed Information"),
+    FACIAL_IMAGE("2.16.840.1.101.3.7.2.96.48", "6030", 0x5FC108, true, "Cardholder Facial Image"),
+    CERT_PIV_AUTHENTICATION("2.16.840.1.101.3.7.2.1.1", "0101", 0x5FC105, false, "X.509 Certificate for PIV Authentication"),
+    CERT_DIGITAL_SIGNATURE("2.16.840.1.101.3.7.2.1.0", "0100", 0x5FC10A, false, "X.509 Certificate for Digital Signature"),
+    CERT_KEY_MANAGEMENT("2.16.840.1.101.3.7.2.1.2", "0102", 0x5FC10B, false, "X.509 Certificate for Key Management"),
+    CERT_CARD_AUTHENTICATION("2.16.840.1.101.3.7.2.5.0", "0500", 0x5FC101, false, "X.509 Certificate for Card Authentication"),
+    SECURITY_OBJECT("2.16.840.1.101.3.7.2.144.0", "9000", 0x5FC106, false, "Security Object");
+
+    // lookup tables for find(), filled once the constants exist
+    private static final Map<String, PivContainer> BY_ID = new HashMap<>();
+
+    static {
+        for (PivContainer c : values()) {
+            BY_ID.put(c.label, c);
+            BY_ID.put(c.path.toLowerCase(Locale.US), c);
+            BY_ID.put(c.oid, c);
+        }
+    }
+
+    private final String oid;
+    private final String path;
+    private final int tag;
+    private final boolean pinRequired;
+    private final String label;
+
+    PivContainer(String oid, String path, int tag, boolean pinRequired, String label) {
+        this.oid = oid;
+        this.path = path;
+        this.tag = tag;
+        this.pinRequired = pinRequired;
+        this.label = label;
+    }
+
+    public String getOid() {
+        return oid;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return GET DATA tag as the 3 bytes sent in the 5C tag list
+     */
+    public byte[] getTagBytes() {
+        return new byte[] { (byte) (tag >> 16), (byte) (tag >> 8), (byte) tag };
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * @return true if the container is protected by the card holder PIN (AuthID 01)
+     */
+    public boolean isPinRequired() {
+        return pinRequired;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Look up a container by OID, path or label, the same identifiers
+     * pkcs15-tool --read-data-object accepts.
+     *
+     * @param id OID, path or label
+     * @return container or null if not known
+     */
+    public static PivContainer find(String id) {
+        PivContainer c = BY_ID.get(id);
+        return c != null ? c : BY_ID.get(id.toLowerCase(Locale.US));
+    }
+}
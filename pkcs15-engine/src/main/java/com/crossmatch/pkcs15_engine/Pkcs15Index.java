@@ -0,0 +1,196 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directory of the data objects on one card with constant time lookup by
+ * OID, path or label, the identifiers pkcs15-tool --read-data-object takes,
+ * along with the size and AuthID of each object.
+ * <p>
+ *     Built once per card, from the PIV data model and the card's
+ *     {@link ReadPlan}, or from the records of a pkcs15-tool listing. Sizes
+ *     are filled in as objects are read, and objects the card reports as not
+ *     found are dropped. Objects taken from the data model are only
+ *     candidates until the card has answered for them. The index lives with the card session and is kept
+ *     in {@link CardCache} with the card identity, so the next insertion of
+ *     the same card starts with it.
+ */
+public final class Pkcs15Index {
+    /** AuthID of the PIV card holder PIN as pkcs15-tool reports it */
+    public static final String AUTH_ID_PIN = "01";
+
+    // by lower case path, in insertion order for listings
+    private final Map<String, DataObjectRecord> byPath = new LinkedHashMap<>();
+    private final Map<String, DataObjectRecord> byOid = new HashMap<>();
+    private final Map<String, DataObjectRecord> byLabel = new HashMap<>();
+    // lower case paths of the objects the card has shown it has
+    private final Set<String> confirmed = new HashSet<>();
+
+    /**
+     * Index of the PIV data objects the card may have
+     *
+     * @param plan read plan of the card model, or null if unknown
+     * @return index of every PIV container not known to be absent
+     */
+    public static Pkcs15Index forPiv(ReadPlan plan) {
+        Pkcs15Index index = new Pkcs15Index();
+        for (PivContainer container : PivContainer.values()) {
+            if (plan != null && plan.isAbsent(container))
+                continue;
+            ReadPlan.Step step = plan == null ? null : plan.getStep(container);
+            boolean pin = step != null ? step.isPinRequired() : container.isPinRequired();
+            DataObjectRecord record = new DataObjectRecord();
+            record.path = container.getPath();
+            record.oid = container.getOid();
+            record.label = container.getLabel();
+            record.authId = pin ? AUTH_ID_PIN : null;
+            record.size = step != null ? step.getExpectedSize() : -1;
+            index.add(record);
+        }
+        return index;
+    }
+
+    /**
+     * Add or replace an object. Records without a path are ignored, since the
+     * path is what identifies an object on the card.
+     */
+    public synchronized void add(DataObjectRecord record) {
+        if (record.path == null)
+            return;
+        DataObjectRecord old = byPath.remove(key(record.path));
+        if (old != null)
+            unlink(old);
+        byPath.put(key(record.path), record);
+        if (record.oid != null)
+            byOid.put(record.oid, record);
+        if (record.label != null)
+            byLabel.put(record.label, record);
+    }
+
+    private void unlink(DataObjectRecord record) {
+        if (record.oid != null && byOid.get(record.oid) == record)
+            byOid.remove(record.oid);
+        if (record.label != null && byLabel.get(record.label) == record)
+            byLabel.remove(record.label);
+    }
+
+    private static String key(String path) {
+        return path.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param id OID, path or label
+     * @return the object, or null if the card does not have it
+     */
+    public synchronized DataObjectRecord find(String id) {
+        DataObjectRecord record = byOid.get(id);
+        if (record == null)
+            record = byPath.get(key(id));
+        if (record == null)
+            record = byLabel.get(id);
+        return record;
+    }
+
+    /**
+     * Record that the card has an object without reading it, for one it
+     * refused to read without the PIN
+     */
+    public synchronized void confirm(String path) {
+        if (byPath.containsKey(key(path)))
+            confirmed.add(key(path));
+    }
+
+    /**
+     * @return true if the card has shown it has the object
+     */
+    public synchronized boolean isConfirmed(String path) {
+        return confirmed.contains(key(path));
+    }
+
+    /**
+     * Record the size of an object that was just read, which confirms it
+     */
+    public synchronized void setSize(String path, int size) {
+        DataObjectRecord old = byPath.get(key(path));
+        if (old == null)
+            return;
+        confirmed.add(key(path));
+        if (old.size == size)
+            return;
+        // records are handed out, replace rather than modify
+        DataObjectRecord record = new DataObjectRecord();
+        record.path = old.path;
+        record.oid = old.oid;
+        record.label = old.label;
+        record.applicationName = old.applicationName;
+        record.authId = old.authId;
+        record.size = size;
+        add(record);
+    }
+
+    /**
+     * Drop an object the card reported as not found
+     */
+    public synchronized void remove(String path) {
+        DataObjectRecord old = byPath.remove(key(path));
+        if (old != null)
+            unlink(old);
+        confirmed.remove(key(path));
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    /**
+     * @return the objects in the order they were added
+     */
+    public synchronized List<DataObjectRecord> getRecords() {
+        return new ArrayList<>(byPath.values());
+    }
+
+    /**
+     * @return the index as pkcs15-tool --list-data-objects --short prints it,
+     *         which {@link Pkcs15ToolOutputParser} reads back
+     */
+    public synchronized String formatShort() {
+        return formatShort(false);
+    }
+
+    /**
+     * @param confirmedOnly true to leave out the objects the card has not
+     *          answered for yet
+     * @return the index as pkcs15-tool --list-data-objects --short prints it
+     */
+    public synchronized String formatShort(boolean confirmedOnly) {
+        List<DataObjectRecord> records = new ArrayList<>();
+        for (Map.Entry<String, DataObjectRecord> entry : byPath.entrySet()) {
+            if (!confirmedOnly || confirmed.contains(entry.getKey()))
+                records.add(entry.getValue());
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Card has ").append(records.size()).append(" Data object(s).\n");
+        for (DataObjectRecord record : records) {
+            sb.append(String.format(Locale.US, "\tPath:%-14s %-27s", record.path,
+                    record.oid == null ? "" : record.oid));
+            if (record.size >= 0)
+                sb.append(String.format(Locale.US, "Size: %4d  ", record.size));
+            if (record.authId != null)
+                sb.append("AuthID:").append(record.authId).append("   ");
+            if (record.label != null)
+                sb.append(record.label);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Push parser for pkcs15-tool output.
+ * <p>
+ *     Output is fed in whatever pieces it arrives in and each data object is
+ *     handed to the listener as soon as its last line has been seen, so work
+ *     can start before the tool exits. Understands:
+ * <ul>
+ *     <li>--list-data-objects --short: one object per "Path:" line</li>
+ *     <li>--dump and --list-data-objects: "Data object" / "Reading data object"
+ *     blocks of "key: value" lines ended by a blank line</li>
+ *     <li>--read-data-object: "Data Object (N bytes): &lt; 53 82 ... &gt;", the
+ *     hex payload is decoded as it streams in without building a String</li>
+ * </ul>
+ */
+public class Pkcs15ToolOutputParser {
+
+    public interface Listener {
+        void onDataObject(DataObjectRecord record);
+    }
+
+    // Path:3000          2.16.840.1.101.3.7.2.48.0  Size: 1856  Card Holder Unique Identifier
+    private static final Pattern SHORT_LINE = Pattern.compile(
+            "^\\s*Path:(\\S*)\\s+(\\d+(?:\\.\\d+)+)\\s*(?:Size:\\s*(\\d+)\\s*)?(?:AuthID:\\s*(\\S+)\\s*)?(.*)$");
+    // Data object 'Card Holder Unique Identifier' or Reading data object <2>
+    private static final Pattern BLOCK_START = Pattern.compile(
+            "^\\s*(?:Data object '(.*)'|Reading data object <\\d+>)\\s*$");
+    private static final Pattern BLOCK_FIELD = Pattern.compile("^\\s*([A-Za-z][A-Za-z ]*?):\\s*(.*)$");
+    // Data Object (1856 bytes): <
+    private static final Pattern PAYLOAD_START = Pattern.compile("^.*\\((\\d+) bytes\\):\\s*<$");
+    private static final Pattern DATA_FIELD = Pattern.compile("^\\s*Data \\((\\d+) bytes\\):\\s*([0-9A-Fa-f ]*)$");
+
+    private final Listener listener;
+    private final StringBuilder line = new StringBuilder(128);
+    private DataObjectRecord block = null;
+
+    // hex payload being decoded, null when not inside < >
+    private ByteArrayOutputStream payload = null;
+    private int payloadNibble = -1;
+    private DataObjectRecord payloadRecord = null;
+
+    public Pkcs15ToolOutputParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Parse the next piece of output
+     */
+    public void feed(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (payload != null) {
+                feedPayload(c);
+            } else if (c == '\n') {
+                handleLine(line);
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append(c);
+                if (c == '<')
+                    checkPayloadStart();
+            }
+        }
+    }
+
+    /**
+     * Flush anything still pending at the end of the output
+     */
+    public void finish() {
+        if (payload != null)
+            endPayload();
+        if (line.length() > 0) {
+            handleLine(line);
+            line.setLength(0);
+        }
+        endBlock();
+    }
+
+    private void checkPayloadStart() {
+        Matcher m = PAYLOAD_START.matcher(line);
+        if (!m.matches())
+            return;
+        int size = Integer.parseInt(m.group(1));
+        // the payload belongs to the block being read, if any
+        payloadRecord = block != null ? block : new DataObjectRecord();
+        block = null;
+        payloadRecord.size = size;
+        payload = new ByteArrayOutputStream(size);
+        payloadNibble = -1;
+        line.setLength(0);
+    }
+
+    private void feedPayload(char c) {
+        if (c == '>') {
+            endPayload();
+            return;
+        }
+        int d = Character.digit(c, 16);
+        if (d < 0)
+            return;
+        if (payloadNibble < 0) {
+            payloadNibble = d;
+        } else {
+            payload.write((payloadNibble << 4) | d);
+            payloadNibble = -1;
+        }
+    }
+
+    private void endPayload() {
+        payloadRecord.data = payload.toByteArray();
+        payload = null;
+        DataObjectRecord record = payloadRecord;
+        payloadRecord = null;
+        listener.onDataObject(record);
+    }
+
+    private void handleLine(CharSequence text) {
+        if (text.length() == 0 || text.toString().trim().isEmpty()) {
+            endBlock();
+            return;
+        }
+
+        Matcher m = BLOCK_START.matcher(text);
+        if (m.matches()) {
+            endBlock();
+            block = new DataObjectRecord();
+            block.label = m.group(1);
+            return;
+        }
+
+        if (block != null) {
+            m = DATA_FIELD.matcher(text);
+            if (m.matches()) {
+                block.size = Integer.parseInt(m.group(1));
+                block.data = Hex.decode(m.group(2));
+                return;
+            }
+            m = BLOCK_FIELD.matcher(text);
+            if (m.matches()) {
+                setField(block, m.group(1), m.group(2).trim());
+                return;
+            }
+        }
+
+        m = SHORT_LINE.matcher(text);
+        if (m.matches()) {
+            endBlock();
+            DataObjectRecord record = new DataObjectRecord();
+            record.path = m.group(1);
+            record.oid = m.group(2);
+            if (m.group(3) != null)
+                record.size = Integer.parseInt(m.group(3));
+            record.authId = m.group(4);
+            String label = m.group(5).trim();
+            record.label = label.isEmpty() ? null : label;
+            listener.onDataObject(record);
+        }
+    }
+
+    private static void setField(DataObjectRecord record, String key, String value) {
+        if (key.equals("applicationName"))
+            record.applicationName = value;
+        else if (key.equals("Label"))
+            record.label = value;
+        else if (key.equals("applicationOID"))
+            record.oid = value;
+        else if (key.equals("Path"))
+            record.path = value;
+        else if (key.equals("Auth ID") || key.equals("AuthID"))
+            record.authId = value;
+        else if (key.equals("Size"))
+            record.size = parseSize(value);
+    }
+
+    private static int parseSize(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void endBlock() {
+        if (block == null)
+            return;
+        DataObjectRecord record = block;
+        block = null;
+        if (record.oid != null || record.path != null)
+            listener.onDataObject(record);
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Printed information container (SP 800-73-4 Part 1, Appendix A).
+ * All fields are ASCII text and decoded only when asked for.
+ */
+public final class PrintedInformation {
+    static final int TAG_NAME = 0x01;
+    static final int TAG_EMPLOYEE_AFFILIATION = 0x02;
+    static final int TAG_EXPIRATION_DATE = 0x04;
+    static final int TAG_AGENCY_CARD_SERIAL = 0x05;
+    static final int TAG_ISSUER_ID = 0x06;
+    static final int TAG_ORG_AFFILIATION_1 = 0x07;
+    static final int TAG_ORG_AFFILIATION_2 = 0x08;
+
+    // value offset and length of tags 01 to 08, -1 if absent
+    private final int[] offsets = new int[] { -1, -1, -1, -1, -1, -1, -1, -1, -1 };
+    private final int[] lengths = new int[9];
+    private final ByteBuffer buf;
+
+    private PrintedInformation(ByteBuffer buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * @param container container contents between position and limit, without the 53 tag
+     * @return parsed container
+     * @throws CardException if the container is malformed
+     */
+    public static PrintedInformation parse(ByteBuffer container) throws CardException {
+        PrintedInformation info = new PrintedInformation(container);
+        TlvReader tlv = new TlvReader(container);
+        while (tlv.next()) {
+            int tag = tlv.tag();
+            if (tag >= TAG_NAME && tag <= TAG_ORG_AFFILIATION_2) {
+                info.offsets[tag] = tlv.valueOffset();
+                info.lengths[tag] = tlv.valueLength();
+            }
+        }
+        return info;
+    }
+
+    public static PrintedInformation parse(byte[] container) throws CardException {
+        return parse(ByteBuffer.wrap(container));
+    }
+
+    public String getName() {
+        return field(TAG_NAME);
+    }
+
+    public String getEmployeeAffiliation() {
+        return field(TAG_EMPLOYEE_AFFILIATION);
+    }
+
+    /**
+     * @return expiration date as printed on the card, YYYYMMMDD
+     */
+    public String getExpirationDate() {
+        return field(TAG_EXPIRATION_DATE);
+    }
+
+    public String getAgencyCardSerialNumber() {
+        return field(TAG_AGENCY_CARD_SERIAL);
+    }
+
+    public String getIssuerIdentification() {
+        return field(TAG_ISSUER_ID);
+    }
+
+    public String getOrganizationAffiliation1() {
+        return field(TAG_ORG_AFFILIATION_1);
+    }
+
+    public String getOrganizationAffiliation2() {
+        return field(TAG_ORG_AFFILIATION_2);
+    }
+
+    private String field(int tag) {
+        return offsets[tag] < 0 ? null : TlvReader.ascii(buf, offsets[tag], lengths[tag]);
+    }
+}
@@ -0,0 +1,222 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The containers of one card model in the order they are read: CHUID first
+ * since it identifies the card, then the other unprotected containers, then
+ * the PIN protected ones. Each step carries the expected size and whether the
+ * card wants the PIN for it.
+ * <p>
+ *     Containers the plan lists as absent are not on the card and are not
+ *     asked for. Only configured plans list absent containers: the ATR names
+ *     the card model, not how a card was personalised, so one card without
+ *     an object says nothing about the next. Containers the plan does not
+ *     mention are unknown and are read as usual, which is how a learned plan
+ *     fills in over time.
+ * <p>
+ *     Text form, one token per container, by path:
+ *     {@code 3000:1856 db00 6010:?:pin -0500}, that is path, optional size
+ *     ({@code ?} if unknown), optional {@code pin} or {@code nopin} where the
+ *     card differs from the PIV default, and {@code -} for absent.
+ */
+public final class ReadPlan {
+    public static final int SIZE_UNKNOWN = -1;
+
+    public static final class Step {
+        private final PivContainer container;
+        private final int expectedSize;
+        private final boolean pinRequired;
+
+        Step(PivContainer container, int expectedSize, boolean pinRequired) {
+            this.container = container;
+            this.expectedSize = expectedSize;
+            this.pinRequired = pinRequired;
+        }
+
+        public PivContainer getContainer() {
+            return container;
+        }
+
+        /**
+         * @return size of the container contents seen on this card model, or SIZE_UNKNOWN
+         */
+        public int getExpectedSize() {
+            return expectedSize;
+        }
+
+        public boolean isPinRequired() {
+            return pinRequired;
+        }
+    }
+
+    private final List<Step> steps;
+    private final Set<PivContainer> absent;
+
+    /**
+     * @param steps containers on the card, reordered CHUID, unprotected, protected
+     * @param absent containers known not to be on the card
+     */
+    public ReadPlan(List<Step> steps, Set<PivContainer> absent) {
+        List<Step> ordered = new ArrayList<>(steps.size());
+        for (int pass = 0; pass < 3; pass++) {
+            for (Step step : steps) {
+                boolean chuid = step.container == PivContainer.CHUID;
+                if ((pass == 0 && chuid)
+                        || (pass == 1 && !chuid && !step.pinRequired)
+                        || (pass == 2 && !chuid && step.pinRequired))
+                    ordered.add(step);
+            }
+        }
+        this.steps = Collections.unmodifiableList(ordered);
+        this.absent = absent.isEmpty() ? EnumSet.noneOf(PivContainer.class) : EnumSet.copyOf(absent);
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the step for the container, or null if the plan does not list it
+     */
+    public Step getStep(PivContainer container) {
+        for (Step step : steps) {
+            if (step.container == container)
+                return step;
+        }
+        return null;
+    }
+
+    public boolean isAbsent(PivContainer container) {
+        return absent.contains(container);
+    }
+
+    /**
+     * @return true if every known container is either a step or absent
+     */
+    public boolean isComplete() {
+        return steps.size() + absent.size() == PivContainer.values().length;
+    }
+
+    /**
+     * @param withPin include the PIN protected containers
+     * @return containers to read, in plan order
+     */
+    public List<PivContainer> getContainers(boolean withPin) {
+        List<PivContainer> out = new ArrayList<>(steps.size());
+        for (Step step : steps) {
+            if (withPin || !step.pinRequired)
+                out.add(step.container);
+        }
+        return out;
+    }
+
+    /**
+     * @param size contents size if the read worked, otherwise SIZE_UNKNOWN
+     * @param sw status word if the read failed, 0 if it worked
+     * @return a plan that also knows the outcome of one read. Not found
+     *          (6A82) is not learned, it only says this card lacks the object.
+     */
+    ReadPlan with(PivContainer container, int size, int sw) {
+        if (sw != 0 && sw != Apdu.SW_SECURITY_NOT_SATISFIED)
+            return this;
+        Step old = getStep(container);
+        if ((sw == Apdu.SW_SECURITY_NOT_SATISFIED && old != null && old.pinRequired)
+                || (sw == 0 && old != null && old.expectedSize == size))
+            return this;
+        List<Step> newSteps = new ArrayList<>(steps);
+        if (old != null)
+            newSteps.remove(old);
+        Set<PivContainer> newAbsent = absent.isEmpty() ? EnumSet.noneOf(PivContainer.class) : EnumSet.copyOf(absent);
+        newAbsent.remove(container);
+        if (sw == Apdu.SW_SECURITY_NOT_SATISFIED) {
+            newSteps.add(new Step(container, old != null ? old.expectedSize : SIZE_UNKNOWN, true));
+        } else {
+            boolean pin = old != null ? old.pinRequired : container.isPinRequired();
+            newSteps.add(new Step(container, size, pin));
+        }
+        return new ReadPlan(newSteps, newAbsent);
+    }
+
+    /**
+     * @return the same plan without absent containers, for plans that were learned
+     */
+    ReadPlan withoutAbsent() {
+        return absent.isEmpty() ? this : new ReadPlan(steps, EnumSet.noneOf(PivContainer.class));
+    }
+
+    /**
+     * @param text plan in the text form described above
+     * @return plan
+     * @throws IllegalArgumentException if a token is malformed or names an unknown path
+     */
+    public static ReadPlan parse(String text) {
+        List<Step> steps = new ArrayList<>();
+        Set<PivContainer> absent = EnumSet.noneOf(PivContainer.class);
+        for (String token : text.trim().split("\\s+")) {
+            if (token.isEmpty())
+                continue;
+            if (token.startsWith("-")) {
+                absent.add(container(token.substring(1)));
+                continue;
+            }
+            String[] parts = token.split(":");
+            PivContainer container = container(parts[0]);
+            int size = SIZE_UNKNOWN;
+            if (parts.length > 1 && !parts[1].equals("?") && !parts[1].isEmpty()) {
+                try {
+                    size = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Bad size in " + token);
+                }
+            }
+            boolean pin = container.isPinRequired();
+            if (parts.length > 2)
+                pin = parts[2].equals("pin");
+            steps.add(new Step(container, size, pin));
+        }
+        return new ReadPlan(steps, absent);
+    }
+
+    private static PivContainer container(String path) {
+        for (PivContainer c : PivContainer.values()) {
+            if (c.getPath().equalsIgnoreCase(path))
+                return c;
+        }
+        throw new IllegalArgumentException("Unknown container path " + path);
+    }
+
+    /**
+     * @return the plan in the text form read by {@link #parse}
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(step.container.getPath());
+            if (step.expectedSize != SIZE_UNKNOWN || step.pinRequired != step.container.isPinRequired())
+                sb.append(':').append(step.expectedSize == SIZE_UNKNOWN ? "?" : String.valueOf(step.expectedSize));
+            if (step.pinRequired != step.container.isPinRequired())
+                sb.append(':').append(step.pinRequired ? "pin" : "nopin");
+        }
+        for (PivContainer c : absent) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append('-').append(c.getPath());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+/**
+ * Turns the event states PC/SC reports for one reader into a clean stream
+ * of transitions.
+ * <p>
+ *     The event state is a bitmask, several flags can be set at once; it is
+ *     decoded into one {@link State}. Its upper 16 bits count the card
+ *     insertions and removals seen by the resource manager, so a card pulled
+ *     and put back between two calls still shows up as a changed card.
+ * <p>
+ *     Removals are reported at once. Insertions and changes between the
+ *     card states, such as our own connect setting the reader in use and
+ *     back, are held for the debounce window from the first change and only
+ *     the state at its end is reported, if it differs from the last one.
+ *     A card that goes in and out again within the window is never reported.
+ * <p>
+ *     Not thread safe, each reader's monitor keeps its own.
+ */
+public final class ReaderStateMachine {
+    // SCARD_STATE_* flags, the same in pcsc-lite and winscard
+    public static final int STATE_IGNORE = 0x0001;
+    public static final int STATE_CHANGED = 0x0002;
+    public static final int STATE_UNKNOWN = 0x0004;
+    public static final int STATE_UNAVAILABLE = 0x0008;
+    public static final int STATE_EMPTY = 0x0010;
+    public static final int STATE_PRESENT = 0x0020;
+    public static final int STATE_ATRMATCH = 0x0040;
+    public static final int STATE_EXCLUSIVE = 0x0080;
+    public static final int STATE_INUSE = 0x0100;
+    public static final int STATE_MUTE = 0x0200;
+    public static final int STATE_UNPOWERED = 0x0400;
+
+    // flag names by bit, for logs
+    private static final String[] FLAG_NAMES = {
+            "ignore", "changed", "unknown", "unavailable", "empty", "present",
+            "ATR match", "exclusive", "in use", "mute", "unpowered",
+    };
+
+    /** what a reader is doing, as far as a card reader application cares */
+    public enum State {
+        /** reader gone, or not to be used */
+        ABSENT(false),
+        /** reader there, but its state cannot be read */
+        UNAVAILABLE(false),
+        EMPTY(false),
+        PRESENT(true),
+        /** card in, but it does not answer to reset */
+        MUTE(true),
+        /** card in and connected in shared mode */
+        IN_USE(true),
+        /** card in and connected exclusively */
+        EXCLUSIVE(true);
+
+        private final boolean card;
+
+        State(boolean card) {
+            this.card = card;
+        }
+
+        /**
+         * @return true if there is a card in the reader
+         */
+        public boolean hasCard() {
+            return card;
+        }
+    }
+
+    /** one reported change of state. Immutable. */
+    public static final class Transition {
+        private final State from;
+        private final State to;
+        private final boolean cardChanged;
+        private final int eventCount;
+        private final int eventState;
+        private final long timestampNanos;
+        private final int coalesced;
+
+        Transition(State from, State to, boolean cardChanged, int eventCount, int eventState, long timestampNanos,
+                   int coalesced) {
+            this.from = from;
+            this.to = to;
+            this.cardChanged = cardChanged;
+            this.eventCount = eventCount;
+            this.eventState = eventState;
+            this.timestampNanos = timestampNanos;
+            this.coalesced = coalesced;
+        }
+
+        public State getFrom() {
+            return from;
+        }
+
+        public State getTo() {
+            return to;
+        }
+
+        /**
+         * @return true if the card in the reader is not the one there before,
+         *          also when both states have a card because the old one was
+         *          swapped between two status calls
+         */
+        public boolean isCardChanged() {
+            return cardChanged;
+        }
+
+        /**
+         * @return card insertions and removals counted by the resource
+         *          manager, modulo 65536
+         */
+        public int getEventCount() {
+            return eventCount;
+        }
+
+        /**
+         * @return raw event state the transition was decoded from
+         */
+        public int getEventState() {
+            return eventState;
+        }
+
+        /**
+         * @return time the new state was first seen, on the clock passed to offer
+         */
+        public long getTimestampNanos() {
+            return timestampNanos;
+        }
+
+        /**
+         * @return raw state changes folded into this transition, 1 if none was dropped
+         */
+        public int getCoalesced() {
+            return coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + (cardChanged ? ", card changed" : "") + ", event " + eventCount
+                    + (coalesced > 1 ? ", " + coalesced + " changes" : "");
+        }
+    }
+
+    private final long debounceNanos;
+
+    // last reported
+    private State state = State.ABSENT;
+    private int eventCount = -1;
+
+    // held back, valid while pending
+    private boolean pending = false;
+    private State pendingState;
+    private int pendingEventCount;
+    private int pendingEventState;
+    private long pendingSince;
+    private long pendingDeadline;
+    private int pendingChanges;
+
+    /**
+     * @param debounceMillis how long insertions and changes between card
+     *          states are held, 0 to report every change as it comes
+     */
+    public ReaderStateMachine(long debounceMillis) {
+        this.debounceNanos = debounceMillis * 1000000L;
+    }
+
+    /**
+     * @return the card state an event state stands for, the most specific
+     *          one when several flags are set
+     */
+    public static State decode(int eventState) {
+        if ((eventState & (STATE_UNKNOWN | STATE_IGNORE)) != 0)
+            return State.ABSENT;
+        if ((eventState & STATE_UNAVAILABLE) != 0)
+            return State.UNAVAILABLE;
+        if ((eventState & STATE_PRESENT) == 0)
+            return State.EMPTY;
+        if ((eventState & STATE_MUTE) != 0)
+            return State.MUTE;
+        if ((eventState & STATE_EXCLUSIVE) != 0)
+            return State.EXCLUSIVE;
+        if ((eventState & STATE_INUSE) != 0)
+            return State.IN_USE;
+        return State.PRESENT;
+    }
+
+    /**
+     * @return insertion and removal count in the upper half of an event state
+     */
+    public static int eventCount(int eventState) {
+        return eventState >>> 16;
+    }
+
+    /**
+     * @return the flags set in an event state, for logs
+     */
+    public static String describe(int eventState) {
+        StringBuilder sb = new StringBuilder();
+        for (int bit = 0; bit < FLAG_NAMES.length; bit++) {
+            if ((eventState & (1 << bit)) != 0) {
+                if (sb.length() > 0)
+                    sb.append(", ");
+                sb.append(FLAG_NAMES[bit]);
+            }
+        }
+        return sb.append(" (event ").append(eventCount(eventState)).append(')').toString();
+    }
+
+    /**
+     * Take a new event state
+     *
+     * @param nowNanos current time on a monotonic clock
+     * @return the transition to report now, or null if there is none yet
+     */
+    public Transition offer(int eventState, long nowNanos) {
+        State to = decode(eventState);
+        int count = eventCount(eventState);
+        // a counter that moved means a card came or went, whatever the state says now
+        boolean cardChanged = to.hasCard() && (!state.hasCard() || count != eventCount);
+
+        if (state.hasCard() && !to.hasCard()) {
+            pending = false;
+            return report(to, cardChanged, count, eventState, nowNanos, 1);
+        }
+        if (cardChanged && state.hasCard()) {
+            // swapped while we were not looking: the removal of the old card
+            // must not wait behind the debounce window of the new one
+            pending = false;
+            return report(to, true, count, eventState, nowNanos, 1);
+        }
+        if (!pending) {
+            if (to == state && count == eventCount)
+                return null;
+            pending = true;
+            pendingSince = nowNanos;
+            pendingDeadline = nowNanos + debounceNanos;
+            pendingChanges = 0;
+        }
+        pendingState = to;
+        pendingEventCount = count;
+        pendingEventState = eventState;
+        pendingChanges++;
+        return poll(nowNanos);
+    }
+
+    /**
+     * @return the held transition if its window is over, otherwise null
+     */
+    public Transition poll(long nowNanos) {
+        if (!pending || nowNanos - pendingDeadline < 0)
+            return null;
+        pending = false;
+        if (pendingState == state && (pendingEventCount == eventCount || !state.hasCard())) {
+            // flapped back to where it was
+            eventCount = pendingEventCount;
+            return null;
+        }
+        boolean cardChanged = pendingState.hasCard() && (!state.hasCard() || pendingEventCount != eventCount);
+        return report(pendingState, cardChanged, pendingEventCount, pendingEventState, pendingSince, pendingChanges);
+    }
+
+    /**
+     * @return nanoseconds until a held transition is due, 0 if it is due now,
+     *          -1 if nothing is held
+     */
+    public long getPendingNanos(long nowNanos) {
+        if (!pending)
+            return -1;
+        return Math.max(0, pendingDeadline - nowNanos);
+    }
+
+    /**
+     * @return last reported state
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return event count of the last reported state, -1 before the first
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    private Transition report(State to, boolean cardChanged, int count, int eventState, long timestampNanos,
+                              int coalesced) {
+        Transition transition = new Transition(state, to, cardChanged, count, eventState, timestampNanos, coalesced);
+        state = to;
+        eventCount = count;
+        return transition;
+    }
+}
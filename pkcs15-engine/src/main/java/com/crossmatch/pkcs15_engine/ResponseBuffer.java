@@ -0,0 +1,84 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer for assembling a response from several APDUs,
+ * taken from and returned to a {@link BufferPool}.
+ * <p>
+ *     Container data includes biometrics, so every byte that was written is
+ *     zeroed when the buffer grows into a new array and when it goes back
+ *     to the pool.
+ */
+public final class ResponseBuffer {
+    private byte[] data;
+    private int length = 0;
+    // highest length since the last wipe, the part of data that needs zeroing
+    private int dirty = 0;
+
+    ResponseBuffer(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Make room for at least capacity bytes, so a container of known size is
+     * assembled without growing again
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity <= data.length)
+            return;
+        byte[] grown = Arrays.copyOf(data, Math.max(capacity, data.length + (data.length >> 1)));
+        Arrays.fill(data, 0, dirty, (byte) 0);
+        data = grown;
+    }
+
+    public void append(byte[] src, int offset, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(src, offset, data, length, count);
+        length += count;
+        if (length > dirty)
+            dirty = length;
+    }
+
+    /**
+     * @return read-only view of the contents, valid until the buffer is released
+     */
+    public ByteBuffer view() {
+        return ByteBuffer.wrap(data, 0, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return copy of bytes [from, to)
+     */
+    public byte[] copy(int from, int to) {
+        return Arrays.copyOfRange(data, from, to);
+    }
+
+    /** empty the buffer without zeroing, for reuse by the same owner */
+    public void clear() {
+        length = 0;
+    }
+
+    /** empty the buffer and zero everything that was written */
+    void wipe() {
+        Arrays.fill(data, 0, dirty, (byte) 0);
+        length = 0;
+        dirty = 0;
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Offline revocation list of cards (FASC-N, GUID) and certificates (issuer
+ * and serial number), compiled from CRL files and plain lists into one file
+ * that is memory-mapped rather than loaded.
+ * <p>
+ *     Each entry is the first 16 bytes of the SHA-256 of its kind and value,
+ *     so entries are fixed width whatever the issuer name, and the file is
+ *     the sorted entries after a 16 byte header. A lookup is a binary search
+ *     on the mapping and touches about log2(n) entries; nothing is copied
+ *     onto the heap. A hash collision would read as revoked, at odds
+ *     of about n in 2^128 per lookup.
+ * <p>
+ *     {@link Builder#write} replaces the file with a rename, so an index
+ *     that is open keeps its mapping of the old file, and
+ *     {@link RevocationStore} picks up the new one.
+ */
+public final class RevocationIndex {
+    private static final int MAGIC = 0x52564B31;    // "RVK1"
+    private static final int HEADER_LENGTH = 16;
+    static final int ENTRY_LENGTH = 16;
+
+    // unsigned byte order, the order contains() searches in
+    private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < ENTRY_LENGTH; i++) {
+                int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (c != 0)
+                    return c;
+            }
+            return 0;
+        }
+    };
+
+    private static final byte KIND_FASCN = 1;
+    private static final byte KIND_GUID = 2;
+    private static final byte KIND_CERTIFICATE = 3;
+
+    private final ByteBuffer entries;
+    private final int count;
+    private final long created;
+
+    private RevocationIndex(ByteBuffer entries, int count, long created) {
+        this.entries = entries;
+        this.count = count;
+        this.created = created;
+    }
+
+    /**
+     * Map an index file read-only. The file can be replaced or deleted
+     * afterwards without affecting the index.
+     *
+     * @param file file written by {@link Builder#write}
+     * @return the index
+     * @throws IOException if the file cannot be read or is not an index
+     */
+    public static RevocationIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer map;
+        try {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (map.remaining() < HEADER_LENGTH || map.getInt(0) != MAGIC)
+            throw new IOException(file.getName() + " is not a revocation index");
+        int count = map.getInt(4);
+        if (count < 0 || (long) count * ENTRY_LENGTH != map.remaining() - HEADER_LENGTH)
+            throw new IOException(file.getName() + " is truncated");
+        map.position(HEADER_LENGTH);
+        return new RevocationIndex(map.slice(), count, map.getLong(8));
+    }
+
+    /**
+     * @return number of revoked cards and certificates
+     */
+    public int getEntryCount() {
+        return count;
+    }
+
+    /**
+     * @return when the index was written, in milliseconds since the epoch
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return true if the FASC-N or the GUID of the card is revoked
+     */
+    public boolean isRevoked(CardIdentity identity) {
+        byte[] fascn = identity.getFascn();
+        byte[] guid = identity.getGuid();
+        return (fascn != null && contains(key(KIND_FASCN, fascn)))
+                || (guid != null && contains(key(KIND_GUID, guid)));
+    }
+
+    public boolean isFascnRevoked(byte[] fascn) {
+        return contains(key(KIND_FASCN, fascn));
+    }
+
+    public boolean isGuidRevoked(byte[] guid) {
+        return contains(key(KIND_GUID, guid));
+    }
+
+    public boolean isRevoked(X509Certificate certificate) {
+        return isRevoked(certificate.getIssuerX500Principal(), certificate.getSerialNumber());
+    }
+
+    public boolean isRevoked(X500Principal issuer, BigInteger serial) {
+        return contains(certificateKey(issuer, serial));
+    }
+
+    private boolean contains(byte[] key) {
+        long hi = ByteBuffer.wrap(key).getLong(0);
+        long lo = ByteBuffer.wrap(key).getLong(8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = mid * ENTRY_LENGTH;
+            int c = compareUnsigned(entries.getLong(offset), hi);
+            if (c == 0)
+                c = compareUnsigned(entries.getLong(offset + 8), lo);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        // Long.compareUnsigned needs API 26
+        a += Long.MIN_VALUE;
+        b += Long.MIN_VALUE;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static byte[] key(byte kind, byte[] value) {
+        MessageDigest sha = sha256();
+        sha.update(kind);
+        sha.update(value);
+        return Arrays.copyOf(sha.digest(), ENTRY_LENGTH);
+    }
+
+    private static byte[] certificateKey(X500Principal issuer, BigInteger serial) {
+        MessageDigest sha = sha256();
+        sha.update(KIND_CERTIFICATE);
+        // DER name, then the serial in its two's complement encoding
+        sha.update(issuer.getEncoded());
+        sha.update(serial.toByteArray());
+        return Arrays.copyOf(sha.digest(), ENTRY_LENGTH);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available", ex);
+        }
+    }
+
+    /**
+     * Collects revoked cards and certificates, then writes them as an index
+     * file. Not thread safe.
+     */
+    public static final class Builder {
+        private byte[][] keys = new byte[64][];
+        private int size = 0;
+
+        public Builder addFascn(byte[] fascn) {
+            return add(key(KIND_FASCN, fascn));
+        }
+
+        public Builder addGuid(byte[] guid) {
+            return add(key(KIND_GUID, guid));
+        }
+
+        public Builder addCertificate(X500Principal issuer, BigInteger serial) {
+            return add(certificateKey(issuer, serial));
+        }
+
+        /**
+         * Add every certificate the CRL revokes. Entries of an indirect CRL
+         * are added under the issuer they name.
+         */
+        public Builder addCrl(X509CRL crl) {
+            Set<? extends X509CRLEntry> revoked = crl.getRevokedCertificates();
+            if (revoked == null)
+                return this;
+            for (X509CRLEntry entry : revoked) {
+                X500Principal issuer = entry.getCertificateIssuer();
+                addCertificate(issuer != null ? issuer : crl.getIssuerX500Principal(), entry.getSerialNumber());
+            }
+            return this;
+        }
+
+        /**
+         * Add a list of revoked cards, one per line: "fascn" or "guid" and
+         * the value in hex. Empty lines and lines starting with '#' are
+         * skipped.
+         *
+         * @throws IOException if a line is neither
+         */
+        public Builder addList(Reader in) throws IOException {
+            BufferedReader lines = new BufferedReader(in);
+            String line;
+            int number = 0;
+            while ((line = lines.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+", 2);
+                String kind = fields[0].toLowerCase(Locale.US);
+                byte[] value = fields.length < 2 ? new byte[0] : Hex.decode(fields[1]);
+                if (kind.equals("fascn") && value.length > 0)
+                    addFascn(value);
+                else if (kind.equals("guid") && value.length > 0)
+                    addGuid(value);
+                else
+                    throw new IOException("line " + number + ": expected fascn or guid and a hex value");
+            }
+            return this;
+        }
+
+        /**
+         * @return number of entries added so far, counting duplicates
+         */
+        public int size() {
+            return size;
+        }
+
+        private Builder add(byte[] key) {
+            if (size == keys.length)
+                keys = Arrays.copyOf(keys, size * 2);
+            keys[size++] = key;
+            return this;
+        }
+
+        /**
+         * Write the index next to the file, then rename it over the file so
+         * readers see either the old index or the new one.
+         *
+         * @param file index file, replaced if it exists
+         * @param created when the contents were current, reported by {@link #getCreated}
+         * @return number of distinct entries written
+         */
+        public int write(File file, long created) throws IOException {
+            Arrays.sort(keys, 0, size, KEY_ORDER);
+            int count = 0;
+            for (int i = 0; i < size; i++)
+                if (count == 0 || !Arrays.equals(keys[count - 1], keys[i]))
+                    keys[count++] = keys[i];
+            size = count;
+
+            ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + count * ENTRY_LENGTH);
+            out.putInt(MAGIC).putInt(count).putLong(created);
+            for (int i = 0; i < count; i++)
+                out.put(keys[i]);
+            out.flip();
+
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream stream = new FileOutputStream(tmp);
+            boolean written = false;
+            try {
+                FileChannel channel = stream.getChannel();
+                while (out.hasRemaining())
+                    channel.write(out);
+                channel.force(true);
+                written = true;
+            } finally {
+                stream.close();
+                if (!written)
+                    tmp.delete();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot replace " + file.getName());
+            }
+            return count;
+        }
+
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The current {@link RevocationIndex} of an index file. A new index that is
+ * renamed over the file, as {@link RevocationIndex.Builder#write} does, is
+ * mapped on the next {@link #get()} and replaces the old one atomically:
+ * lookups already running finish on the old mapping.
+ */
+public final class RevocationStore {
+    private final File file;
+    // guarded by this
+    private RevocationIndex index;
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+
+    public RevocationStore(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the index in the file, or null if there is none. If a new file
+     *         cannot be opened the previous index is kept.
+     */
+    public RevocationIndex get() {
+        // one stat per card, the mapping is only redone when the file changed
+        long modified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            if (modified != loadedModified || length != loadedLength) {
+                loadedModified = modified;
+                loadedLength = length;
+                if (modified == 0) {
+                    index = null;
+                } else {
+                    try {
+                        index = RevocationIndex.open(file);
+                    } catch (IOException ex) {
+                        // keep serving the last good index until a good file arrives
+                    }
+                }
+            }
+            return index;
+        }
+    }
+}
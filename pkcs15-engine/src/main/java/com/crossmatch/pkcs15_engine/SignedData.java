@@ -0,0 +1,340 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * CMS SignedData with detached content (RFC 5652), as used for the CHUID
+ * issuer signature and the biometric signature blocks (SP 800-73-4, SP 800-76-2).
+ * <p>
+ *     Only what is needed to check the signature is read: the certificates,
+ *     and of the first SignerInfo the signer identifier, the digest and
+ *     signature algorithms, the signed attributes and the signature. The
+ *     DER is walked with {@link TlvReader}.
+ */
+public final class SignedData {
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_SET = 0x31;
+    private static final int TAG_CONTEXT_0 = 0xA0;
+    private static final int TAG_SKI = 0x80;
+
+    private static final String OID_SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String OID_MESSAGE_DIGEST = "1.2.840.113549.1.9.4";
+    private static final String OID_SUBJECT_KEY_ID = "2.5.29.14";
+
+    private final List<X509Certificate> certificates;
+    private final X500Principal issuer;
+    private final BigInteger serial;
+    private final byte[] subjectKeyId;
+    private final String digestAlgorithm;
+    private final String signatureAlgorithm;
+    private final byte[] signedAttributes;
+    private final byte[] messageDigest;
+    private final byte[] signature;
+
+    private SignedData(List<X509Certificate> certificates, X500Principal issuer, BigInteger serial,
+                       byte[] subjectKeyId, String digestAlgorithm, String signatureAlgorithm,
+                       byte[] signedAttributes, byte[] messageDigest, byte[] signature) {
+        this.certificates = certificates;
+        this.issuer = issuer;
+        this.serial = serial;
+        this.subjectKeyId = subjectKeyId;
+        this.digestAlgorithm = digestAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.signedAttributes = signedAttributes;
+        this.messageDigest = messageDigest;
+        this.signature = signature;
+    }
+
+    /**
+     * @param cms ContentInfo or bare SignedData between position and limit
+     * @return parsed SignedData
+     * @throws CardException if the encoding is malformed or something needed is missing
+     */
+    public static SignedData parse(ByteBuffer cms) throws CardException {
+        TlvReader outer = new TlvReader(cms);
+        TlvReader tlv = new TlvReader();
+        if (!outer.next() || outer.tag() != TAG_SEQUENCE)
+            throw new CardException("CMS is not a SEQUENCE");
+        outer.enter(tlv);
+        if (!tlv.next())
+            throw new CardException("CMS is empty");
+        if (tlv.tag() == TAG_OID) {
+            // ContentInfo, the SignedData is in [0]
+            if (!OID_SIGNED_DATA.equals(oid(tlv)))
+                throw new CardException("CMS content is not SignedData");
+            if (!tlv.next() || tlv.tag() != TAG_CONTEXT_0)
+                throw new CardException("ContentInfo has no content");
+            TlvReader content = tlv.enter(new TlvReader());
+            if (!content.next() || content.tag() != TAG_SEQUENCE)
+                throw new CardException("SignedData is not a SEQUENCE");
+            content.enter(tlv);
+            tlv.next();
+        }
+
+        // version, digestAlgorithms, encapContentInfo
+        expect(tlv, TAG_INTEGER, "version");
+        expectNext(tlv, TAG_SET, "digestAlgorithms");
+        expectNext(tlv, TAG_SEQUENCE, "encapContentInfo");
+        if (!tlv.next())
+            throw new CardException("SignedData has no signerInfos");
+
+        List<X509Certificate> certificates = new ArrayList<>();
+        if (tlv.tag() == TAG_CONTEXT_0) {
+            TlvReader certs = tlv.enter(new TlvReader());
+            while (certs.next())
+                certificates.add(certificate(cms, certs));
+            tlv.next();
+        }
+        // crls [1], not needed
+        while (tlv.tag() != TAG_SET) {
+            if (!tlv.next())
+                throw new CardException("SignedData has no signerInfos");
+        }
+
+        TlvReader signerInfos = tlv.enter(new TlvReader());
+        if (!signerInfos.next() || signerInfos.tag() != TAG_SEQUENCE)
+            throw new CardException("SignedData has no SignerInfo");
+        TlvReader si = signerInfos.enter(new TlvReader());
+        expectNext(si, TAG_INTEGER, "SignerInfo version");
+
+        X500Principal issuer = null;
+        BigInteger serial = null;
+        byte[] subjectKeyId = null;
+        if (!si.next())
+            throw new CardException("SignerInfo has no sid");
+        if (si.tag() == TAG_SEQUENCE) {
+            TlvReader sid = si.enter(new TlvReader());
+            expectNext(sid, TAG_SEQUENCE, "issuer");
+            issuer = new X500Principal(TlvReader.copy(cms, sid.elementOffset(), sid.valueEnd() - sid.elementOffset()));
+            expectNext(sid, TAG_INTEGER, "serialNumber");
+            serial = new BigInteger(sid.value());
+        } else if (si.tag() == TAG_SKI) {
+            if (si.valueLength() == 0)
+                throw new CardException("SignerInfo has an empty subjectKeyIdentifier");
+            subjectKeyId = si.value();
+        } else {
+            throw new CardException("Unknown SignerInfo sid");
+        }
+
+        expectNext(si, TAG_SEQUENCE, "digestAlgorithm");
+        String digestOid = algorithm(si);
+        byte[] signedAttributes = null;
+        byte[] messageDigest = null;
+        if (!si.next())
+            throw new CardException("SignerInfo has no signature");
+        if (si.tag() == TAG_CONTEXT_0) {
+            // the signature covers the attributes encoded as a SET OF
+            signedAttributes = TlvReader.copy(cms, si.elementOffset(), si.valueEnd() - si.elementOffset());
+            signedAttributes[0] = (byte) TAG_SET;
+            messageDigest = messageDigest(si.enter(new TlvReader()));
+            si.next();
+        }
+        expect(si, TAG_SEQUENCE, "signatureAlgorithm");
+        String signatureOid = algorithm(si);
+        expectNext(si, TAG_OCTET_STRING, "signature");
+
+        String digest = digestName(digestOid);
+        return new SignedData(Collections.unmodifiableList(certificates), issuer, serial, subjectKeyId,
+                digest, signatureName(signatureOid, digest), signedAttributes, messageDigest, si.value());
+    }
+
+    public static SignedData parse(byte[] cms) throws CardException {
+        return parse(ByteBuffer.wrap(cms));
+    }
+
+    /**
+     * @return certificates carried in the SignedData, often just the signer's
+     */
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    /**
+     * @return the carried certificate the SignerInfo names, or null if it is not carried
+     */
+    public X509Certificate findSigner() {
+        for (X509Certificate cert : certificates) {
+            if (isSigner(cert))
+                return cert;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the SignerInfo names this certificate as the signer
+     */
+    public boolean isSigner(X509Certificate cert) {
+        if (issuer != null)
+            return issuer.equals(cert.getIssuerX500Principal()) && serial.equals(cert.getSerialNumber());
+        byte[] ext = cert.getExtensionValue(OID_SUBJECT_KEY_ID);
+        if (ext == null)
+            return false;
+        try {
+            // OCTET STRING holding the DER OCTET STRING of the key identifier
+            TlvReader outer = new TlvReader(ByteBuffer.wrap(ext));
+            if (!outer.next() || outer.tag() != TAG_OCTET_STRING)
+                return false;
+            TlvReader keyId = outer.enter(new TlvReader());
+            return keyId.next() && keyId.tag() == TAG_OCTET_STRING && Arrays.equals(subjectKeyId, keyId.value());
+        } catch (CardException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Check the signature over detached content
+     *
+     * @param content signed content between position and limit, not moved
+     * @param signer certificate of the signer
+     * @throws SignatureException if the digest or the signature does not match
+     * @throws GeneralSecurityException if an algorithm is not available
+     */
+    public void verify(ByteBuffer content, X509Certificate signer) throws GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+        md.update(content.duplicate());
+        byte[] digest = md.digest();
+
+        Signature sig = Signature.getInstance(signatureAlgorithm);
+        sig.initVerify(signer.getPublicKey());
+        if (signedAttributes != null) {
+            if (messageDigest == null || !MessageDigest.isEqual(digest, messageDigest))
+                throw new SignatureException("Content does not match the signed digest");
+            sig.update(signedAttributes);
+        } else {
+            sig.update(content.duplicate());
+        }
+        if (!sig.verify(signature))
+            throw new SignatureException("Signature does not verify");
+    }
+
+    private static void expect(TlvReader tlv, int tag, String what) throws CardException {
+        if (tlv.tag() != tag)
+            throw new CardException("CMS " + what + " missing");
+    }
+
+    private static void expectNext(TlvReader tlv, int tag, String what) throws CardException {
+        if (!tlv.next() || tlv.tag() != tag)
+            throw new CardException("CMS " + what + " missing");
+    }
+
+    private static X509Certificate certificate(ByteBuffer cms, TlvReader tlv) throws CardException {
+        byte[] der = TlvReader.copy(cms, tlv.elementOffset(), tlv.valueEnd() - tlv.elementOffset());
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(der));
+        } catch (CertificateException ex) {
+            throw new CardException("Bad certificate in CMS: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * @return OID of the AlgorithmIdentifier the reader is on
+     */
+    private static String algorithm(TlvReader tlv) throws CardException {
+        TlvReader alg = tlv.enter(new TlvReader());
+        if (!alg.next() || alg.tag() != TAG_OID)
+            throw new CardException("CMS AlgorithmIdentifier has no OID");
+        return oid(alg);
+    }
+
+    private static byte[] messageDigest(TlvReader attributes) throws CardException {
+        TlvReader attr = new TlvReader();
+        while (attributes.next()) {
+            attributes.enter(attr);
+            if (!attr.next() || attr.tag() != TAG_OID || !OID_MESSAGE_DIGEST.equals(oid(attr)))
+                continue;
+            if (!attr.next() || attr.tag() != TAG_SET)
+                break;
+            TlvReader values = attr.enter(new TlvReader());
+            if (values.next() && values.tag() == TAG_OCTET_STRING)
+                return values.value();
+        }
+        throw new CardException("CMS signed attributes have no message digest");
+    }
+
+    /**
+     * @return dotted form of the OID the reader is on
+     */
+    static String oid(TlvReader tlv) {
+        ByteBuffer buf = tlv.buffer();
+        StringBuilder sb = new StringBuilder();
+        long value = 0;
+        boolean first = true;
+        for (int i = tlv.valueOffset(); i < tlv.valueEnd(); i++) {
+            int b = buf.get(i) & 0xFF;
+            value = (value << 7) | (b & 0x7F);
+            if ((b & 0x80) != 0)
+                continue;
+            if (first) {
+                int arc = value < 80 ? (int) (value / 40) : 2;
+                sb.append(arc).append('.').append(value - arc * 40);
+                first = false;
+            } else {
+                sb.append('.').append(value);
+            }
+            value = 0;
+        }
+        return sb.toString();
+    }
+
+    private static String digestName(String oid) throws CardException {
+        switch (oid) {
+            case "1.3.14.3.2.26":
+                return "SHA-1";
+            case "2.16.840.1.101.3.4.2.1":
+                return "SHA-256";
+            case "2.16.840.1.101.3.4.2.2":
+                return "SHA-384";
+            case "2.16.840.1.101.3.4.2.3":
+                return "SHA-512";
+            default:
+                throw new CardException("Unsupported digest algorithm " + oid);
+        }
+    }
+
+    private static String signatureName(String oid, String digest) throws CardException {
+        String hash = digest.replace("-", "");
+        switch (oid) {
+            case "1.2.840.113549.1.1.1":        // rsaEncryption, hash from the digest algorithm
+                return hash + "withRSA";
+            case "1.2.840.113549.1.1.5":
+                return "SHA1withRSA";
+            case "1.2.840.113549.1.1.11":
+                return "SHA256withRSA";
+            case "1.2.840.113549.1.1.12":
+                return "SHA384withRSA";
+            case "1.2.840.113549.1.1.13":
+                return "SHA512withRSA";
+            case "1.2.840.10045.2.1":           // ecPublicKey, hash from the digest algorithm
+                return hash + "withECDSA";
+            case "1.2.840.10045.4.3.2":
+                return "SHA256withECDSA";
+            case "1.2.840.10045.4.3.3":
+                return "SHA384withECDSA";
+            case "1.2.840.10045.4.3.4":
+                return "SHA512withECDSA";
+            default:
+                throw new CardException("Unsupported signature algorithm " + oid);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over BER-TLV encoded data held in a ByteBuffer.
+ * <p>
+ *     Nothing is copied: the reader only tracks the tag, offset and length of
+ *     the current element as absolute indexes into the buffer, and never moves
+ *     the buffer position. A reader can be {@link #reset} and reused, and
+ *     {@link #enter} points a second reader at the children of a constructed
+ *     element, so walking a container allocates nothing.
+ */
+public final class TlvReader {
+    private ByteBuffer buf;
+    private int pos;
+    private int end;
+
+    private int tag;
+    private int elementOffset;
+    private int valueOffset;
+    private int valueLength;
+
+    public TlvReader() {
+    }
+
+    /**
+     * Read the elements between the buffer position and limit
+     */
+    public TlvReader(ByteBuffer buf) {
+        reset(buf, buf.position(), buf.limit());
+    }
+
+    /**
+     * Read the elements in buf between start and end
+     *
+     * @return this reader
+     */
+    public TlvReader reset(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+        this.tag = 0;
+        this.elementOffset = start;
+        this.valueOffset = start;
+        this.valueLength = 0;
+        return this;
+    }
+
+    /**
+     * Move to the next element at this level
+     *
+     * @return false at the end of the data
+     * @throws CardException if the encoding is malformed
+     */
+    public boolean next() throws CardException {
+        if (pos >= end)
+            return false;
+
+        int p = pos;
+        elementOffset = p;
+        int t = buf.get(p++) & 0xFF;
+        if ((t & 0x1F) == 0x1F) {
+            // multi byte tag, continues while bit 8 is set
+            int b;
+            do {
+                if (p >= end || t > 0xFFFFFF)
+                    throw new CardException("Malformed TLV tag at offset " + elementOffset);
+                b = buf.get(p++) & 0xFF;
+                t = (t << 8) | b;
+            } while ((b & 0x80) != 0);
+        }
+
+        if (p >= end)
+            throw new CardException("Missing TLV length at offset " + elementOffset);
+        int length = buf.get(p++) & 0xFF;
+        if (length > 0x80) {
+            int count = length & 0x7F;
+            if (count > 3 || p + count > end)
+                throw new CardException("Malformed TLV length at offset " + elementOffset);
+            length = 0;
+            for (int i = 0; i < count; i++)
+                length = (length << 8) | (buf.get(p++) & 0xFF);
+        } else if (length == 0x80) {
+            throw new CardException("Indefinite TLV length at offset " + elementOffset);
+        }
+        if (p + length > end)
+            throw new CardException("TLV at offset " + elementOffset + " runs past the end of the data");
+
+        tag = t;
+        valueOffset = p;
+        valueLength = length;
+        pos = p + length;
+        return true;
+    }
+
+    /**
+     * Move forward to the next element with the given tag at this level
+     *
+     * @return false if there is no such element
+     */
+    public boolean find(int tag) throws CardException {
+        while (next()) {
+            if (this.tag == tag)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Point child at the contents of the current element
+     *
+     * @return child
+     */
+    public TlvReader enter(TlvReader child) {
+        return child.reset(buf, valueOffset, valueOffset + valueLength);
+    }
+
+    public int tag() {
+        return tag;
+    }
+
+    /**
+     * @return absolute index of the first tag byte of the current element
+     */
+    public int elementOffset() {
+        return elementOffset;
+    }
+
+    /**
+     * @return absolute index of the value of the current element
+     */
+    public int valueOffset() {
+        return valueOffset;
+    }
+
+    public int valueLength() {
+        return valueLength;
+    }
+
+    /**
+     * @return index just past the current element
+     */
+    public int valueEnd() {
+        return valueOffset + valueLength;
+    }
+
+    public ByteBuffer buffer() {
+        return buf;
+    }
+
+    /**
+     * @return copy of the value of the current element
+     */
+    public byte[] value() {
+        return copy(buf, valueOffset, valueLength);
+    }
+
+    /**
+     * @return read only view of the value of the current element, shares the data
+     */
+    public ByteBuffer valueView() {
+        return view(buf, valueOffset, valueLength);
+    }
+
+    static byte[] copy(ByteBuffer buf, int offset, int length) {
+        byte[] out = new byte[length];
+        if (buf.hasArray()) {
+            System.arraycopy(buf.array(), buf.arrayOffset() + offset, out, 0, length);
+        } else {
+            for (int i = 0; i < length; i++)
+                out[i] = buf.get(offset + i);
+        }
+        return out;
+    }
+
+    static ByteBuffer view(ByteBuffer buf, int offset, int length) {
+        ByteBuffer view = buf.asReadOnlyBuffer();
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    static String ascii(ByteBuffer buf, int offset, int length) {
+        char[] out = new char[length];
+        for (int i = 0; i < length; i++)
+            out[i] = (char) (buf.get(offset + i) & 0x7F);
+        return new String(out);
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_engine;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Locally configured trust store, and the CA certificates already found to
+ * chain to it.
+ * <p>
+ *     Self-signed certificates given to the constructor are the trust anchors,
+ *     the others are intermediates that may be used to build a path. Building
+ *     a path checks the signature, validity and CA flag of every link. Each CA
+ *     certificate on a path that reached an anchor is remembered, so the next
+ *     certificate from the same issuer costs one signature check instead of a
+ *     full path build. The cache is bounded by the number of issuers seen.
+ * <p>
+ *     Revocation is not checked here.
+ */
+public final class TrustPathCache {
+    private static final int MAX_PATH_LENGTH = 8;
+    private static final int MAX_VALIDATED = 256;
+
+    private final Map<X500Principal, List<X509Certificate>> anchors = new HashMap<>();
+    private final Map<X500Principal, List<X509Certificate>> intermediates = new HashMap<>();
+    // guarded by this, CA certificates known to chain to an anchor, by subject
+    private final Map<X500Principal, List<X509Certificate>> validated = new HashMap<>();
+    private int validatedCount = 0;
+    private final AtomicLong signatureChecks = new AtomicLong();
+
+    /**
+     * @param certificates trust anchors and intermediates
+     */
+    public TrustPathCache(Collection<X509Certificate> certificates) {
+        for (X509Certificate cert : certificates) {
+            boolean selfSigned = cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
+            add(selfSigned ? anchors : intermediates, cert);
+        }
+    }
+
+    /**
+     * @return false if the map already had the certificate
+     */
+    private static boolean add(Map<X500Principal, List<X509Certificate>> map, X509Certificate cert) {
+        List<X509Certificate> list = map.get(cert.getSubjectX500Principal());
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(cert.getSubjectX500Principal(), list);
+        }
+        if (list.contains(cert))
+            return false;
+        list.add(cert);
+        return true;
+    }
+
+    public int getAnchorCount() {
+        int n = 0;
+        for (List<X509Certificate> list : anchors.values())
+            n += list.size();
+        return n;
+    }
+
+    /**
+     * @return signature checks done on certificate paths since creation
+     */
+    public long getSignatureChecks() {
+        return signatureChecks.get();
+    }
+
+    /**
+     * Check that a certificate chains to a trust anchor
+     *
+     * @param cert certificate to check
+     * @param extra intermediates that came with it, may be empty
+     * @param at time the certificates must be valid at
+     * @throws CertificateException if there is no valid path to an anchor
+     */
+    public void validate(X509Certificate cert, Collection<X509Certificate> extra, Date at)
+            throws CertificateException {
+        cert.checkValidity(at);
+        List<X509Certificate> path = new ArrayList<>(MAX_PATH_LENGTH);
+        X509Certificate current = cert;
+        while (path.size() < MAX_PATH_LENGTH) {
+            X500Principal issuer = current.getIssuerX500Principal();
+            // an issuer already validated, or an anchor, ends the path
+            if (signedByAny(current, cachedIssuers(issuer), at) || signedByAny(current, anchors.get(issuer), at)) {
+                remember(path);
+                return;
+            }
+            X509Certificate next = findIssuer(current, issuer, extra, at);
+            if (next == null)
+                break;
+            path.add(next);
+            current = next;
+        }
+        throw new CertificateException("No trust path for " + cert.getSubjectX500Principal().getName());
+    }
+
+    private synchronized List<X509Certificate> cachedIssuers(X500Principal subject) {
+        List<X509Certificate> list = validated.get(subject);
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    private synchronized void remember(List<X509Certificate> path) {
+        for (X509Certificate cert : path) {
+            if (validatedCount >= MAX_VALIDATED) {
+                validated.clear();
+                validatedCount = 0;
+            }
+            if (add(validated, cert))
+                validatedCount++;
+        }
+    }
+
+    private X509Certificate findIssuer(X509Certificate cert, X500Principal issuer,
+                                       Collection<X509Certificate> extra, Date at) {
+        List<X509Certificate> candidates = new ArrayList<>();
+        List<X509Certificate> configured = intermediates.get(issuer);
+        if (configured != null)
+            candidates.addAll(configured);
+        for (X509Certificate c : extra) {
+            if (c.getSubjectX500Principal().equals(issuer) && c != cert)
+                candidates.add(c);
+        }
+        for (X509Certificate candidate : candidates) {
+            if (signedBy(cert, candidate, at))
+                return candidate;
+        }
+        return null;
+    }
+
+    private boolean signedByAny(X509Certificate cert, List<X509Certificate> issuers, Date at) {
+        if (issuers == null)
+            return false;
+        for (X509Certificate issuer : issuers) {
+            if (signedBy(cert, issuer, at))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if issuer is a CA valid at the time and its key verifies the signature on cert
+     */
+    private boolean signedBy(X509Certificate cert, X509Certificate issuer, Date at) {
+        if (issuer.getBasicConstraints() < 0)
+            return false;
+        try {
+            issuer.checkValidity(at);
+            signatureChecks.incrementAndGet();
+            cert.verify(issuer.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reuse and wiping of pooled response buffers.
+ */
+public class BufferPoolTest {
+
+    private static boolean allZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void releasedBufferIsWipedAndReused() {
+        BufferPool pool = new BufferPool(16, 1, 64);
+        ResponseBuffer buf = pool.acquire();
+        buf.append(SimulatedPivCard.pattern(10), 0, 10);
+        pool.release(buf);
+        assertTrue(allZero(buf.array()));
+        assertEquals(0, buf.length());
+
+        assertSame(buf, pool.acquire());
+        assertEquals(1, pool.getCreated());
+        // pool is empty, a second buffer is created
+        assertNotSame(buf, pool.acquire());
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    public void growingZeroesTheOldArray() {
+        ResponseBuffer buf = new BufferPool(4, 1, 64).acquire();
+        buf.append(SimulatedPivCard.pattern(4), 0, 4);
+        byte[] old = buf.array();
+        buf.append(SimulatedPivCard.pattern(4), 0, 4);
+        assertNotSame(old, buf.array());
+        assertTrue(allZero(old));
+        assertEquals(8, buf.length());
+    }
+
+    @Test
+    public void largeBuffersAreNotRetained() {
+        BufferPool pool = new BufferPool(16, 2, 64);
+        ResponseBuffer buf = pool.acquire();
+        buf.ensureCapacity(128);
+        pool.release(buf);
+        assertNotSame(buf, pool.acquire());
+    }
+
+    @Test
+    public void readerAssemblesChainedReadsInOneBuffer() throws CardException {
+        byte[] fingerprints = SimulatedPivCard.pattern(1500);
+        SimulatedPivCard card = new SimulatedPivCard("12345678")
+                .put(PivContainer.FINGERPRINTS, fingerprints);
+        PivCardReader reader = new PivCardReader(card);
+        reader.verifyPin("12345678");
+        for (int i = 0; i < 3; i++)
+            assertArrayEquals(fingerprints, reader.readContainer(PivContainer.FINGERPRINTS));
+
+        ResponseBuffer out = reader.getBufferPool().acquire();
+        ByteBuffer view = reader.readContainer(PivContainer.FINGERPRINTS, out);
+        assertTrue(view.isReadOnly());
+        byte[] contents = new byte[view.remaining()];
+        view.get(contents);
+        assertArrayEquals(fingerprints, contents);
+        reader.getBufferPool().release(out);
+        assertEquals(1, reader.getBufferPool().getCreated());
+    }
+
+    @Test
+    public void declaredLengthFromFirstChunk() {
+        assertEquals(2 + 0x10, PivCardReader.declaredLength(new byte[] {0x53, 0x10, 1, 2}, 4));
+        assertEquals(3 + 0x90, PivCardReader.declaredLength(new byte[] {0x53, (byte) 0x81, (byte) 0x90}, 3));
+        assertEquals(4 + 0x05DC, PivCardReader.declaredLength(new byte[] {0x53, (byte) 0x82, 0x05, (byte) 0xDC}, 4));
+        // incomplete header falls back to the chunk size
+        assertEquals(3, PivCardReader.declaredLength(new byte[] {0x53, (byte) 0x82, 0x05}, 3));
+        // a card claiming 16 MB gets no more than one extended response up front
+        assertEquals(PivCardReader.MAX_LENGTH_HINT,
+                PivCardReader.declaredLength(new byte[] {0x53, (byte) 0x83, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF}, 5));
+    }
+}
@@ -0,0 +1,88 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CardCacheTest {
+    private static final byte[] ATR = Hex.decode("3bf81300008131fe15597562696b657934d4");
+
+    static byte[] chuid(int serial) {
+        // FASC-N (30), GUID (34), expiry (35)
+        return Hex.decode("3019d4e739da739ced39ce739d836858210c2d6b5a0e0" + serial + "1839b621"
+                + "3410a0a1a2a3a4a5a6a7a8a9aaabacadaeaf" + "350832303330303130310000");
+    }
+
+    @Test
+    public void servesSameCard() {
+        CardCache cache = new CardCache(10000);
+        CardIdentity id = cache.validate(ATR, chuid(1));
+        assertNotNull(id);
+        cache.put(id, PivContainer.CERT_PIV_AUTHENTICATION, new byte[500]);
+
+        CardIdentity again = cache.validate(ATR, chuid(1));
+        assertEquals(id, again);
+        assertNotNull(cache.get(again, PivContainer.CERT_PIV_AUTHENTICATION));
+        assertArrayEquals(chuid(1), cache.get(again, PivContainer.CHUID));
+    }
+
+    @Test
+    public void remembersSource() {
+        CardCache cache = new CardCache(10000);
+        CardIdentity id = cache.validate(ATR, chuid(1));
+        cache.put(id, PivContainer.CERT_PIV_AUTHENTICATION, new byte[500], CardCache.SOURCE_PREFETCH);
+        cache.put(id, PivContainer.CERT_KEY_MANAGEMENT, new byte[500]);
+
+        assertEquals(CardCache.SOURCE_PREFETCH, cache.getSource(id, PivContainer.CERT_PIV_AUTHENTICATION));
+        assertEquals(CardCache.SOURCE_READ, cache.getSource(id, PivContainer.CERT_KEY_MANAGEMENT));
+        assertEquals(-1, cache.getSource(id, PivContainer.FACIAL_IMAGE));
+    }
+
+    @Test
+    public void pinProtectedIsNeverCached() {
+        CardCache cache = new CardCache(10000);
+        CardIdentity id = cache.validate(ATR, chuid(1));
+        cache.put(id, PivContainer.FINGERPRINTS, new byte[500]);
+        cache.put(id, PivContainer.FACIAL_IMAGE, new byte[500], CardCache.SOURCE_PREFETCH);
+        assertEquals(chuid(1).length, cache.getUsedBytes());
+
+        // another card with the same ATR and a copy of the CHUID passes validation,
+        // its own PIN must not get it the biometrics of the card it copies
+        CardIdentity clone = cache.validate(ATR, chuid(1));
+        assertEquals(id, clone);
+        assertNull(cache.get(clone, PivContainer.FINGERPRINTS));
+        assertNull(cache.get(clone, PivContainer.FACIAL_IMAGE));
+        assertEquals(-1, cache.getSource(clone, PivContainer.FINGERPRINTS));
+    }
+
+    @Test
+    public void changedChuidDropsCard() {
+        CardCache cache = new CardCache(10000);
+        CardIdentity id = cache.validate(ATR, chuid(1));
+        cache.put(id, PivContainer.CERT_PIV_AUTHENTICATION, new byte[500]);
+
+        // same FASC-N and GUID but different expiry, card was re-issued
+        byte[] reissued = chuid(1);
+        reissued[reissued.length - 3] = '9';
+        CardIdentity again = cache.validate(ATR, reissued);
+        assertEquals(id, again);
+        assertNull(cache.get(again, PivContainer.CERT_PIV_AUTHENTICATION));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBySize() {
+        CardCache cache = new CardCache(2500);
+        CardIdentity a = cache.validate(ATR, chuid(1));
+        cache.put(a, PivContainer.CERT_PIV_AUTHENTICATION, new byte[1000]);
+        CardIdentity b = cache.validate(ATR, chuid(2));
+        cache.put(b, PivContainer.CERT_PIV_AUTHENTICATION, new byte[1000]);
+
+        // touch card a so card b is the oldest
+        assertNotNull(cache.get(a, PivContainer.CERT_PIV_AUTHENTICATION));
+        cache.put(a, PivContainer.CERT_KEY_MANAGEMENT, new byte[900]);
+
+        assertTrue(cache.getUsedBytes() <= 2500);
+        assertNotNull(cache.get(a, PivContainer.CERT_PIV_AUTHENTICATION));
+        assertNull(cache.get(b, PivContainer.CERT_PIV_AUTHENTICATION));
+    }
+}
@@ -0,0 +1,152 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, merging, deadlines and cancellation of card jobs
+ */
+public class CardJobSchedulerTest {
+    private final CardJobScheduler scheduler = new CardJobScheduler("test", 1);
+    private final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    private class TestJob extends CardJob {
+        final String name;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        TestJob(String name, String reader, String key, int priority, long timeoutMillis, CountDownLatch release) {
+            super(reader, key, priority, timeoutMillis);
+            this.name = name;
+            this.release = release;
+        }
+
+        @Override
+        protected void run() {
+            log.add("run " + name);
+            started.countDown();
+            try {
+                if (release != null)
+                    release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }
+
+        @Override
+        protected void onCancel() {
+            log.add((isExpired() ? "expired " : "cancel ") + name);
+            if (release != null)
+                release.countDown();
+        }
+
+        @Override
+        protected void onDropped(int reason) {
+            log.add("dropped " + name + " " + reason);
+            done.countDown();
+        }
+    }
+
+    private TestJob blockWorker() throws InterruptedException {
+        TestJob blocker = new TestJob("blocker", "r0", null, CardJob.PRIORITY_INTERACTIVE, 0, new CountDownLatch(1));
+        scheduler.submit(blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        return blocker;
+    }
+
+    @Test
+    public void interactiveBeforeBackground() throws InterruptedException {
+        TestJob blocker = blockWorker();
+        TestJob background = new TestJob("background", "r1", null, CardJob.PRIORITY_BACKGROUND, 0, null);
+        TestJob interactive = new TestJob("interactive", "r1", null, CardJob.PRIORITY_INTERACTIVE, 0, null);
+        scheduler.submit(background);
+        scheduler.submit(interactive);
+        blocker.release.countDown();
+        assertTrue(background.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("run blocker", "run interactive", "run background"), log);
+    }
+
+    @Test
+    public void duplicatesMergeWhileQueued() throws InterruptedException {
+        TestJob blocker = blockWorker();
+        TestJob first = new TestJob("first", "r1", "read r1", CardJob.PRIORITY_INTERACTIVE, 0, null);
+        TestJob second = new TestJob("second", "r1", "read r1", CardJob.PRIORITY_INTERACTIVE, 0, null);
+        assertSame(first, scheduler.submit(first));
+        assertSame(first, scheduler.submit(second));
+        assertEquals(1, scheduler.getQueued());
+        blocker.release.countDown();
+        assertTrue(first.done.await(5, TimeUnit.SECONDS));
+        assertFalse(log.contains("run second"));
+    }
+
+    @Test
+    public void deadlineStopsRunningJob() throws InterruptedException {
+        TestJob stuck = new TestJob("stuck", "r1", null, CardJob.PRIORITY_INTERACTIVE, 50, new CountDownLatch(1));
+        scheduler.submit(stuck);
+        assertTrue(stuck.done.await(5, TimeUnit.SECONDS));
+        assertTrue(stuck.isExpired());
+        assertTrue(log.contains("expired stuck"));
+    }
+
+    @Test
+    public void cardRemovalCancelsReaderJobs() throws InterruptedException {
+        TestJob blocker = blockWorker();
+        TestJob other = new TestJob("other", "r1", null, CardJob.PRIORITY_INTERACTIVE, 0, null);
+        TestJob queued = new TestJob("queued", "r0", null, CardJob.PRIORITY_INTERACTIVE, 0, null);
+        scheduler.submit(other);
+        scheduler.submit(queued);
+        assertEquals(2, scheduler.cancelReader("r0"));
+        assertTrue(log.contains("cancel blocker"));
+        assertTrue(log.contains("dropped queued " + CardJob.DROPPED_CANCELLED));
+        assertTrue(other.done.await(5, TimeUnit.SECONDS));
+        assertTrue(log.contains("run other"));
+        assertFalse(blocker.cancel());
+    }
+
+    @Test
+    public void failedJobIsToldAndReported() throws InterruptedException {
+        final CountDownLatch reported = new CountDownLatch(1);
+        scheduler.setListener(new CardJobScheduler.Listener() {
+            @Override
+            public void onJobFailed(CardJob job, RuntimeException ex) {
+                log.add("reported " + ex.getMessage());
+                reported.countDown();
+            }
+        });
+        TestJob broken = new TestJob("broken", "r1", null, CardJob.PRIORITY_INTERACTIVE, 0, null) {
+            @Override
+            protected void run() {
+                throw new IllegalStateException("bug");
+            }
+
+            @Override
+            protected void onFailed(RuntimeException ex) {
+                log.add("failed " + name);
+            }
+        };
+        scheduler.submit(broken);
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("failed broken", "reported bug"), log);
+
+        // the worker is still there
+        TestJob next = new TestJob("next", "r1", null, CardJob.PRIORITY_INTERACTIVE, 0, null);
+        scheduler.submit(next);
+        assertTrue(next.done.await(5, TimeUnit.SECONDS));
+    }
+}
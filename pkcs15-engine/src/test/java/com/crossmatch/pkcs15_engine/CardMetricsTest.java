@@ -0,0 +1,62 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Latency histogram buckets and the pipeline counters
+ */
+public class CardMetricsTest {
+    @Test
+    public void bucketsCoverEveryValue() {
+        int last = -1;
+        for (long us = 0; us < 100000; us++) {
+            int b = LatencyHistogram.bucket(us);
+            assertTrue(b == last || b == last + 1);
+            assertTrue(us <= LatencyHistogram.bucketUpperBound(b));
+            last = b;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE / 1000));
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++)
+            h.record(ms * 1000000L);
+        assertEquals(100, h.getCount());
+        assertEquals(100000000L, h.getMaxNanos());
+        long p50 = h.getPercentileNanos(50);
+        assertTrue(p50 >= 50000000L && p50 <= 50000000L * 1.125);
+        long p99 = h.getPercentileNanos(99);
+        assertTrue(p99 >= 99000000L && p99 <= 100000000L);
+        assertEquals(h.getMaxNanos(), h.getPercentileNanos(100));
+
+        h.reset();
+        assertEquals(0, h.getPercentileNanos(50));
+    }
+
+    @Test
+    public void failuresByCode() {
+        CardMetrics metrics = new CardMetrics();
+        metrics.failure(0x80100069);
+        metrics.failure(0x80100069);
+        metrics.failure(0x8010002E);
+        assertEquals(2, metrics.getFailures(0x80100069));
+        assertEquals(1, metrics.getFailures(0x8010002E));
+        assertEquals(0, metrics.getFailures(0x80100017));
+
+        // more codes than slots must not lose the count
+        for (int code = 0; code < 2 * CardMetrics.FAILURE_SLOTS; code++)
+            metrics.failure(code);
+        assertTrue(metrics.dump().contains("other="));
+
+        metrics.record(CardMetrics.Phase.TRANSMIT, 2000000L);
+        metrics.cardSeen();
+        String dump = metrics.dump();
+        assertTrue(dump.contains("transmit"));
+        assertTrue(dump.contains("0x80100069=2"));
+        assertTrue(dump.contains("cards: 1"));
+    }
+}
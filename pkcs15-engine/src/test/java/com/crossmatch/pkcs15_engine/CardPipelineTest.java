@@ -0,0 +1,145 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CardPipelineTest {
+    private CardPipeline<Integer, String> pipeline;
+
+    @After
+    public void shutdown() {
+        if (pipeline != null)
+            pipeline.shutdown();
+    }
+
+    /** cards numbered in read order, each processed for the given time */
+    private static class Recorder implements CardPipeline.Stages<Integer, String> {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger processing = new AtomicInteger();
+        // reads that started while an earlier card was being processed
+        final AtomicInteger overlapped = new AtomicInteger();
+        final List<CardPipeline.Outcome<String>> outcomes = Collections.synchronizedList(
+                new ArrayList<CardPipeline.Outcome<String>>());
+        final CountDownLatch done;
+        final long[] processMillis;
+        volatile CountDownLatch gate = null;
+
+        Recorder(int cards, long... processMillis) {
+            done = new CountDownLatch(cards);
+            this.processMillis = processMillis;
+        }
+
+        @Override
+        public Integer read(String reader) throws Exception {
+            if (processing.get() > 0)
+                overlapped.incrementAndGet();
+            int card = reads.getAndIncrement();
+            Thread.sleep(10);
+            if (card == 2)
+                throw new CardException("card removed");
+            return card;
+        }
+
+        @Override
+        public String process(Integer card) throws Exception {
+            processing.incrementAndGet();
+            try {
+                if (gate != null)
+                    gate.await();
+                Thread.sleep(processMillis[card % processMillis.length]);
+                return "card " + card;
+            } finally {
+                processing.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void publish(CardPipeline.Outcome<String> outcome) {
+            outcomes.add(outcome);
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void publishesInReadOrderWhileReadingAhead() throws Exception {
+        // the first card takes longest to process, later ones must still wait for it
+        Recorder stages = new Recorder(5, 150, 10, 10, 10, 10);
+        pipeline = new CardPipeline<>("test", stages, 2, 4);
+        for (int i = 0; i < 5; i++)
+            pipeline.submit("reader");
+        assertTrue(stages.done.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 5; i++) {
+            CardPipeline.Outcome<String> outcome = stages.outcomes.get(i);
+            assertEquals(i, outcome.getSequence());
+            assertEquals("reader", outcome.getReader());
+            if (i == 2) {
+                assertNull(outcome.getResult());
+                assertEquals("card removed", outcome.getError().getMessage());
+            } else {
+                assertEquals("card " + i, outcome.getResult());
+                assertNull(outcome.getError());
+            }
+        }
+        assertTrue(stages.outcomes.get(0).getProcessNanos() >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(stages.overlapped.get() > 0);
+    }
+
+    @Test
+    public void stopsReadingWhenFull() throws Exception {
+        Recorder stages = new Recorder(6, 0);
+        stages.gate = new CountDownLatch(1);
+        pipeline = new CardPipeline<>("test", stages, 2, 2);
+        for (int i = 0; i < 6; i++)
+            pipeline.submit(i % 2 == 0 ? "reader 0" : "reader 1");
+
+        Thread.sleep(200);
+        // two cards in flight, the readers wait for room
+        assertEquals(2, stages.reads.get());
+        assertEquals(0, pipeline.getPublished());
+
+        stages.gate.countDown();
+        assertTrue(stages.done.await(5, TimeUnit.SECONDS));
+        assertEquals(6, stages.reads.get());
+    }
+
+    @Test
+    public void failedPublicationIsCountedAndReported() throws Exception {
+        final List<Long> failed = Collections.synchronizedList(new ArrayList<Long>());
+        Recorder stages = new Recorder(3, 0) {
+            @Override
+            public void publish(CardPipeline.Outcome<String> outcome) {
+                super.publish(outcome);
+                if (outcome.getSequence() == 1)
+                    throw new IllegalStateException("broken publisher");
+            }
+        };
+        pipeline = new CardPipeline<>("test", stages, 2, 4);
+        pipeline.setListener(new CardPipeline.Listener<String>() {
+            @Override
+            public void onPublishFailed(CardPipeline.Outcome<String> outcome, RuntimeException ex) {
+                failed.add(outcome.getSequence());
+            }
+        });
+        for (int i = 0; i < 3; i++)
+            pipeline.submit("reader");
+        assertTrue(stages.done.await(5, TimeUnit.SECONDS));
+        // counted once the listener has returned
+        for (int i = 0; i < 500 && pipeline.getPublished() < 3; i++)
+            Thread.sleep(10);
+
+        // the card after the failure is still published
+        assertEquals(3, stages.outcomes.size());
+        assertEquals(1, pipeline.getPublishFailures());
+        assertEquals(Collections.singletonList(1L), failed);
+    }
+}
@@ -0,0 +1,108 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching card models by ATR and learning read plans for unknown ones.
+ */
+public class CardProfileRegistryTest {
+    private static final String YUBIKEY = "3bf81300008131fe15597562696b657934d4";
+
+    private static BufferedReader lines(String... lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines)
+            sb.append(line).append('\n');
+        return new BufferedReader(new StringReader(sb.toString()));
+    }
+
+    @Test
+    public void planIsOrderedChuidPublicProtected() {
+        ReadPlan plan = ReadPlan.parse("6010:1200 0101 3000:1856 db00 -6030 9000:?:pin");
+        assertEquals(Arrays.asList(PivContainer.CHUID, PivContainer.CERT_PIV_AUTHENTICATION,
+                PivContainer.CARD_CAPABILITY_CONTAINER, PivContainer.FINGERPRINTS, PivContainer.SECURITY_OBJECT),
+                plan.getContainers(true));
+        assertEquals(Arrays.asList(PivContainer.CHUID, PivContainer.CERT_PIV_AUTHENTICATION,
+                PivContainer.CARD_CAPABILITY_CONTAINER), plan.getContainers(false));
+        assertEquals(1856, plan.getStep(PivContainer.CHUID).getExpectedSize());
+        assertTrue(plan.getStep(PivContainer.SECURITY_OBJECT).isPinRequired());
+        assertTrue(plan.isAbsent(PivContainer.FACIAL_IMAGE));
+        assertFalse(plan.isComplete());
+        assertEquals("3000:1856 0101 db00 6010:1200 9000:?:pin -6030", plan.format());
+    }
+
+    @Test
+    public void configuredProfilesMatchWithMask() throws IOException {
+        CardProfileRegistry registry = new CardProfileRegistry();
+        assertEquals(1, registry.load(lines(
+                "# comment",
+                "",
+                "YubiKey 4; " + YUBIKEY + "; ffffffffffffffffffffffffffffffffff00; T=1; 3000 0101 -6030")));
+        CardProfile profile = registry.find(Hex.decode("3bf81300008131fe15597562696b6579340a"));
+        assertNotNull(profile);
+        assertEquals("YubiKey 4", profile.getName());
+        assertEquals(Atr.PROTOCOL_T1, profile.getProtocol());
+        assertNull(registry.find(Hex.decode("3bf81300008131fe15597562696b657935d4")));
+
+        // cards of a configured model are not learned
+        registry.learn(Hex.decode(YUBIKEY), Atr.PROTOCOL_T1, PivContainer.FINGERPRINTS, 1200, 0);
+        assertEquals(0, registry.getLearnedCount());
+    }
+
+    @Test
+    public void badLineIsReported() {
+        try {
+            new CardProfileRegistry().load(lines("x; 3b00; ; T=2; 3000"));
+            fail("bad protocol accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Line 1"));
+        }
+    }
+
+    @Test
+    public void unknownCardsAreLearnedAndSaved() throws IOException {
+        CardProfileRegistry registry = new CardProfileRegistry();
+        byte[] atr = Hex.decode(YUBIKEY);
+        assertNull(registry.find(atr));
+
+        registry.learn(atr, Atr.PROTOCOL_T1, PivContainer.CHUID, 120, 0);
+        registry.learn(atr, Atr.PROTOCOL_T1, PivContainer.FACIAL_IMAGE, ReadPlan.SIZE_UNKNOWN, Apdu.SW_FILE_NOT_FOUND);
+        registry.learn(atr, Atr.PROTOCOL_T1, PivContainer.FINGERPRINTS, ReadPlan.SIZE_UNKNOWN,
+                Apdu.SW_SECURITY_NOT_SATISFIED);
+        // a transport failure says nothing about the card model
+        registry.learn(atr, Atr.PROTOCOL_T1, PivContainer.PRINTED_INFORMATION, ReadPlan.SIZE_UNKNOWN,
+                CardException.NO_STATUS);
+        assertTrue(registry.takeLearnedChanged());
+        // the same outcome again is not a change
+        registry.learn(atr, Atr.PROTOCOL_T1, PivContainer.CHUID, 120, 0);
+        assertFalse(registry.takeLearnedChanged());
+
+        ReadPlan plan = registry.findPlan(atr);
+        assertEquals(120, plan.getStep(PivContainer.CHUID).getExpectedSize());
+        // the next card of the model may well have a facial image
+        assertFalse(plan.isAbsent(PivContainer.FACIAL_IMAGE));
+        assertNull(plan.getStep(PivContainer.FACIAL_IMAGE));
+        assertTrue(plan.getStep(PivContainer.FINGERPRINTS).isPinRequired());
+        assertNull(plan.getStep(PivContainer.PRINTED_INFORMATION));
+
+        StringWriter out = new StringWriter();
+        registry.writeLearned(out);
+        CardProfileRegistry restarted = new CardProfileRegistry();
+        assertEquals(1, restarted.loadLearned(new BufferedReader(new StringReader(out.toString()))));
+        assertEquals(plan.format(), restarted.findPlan(atr).format());
+        assertEquals(Atr.PROTOCOL_T1, restarted.find(atr).getProtocol());
+
+        // absences saved by older versions are not believed
+        restarted = new CardProfileRegistry();
+        restarted.loadLearned(new BufferedReader(new StringReader(
+                out.toString().trim() + " -" + PivContainer.FACIAL_IMAGE.getPath() + "\n")));
+        assertFalse(restarted.findPlan(atr).isAbsent(PivContainer.FACIAL_IMAGE));
+    }
+}
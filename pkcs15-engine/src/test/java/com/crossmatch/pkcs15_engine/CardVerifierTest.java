@@ -0,0 +1,124 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CardVerifierTest {
+    private static KeyPair rootKeys, caKeys, signerKeys, otherKeys;
+    private static X509Certificate root, ca, signer, other;
+
+    // RSA key generation is slow, issue once for all tests
+    private static synchronized void issue() throws Exception {
+        if (root != null)
+            return;
+        rootKeys = TestPki.keys();
+        caKeys = TestPki.keys();
+        signerKeys = TestPki.keys();
+        otherKeys = TestPki.keys();
+        root = TestPki.certificate("Test Root", rootKeys, "Test Root", rootKeys.getPrivate(), true);
+        ca = TestPki.certificate("Test PIV CA", caKeys, "Test Root", rootKeys.getPrivate(), true);
+        signer = TestPki.certificate("Content Signer", signerKeys, "Test PIV CA", caKeys.getPrivate(), false);
+        other = TestPki.certificate("Other Root", otherKeys, "Other Root", otherKeys.getPrivate(), true);
+    }
+
+    private static CardVerifier verifier(X509Certificate... trusted) {
+        return new CardVerifier(new TrustPathCache(Arrays.asList(trusted)), CardVerifier.DEFAULT_PARALLELISM);
+    }
+
+    @Test
+    public void signedChuidAndFingerprintsAreValid() throws Exception {
+        issue();
+        CardVerifier verifier = verifier(root, ca);
+        CardVerifier.Session session = verifier.newSession();
+        session.submit(PivContainer.CHUID, TestPki.signedChuid(signer, signerKeys.getPrivate()));
+        // the fingerprint signature block leaves out the certificate, the CHUID one is used
+        session.submit(PivContainer.FINGERPRINTS,
+                TestPki.signedFingerprints(signer, signerKeys.getPrivate(), false));
+        session.submit(PivContainer.PRINTED_INFORMATION, new byte[0]);
+        List<CardVerifier.Result> results = session.getResults();
+        verifier.shutdown();
+
+        assertEquals(2, results.size());
+        assertEquals(PivContainer.CHUID, results.get(0).getContainer());
+        assertEquals(results.get(0).toString(), CardVerifier.Result.Status.VALID, results.get(0).getStatus());
+        assertEquals(results.get(1).toString(), CardVerifier.Result.Status.VALID, results.get(1).getStatus());
+    }
+
+    @Test
+    public void signerNamedByTheWholeKeyIdentifier() throws Exception {
+        issue();
+        byte[] keyId = Hex.decode("0102030405060708090a0b0c0d0e0f1011121314");
+        X509Certificate named = TestPki.certificate("Key Id Signer", signerKeys, "Test PIV CA", caKeys.getPrivate(),
+                false, keyId);
+        // ends in the same bytes, which a suffix compare took for the signer
+        X509Certificate longer = TestPki.certificate("Longer Key Id", signerKeys, "Test PIV CA", caKeys.getPrivate(),
+                false, TestPki.concat(new byte[] { (byte) 0xAA }, keyId));
+        // shorter than the one asked for, which used to throw
+        X509Certificate shorter = TestPki.certificate("Short Key Id", signerKeys, "Test PIV CA", caKeys.getPrivate(),
+                false, Arrays.copyOfRange(keyId, 12, 20));
+
+        SignedData signed = SignedData.parse(TestPki.signedData(new byte[] { 1, 2, 3 }, named,
+                signerKeys.getPrivate(), false, keyId));
+        assertTrue(signed.isSigner(named));
+        assertFalse(signed.isSigner(longer));
+        assertFalse(signed.isSigner(shorter));
+        assertFalse(signed.isSigner(signer));
+
+        try {
+            SignedData.parse(TestPki.signedData(new byte[] { 1, 2, 3 }, named, signerKeys.getPrivate(), false,
+                    new byte[0]));
+            fail("an empty key identifier names every certificate");
+        } catch (CardException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedChuidIsInvalid() throws Exception {
+        issue();
+        byte[] chuid = TestPki.signedChuid(signer, signerKeys.getPrivate());
+        chuid[40] ^= 1;     // in the GUID
+        CardVerifier verifier = verifier(root, ca);
+        CardVerifier.Session session = verifier.newSession();
+        session.submit(PivContainer.CHUID, chuid);
+        assertEquals(CardVerifier.Result.Status.INVALID, session.getResults().get(0).getStatus());
+        verifier.shutdown();
+    }
+
+    @Test
+    public void unknownIssuerIsUntrusted() throws Exception {
+        issue();
+        CardVerifier verifier = verifier(other);
+        CardVerifier.Session session = verifier.newSession();
+        session.submit(PivContainer.CHUID, TestPki.signedChuid(signer, signerKeys.getPrivate()));
+        session.submit(PivContainer.CERT_PIV_AUTHENTICATION, TestPki.concat(
+                TestPki.der(0x70, signer.getEncoded()), TestPki.der(0x71, new byte[1]), TestPki.der(0xFE, new byte[0])));
+        List<CardVerifier.Result> results = session.getResults();
+        assertEquals(CardVerifier.Result.Status.UNTRUSTED, results.get(0).getStatus());
+        assertEquals(CardVerifier.Result.Status.UNTRUSTED, results.get(1).getStatus());
+        verifier.shutdown();
+    }
+
+    @Test
+    public void repeatIssuerCostsOneSignatureCheck() throws Exception {
+        issue();
+        TrustPathCache trust = new TrustPathCache(Arrays.asList(root, ca));
+        X509Certificate second = TestPki.certificate("Second Signer", signerKeys, "Test PIV CA",
+                caKeys.getPrivate(), false);
+
+        // first card builds the path signer -> CA -> root
+        trust.validate(signer, Collections.<X509Certificate>emptyList(), new Date());
+        assertEquals(2, trust.getSignatureChecks());
+
+        // another card from the same CA stops at the cached CA
+        trust.validate(second, Collections.<X509Certificate>emptyList(), new Date());
+        assertEquals(3, trust.getSignatureChecks());
+    }
+}
@@ -0,0 +1,52 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConsoleLogTest {
+    @Test
+    public void joinsPiecesIntoLines() {
+        ConsoleLog log = new ConsoleLog(10, 1000);
+        log.append("Card has 2 Data ");
+        assertEquals(1, log.getLineCount());
+        assertEquals("Card has 2 Data ", log.getLine(0));
+        log.append("object(s).\nPath:db00\n\nPath:30");
+        log.append("00\n");
+        assertEquals(4, log.getLineCount());
+        assertEquals("Card has 2 Data object(s).", log.getLine(0));
+        assertEquals("Path:db00", log.getLine(1));
+        assertEquals("", log.getLine(2));
+        assertEquals("Path:3000", log.getLine(3));
+    }
+
+    @Test
+    public void dropsOldestLinesOverLineLimit() {
+        ConsoleLog log = new ConsoleLog(3, 1000);
+        for (int i = 0; i < 5; i++)
+            log.append("line " + i + "\n");
+        assertEquals(3, log.getLineCount());
+        assertEquals("line 2", log.getLine(0));
+        assertEquals("line 4", log.getLine(2));
+        assertEquals(2, log.getDroppedLines());
+    }
+
+    @Test
+    public void staysUnderCharBudget() {
+        ConsoleLog log = new ConsoleLog(1000, 100);
+        // a large dump, 48 characters per line
+        log.append(Hex.dump(new byte[16 * 50]));
+        assertTrue(log.getCharCount() <= 100);
+        assertEquals(2, log.getLineCount());
+        assertEquals(48, log.getLine(1).length() + 1);
+
+        // one huge line is cut rather than kept whole
+        log.append(new String(new char[500]).replace('\0', 'x'));
+        assertTrue(log.getCharCount() <= 100);
+        assertEquals(100, log.getLine(log.getLineCount() - 1).length());
+
+        log.clear();
+        assertEquals(0, log.getLineCount());
+        assertEquals(0, log.getCharCount());
+    }
+}
@@ -0,0 +1,61 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ContainerFileTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = File.createTempFile("containers", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void writesAndMapsRawBytes() throws Exception {
+        byte[] image = SimulatedPivCard.pattern(100 * 1024);
+        File file = ContainerFile.write(dir, PivContainer.FACIAL_IMAGE, ByteBuffer.wrap(image));
+        assertTrue(file.getName().startsWith("6030-"));
+        assertEquals(image.length, file.length());
+
+        FileInputStream in = new FileInputStream(file);
+        MappedByteBuffer map;
+        try {
+            map = ContainerFile.map(in.getChannel());
+        } finally {
+            in.close();
+        }
+        // still readable once the file is gone, as when the service unlinks it after opening
+        assertTrue(file.delete());
+        assertEquals(image.length, map.remaining());
+        byte[] back = new byte[image.length];
+        map.get(back);
+        assertArrayEquals(image, back);
+    }
+
+    @Test
+    public void writesOnlyTheRemainingBytes() throws Exception {
+        ByteBuffer data = ByteBuffer.wrap(SimulatedPivCard.pattern(64));
+        data.position(10);
+        File file = ContainerFile.write(dir, PivContainer.CHUID, data);
+        assertEquals(54, file.length());
+        // the caller's buffer is left as it was
+        assertEquals(10, data.position());
+    }
+}
@@ -0,0 +1,73 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MinutiaeMatcherTest {
+    @Test
+    public void scoresSameFingerAboveOthers() {
+        Random random = new Random(42);
+        MinutiaeMatcher matcher = new MinutiaeMatcher();
+        int genuineMin = 100;
+        int impostorMax = 0;
+        for (int i = 0; i < 20; i++) {
+            MinutiaeTemplate finger = TestFingers.finger(random, 2, 40);
+            MinutiaeTemplate again = TestFingers.impression(finger, random, random.nextInt(41) - 20,
+                    random.nextInt(61) - 30, random.nextInt(61) - 30, 0.2, 5);
+            MinutiaeTemplate other = TestFingers.finger(random, 2, 40);
+            MinutiaeMatcher.Finger enrolled = MinutiaeMatcher.Finger.of(finger, 0);
+            genuineMin = Math.min(genuineMin, matcher.score(MinutiaeMatcher.Finger.of(again, 0), enrolled));
+            impostorMax = Math.max(impostorMax, matcher.score(MinutiaeMatcher.Finger.of(other, 0), enrolled));
+        }
+        assertTrue("genuine " + genuineMin, genuineMin >= MinutiaeMatcher.DEFAULT_THRESHOLD);
+        assertTrue("impostor " + impostorMax, impostorMax < MinutiaeMatcher.DEFAULT_THRESHOLD);
+    }
+
+    @Test
+    public void onlyComparesTheSameFinger() throws Exception {
+        Random random = new Random(7);
+        MinutiaeTemplate finger = TestFingers.finger(random, 2, 40);
+        MinutiaeMatcher.Finger[] enrolled = MinutiaeMatcher.Finger.of(finger);
+        MinutiaeTemplate leftIndex = MinutiaeTemplate.parse(relabel(finger, 7));
+        assertEquals(0, new MinutiaeMatcher().score(MinutiaeMatcher.Finger.of(leftIndex), enrolled, 100));
+        assertEquals(100, new MinutiaeMatcher().score(MinutiaeMatcher.Finger.of(finger), enrolled, 100));
+    }
+
+    @Test
+    public void galleryFindsEnrolledFinger() {
+        Random random = new Random(3);
+        MinutiaeGallery gallery = new MinutiaeGallery(2);
+        try {
+            MinutiaeTemplate wanted = null;
+            for (int i = 0; i < 200; i++) {
+                MinutiaeTemplate finger = TestFingers.finger(random, 2, 40);
+                gallery.add("person " + i, finger);
+                if (i == 150)
+                    wanted = finger;
+            }
+            MinutiaeTemplate probe = TestFingers.impression(wanted, random, 10, 15, -20, 0.2, 5);
+
+            MinutiaeGallery.Match all = gallery.identify(probe, 101);
+            assertEquals("person 150", all.getId());
+            assertEquals(200, all.getCompared());
+
+            MinutiaeGallery.Match first = gallery.identify(probe, MinutiaeMatcher.DEFAULT_THRESHOLD);
+            assertEquals("person 150", first.getId());
+            assertTrue(first.getScore() >= MinutiaeMatcher.DEFAULT_THRESHOLD);
+            // the other slices stop once it is found
+            assertTrue(first.getCompared() < 200);
+        } finally {
+            gallery.shutdown();
+        }
+    }
+
+    private static ByteBuffer relabel(MinutiaeTemplate template, int position) {
+        byte[] record = template.toIncits378();
+        record[26] = (byte) position;
+        return ByteBuffer.wrap(record);
+    }
+}
@@ -0,0 +1,72 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MinutiaeTemplateTest {
+    @Test
+    public void decodesIncits378() throws Exception {
+        // 26 byte header, one view of two minutiae, no extended data
+        byte[] record = Hex.decode("464d5200 20323000 002c 00000000 0000 01f4 0258 00c5 00c5 01 00"
+                + "02 00 50 02"
+                + "4064 00c8 2d 3c"       // ridge ending at (100, 200), 90 degrees
+                + "8096 012c b3 50"       // bifurcation at (150, 300), 358 degrees
+                + "0000");
+        MinutiaeTemplate t = MinutiaeTemplate.parse(ByteBuffer.wrap(record));
+        assertEquals(500, t.getWidth());
+        assertEquals(600, t.getHeight());
+        assertEquals(197, t.getXResolution());
+        assertEquals(1, t.getViewCount());
+        assertEquals(2, t.getFingerPosition(0));
+        assertEquals("right index", MinutiaeTemplate.fingerName(t.getFingerPosition(0)));
+        assertEquals(80, t.getFingerQuality(0));
+        assertEquals(2, t.getMinutiaCount());
+        assertEquals(MinutiaeTemplate.TYPE_RIDGE_ENDING, t.getType(0));
+        assertEquals(100, t.getX(0));
+        assertEquals(200, t.getY(0));
+        assertEquals(90, t.getAngle(0));
+        assertEquals(60, t.getQuality(0));
+        assertEquals(MinutiaeTemplate.TYPE_BIFURCATION, t.getType(1));
+        assertEquals(358, t.getAngle(1));
+
+        assertArrayEquals(record, t.toIncits378());
+    }
+
+    @Test
+    public void decodesIso19794() throws Exception {
+        // 24 byte header with a 4 byte length, angles in 256ths of a turn
+        byte[] record = Hex.decode("464d5200 20323000 0000002a 0000 01f4 0258 00c5 00c5 01 00"
+                + "07 00 3c 02"
+                + "4064 00c8 40 3c"       // 64/256 of a turn is 90 degrees
+                + "8096 012c ff 50"
+                + "0000");
+        MinutiaeTemplate t = MinutiaeTemplate.parse(ByteBuffer.wrap(record));
+        assertEquals(7, t.getFingerPosition(0));
+        assertEquals(90, t.getAngle(0));
+        assertEquals(359, t.getAngle(1));
+        assertEquals(150, t.getX(1));
+    }
+
+    @Test
+    public void rejectsBadRecords() {
+        MinutiaeTemplate t = TestFingers.finger(new Random(1), 2, 30);
+        byte[] record = t.toIncits378();
+        try {
+            MinutiaeTemplate.parse(ByteBuffer.wrap(record, 0, record.length - 7));
+            fail();
+        } catch (CardException ex) {
+            assertTrue(ex.getMessage().contains("length"));
+        }
+        record[0] = 'X';
+        try {
+            MinutiaeTemplate.parse(ByteBuffer.wrap(record));
+            fail();
+        } catch (CardException ex) {
+            assertEquals("Not a minutiae record", ex.getMessage());
+        }
+    }
+}
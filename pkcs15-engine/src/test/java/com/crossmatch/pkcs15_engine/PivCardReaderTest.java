@@ -0,0 +1,182 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the in-process PIV reader against a simulated card.
+ */
+public class PivCardReaderTest {
+    private byte[] chuid;
+    private byte[] fingerprints;
+    private SimulatedPivCard card;
+    private PivCardReader reader;
+
+    @Before
+    public void setUp() {
+        chuid = SimulatedPivCard.pattern(120);
+        fingerprints = SimulatedPivCard.pattern(1500);
+        card = new SimulatedPivCard("12345678")
+                .put(PivContainer.CHUID, chuid)
+                .put(PivContainer.FINGERPRINTS, fingerprints);
+        reader = new PivCardReader(card);
+    }
+
+    @Test
+    public void readPublicContainerWithoutPin() throws CardException {
+        assertArrayEquals(chuid, reader.readContainer(PivContainer.CHUID));
+    }
+
+    @Test
+    public void protectedContainerNeedsPin() throws CardException {
+        try {
+            reader.readContainer(PivContainer.FINGERPRINTS);
+            fail("read protected container without PIN");
+        } catch (CardException e) {
+            assertEquals(Apdu.SW_SECURITY_NOT_SATISFIED, e.getStatusWord());
+        }
+        reader.verifyPin("12345678");
+        assertTrue(reader.isPinVerified());
+        assertArrayEquals(fingerprints, reader.readContainer(PivContainer.FINGERPRINTS));
+    }
+
+    @Test
+    public void resetPinNeedsVerifyAgain() throws CardException {
+        reader.verifyPin("12345678");
+        assertTrue(reader.resetPin());
+        assertFalse(reader.isPinVerified());
+        try {
+            reader.readContainer(PivContainer.FINGERPRINTS);
+            fail("read protected container after PIN reset");
+        } catch (CardException e) {
+            assertEquals(Apdu.SW_SECURITY_NOT_SATISFIED, e.getStatusWord());
+        }
+    }
+
+    @Test
+    public void wrongPinReportsTriesLeft() {
+        try {
+            reader.verifyPin("0000");
+            fail("wrong PIN accepted");
+        } catch (CardException e) {
+            assertEquals(0x63C2, e.getStatusWord());
+        }
+        assertFalse(reader.isPinVerified());
+    }
+
+    @Test
+    public void malformedPinIsRejectedBeforeTheCard() {
+        for (String pin : new String[] { "123456789", "12345\u00e9", "" }) {
+            int before = card.transmitCount;
+            try {
+                reader.verifyPin(pin);
+                fail("malformed PIN accepted: " + pin);
+            } catch (CardException e) {
+                assertEquals(CardException.NO_STATUS, e.getStatusWord());
+            }
+            assertEquals(before, card.transmitCount);
+        }
+    }
+
+    @Test
+    public void missingContainer() {
+        try {
+            reader.readContainer(PivContainer.FACIAL_IMAGE);
+            fail("read missing container");
+        } catch (CardException e) {
+            assertEquals(Apdu.SW_FILE_NOT_FOUND, e.getStatusWord());
+        }
+    }
+
+    @Test
+    public void stateCarriesAcrossReads() throws CardException {
+        reader.verifyPin("12345678");
+        reader.readContainer(PivContainer.CHUID);
+        int before = card.transmitCount;
+        // no SELECT or VERIFY again, one GET DATA for a short container
+        reader.readContainer(PivContainer.CHUID);
+        assertEquals(before + 1, card.transmitCount);
+
+        // after a reset the application is selected again before the read
+        reader.forgetState();
+        assertFalse(reader.isSelected());
+        assertFalse(reader.isPinVerified());
+        reader.readContainer(PivContainer.CHUID);
+        assertTrue(reader.isSelected());
+        assertEquals(before + 3, card.transmitCount);
+    }
+
+    @Test
+    public void wrongLeDuringGetResponseIsRetried() throws CardException {
+        card.vagueRemaining();
+        reader.verifyPin("12345678");
+        int before = card.transmitCount;
+        assertArrayEquals(fingerprints, reader.readContainer(PivContainer.FINGERPRINTS));
+        // GET DATA, five GET RESPONSE, and the last one again with the right Le
+        assertEquals(before + 7, card.transmitCount);
+    }
+
+    @Test
+    public void extendedGetDataReadsContainerInOneExchange() throws CardException {
+        // T=1, historical bytes say extended Lc/Le supported
+        card.overT1("3b8a8001" + "80" + "7301c0c0" + "00000000" + "00", true);
+        ApduProfiles profiles = new ApduProfiles();
+        reader = new PivCardReader(card, new BufferPool(), profiles);
+        reader.verifyPin("12345678");
+        assertFalse(reader.getApduProfile().isConfirmed());
+
+        int before = card.transmitCount;
+        assertArrayEquals(fingerprints, reader.readContainer(PivContainer.FINGERPRINTS));
+        assertEquals(before + 1, card.transmitCount);
+        assertSame(ApduProfile.EXTENDED, profiles.get(card.getAtr()));
+    }
+
+    @Test
+    public void rejectedExtendedFallsBackToShortOnce() throws CardException {
+        // T=1 card that does not say, and answers 6700 to extended APDUs
+        card.overT1("3bf81300008131fe15597562696b657934d4", false);
+        ApduProfiles profiles = new ApduProfiles();
+        reader = new PivCardReader(card, new BufferPool(), profiles);
+        assertEquals(ApduProfile.EXTENDED_UNCONFIRMED, reader.getApduProfile());
+        assertArrayEquals(chuid, reader.readContainer(PivContainer.CHUID));
+        assertSame(ApduProfile.SHORT, profiles.get(card.getAtr()));
+
+        // the next insertion of this card model starts short and does not probe
+        reader = new PivCardReader(card, new BufferPool(), profiles);
+        reader.select();
+        int before = card.transmitCount;
+        reader.readContainer(PivContainer.CHUID);
+        assertEquals(before + 1, card.transmitCount);
+    }
+
+    @Test
+    public void parseAtr() {
+        Atr yubikey = Atr.parse(Hex.decode("3bf81300008131fe15597562696b657934d4"));
+        assertEquals(Atr.PROTOCOL_T1, yubikey.getProtocols());
+        assertEquals(0x13, yubikey.getTa1());
+        assertEquals(0xFE, yubikey.getIfsc());
+        assertEquals("Yubikey4", new String(yubikey.getHistoricalBytes()));
+        assertNull(yubikey.getExtendedLength());
+
+        Atr caps = Atr.parse(Hex.decode("3b8a8001" + "80" + "7301c0c0" + "00000000" + "00"));
+        assertTrue(caps.offersT1());
+        assertEquals(-1, caps.getTa1());
+        assertEquals(Boolean.TRUE, caps.getExtendedLength());
+        assertEquals(Boolean.TRUE, caps.getCommandChaining());
+
+        // no TD1, T=0 only, never extended
+        Atr t0 = Atr.parse(Hex.decode("3b6500002063cba000"));
+        assertEquals(Atr.PROTOCOL_T0, t0.getProtocols());
+        assertSame(ApduProfile.SHORT, ApduProfile.fromAtr(t0, Atr.PROTOCOL_T0));
+    }
+
+    @Test
+    public void findByOidPathOrLabel() {
+        assertEquals(PivContainer.FINGERPRINTS, PivContainer.find("2.16.840.1.101.3.7.2.96.16"));
+        assertEquals(PivContainer.CHUID, PivContainer.find("3000"));
+        assertEquals(PivContainer.CHUID, PivContainer.find("Card Holder Unique Identifier"));
+        assertNull(PivContainer.find("1.2.3"));
+    }
+}
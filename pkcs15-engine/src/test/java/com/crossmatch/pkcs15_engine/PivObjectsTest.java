@@ -0,0 +1,109 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Typed views over PIV container contents
+ */
+public class PivObjectsTest {
+    // SS 9999 FS 9999 FS 999999 FS 0 FS 1 FS 0000000000 3 0000 1 ES LRC
+    static final String FASCN = "d4e739da739ced39ce739d836858210842108421c84210c3eb";
+    static final String GUID = "a0a1a2a3a4a5a6a7a8a9aaabacadaeaf";
+
+    static byte[] chuid() {
+        return Hex.decode("3019" + FASCN + "3410" + GUID + "35083230333031323331" + "3e03300100" + "fe00");
+    }
+
+    @Test
+    public void chuidFields() throws CardException {
+        Chuid chuid = Chuid.parse(chuid());
+        assertEquals("9999-9999-999999-0-1-0000000000-3-0000-1", chuid.getFascnString());
+        assertArrayEquals(Hex.decode(GUID), chuid.getGuid());
+        assertEquals("20301231", chuid.getExpirationDate());
+        assertTrue(chuid.hasIssuerSignature());
+        assertArrayEquals(Hex.decode("300100"), chuid.getIssuerSignature());
+        // FASC-N, GUID and expiry are covered by the signature
+        assertEquals(27 + 18 + 10, chuid.getSignedContentView().remaining());
+        assertNull(chuid.getCardholderUuid());
+    }
+
+    @Test
+    public void biometricHeader() throws CardException {
+        ByteBuffer header = ByteBuffer.allocate(BiometricContainer.CBEFF_HEADER_LENGTH);
+        header.put((byte) 0x03).put((byte) 0x0D).putInt(10).putShort((short) 4);
+        header.putShort((short) 0x001B).putShort((short) 0x0201);
+        header.putShort((short) 2020).put(new byte[] { 6, 1, 12, 30, 0, 0x5A });
+        header.position(36);
+        header.put(new byte[] { 0, 0, 8, 0x02, 100 });
+        header.put("Crossmatch".getBytes());
+        header.position(59);
+        header.put(Hex.decode(FASCN));
+
+        byte[] record = new byte[88 + 10 + 4];
+        System.arraycopy(header.array(), 0, record, 0, 88);
+        record[88] = 0x7F;
+        byte[] tlv = new byte[3 + record.length];
+        tlv[0] = (byte) 0xBC;
+        tlv[1] = (byte) 0x81;
+        tlv[2] = (byte) record.length;
+        System.arraycopy(record, 0, tlv, 3, record.length);
+
+        BiometricContainer bio = BiometricContainer.parse(tlv);
+        assertEquals(BiometricContainer.TYPE_FINGERPRINT, bio.getBiometricType());
+        assertEquals(0x001B, bio.getFormatOwner());
+        assertEquals(0x0201, bio.getFormatType());
+        assertEquals(10, bio.getBiometricDataLength());
+        assertEquals(4, bio.getSignatureBlockLength());
+        assertTrue(bio.isSigned());
+        assertEquals("Crossmatch", bio.getCreator());
+        assertEquals("20200601123000Z", bio.getCreationDate());
+        assertEquals(0x7F, bio.getBiometricData().get(0));
+        assertEquals(4, bio.getSignatureBlock().remaining());
+        assertArrayEquals(Hex.decode(FASCN), bio.getFascn());
+    }
+
+    @Test(expected = CardException.class)
+    public void biometricLengthsMustFit() throws CardException {
+        byte[] tlv = new byte[3 + 88];
+        tlv[0] = (byte) 0xBC;
+        tlv[1] = (byte) 0x81;
+        tlv[2] = (byte) 88;
+        tlv[3 + 5] = 100;   // BDB length larger than the record
+        BiometricContainer.parse(tlv);
+    }
+
+    @Test
+    public void certificateAndPrintedInformation() throws CardException {
+        CertificateContainer cert = CertificateContainer.parse(Hex.decode("700430820000" + "710101" + "7200" + "fe00"));
+        assertArrayEquals(Hex.decode("30820000"), cert.getCertificate());
+        assertTrue(cert.isCompressed());
+
+        PrintedInformation info = PrintedInformation.parse(Hex.decode("0103444f45" + "0409323033304445433331"));
+        assertEquals("DOE", info.getName());
+        assertEquals("2030DEC31", info.getExpirationDate());
+        assertNull(info.getIssuerIdentification());
+    }
+
+    @Test
+    public void compressedCertificateSizeIsBounded() throws Exception {
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gz);
+        out.write(new byte[CertificateContainer.MAX_INFLATED_SIZE + 1]);
+        out.close();
+        CertificateContainer cert = CertificateContainer.parse(TestPki.concat(TestPki.der(0x70, gz.toByteArray()),
+                Hex.decode("710101" + "fe00")));
+        assertTrue(cert.isCompressed());
+        try {
+            cert.toX509Certificate();
+            fail("inflated without a limit");
+        } catch (IOException expected) {
+        }
+    }
+}
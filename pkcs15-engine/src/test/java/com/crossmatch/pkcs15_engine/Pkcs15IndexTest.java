@@ -0,0 +1,98 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Pkcs15IndexTest {
+    private static List<DataObjectRecord> parse(String output) {
+        final List<DataObjectRecord> records = new ArrayList<>();
+        Pkcs15ToolOutputParser parser = new Pkcs15ToolOutputParser(new Pkcs15ToolOutputParser.Listener() {
+            @Override
+            public void onDataObject(DataObjectRecord record) {
+                records.add(record);
+            }
+        });
+        parser.feed(output);
+        parser.finish();
+        return records;
+    }
+
+    @Test
+    public void findsByOidPathAndLabel() {
+        Pkcs15Index index = new Pkcs15Index();
+        for (DataObjectRecord record : parse("Card has 2 Data object(s).\n"
+                + "\tPath:db00          2.16.840.1.101.3.7.1.219.0  Size:  268  Card Capability Container\n"
+                + "\tPath:6010          2.16.840.1.101.3.7.2.96.16  AuthID:01   Cardholder Fingerprints\n"))
+            index.add(record);
+
+        assertEquals(2, index.size());
+        assertEquals(268, index.find("2.16.840.1.101.3.7.1.219.0").getSize());
+        assertEquals("Card Capability Container", index.find("DB00").getLabel());
+        assertEquals("01", index.find("Cardholder Fingerprints").getAuthId());
+        assertNull(index.find("3000"));
+    }
+
+    @Test
+    public void pivIndexFollowsPlanAndReads() {
+        Pkcs15Index index = Pkcs15Index.forPiv(ReadPlan.parse("3000:1856 6010:?:nopin -0500"));
+        assertEquals(PivContainer.values().length - 1, index.size());
+        assertNull(index.find(PivContainer.CERT_CARD_AUTHENTICATION.getOid()));
+        assertEquals(1856, index.find("3000").getSize());
+        // the plan says this card does not want the PIN for the fingerprints
+        assertNull(index.find("6010").getAuthId());
+        assertEquals(Pkcs15Index.AUTH_ID_PIN, index.find("Cardholder Facial Image").getAuthId());
+
+        DataObjectRecord before = index.find("0101");
+        index.setSize("0101", 1200);
+        assertEquals(-1, before.getSize());
+        assertEquals(1200, index.find(PivContainer.CERT_PIV_AUTHENTICATION.getOid()).getSize());
+
+        index.remove("9000");
+        assertNull(index.find("Security Object"));
+        assertNull(index.find(PivContainer.SECURITY_OBJECT.getOid()));
+    }
+
+    @Test
+    public void shortListingParsesBack() {
+        Pkcs15Index index = Pkcs15Index.forPiv(null);
+        index.setSize("3000", 1856);
+        String listing = index.formatShort();
+        assertTrue(listing.startsWith("Card has " + PivContainer.values().length + " Data object(s).\n"));
+
+        List<DataObjectRecord> records = parse(listing);
+        assertEquals(PivContainer.values().length, records.size());
+        for (DataObjectRecord record : records) {
+            DataObjectRecord indexed = index.find(record.getPath());
+            assertEquals(indexed.getOid(), record.getOid());
+            assertEquals(indexed.getLabel(), record.getLabel());
+            assertEquals(indexed.getAuthId(), record.getAuthId());
+            assertEquals(indexed.getSize(), record.getSize());
+        }
+    }
+
+    @Test
+    public void confirmedListingHasOnlyWhatTheCardAnswered() {
+        Pkcs15Index index = Pkcs15Index.forPiv(null);
+        assertEquals("Card has 0 Data object(s).\n", index.formatShort(true));
+
+        index.setSize("3000", 1856);
+        index.confirm("6010");
+        // not a path of the index
+        index.confirm("5fc1");
+        assertFalse(index.isConfirmed("0101"));
+        List<DataObjectRecord> records = parse(index.formatShort(true));
+        assertEquals(2, records.size());
+        for (DataObjectRecord record : records)
+            assertTrue(index.isConfirmed(record.getPath()));
+        assertTrue(index.isConfirmed("3000"));
+        assertTrue(index.isConfirmed("6010"));
+
+        index.remove("6010");
+        assertFalse(index.isConfirmed("6010"));
+        assertEquals(1, parse(index.formatShort(true)).size());
+    }
+}
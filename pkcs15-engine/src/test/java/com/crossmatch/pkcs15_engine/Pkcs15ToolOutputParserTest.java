@@ -0,0 +1,77 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Pkcs15ToolOutputParserTest {
+    private final List<DataObjectRecord> records = new ArrayList<>();
+    private final Pkcs15ToolOutputParser parser = new Pkcs15ToolOutputParser(new Pkcs15ToolOutputParser.Listener() {
+        @Override
+        public void onDataObject(DataObjectRecord record) {
+            records.add(record);
+        }
+    });
+
+    /* feed one character at a time, the worst case for chunk boundaries */
+    private void feedSlowly(String output) {
+        for (int i = 0; i < output.length(); i++)
+            parser.feed(output.subSequence(i, i + 1));
+    }
+
+    @Test
+    public void shortListing() {
+        feedSlowly("Using reader with a card: Microchip SEC1110 (F30B40F3) 00 00\n"
+                + "Card has 3 Data object(s).\n"
+                + "\tPath:db00          2.16.840.1.101.3.7.1.219.0  Size:  268  Card Capability Container\n"
+                + "\tPath:6010          2.16.840.1.101.3.7.2.96.16  AuthID:01   Cardholder Fingerprints\n");
+        // records are emitted as soon as their line ends, before finish()
+        assertEquals(2, records.size());
+        parser.feed("\tPath:0100          2.16.840.1.101.3.7.2.1.0  Size: 1090  X.509 Certificate for Digital Signature");
+        parser.finish();
+        assertEquals(3, records.size());
+
+        assertEquals("db00", records.get(0).getPath());
+        assertEquals("2.16.840.1.101.3.7.1.219.0", records.get(0).getOid());
+        assertEquals(268, records.get(0).getSize());
+        assertNull(records.get(0).getAuthId());
+        assertEquals("Card Capability Container", records.get(0).getLabel());
+
+        assertEquals("01", records.get(1).getAuthId());
+        assertEquals(-1, records.get(1).getSize());
+        assertEquals("Cardholder Fingerprints", records.get(1).getLabel());
+        assertEquals(1090, records.get(2).getSize());
+    }
+
+    @Test
+    public void dumpBlocks() {
+        feedSlowly("Data object 'Card Holder Unique Identifier'\n"
+                + "\tapplicationName: Card Holder Unique Identifier\n"
+                + "\tapplicationOID:  2.16.840.1.101.3.7.2.48.0\n"
+                + "\tPath:            3000\n"
+                + "\n"
+                + "Data object 'Printed Information'\n"
+                + "\tapplicationOID:  2.16.840.1.101.3.7.2.48.1\n"
+                + "\tPath:            3001\n"
+                + "\tAuth ID:         01\n");
+        assertEquals(1, records.size());
+        parser.finish();
+        assertEquals(2, records.size());
+        assertEquals("Card Holder Unique Identifier", records.get(0).getLabel());
+        assertEquals("3000", records.get(0).getPath());
+        assertEquals("2.16.840.1.101.3.7.2.48.1", records.get(1).getOid());
+        assertEquals("01", records.get(1).getAuthId());
+    }
+
+    @Test
+    public void readDataObjectPayload() {
+        feedSlowly("Using reader with a card: Microchip SEC1110 (F30B40F3) 00 00\n"
+                + "Data Object (6 bytes): < 53 04 30 02 AB CD >\n");
+        assertEquals(1, records.size());
+        assertEquals(6, records.get(0).getSize());
+        assertArrayEquals(Hex.decode("53043002abcd"), records.get(0).getData());
+    }
+}
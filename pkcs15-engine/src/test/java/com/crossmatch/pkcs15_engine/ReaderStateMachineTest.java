@@ -0,0 +1,99 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import static com.crossmatch.pkcs15_engine.ReaderStateMachine.*;
+import static org.junit.Assert.*;
+
+public class ReaderStateMachineTest {
+    private static final long MS = 1000000L;
+
+    private static int event(int count, int flags) {
+        return (count << 16) | STATE_CHANGED | flags;
+    }
+
+    @Test
+    public void decodesTheMostSpecificState() {
+        assertEquals(State.ABSENT, decode(STATE_UNKNOWN | STATE_UNAVAILABLE));
+        assertEquals(State.UNAVAILABLE, decode(STATE_UNAVAILABLE));
+        assertEquals(State.EMPTY, decode(STATE_EMPTY));
+        assertEquals(State.PRESENT, decode(STATE_PRESENT | STATE_ATRMATCH));
+        assertEquals(State.IN_USE, decode(STATE_PRESENT | STATE_INUSE));
+        assertEquals(State.EXCLUSIVE, decode(STATE_PRESENT | STATE_INUSE | STATE_EXCLUSIVE));
+        // mute used to come out as in use
+        assertEquals(State.MUTE, decode(STATE_PRESENT | STATE_INUSE | STATE_MUTE));
+        assertEquals(3, eventCount(event(3, STATE_PRESENT)));
+        assertEquals("changed, present, in use (event 3)", describe(event(3, STATE_PRESENT | STATE_INUSE)));
+    }
+
+    @Test
+    public void coalescesChangesWithinTheWindow() {
+        ReaderStateMachine machine = new ReaderStateMachine(50);
+        assertNull(machine.offer(event(0, STATE_EMPTY), 0));
+        Transition t = machine.poll(50 * MS);
+        assertEquals(State.ABSENT, t.getFrom());
+        assertEquals(State.EMPTY, t.getTo());
+
+        // a bouncy insert, then our own connect and disconnect
+        assertNull(machine.offer(event(1, STATE_PRESENT), 100 * MS));
+        assertEquals(40 * MS, machine.getPendingNanos(110 * MS));
+        assertNull(machine.offer(event(2, STATE_EMPTY), 110 * MS));
+        assertNull(machine.offer(event(3, STATE_PRESENT), 120 * MS));
+        assertNull(machine.offer(event(3, STATE_PRESENT | STATE_INUSE), 130 * MS));
+        assertNull(machine.offer(event(3, STATE_PRESENT), 140 * MS));
+        assertNull(machine.poll(149 * MS));
+        t = machine.poll(150 * MS);
+        assertEquals(State.EMPTY, t.getFrom());
+        assertEquals(State.PRESENT, t.getTo());
+        assertTrue(t.isCardChanged());
+        assertEquals(3, t.getEventCount());
+        assertEquals(100 * MS, t.getTimestampNanos());
+        assertEquals(5, t.getCoalesced());
+        assertEquals(-1, machine.getPendingNanos(150 * MS));
+
+        // in use and back within the window is nothing
+        assertNull(machine.offer(event(3, STATE_PRESENT | STATE_INUSE), 200 * MS));
+        assertNull(machine.offer(event(3, STATE_PRESENT), 210 * MS));
+        assertNull(machine.poll(250 * MS));
+        assertEquals(State.PRESENT, machine.getState());
+
+        // a card in and out within the window is never reported
+        machine = new ReaderStateMachine(50);
+        machine.offer(event(0, STATE_EMPTY), 0);
+        machine.poll(50 * MS);
+        assertNull(machine.offer(event(1, STATE_PRESENT), 100 * MS));
+        assertNull(machine.offer(event(2, STATE_EMPTY), 110 * MS));
+        assertNull(machine.poll(150 * MS));
+        assertEquals(2, machine.getEventCount());
+    }
+
+    @Test
+    public void neverHidesARemoval() {
+        ReaderStateMachine machine = new ReaderStateMachine(50);
+        machine.offer(event(1, STATE_PRESENT), 0);
+        machine.poll(50 * MS);
+
+        // removed while a change of the card state is held back
+        assertNull(machine.offer(event(1, STATE_PRESENT | STATE_INUSE), 100 * MS));
+        Transition t = machine.offer(event(2, STATE_EMPTY), 101 * MS);
+        assertEquals(State.PRESENT, t.getFrom());
+        assertEquals(State.EMPTY, t.getTo());
+        assertEquals(101 * MS, t.getTimestampNanos());
+        assertEquals(-1, machine.getPendingNanos(101 * MS));
+
+        machine.offer(event(3, STATE_PRESENT), 200 * MS);
+        machine.poll(250 * MS);
+        // pulled and another card put in between two status calls
+        t = machine.offer(event(5, STATE_PRESENT), 300 * MS);
+        assertEquals(State.PRESENT, t.getFrom());
+        assertEquals(State.PRESENT, t.getTo());
+        assertTrue(t.isCardChanged());
+        assertEquals(5, t.getEventCount());
+
+        // without a window every change is reported as it comes
+        machine = new ReaderStateMachine(0);
+        assertEquals(State.PRESENT, machine.offer(event(1, STATE_PRESENT), 0).getTo());
+        assertEquals(State.IN_USE, machine.offer(event(1, STATE_PRESENT | STATE_INUSE), 1).getTo());
+        assertNull(machine.offer(event(1, STATE_PRESENT | STATE_INUSE), 2));
+    }
+}
@@ -0,0 +1,110 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.*;
+
+public class RevocationIndexTest {
+    private File dir;
+    private File file;
+
+    @Before
+    public void createDir() throws Exception {
+        dir = File.createTempFile("revocation", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "revocation.idx");
+    }
+
+    @After
+    public void deleteDir() {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void findsRevokedCardsAndCertificates() throws Exception {
+        CardIdentity revoked = CardIdentity.fromChuid(CardCacheTest.chuid(1));
+        CardIdentity good = CardIdentity.fromChuid(CardCacheTest.chuid(2));
+        KeyPair keys = TestPki.keys();
+        X509Certificate cert = TestPki.certificate("Card Auth", keys, "Issuing CA", keys.getPrivate(), false);
+
+        RevocationIndex.Builder builder = new RevocationIndex.Builder();
+        for (int i = 0; i < 1000; i++)
+            builder.addCertificate(cert.getIssuerX500Principal(), BigInteger.valueOf(100000 + i));
+        builder.addCertificate(cert.getIssuerX500Principal(), cert.getSerialNumber());
+        builder.addList(new StringReader("# revoked cards\n\nfascn " + Hex.encode(revoked.getFascn()) + "\n"
+                + "guid 00112233445566778899aabbccddeeff\nguid 00112233445566778899aabbccddeeff\n"));
+        assertEquals(1003, builder.write(file, 1234L));
+        assertFalse(new File(dir, "revocation.idx.tmp").exists());
+
+        RevocationIndex index = RevocationIndex.open(file);
+        assertEquals(1003, index.getEntryCount());
+        assertEquals(1234L, index.getCreated());
+        assertTrue(index.isRevoked(revoked));
+        assertFalse(index.isRevoked(good));
+        assertTrue(index.isGuidRevoked(Hex.decode("00112233445566778899aabbccddeeff")));
+        assertTrue(index.isRevoked(cert));
+        assertTrue(index.isRevoked(cert.getIssuerX500Principal(), BigInteger.valueOf(100999)));
+        assertFalse(index.isRevoked(cert.getIssuerX500Principal(), BigInteger.valueOf(101000)));
+        assertFalse(index.isRevoked(cert.getSubjectX500Principal(), cert.getSerialNumber()));
+    }
+
+    @Test
+    public void rejectsBadInput() throws Exception {
+        try {
+            new RevocationIndex.Builder().addList(new StringReader("fascn 0102\nserial 0304\n"));
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("line 2"));
+        }
+        new RevocationIndex.Builder().addGuid(new byte[16]).write(file, 0);
+        // cut the last entry short
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        try {
+            RevocationIndex.open(file);
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("truncated"));
+        }
+    }
+
+    @Test
+    public void storeSwapsInNewFile() throws Exception {
+        RevocationStore store = new RevocationStore(file);
+        assertNull(store.get());
+
+        new RevocationIndex.Builder().addGuid(new byte[16]).write(file, 1);
+        RevocationIndex first = store.get();
+        assertEquals(1, first.getEntryCount());
+        assertSame(first, store.get());
+
+        RevocationIndex.Builder builder = new RevocationIndex.Builder().addGuid(new byte[16]);
+        builder.addGuid(Hex.decode("0102030405060708090a0b0c0d0e0f10"));
+        builder.write(file, 2);
+        RevocationIndex second = store.get();
+        assertEquals(2, second.getEntryCount());
+        // the old mapping stays usable for lookups that were running
+        assertTrue(first.isGuidRevoked(new byte[16]));
+        assertFalse(first.isGuidRevoked(Hex.decode("0102030405060708090a0b0c0d0e0f10")));
+
+        // a broken file does not take the last good index away
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[3]);
+        out.close();
+        assertSame(second, store.get());
+    }
+}
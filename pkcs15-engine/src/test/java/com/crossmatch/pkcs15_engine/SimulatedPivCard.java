@@ -0,0 +1,190 @@
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Simulated PIV card for unit tests. Answers SELECT, VERIFY, GET DATA and
+ * GET RESPONSE like a T=0 card, returning at most 256 bytes per response.
+ * {@link #overT1} makes it a T=1 card that may or may not take extended
+ * length GET DATA.
+ */
+public class SimulatedPivCard implements CardTransport {
+    private final Map<Integer, byte[]> objects = new HashMap<>();
+    private final Map<Integer, Boolean> protectedObjects = new HashMap<>();
+    private final String pin;
+    private byte[] atr = Hex.decode("3bf81300008131fe15597562696b657934d4");
+    private int protocol = Atr.PROTOCOL_T0;
+    private boolean extendedLength = false;
+    private boolean vagueRemaining = false;
+    private boolean selected = false;
+    private boolean verified = false;
+    private int triesLeft = 3;
+    private byte[] pending = null;
+    private int pendingOffset = 0;
+    int transmitCount = 0;
+    int transactionDepth = 0;
+
+    public SimulatedPivCard(String pin) {
+        this.pin = pin;
+    }
+
+    /**
+     * Store a container, wrapping the contents in a 53 tag like a real card
+     */
+    public SimulatedPivCard put(PivContainer container, byte[] contents) {
+        objects.put(container.getTag(), wrap(contents));
+        protectedObjects.put(container.getTag(), container.isPinRequired());
+        return this;
+    }
+
+    /**
+     * Talk T=1 with the given ATR, answering extended GET DATA in one
+     * response if extendedLength, or with 6700 if not
+     */
+    public SimulatedPivCard overT1(String atrHex, boolean extendedLength) {
+        this.atr = Hex.decode(atrHex);
+        this.protocol = Atr.PROTOCOL_T1;
+        this.extendedLength = extendedLength;
+        return this;
+    }
+
+    /**
+     * Answer 6100 whenever more data is waiting, without saying how much,
+     * and 6Cxx to a GET RESPONSE that asks for more than is left
+     */
+    public SimulatedPivCard vagueRemaining() {
+        this.vagueRemaining = true;
+        return this;
+    }
+
+    static byte[] wrap(byte[] contents) {
+        int n = contents.length;
+        byte[] header;
+        if (n < 0x80)
+            header = new byte[] { 0x53, (byte) n };
+        else if (n < 0x100)
+            header = new byte[] { 0x53, (byte) 0x81, (byte) n };
+        else
+            header = new byte[] { 0x53, (byte) 0x82, (byte) (n >> 8), (byte) n };
+        byte[] out = Arrays.copyOf(header, header.length + n);
+        System.arraycopy(contents, 0, out, header.length, n);
+        return out;
+    }
+
+    static byte[] pattern(int length) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++)
+            b[i] = (byte) (i * 7 + 3);
+        return b;
+    }
+
+    @Override
+    public byte[] getAtr() {
+        return atr;
+    }
+
+    @Override
+    public int getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public byte[] transmit(byte[] cmd) {
+        transmitCount++;
+        int ins = cmd[1] & 0xFF;
+        switch (ins) {
+            case 0xA4:
+                byte[] aid = Arrays.copyOfRange(cmd, 5, 5 + (cmd[4] & 0xFF));
+                if (!Arrays.equals(aid, PivCardReader.PIV_AID))
+                    return sw(0x6A82);
+                selected = true;
+                verified = false;
+                return respond(Hex.decode("61114f0600001000010079074f05a000000308"));
+            case 0x20:
+                if (!selected)
+                    return sw(0x6985);
+                if ((cmd[2] & 0xFF) == 0xFF) {
+                    verified = false;
+                    return sw(0x9000);
+                }
+                if (triesLeft == 0)
+                    return sw(0x6983);
+                byte[] expected = Apdu.verify(pin);
+                if (Arrays.equals(cmd, expected)) {
+                    verified = true;
+                    triesLeft = 3;
+                    return sw(0x9000);
+                }
+                verified = false;
+                triesLeft--;
+                return sw(0x63C0 | triesLeft);
+            case 0xCB:
+                if (!selected)
+                    return sw(0x6985);
+                boolean extended = Apdu.isExtended(cmd);
+                if (extended && !extendedLength)
+                    return sw(0x6700);
+                int t = extended ? 9 : 7;
+                int tag = ((cmd[t] & 0xFF) << 16) | ((cmd[t + 1] & 0xFF) << 8) | (cmd[t + 2] & 0xFF);
+                byte[] object = objects.get(tag);
+                if (object == null)
+                    return sw(0x6A82);
+                if (protectedObjects.get(tag) && !verified)
+                    return sw(0x6982);
+                if (extended) {
+                    pending = object;
+                    pendingOffset = 0;
+                    return next(65536);
+                }
+                return respond(object);
+            case 0xC0:
+                if (pending == null)
+                    return sw(0x6985);
+                int le = cmd[4] == 0 ? 256 : cmd[4] & 0xFF;
+                if (vagueRemaining && le > pending.length - pendingOffset)
+                    return sw(0x6C00 | (pending.length - pendingOffset));
+                return next(le);
+            default:
+                return sw(0x6D00);
+        }
+    }
+
+    private byte[] respond(byte[] data) {
+        pending = data;
+        pendingOffset = 0;
+        return next(256);
+    }
+
+    private byte[] next(int le) {
+        if (le == 0)
+            le = 256;
+        int n = Math.min(le, pending.length - pendingOffset);
+        int remaining = pending.length - pendingOffset - n;
+        byte[] out = new byte[n + 2];
+        System.arraycopy(pending, pendingOffset, out, 0, n);
+        pendingOffset += n;
+        // 6100 means 256 or more bytes are still waiting
+        int status = remaining == 0 ? 0x9000 : 0x6100 | (remaining >= 256 || vagueRemaining ? 0 : remaining);
+        out[n] = (byte) (status >> 8);
+        out[n + 1] = (byte) status;
+        if (remaining == 0)
+            pending = null;
+        return out;
+    }
+
+    private static byte[] sw(int sw) {
+        return new byte[] { (byte) (sw >> 8), (byte) sw };
+    }
+
+    @Override
+    public void beginTransaction() {
+        transactionDepth++;
+    }
+
+    @Override
+    public void endTransaction() {
+        transactionDepth--;
+    }
+}
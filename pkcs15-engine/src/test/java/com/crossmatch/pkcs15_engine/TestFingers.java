@@ -0,0 +1,84 @@
+package com.crossmatch.pkcs15_engine;
+
+import java.util.Random;
+
+/**
+ * Synthetic minutiae for matcher tests: a random finger, and further
+ * impressions of it moved, turned and with the usual extraction noise.
+ */
+final class TestFingers {
+    private static final int CENTER_X = 250;
+    private static final int CENTER_Y = 300;
+
+    private TestFingers() {
+    }
+
+    static MinutiaeTemplate finger(Random random, int position, int count) {
+        short[] x = new short[count];
+        short[] y = new short[count];
+        short[] angle = new short[count];
+        byte[] type = new byte[count];
+        for (int i = 0; i < count; i++) {
+            boolean spaced;
+            do {
+                x[i] = (short) (60 + random.nextInt(380));
+                y[i] = (short) (60 + random.nextInt(480));
+                // real minutiae are rarely closer than a ridge or two
+                spaced = true;
+                for (int j = 0; j < i && spaced; j++)
+                    spaced = Math.abs(x[i] - x[j]) + Math.abs(y[i] - y[j]) > 20;
+            } while (!spaced);
+            angle[i] = (short) random.nextInt(360);
+            type[i] = (byte) (1 + random.nextInt(2));
+        }
+        return MinutiaeTemplate.of(new int[] { 0, count }, new byte[] { (byte) position }, x, y, angle, type);
+    }
+
+    /**
+     * @param rotation degrees counter-clockwise around the middle of the image
+     * @param drop share of minutiae the extractor misses
+     * @param spurious minutiae the extractor adds
+     */
+    static MinutiaeTemplate impression(MinutiaeTemplate finger, Random random, int rotation, int dx, int dy,
+                                       double drop, int spurious) {
+        int n = finger.getMinutiaCount();
+        short[] x = new short[n + spurious];
+        short[] y = new short[n + spurious];
+        short[] angle = new short[n + spurious];
+        byte[] type = new byte[n + spurious];
+        double sin = Math.sin(Math.toRadians(rotation));
+        double cos = Math.cos(Math.toRadians(rotation));
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (random.nextDouble() < drop)
+                continue;
+            // y grows downwards in the record, angles turn counter-clockwise
+            double px = finger.getX(i) - CENTER_X;
+            double py = CENTER_Y - finger.getY(i);
+            double rx = px * cos - py * sin + dx + random.nextGaussian() * 2;
+            double ry = px * sin + py * cos - dy + random.nextGaussian() * 2;
+            x[m] = (short) Math.round(CENTER_X + rx);
+            y[m] = (short) Math.round(CENTER_Y - ry);
+            angle[m] = (short) (((finger.getAngle(i) + rotation + (int) Math.round(random.nextGaussian() * 4))
+                    % 360 + 360) % 360);
+            type[m] = (byte) finger.getType(i);
+            m++;
+        }
+        for (int i = 0; i < spurious; i++, m++) {
+            x[m] = (short) (60 + random.nextInt(380));
+            y[m] = (short) (60 + random.nextInt(480));
+            angle[m] = (short) random.nextInt(360);
+            type[m] = MinutiaeTemplate.TYPE_RIDGE_ENDING;
+        }
+        short[] xs = new short[m];
+        short[] ys = new short[m];
+        short[] as = new short[m];
+        byte[] ts = new byte[m];
+        System.arraycopy(x, 0, xs, 0, m);
+        System.arraycopy(y, 0, ys, 0, m);
+        System.arraycopy(angle, 0, as, 0, m);
+        System.arraycopy(type, 0, ts, 0, m);
+        return MinutiaeTemplate.of(new int[] { 0, m }, new byte[] { (byte) finger.getFingerPosition(0) },
+                xs, ys, as, ts);
+    }
+}
@@ -0,0 +1,191 @@
+package com.crossmatch.pkcs15_engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Builds the certificates and CMS signatures a PIV issuer would put on a
+ * card, with just enough DER encoding for the tests.
+ */
+class TestPki {
+    static final String SHA256_WITH_RSA = "1.2.840.113549.1.1.11";
+    static final String SHA256 = "2.16.840.1.101.3.4.2.1";
+    private static final long DAY = 24L * 3600 * 1000;
+    private static int nextSerial = 1;
+
+    static KeyPair keys() throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        return gen.generateKeyPair();
+    }
+
+    static X509Certificate certificate(String subject, KeyPair subjectKeys, String issuer, PrivateKey issuerKey,
+                                       boolean ca) throws Exception {
+        return certificate(subject, subjectKeys, issuer, issuerKey, ca, null);
+    }
+
+    /**
+     * @param subjectKeyId value of the subjectKeyIdentifier extension, or null for none
+     */
+    static X509Certificate certificate(String subject, KeyPair subjectKeys, String issuer, PrivateKey issuerKey,
+                                       boolean ca, byte[] subjectKeyId) throws Exception {
+        byte[] list = new byte[0];
+        if (ca) {
+            // basicConstraints, critical, cA TRUE
+            list = der(0x30, oid("2.5.29.19"), der(0x01, new byte[] { (byte) 0xFF }),
+                    der(0x04, der(0x30, der(0x01, new byte[] { (byte) 0xFF }))));
+        }
+        if (subjectKeyId != null)
+            list = concat(list, der(0x30, oid("2.5.29.14"), der(0x04, der(0x04, subjectKeyId))));
+        byte[] extensions = list.length == 0 ? list : der(0xA3, der(0x30, list));
+        long now = System.currentTimeMillis();
+        byte[] tbs = der(0x30,
+                der(0xA0, der(0x02, new byte[] { 2 })),
+                der(0x02, BigInteger.valueOf(nextSerial++).toByteArray()),
+                algorithm(SHA256_WITH_RSA),
+                name(issuer),
+                der(0x30, time(new Date(now - DAY)), time(new Date(now + 365 * DAY))),
+                name(subject),
+                subjectKeys.getPublic().getEncoded(),
+                extensions);
+        byte[] cert = der(0x30, tbs, algorithm(SHA256_WITH_RSA), der(0x03, concat(new byte[1], sign(issuerKey, tbs))));
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(cert));
+    }
+
+    /**
+     * @return ContentInfo with a detached SignedData over content, with signed attributes
+     */
+    static byte[] signedData(byte[] content, X509Certificate signer, PrivateKey key, boolean withCertificate)
+            throws Exception {
+        return signedData(content, signer, key, withCertificate, null);
+    }
+
+    /**
+     * @param subjectKeyId key identifier naming the signer, or null to name it by issuer and serial number
+     */
+    static byte[] signedData(byte[] content, X509Certificate signer, PrivateKey key, boolean withCertificate,
+                             byte[] subjectKeyId) throws Exception {
+        byte[] attributes = concat(
+                der(0x30, oid("1.2.840.113549.1.9.3"), der(0x31, oid("2.16.840.1.101.3.6.1"))),
+                der(0x30, oid("1.2.840.113549.1.9.4"),
+                        der(0x31, der(0x04, MessageDigest.getInstance("SHA-256").digest(content)))));
+        byte[] signature = sign(key, der(0x31, attributes));
+        byte[] signerInfo = der(0x30,
+                der(0x02, new byte[] { 1 }),
+                subjectKeyId != null ? der(0x80, subjectKeyId)
+                        : der(0x30, signer.getIssuerX500Principal().getEncoded(),
+                                der(0x02, signer.getSerialNumber().toByteArray())),
+                algorithm(SHA256),
+                der(0xA0, attributes),
+                algorithm(SHA256_WITH_RSA),
+                der(0x04, signature));
+        byte[] signedData = der(0x30,
+                der(0x02, new byte[] { 1 }),
+                der(0x31, algorithm(SHA256)),
+                der(0x30, oid("2.16.840.1.101.3.6.1")),
+                withCertificate ? der(0xA0, signer.getEncoded()) : new byte[0],
+                der(0x31, signerInfo));
+        return der(0x30, oid("1.2.840.113549.1.7.2"), der(0xA0, signedData));
+    }
+
+    /**
+     * @return CHUID contents signed by signer, without the 53 tag
+     */
+    static byte[] signedChuid(X509Certificate signer, PrivateKey key) throws Exception {
+        byte[] content = CardCacheTest.chuid(1);
+        return concat(content, der(0x3E, signedData(content, signer, key, true)), der(0xFE, new byte[0]));
+    }
+
+    /**
+     * @return fingerprint container with a CBEFF signature block that relies on the CHUID signer
+     */
+    static byte[] signedFingerprints(X509Certificate signer, PrivateKey key, boolean withCertificate)
+            throws Exception {
+        byte[] bdb = SimulatedPivCard.pattern(600);
+        byte[] header = new byte[BiometricContainer.CBEFF_HEADER_LENGTH];
+        header[0] = 0x03;
+        header[1] = BiometricContainer.SECURITY_SIGNED;
+        // the header is signed and holds the block length, which does not depend on the content
+        int blockLength = signedData(bdb, signer, key, withCertificate).length;
+        ByteBuffer.wrap(header).putInt(2, bdb.length).putShort(6, (short) blockLength);
+        byte[] block = signedData(concat(header, bdb), signer, key, withCertificate);
+        return concat(der(0xBC, concat(header, bdb, block)), der(0xFE, new byte[0]));
+    }
+
+    private static byte[] sign(PrivateKey key, byte[] data) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(data);
+        return sig.sign();
+    }
+
+    private static byte[] algorithm(String oid) {
+        return der(0x30, oid(oid), new byte[] { 0x05, 0x00 });
+    }
+
+    private static byte[] name(String cn) {
+        return der(0x30, der(0x31, der(0x30, oid("2.5.4.3"), der(0x0C, cn.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static byte[] time(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return der(0x17, format.format(date).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static byte[] oid(String dotted) {
+        String[] arcs = dotted.split("\\.");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+        for (int i = 2; i < arcs.length; i++) {
+            long v = Long.parseLong(arcs[i]);
+            int shift = 0;
+            while ((v >> (shift + 7)) != 0)
+                shift += 7;
+            for (; shift > 0; shift -= 7)
+                out.write((int) ((v >> shift) & 0x7F) | 0x80);
+            out.write((int) (v & 0x7F));
+        }
+        return der(0x06, out.toByteArray());
+    }
+
+    static byte[] der(int tag, byte[]... parts) {
+        byte[] value = concat(parts);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 6);
+        out.write(tag);
+        int n = value.length;
+        if (n < 0x80) {
+            out.write(n);
+        } else if (n < 0x100) {
+            out.write(0x81);
+            out.write(n);
+        } else {
+            out.write(0x82);
+            out.write(n >> 8);
+            out.write(n);
+        }
+        out.write(value, 0, n);
+        return out.toByteArray();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts)
+            out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,55 @@
+package com.crossmatch.pkcs15_engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TlvReaderTest {
+
+    @Test
+    public void walksLengthForms() throws CardException {
+        byte[] value = new byte[300];
+        ByteBuffer buf = ByteBuffer.allocate(2 + 1 + 3 + 0x81 + 4 + 300);
+        buf.put(new byte[] { 0x01, 0x01, 0x7A });
+        buf.put(new byte[] { 0x02, (byte) 0x81, (byte) 0x81 }).put(new byte[0x81]);
+        buf.put(new byte[] { 0x03, (byte) 0x82, 0x01, 0x2C }).put(value);
+        buf.flip();
+
+        TlvReader tlv = new TlvReader(buf);
+        assertTrue(tlv.next());
+        assertEquals(0x01, tlv.tag());
+        assertEquals(1, tlv.valueLength());
+        assertEquals(0x7A, buf.get(tlv.valueOffset()));
+        assertTrue(tlv.next());
+        assertEquals(0x81, tlv.valueLength());
+        assertTrue(tlv.next());
+        assertEquals(300, tlv.valueLength());
+        assertFalse(tlv.next());
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void multiByteTagsAndNesting() throws CardException {
+        // 53 { 5FC102 { 30 { } } 7E { 4F { a0000003 } } }
+        ByteBuffer buf = ByteBuffer.wrap(Hex.decode("530e5fc102023000" + "7e064f04a0000003"));
+        TlvReader outer = new TlvReader(buf);
+        assertTrue(outer.next());
+        assertEquals(0x53, outer.tag());
+
+        TlvReader inner = outer.enter(new TlvReader());
+        assertTrue(inner.next());
+        assertEquals(0x5FC102, inner.tag());
+        assertTrue(inner.find(0x7E));
+        TlvReader child = inner.enter(new TlvReader());
+        assertTrue(child.find(0x4F));
+        assertArrayEquals(Hex.decode("a0000003"), child.value());
+        assertEquals(4, child.valueView().remaining());
+    }
+
+    @Test(expected = CardException.class)
+    public void rejectsOverrun() throws CardException {
+        new TlvReader(ByteBuffer.wrap(Hex.decode("3005010203"))).next();
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Starts {@link CardService} when the device boots, so the PC/SC library,
+ * context and reader monitors are up before anyone opens the app and the
+ * first card is seen without a cold start. LOCKED_BOOT_COMPLETED comes
+ * before the user unlocks the device, BOOT_COMPLETED after; the service
+ * brings up the readers on the first and loads its files on the second.
+ */
+public class BootReceiver extends BroadcastReceiver {
+    private static final String LOG_TAG = "BootReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (!Intent.ACTION_LOCKED_BOOT_COMPLETED.equals(action) && !Intent.ACTION_BOOT_COMPLETED.equals(action)
+                && !Intent.ACTION_MY_PACKAGE_REPLACED.equals(action))
+            return;
+        Log.i(LOG_TAG, "Starting the card service on " + action);
+        Intent service = new Intent(context, CardService.class);
+        service.putExtra(CardService.EXTRA_BOOT, true);
+        // a background app may only start a service in the foreground from O on
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            context.startForegroundService(service);
+        else
+            context.startService(service);
+    }
+}
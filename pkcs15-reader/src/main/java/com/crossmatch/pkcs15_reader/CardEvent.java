@@ -0,0 +1,95 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+/**
+ * A reader state change or card detection reported by {@link CardService}.
+ * <p>
+ *     Events carry a sequence number that increases by one for every event the
+ *     service publishes, across all readers, so listeners can check they see
+ *     events in order and without gaps. The timestamp is
+ *     SystemClock.elapsedRealtimeNanos() at the time the service saw the event.
+ * <p>
+ *     Reader states are debounced: a change the service holds back to see
+ *     whether it settles keeps the time it was first seen, and each event
+ *     also carries the reader's insertion and removal count from PC/SC.
+ */
+public final class CardEvent {
+    /** reader state changed, see {@link #getReaderState()} */
+    public static final int TYPE_READER_STATE = 0;
+    /** card found and ATR read, see {@link #getAtr()} */
+    public static final int TYPE_CARD_FOUND = 1;
+    /** public containers of the card in the reader are now in the card cache */
+    public static final int TYPE_PREFETCHED = 2;
+    /** kiosk mode finished with a card, see {@link #getSummary()} */
+    public static final int TYPE_CARD_CHECKED = 3;
+
+    private final int type;
+    private final long sequence;
+    private final String reader;
+    private final int readerState;
+    private final byte[] atr;
+    private final long timestampNanos;
+    private final int readerEventCount;
+    private final String summary;
+
+    CardEvent(int type, long sequence, String reader, int readerState, byte[] atr, long timestampNanos,
+              int readerEventCount, String summary) {
+        this.type = type;
+        this.sequence = sequence;
+        this.reader = reader;
+        this.readerState = readerState;
+        this.atr = atr;
+        this.timestampNanos = timestampNanos;
+        this.readerEventCount = readerEventCount;
+        this.summary = summary;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getReader() {
+        return reader;
+    }
+
+    /**
+     * @return one of PcscJni.ReaderState
+     */
+    public int getReaderState() {
+        return readerState;
+    }
+
+    /**
+     * @return ATR for TYPE_CARD_FOUND, otherwise null
+     */
+    public byte[] getAtr() {
+        return atr;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return card insertions and removals the PC/SC resource manager has
+     *          counted on this reader, modulo 65536, -1 if not known yet.
+     *          A jump of more than one between two events of a reader means
+     *          a card came and went in between.
+     */
+    public int getReaderEventCount() {
+        return readerEventCount;
+    }
+
+    /**
+     * @return what kiosk mode found for TYPE_CARD_CHECKED, otherwise null
+     */
+    public String getSummary() {
+        return summary;
+    }
+}
@@ -0,0 +1,13 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+/**
+ * Callback registered with {@link CardService} through its binder.
+ * Events are delivered one at a time, in sequence order, on the Handler
+ * given when registering.
+ */
+public interface CardEventListener {
+    void onCardEvent(CardEvent event);
+}
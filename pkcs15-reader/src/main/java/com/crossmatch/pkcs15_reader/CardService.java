@@ -4,28 +4,227 @@
  package com.crossmatch.pkcs15_reader;
 
 import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.StrictMode;
-import android.os.UserHandle;
+import android.os.SystemClock;
+import android.os.UserManager;
 import android.util.Log;
 
+import com.crossmatch.pkcs15_engine.Atr;
+import com.crossmatch.pkcs15_engine.CardJob;
+import com.crossmatch.pkcs15_engine.CardJobScheduler;
+import com.crossmatch.pkcs15_engine.CardMetrics;
+import com.crossmatch.pkcs15_engine.CardPipeline;
+import com.crossmatch.pkcs15_engine.CardProfile;
+import com.crossmatch.pkcs15_engine.CardProfileRegistry;
+import com.crossmatch.pkcs15_engine.CardVerifier;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.Hex;
+import com.crossmatch.pkcs15_engine.MinutiaeGallery;
+import com.crossmatch.pkcs15_engine.MinutiaeTemplate;
+import com.crossmatch.pkcs15_engine.ReaderStateMachine;
+import com.crossmatch.pkcs15_engine.RevocationIndex;
+import com.crossmatch.pkcs15_engine.RevocationStore;
+import com.crossmatch.pkcs15_engine.TrustPathCache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.simalliance.openmobileapi.service.pcsc.PcscException;
 import org.simalliance.openmobileapi.service.pcsc.PcscJni;
 
 
+/**
+ * Watches the smartcard readers and reports card events.
+ * <p>
+ *     Clients in this process bind to the service and register a
+ *     {@link CardEventListener} to get events directly, in order, without
+ *     going through the system broadcast queue. Start the service with
+ *     EXTRA_BROADCAST_BRIDGE set to also send the old global broadcasts for
+ *     consumers that have not moved to the listener API. Other apps need
+ *     the signature permission PERMISSION to start or bind the service.
+ */
 public class CardService extends Service {
     private boolean DEVELOPER_MODE = true;
     private String LOG_TAG = null;
 
+    /** held by apps signed with the same key, required to start or bind the service */
+    public static final String PERMISSION = "com.crossmatch.pkcs15_reader.permission.CARD_SERVICE";
+    /** name of the reader a broadcast refers to */
+    public static final String EXTRA_READER = "Reader";
+    /**
+     * start extra, true to read every inserted card without a PIN and check it
+     * while the next one goes in, for checkpoints where cards follow each
+     * other, false to go back to reading on request. Results come as
+     * TYPE_CARD_CHECKED events. The choice is kept for later starts.
+     */
+    public static final String EXTRA_KIOSK = "com.crossmatch.cardservice.extra.KIOSK";
+    // settings kept across starts, in device protected storage so a boot start sees them
+    private static final String PREFERENCES = "card_service";
+    private static final String PREF_KIOSK = "kiosk";
+    /** elapsedRealtimeNanos when the service saw the event */
+    public static final String EXTRA_TIMESTAMP = "Timestamp";
+    /** start extra, true to also publish card events as global broadcasts */
+    public static final String EXTRA_BROADCAST_BRIDGE = "com.crossmatch.cardservice.extra.BROADCAST_BRIDGE";
+    /** start extra, true when started at boot and the service should stay up in the foreground */
+    public static final String EXTRA_BOOT = "com.crossmatch.cardservice.extra.BOOT";
+    // ongoing notification that keeps a boot-started service alive from Android O on
+    private static final String NOTIFICATION_CHANNEL = "card_service";
+    private static final int NOTIFICATION_ID = 1;
+
+    // pseudo reader that pcsc-lite signals when a reader is attached or removed
+    private static final String PNP_NOTIFICATION = "\\\\?PnP?\\Notification";
+    // how often to re-list the readers if there is no PnP support
+    private static final long READER_POLL_MS = 2000;
+    // pause before restarting a monitor that stopped on an error, doubled for each failure in a row
+    private static final long MONITOR_RETRY_MS = 500;
+    private static final long MONITOR_RETRY_MAX_MS = 30000;
+    // insertions and changes between card states are held this long to see whether they settle,
+    // removals are reported at once
+    static final long STATE_DEBOUNCE_MS = 50;
+    // broadcast PcscJni.ReaderState for each ReaderStateMachine.State
+    private static final int[] READER_STATES = {
+            PcscJni.ReaderState.Unknown, PcscJni.ReaderState.Unavailable, PcscJni.ReaderState.Empty,
+            PcscJni.ReaderState.Present, PcscJni.ReaderState.Mute, PcscJni.ReaderState.Inuse,
+            PcscJni.ReaderState.Exclusive,
+    };
+
+    /** latency and failure counts for the whole card pipeline in this process */
+    static final CardMetrics metrics = new CardMetrics();
+    /** open connection to the card in each reader, shared by everyone who reads cards */
+    static final CardSessionManager cardSessions = new CardSessionManager();
+    /** card reads and prefetches, two workers so one stuck card cannot hold up the rest */
+    static final CardJobScheduler jobs = new CardJobScheduler("CardJob", 2);
+    static {
+        jobs.setListener(new CardJobScheduler.Listener() {
+            @Override
+            public void onJobFailed(CardJob job, RuntimeException ex) {
+                Log.e("CardJobScheduler", job + " failed", ex);
+            }
+        });
+    }
+    /** card models by ATR, from res/raw/card_profiles plus what was learned from unknown cards */
+    static final CardProfileRegistry cardProfiles = new CardProfileRegistry();
+    private static boolean cardProfilesLoaded = false;
+    private static final String LEARNED_PROFILES_FILE = "card_profiles_learned.txt";
+    /** signature checks of the containers read, null if no trust store is configured */
+    static volatile CardVerifier verifier = null;
+    private static boolean trustStoreLoaded = false;
+    // trust anchors and intermediates, DER or PEM certificate files in the app files directory
+    private static final String TRUST_STORE_DIR = "trust";
+    /** offline revocation list, swapped in whenever a new index file is renamed into place */
+    static volatile RevocationStore revocation = null;
+    // CRL files (DER or PEM) and lists of revoked FASC-N and GUID (.txt), compiled into REVOCATION_FILE
+    private static final String REVOCATION_DIR = "crl";
+    private static final String REVOCATION_FILE = "revocation.idx";
+    /** enrolled fingerprint templates the cards are searched against, null if none are installed */
+    static volatile MinutiaeGallery gallery = null;
+    private static boolean galleryLoaded = false;
+    // one INCITS 378 or ISO 19794-2 record per file, the file name is the id reported on a match
+    private static final String GALLERY_DIR = "gallery";
+    // the files above, only readable once the user has unlocked the device after boot
+    private static volatile boolean filesLoaded = false;
+    /** why the card stack could not start, null while it is fine */
+    static volatile String startError = null;
+
     long context = 0;   // PCSC context returned from open
-    String[] terminals = null;
-    String reader = "";
+    volatile String[] terminals = null;
     volatile boolean stopThread = false;
+    private boolean started = false;
+    private boolean foreground = false;
+    private int nextReaderIndex = 0;
+
+    // per reader state, keyed by reader name
+    final Map<String, ReaderSession> sessions = new ConcurrentHashMap<>();
+
+    // shared by the per reader monitors
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count = 0;
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            return new Thread(r, "CardService-reader-" + count++);
+        }
+    });
+
+    private final IBinder binder = new LocalBinder();
+    private final List<ListenerRecord> listeners = new ArrayList<>();
+    private long eventSequence = 0;   // guarded by listeners
+    // event sequences start again with every service instance
+    private static final AtomicInteger instances = new AtomicInteger();
+    private final int instanceId = instances.incrementAndGet();
+    private volatile boolean broadcastBridge = false;
+    // card I/O per reader, checks on two workers, results in order; only in kiosk mode
+    private volatile CardPipeline<KioskReader.Card, String> kiosk = null;
+
+    /**
+     * Binder returned to clients in this process
+     */
+    public class LocalBinder extends Binder {
+        public CardService getService() {
+            return CardService.this;
+        }
+
+        /**
+         * @return a number that differs for each service instance in this
+         *          process, so a client can tell event sequences apart
+         */
+        public int getInstanceId() {
+            return instanceId;
+        }
+    }
+
+    private static final class ListenerRecord {
+        final CardEventListener listener;
+        final Handler handler;
+        volatile boolean active = true;
+
+        ListenerRecord(CardEventListener listener, Handler handler) {
+            this.listener = listener;
+            this.handler = handler;
+        }
+    }
 
     public CardService() {
     }
@@ -77,213 +276,814 @@ public class CardService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.i(LOG_TAG, "In onStartCommand");
+        if (intent != null && intent.getBooleanExtra(EXTRA_BROADCAST_BRIDGE, false))
+            broadcastBridge = true;
+        if (intent != null && intent.getBooleanExtra(EXTRA_BOOT, false))
+            startForegroundIfNeeded();
+        final Boolean kioskRequested = intent != null && intent.hasExtra(EXTRA_KIOSK)
+                ? Boolean.valueOf(intent.getBooleanExtra(EXTRA_KIOSK, false)) : null;
+        if (started) {
+            Log.i(LOG_TAG, "Readers are already being monitored");
+            if (kioskRequested != null) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        applyKioskMode(kioskRequested);
+                    }
+                }, "CardService-kiosk").start();
+            }
+            // started before the user unlocked, the files can be read now
+            if (!filesLoaded && isStorageUnlocked()) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        loadFiles();
+                    }
+                }, "CardService-files").start();
+            }
+            return START_REDELIVER_INTENT;
+        }
+        started = true;
+
         new Thread(new Runnable() {
             public void run() {
-                // we need to save this so we don't get warnings if running with shared system UID
-                UserHandle userHandle = android.os.Process.myUserHandle();
-
-                Intent broadcastIntent = new Intent();
-//                broadcastIntent.setAction(CardActivity.mBroadcastStringAction);
-//                broadcastIntent.putExtra("Data", "Broadcast Data");
-//                sendBroadcast(broadcastIntent);
-//                //sendBroadcastAsUser(broadcastIntent, userHandle);
+                if (!loadNativeLibrary())
+                    return;
+                if (isStorageUnlocked())
+                    loadFiles();
+                applyKioskMode(kioskRequested);
 
                 Log.i(LOG_TAG, "In SCardEstablishContext");
                 try {
+                    long start = System.nanoTime();
                     context = PcscJni.establishContext(PcscJni.Scope.User);
+                    metrics.since(CardMetrics.Phase.ESTABLISH_CONTEXT, start);
                     Log.v(LOG_TAG,"ok: " + context + "\n");
                 } catch (PcscException ex) {
+                    metrics.failure(ex.errorCode());
                     Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
                     //showErrorAlert(ex.getMessage());
                     return;
                 }
 
-                /* SCardListReaders */
-                ArrayList<String> listArr = new ArrayList<String>();
-                Log.v(LOG_TAG,"\nSCardListReaders: ");
+                /* SCardListReaders, then keep the list up to date as readers come and go */
+                watchReaders();
+
+                /* SCardReleaseContext */
+                Log.v(LOG_TAG,"\nSCardReleaseContext: ");
                 try {
-                    terminals = PcscJni.listReaders(context, null);
-                    int cntReader=1;
-                    // I really only care about reader 0 even if there are more readers...
-                    for (String terminal: terminals)
-                    {
-                        listArr.add(terminal);
-                        Log.v(LOG_TAG,"\n" + cntReader + "- " + terminal);
-                        cntReader++;
-                    }
-                    Log.v(LOG_TAG,"\n");
-                    if (terminals.length > 0) {
-                        reader = terminals[0];
-                    }
+                    PcscJni.releaseContext(context);
+                    Log.v(LOG_TAG,"ok\n");
                 } catch (PcscException ex) {
-                    shutdown(ex);
+                    Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+                }
+                context = 0;
+            }
+        }, "CardService").start();
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Load the PC/SC library before anything else, so a broken install is
+     * reported when the service starts instead of at the first card
+     *
+     * @return false if the library cannot be loaded
+     */
+    private boolean loadNativeLibrary() {
+        long start = System.nanoTime();
+        boolean loaded = PcscJni.isLoaded();
+        metrics.since(CardMetrics.Phase.NATIVE_LOAD, start);
+        if (!loaded) {
+            Throwable error = PcscJni.getLoadError();
+            startError = "Cannot load the PC/SC library: " + (error != null ? error.getMessage() : "unknown error");
+            Log.e(LOG_TAG, startError);
+        }
+        return loaded;
+    }
+
+    /**
+     * Card profiles, trust store, revocation list and fingerprint gallery,
+     * all kept in the app files directory
+     */
+    private void loadFiles() {
+        loadCardProfiles();
+        loadTrustStore();
+        loadRevocation();
+        loadGallery();
+        filesLoaded = true;
+    }
+
+    /**
+     * @return false between a direct boot and the user unlocking the device,
+     *          while the app files directory cannot be read
+     */
+    private boolean isStorageUnlocked() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N)
+            return true;
+        return ((UserManager) getSystemService(Context.USER_SERVICE)).isUserUnlocked();
+    }
+
+    /**
+     * Keep a boot-started service, and with it the PCSC context and the
+     * reader monitors, running with no activity open. From Android O the
+     * system stops background services within a minute otherwise.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private void startForegroundIfNeeded() {
+        if (foreground || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return;
+        NotificationManager notifications = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notifications.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+                getString(R.string.card_service_channel), NotificationManager.IMPORTANCE_MIN));
+        Notification notification = new Notification.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.card_service_ready))
+                .setOngoing(true)
+                .build();
+        startForeground(NOTIFICATION_ID, notification);
+        foreground = true;
+    }
+
+    /**
+     * Wait on the PnP notification pseudo-reader and re-enumerate the readers
+     * whenever one is attached or removed. Readers that are still there keep
+     * their worker and session, so no card events are lost while rescanning.
+     * If pcsc-lite was built without PnP support fall back to polling.
+     */
+    private void watchReaders() {
+        String[] pnp = new String[] { PNP_NOTIFICATION };
+        int[] currentstatus = new int[] { PcscJni.ReaderState.Unaware };
+        int[] eventstatus = new int[1];
+
+        rescanReaders();
+        try {
+            long timeout = -1;  // INFINITE timeout
+            boolean rv = PcscJni.getStatus(context, timeout, pnp, currentstatus, eventstatus);
+            while (rv && !stopThread) {
+                if ( (eventstatus[0] & PcscJni.ReaderState.Unknown) > 0) {
+                    Log.w(LOG_TAG, "No PnP notification support, polling for readers");
+                    pollReaders();
                     return;
                 }
+                if ( (eventstatus[0] & PcscJni.ReaderState.Changed) > 0) {
+                    currentstatus[0] = eventstatus[0];
+                    rescanReaders();
+                }
+                rv = PcscJni.getStatus(context, timeout, pnp, currentstatus, eventstatus);
+            }
+        } catch (PcscException ex) {
+            metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+        }
+    }
+
+    private void pollReaders() {
+        while (!stopThread) {
+            try {
+                Thread.sleep(READER_POLL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            rescanReaders();
+        }
+    }
+
+    /**
+     * Diff the current reader list against the sessions we have: start a
+     * monitor for each new reader and stop the monitors of readers that are gone.
+     */
+    private synchronized void rescanReaders() {
+        /* SCardListReaders */
+        Log.v(LOG_TAG,"\nSCardListReaders: ");
+        String[] found;
+        long start = System.nanoTime();
+        try {
+            found = PcscJni.listReaders(context, null);
+            metrics.since(CardMetrics.Phase.LIST_READERS, start);
+        } catch (PcscException ex) {
+            // pcsc-lite reports no readers as an error
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+            found = null;
+        }
+        if (found == null)
+            found = new String[0];
+
+        Set<String> present = new HashSet<>();
+        for (String terminal : found) {
+            present.add(terminal);
+            if (!sessions.containsKey(terminal)) {
+                Log.v(LOG_TAG,"\n" + nextReaderIndex + "- " + terminal);
+                startSession(new ReaderSession(terminal, nextReaderIndex++));
+            }
+        }
+
+        for (ReaderSession session : sessions.values()) {
+            if (!present.contains(session.reader)) {
+                Log.v(LOG_TAG,"Reader removed: " + session.reader);
+                stopSession(session);
+            }
+        }
+
+        terminals = found;
+        if (found.length == 0)
+            Log.e(LOG_TAG,"No Readers found, waiting for one to be attached.\n");
+        else
+            Log.v(LOG_TAG,"Found "+found.length+" readers.\n");
+    }
 
-                if (listArr.isEmpty())
-                    Log.e(LOG_TAG,"No Readers found. ReScan to try again.\n");
-                else {
-                    Log.v(LOG_TAG,"Found "+listArr.size()+" readers.\n");
+    private void startSession(final ReaderSession session) {
+        sessions.put(session.reader, session);
+        // one worker per reader so a slow card on one slot never holds up another
+        readerExecutor.execute(new Runnable() {
+            public void run() {
+                monitorReader(session);
+            }
+        });
+    }
 
-                    String[] readers = new String[listArr.size()];
+    private void stopSession(ReaderSession session) {
+        session.removed = true;
+        sessions.remove(session.reader, session);
+        session.cancelPrefetch();
+        jobs.cancelReader(session.reader);
+        cardSessions.close(session.reader);
+        try {
+            if (session.context != 0)
+                PcscJni.cancel(session.context);
+        } catch (PcscException ex) {
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+        }
 
+        // the card went away with the reader
+        if (session.isCardPresent())
+            publishEvent(CardEvent.TYPE_READER_STATE, session, PcscJni.ReaderState.Empty, null);
+    }
+
+    /**
+     * Wait for state changes on a single reader and broadcast them.
+     * Runs on its own worker thread with its own PCSC context until the
+     * service is stopped or the reader goes away.
+     *
+     * @param session reader to watch
+     */
+    private void monitorReader(ReaderSession session) {
+        try {
+            long start = System.nanoTime();
+            session.context = PcscJni.establishContext(PcscJni.Scope.User);
+            metrics.since(CardMetrics.Phase.ESTABLISH_CONTEXT, start);
+        } catch (PcscException ex) {
+            metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+            monitorStopped(session);
+            return;
+        }
+
+        String[] readers = new String[] { session.reader };
+        int[] currentstatus = new int[1];
+        int[] eventstatus = new int[1];
+
+        try {
+            // Initialize our current state to "we don't know"
+            currentstatus[0] = session.currentStatus;
+
+            while (!stopThread && !session.removed) {
+                // wait for ever, unless a held back change is due
+                long pending = session.states.getPendingNanos(SystemClock.elapsedRealtimeNanos());
+                long timeout = pending < 0 ? -1 : Math.max(1, (pending + 999999) / 1000000);
+                boolean rv;
+                try {
+                    rv = PcscJni.getStatus(session.context, timeout, readers, currentstatus, eventstatus);
+                } catch (PcscException ex) {
+                    // the wait for a held back change ran out
+                    if (timeout < 0 || ex.errorCode() != PcscException.ErrorCode.E_TIMEOUT)
+                        throw ex;
+                    rv = false;
+                }
+                if (!rv && timeout < 0)
+                    break;
+                if (rv && (eventstatus[0] & PcscJni.ReaderState.Unknown) > 0) {
+                    // reader went away or was reset, a new monitor is started if it is still listed
+                    logText("Reader " + session.reader + " unknown\n");
+                    break;
+                }
+                if (rv)
+                    session.failures = 0;
+
+                long now = SystemClock.elapsedRealtimeNanos();
+                ReaderStateMachine.Transition transition = null;
+                if (rv && (eventstatus[0] & PcscJni.ReaderState.Changed) > 0)
+                {
+                    /* If something has changed the new state is now the current state */
+                    currentstatus[0] = eventstatus[0];
+                    session.currentStatus = eventstatus[0];
+                    transition = session.states.offer(eventstatus[0], now);
+                }
+                if (transition == null)
+                    transition = session.states.poll(now);
+                if (transition != null)
+                    handleStateChange(session, transition);
+            } // while
+
+        } catch (PcscException ex) {
+            metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG,"PcscException on " + session.reader + ": " + ex.getMessage() + "\n");
+            //showErrorAlert(ex.getMessage());
+        }
+
+        /* SCardReleaseContext */
+        Log.v(LOG_TAG,"\nSCardReleaseContext: " + session.reader);
+        try {
+            PcscJni.releaseContext(session.context);
+            Log.v(LOG_TAG,"ok\n");
+        } catch (PcscException ex) {
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+        }
+        session.context = 0;
+        monitorStopped(session);
+    }
+
+    /**
+     * Clean up after a monitor that returned on its own: cancel the reads,
+     * close the card session and report the card gone, as when the reader is
+     * removed. The rescan only runs on a PnP change, so if the reader is still
+     * listed a new monitor is started after a pause that grows with each
+     * failure in a row.
+     */
+    private void monitorStopped(ReaderSession session) {
+        if (stopThread || session.removed)
+            return;
+        stopSession(session);
+
+        int failures = session.failures + 1;
+        long delay = Math.min(MONITOR_RETRY_MAX_MS, MONITOR_RETRY_MS << Math.min(failures - 1, 16));
+        Log.w(LOG_TAG, "Monitor of " + session.reader + " stopped, retrying in " + delay + " ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            return;
+        }
+        synchronized (this) {
+            String[] listed = terminals;
+            // a rescan in the meantime may have started one already
+            if (stopThread || sessions.containsKey(session.reader) || listed == null
+                    || !Arrays.asList(listed).contains(session.reader))
+                return;
+            ReaderSession retry = new ReaderSession(session.reader, session.index);
+            retry.failures = failures;
+            startSession(retry);
+        }
+    }
+
+    /**
+     * Load the configured card profiles and the ones learned in earlier runs,
+     * once per process. A bad file is logged and skipped, unknown cards are
+     * then read without a plan as before.
+     */
+    private void loadCardProfiles() {
+        synchronized (cardProfiles) {
+            if (cardProfilesLoaded)
+                return;
+            cardProfilesLoaded = true;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    getResources().openRawResource(R.raw.card_profiles), StandardCharsets.UTF_8));
+            try {
+                Log.i(LOG_TAG, "Loaded " + cardProfiles.load(in) + " card profiles");
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Cannot load card profiles: " + ex.getMessage());
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(new File(getFilesDir(), LEARNED_PROFILES_FILE)), StandardCharsets.UTF_8));
+            try {
+                Log.i(LOG_TAG, "Loaded " + cardProfiles.loadLearned(in) + " learned card profiles");
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException ex) {
+            // nothing learned yet
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Cannot load learned card profiles: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Load the certificates the card signatures are checked against, once
+     * per process. Without any, containers are read but not checked.
+     */
+    private void loadTrustStore() {
+        synchronized (CardService.class) {
+            if (trustStoreLoaded)
+                return;
+            trustStoreLoaded = true;
+            File[] files = new File(getFilesDir(), TRUST_STORE_DIR).listFiles();
+            if (files == null || files.length == 0) {
+                Log.i(LOG_TAG, "No trust store, card signatures are not checked");
+                return;
+            }
+            List<X509Certificate> certificates = new ArrayList<>();
+            for (File file : files) {
+                try {
+                    InputStream in = new FileInputStream(file);
                     try {
-                        long timeout = -1;  // INFINITE timeout
-                        int[] currentstatus = new int[listArr.size()];
-                        int[] eventstatus = new int[listArr.size()];
-                        // Initialize our current state to "we don't know"
-                        for (int i=0; i < listArr.size(); i++) {
-                            readers[i] = listArr.get(i);
-                            currentstatus[i] = PcscJni.ReaderState.Unaware;
-                        }
+                        for (Certificate cert : CertificateFactory.getInstance("X.509").generateCertificates(in))
+                            certificates.add((X509Certificate) cert);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Cannot read trust store file " + file.getName() + ": " + ex.getMessage());
+                } catch (CertificateException ex) {
+                    Log.e(LOG_TAG, "Bad certificate in trust store file " + file.getName() + ": " + ex.getMessage());
+                }
+            }
+            TrustPathCache trust = new TrustPathCache(certificates);
+            Log.i(LOG_TAG, "Loaded " + certificates.size() + " trusted certificates, "
+                    + trust.getAnchorCount() + " anchors");
+            verifier = new CardVerifier(trust, CardVerifier.DEFAULT_PARALLELISM);
+        }
+    }
+
+    /**
+     * Compile the revocation sources into the index file if any of them is
+     * newer than it, then open the index through a RevocationStore. Runs once
+     * per process; an index file replaced later is picked up on the next card.
+     */
+    private void loadRevocation() {
+        synchronized (CardService.class) {
+            if (revocation != null)
+                return;
+            File index = new File(getFilesDir(), REVOCATION_FILE);
+            revocation = new RevocationStore(index);
+            File[] files = new File(getFilesDir(), REVOCATION_DIR).listFiles();
+            if (files == null || files.length == 0)
+                return;
+            long newest = 0;
+            for (File file : files)
+                newest = Math.max(newest, file.lastModified());
+            if (newest <= index.lastModified())
+                return;
 
-                        boolean rv = PcscJni.getStatus(context,timeout,readers, currentstatus, eventstatus);
-                        while(rv && !stopThread) {
-                            int current_reader;
-                            int reader_state = PcscJni.ReaderState.Unknown;
-                            int card_present = 0;
-                            for (current_reader=0; current_reader < listArr.size(); current_reader++) {
-                                //logText("Checking reader "+current_reader + "\n");
-                                if ( (eventstatus[current_reader] & PcscJni.ReaderState.Changed) > 0)
-                                {
-                                    /* If something has changed the new state is now the current state */
-                                    currentstatus[current_reader] = eventstatus[current_reader];
-                                }
-                                else
-                                {
-                                    /* If nothing changed then skip to the next reader */
-                                    continue;
-                                }
-
-                                /* From here we know that the state for the current reader has
-                                 * changed because we did not pass through the continue statement
-                                 * above.
-						        /* Specify the current reader's number and name */
-                                logText("Reader "+current_reader+" "+readers[current_reader] + "\n");
-
-                                /* Dump the full current state */
-                                //logText("Event state is " + eventstatus[current_reader] + "\n");
-                                logText("Card state: ");
-
-                                if ( (eventstatus[current_reader] & PcscJni.ReaderState.Ignore) > 0) {
-                                    logText("Ignore this reader, ");
-                                    reader_state = PcscJni.ReaderState.Ignore;
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Unknown) > 0) {
-                                    logText("Reader unknown - we should re-read readers now\n");
-                                    //goto get_readers;
-                                }
-
-                                if ( (eventstatus[current_reader] & PcscJni.ReaderState.Unavailable) > 0) {
-                                    reader_state = PcscJni.ReaderState.Unavailable;
-                                    logText("Status unavailable, ");
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Empty) > 0) {
-                                    reader_state = PcscJni.ReaderState.Empty;
-                                    logText("Card removed, ");
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Present) > 0) {
-                                    reader_state = PcscJni.ReaderState.Present;
-                                    logText("Card inserted, ");
-                                    card_present = 1;
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.AtrMatch) > 0) {
-                                    reader_state = PcscJni.ReaderState.AtrMatch;
-                                    logText("ATR matches card, ");
-                                    card_present = 1;
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Exclusive) > 0) {
-                                    reader_state = PcscJni.ReaderState.Exclusive;
-                                    logText("Exclusive Mode, ");
-                                    card_present = 1;
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Inuse) > 0) {
-                                    reader_state = PcscJni.ReaderState.Inuse;
-                                    logText("Shared Mode, ");
-                                    card_present = 1;
-                                }
-
-                                if ( (eventstatus[current_reader]  & PcscJni.ReaderState.Mute) > 0) {
-                                    reader_state = PcscJni.ReaderState.Inuse;
-                                    logText("Unresponsive card, ");
-                                }
-
-                                broadcastIntent.setAction(MainActivity.mBroadcastIntegerAction);
-                                broadcastIntent.putExtra("Data", reader_state);
-                                sendBroadcast(broadcastIntent);
-                                Log.i(LOG_TAG, "Sending broadcastIntent with DATA = "+reader_state+"\n");
-                                //sendBroadcastAsUser(broadcastIntent, userHandle);
-
-
-                                /* Also dump the ATR if available */
-                                int[] status = new int[] { PcscJni.Status.Unknown, 0 };
-                                byte[] atr;
-                                try {
-                                    atr = PcscJni.getStatusChange(context, 0, readers[current_reader], status);
-                                } catch (PcscException ex) {
-                                    shutdown(ex);
-                                    return;
-                                }
-                                if (atr==null) {
-                                    logText("No card on reader: "+readers[current_reader] + "\n");
-                                } else {
-                                    logText("Found card on reader: "+readers[current_reader] + "\n");
-
-                                    StringBuilder string = new StringBuilder();
-                                    for (int i = 0; i < atr.length; ++i)
-                                        string.append(Integer.toHexString(0x0100 + (atr[i] & 0x00FF)).substring(1));
-                                    logText("ATR: " + string.toString() + "\n");
-                                    //System.out.println("Status: " + status(status[0]));
-                                    broadcastIntent.setAction(MainActivity.mBroadcastStringAction);
-                                    broadcastIntent.putExtra("Data", "Card Found");
-                                    sendBroadcast(broadcastIntent);
-                                    //Log.i(LOG_TAG, "Sending broadcastIntent with DATA = Card Found\n");
-
-                                }
-
-                            } // for
-                            rv = PcscJni.getStatus(context, timeout, readers, currentstatus, eventstatus);
-
-                        } // while
-
-                    } catch (PcscException ex) {
-                        Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
-                        //showErrorAlert(ex.getMessage());
+            RevocationIndex.Builder builder = new RevocationIndex.Builder();
+            for (File file : files) {
+                try {
+                    InputStream in = new FileInputStream(file);
+                    try {
+                        if (file.getName().endsWith(".txt")) {
+                            builder.addList(new InputStreamReader(in, StandardCharsets.US_ASCII));
+                        } else {
+                            for (CRL crl : CertificateFactory.getInstance("X.509").generateCRLs(in))
+                                builder.addCrl((X509CRL) crl);
+                        }
+                    } finally {
+                        in.close();
                     }
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Cannot read revocation file " + file.getName() + ": " + ex.getMessage());
+                } catch (CRLException ex) {
+                    Log.e(LOG_TAG, "Bad CRL in " + file.getName() + ": " + ex.getMessage());
+                } catch (CertificateException ex) {
+                    Log.e(LOG_TAG, "No X.509 support for " + file.getName() + ": " + ex.getMessage());
                 }
+            }
+            try {
+                int count = builder.write(index, newest);
+                Log.i(LOG_TAG, "Compiled " + files.length + " revocation files into " + count + " entries");
+            } catch (IOException ex) {
+                Log.e(LOG_TAG, "Cannot write " + REVOCATION_FILE + ": " + ex.getMessage());
+            }
+        }
+    }
 
-                /* SCardReleaseContext */
-                Log.v(LOG_TAG,"\nSCardReleaseContext: ");
+    /**
+     * Write the learned card profiles if reads taught us something new,
+     * replacing the file in one rename so a crash leaves the old one intact
+     */
+    private void saveLearnedProfiles() {
+        // before unlock the saved profiles were not loaded and would be overwritten
+        if (!filesLoaded || !cardProfiles.takeLearnedChanged())
+            return;
+        File file = new File(getFilesDir(), LEARNED_PROFILES_FILE);
+        File tmp = new File(getFilesDir(), LEARNED_PROFILES_FILE + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8);
+            try {
+                cardProfiles.writeLearned(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("rename to " + file + " failed");
+        } catch (IOException ex) {
+            Log.e(LOG_TAG, "Cannot save learned card profiles: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Broadcast a reader state transition and fetch the ATR if a new card is in
+     *
+     * @param session reader that changed
+     * @param transition debounced change from the session's state machine
+     */
+    private void handleStateChange(ReaderSession session, ReaderStateMachine.Transition transition)
+            throws PcscException {
+        /* Specify the current reader's number and name */
+        logText("Reader "+session.index+" "+session.reader + "\n");
+        logText("Card state: " + ReaderStateMachine.describe(transition.getEventState()) + "\n");
+
+        ReaderStateMachine.State from = transition.getFrom();
+        ReaderStateMachine.State to = transition.getTo();
+        session.eventCount = transition.getEventCount();
+        if (from.hasCard() && (!to.hasCard() || transition.isCardChanged())) {
+            // the card is gone, so is everything we had open on it
+            session.atr = null;
+            session.cancelPrefetch();
+            session.kioskQueued = false;
+            jobs.cancelReader(session.reader);
+            cardSessions.close(session.reader);
+            saveLearnedProfiles();
+            logText("No card on reader: "+session.reader + "\n");
+            // swapped between two status calls, the old card's removal goes first
+            if (to.hasCard())
+                publishEvent(CardEvent.TYPE_READER_STATE, session, PcscJni.ReaderState.Empty, null,
+                        transition.getTimestampNanos());
+        }
+
+        int reader_state = READER_STATES[to.ordinal()];
+        session.readerState = reader_state;
+        publishEvent(CardEvent.TYPE_READER_STATE, session, reader_state, null, transition.getTimestampNanos());
+        // the transition is stamped with the elapsed realtime getStatus returned at
+        metrics.record(CardMetrics.Phase.READER_EVENT,
+                SystemClock.elapsedRealtimeNanos() - transition.getTimestampNanos());
+        Log.i(LOG_TAG, "Sending card event with DATA = "+reader_state+" for "+session.reader+", "+transition+"\n");
+
+        // the ATR only changes with the card, our own connects leave it alone,
+        // and a mute card has none
+        if (to == ReaderStateMachine.State.MUTE || !to.hasCard()
+                || !(transition.isCardChanged() || from == ReaderStateMachine.State.MUTE))
+            return;
+
+        int[] status = new int[] { PcscJni.Status.Unknown, 0 };
+        long start = System.nanoTime();
+        byte[] atr = PcscJni.getStatusChange(session.context, 0, session.reader, status);
+        metrics.since(CardMetrics.Phase.ATR_FETCH, start);
+        session.atr = atr;
+        if (atr==null) {
+            // pulled again already, the removal is on its way
+            logText("No card on reader: "+session.reader + "\n");
+            return;
+        }
+        logText("Found card on reader: "+session.reader + "\n");
+
+        logText("ATR: " + Hex.encode(atr) + "\n");
+        CardProfile profile = cardProfiles.find(atr);
+        logText("Card: " + Atr.parse(atr) + ", " + (profile != null ? profile.getName() : "unknown model") + "\n");
+        publishEvent(CardEvent.TYPE_CARD_FOUND, session, reader_state, atr, transition.getTimestampNanos());
+        // started once per insertion, the state machine only reports a card once
+        if (session.prefetch == null && !session.kioskQueued) {
+            metrics.cardSeen();
+            if (kiosk != null) {
+                session.kioskQueued = true;
+                kiosk.submit(session.reader);
+            } else {
+                startPrefetch(session);
+            }
+        }
+    }
+
+    /**
+     * Read the containers that need no PIN into the card cache while the user
+     * is still entering the PIN. Runs next to the monitor through the card
+     * session, which the on-demand read then reuses, and is cancelled when
+     * the card is removed.
+     */
+    private void startPrefetch(final ReaderSession session) {
+        PivPrefetcher prefetch = new PivPrefetcher(session.reader, cardSessions, Pkcs15IntentService.cardCache,
+                new PivPrefetcher.Callback() {
+                    @Override
+                    public void onPrefetchDone(String reader, int containers, int bytes) {
+                        logText("Prefetched " + containers + " containers, " + bytes + " bytes on " + reader + "\n");
+                        publishEvent(CardEvent.TYPE_PREFETCHED, session, session.readerState, null);
+                    }
+                });
+        session.prefetch = prefetch;
+        jobs.submit(prefetch);
+    }
+
+    /**
+     * Load the enrolled fingerprint templates, once per process
+     */
+    private void loadGallery() {
+        synchronized (CardService.class) {
+            if (galleryLoaded)
+                return;
+            galleryLoaded = true;
+            File[] files = new File(getFilesDir(), GALLERY_DIR).listFiles();
+            if (files == null || files.length == 0)
+                return;
+            MinutiaeGallery templates = new MinutiaeGallery(Runtime.getRuntime().availableProcessors());
+            for (File file : files) {
                 try {
-                    PcscJni.releaseContext(context);
-                    Log.v(LOG_TAG,"ok\n");
-                } catch (PcscException ex) {
-                    Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
-                    //showErrorAlert(ex.getMessage());
+                    String id = file.getName();
+                    int dot = id.lastIndexOf('.');
+                    templates.add(dot > 0 ? id.substring(0, dot) : id,
+                            MinutiaeTemplate.parse(ByteBuffer.wrap(readFile(file))));
+                } catch (IOException ex) {
+                    Log.e(LOG_TAG, "Cannot read gallery file " + file.getName() + ": " + ex.getMessage());
+                } catch (CardException ex) {
+                    Log.e(LOG_TAG, "Bad template in gallery file " + file.getName() + ": " + ex.getMessage());
                 }
+            }
+            Log.i(LOG_TAG, "Loaded " + templates.size() + " enrolled fingerprint templates");
+            gallery = templates;
+        }
+    }
 
-                context = 0;
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n = 0;
+            while (n < data.length) {
+                int read = in.read(data, n, data.length - n);
+                if (read < 0)
+                    throw new IOException("File shrank while reading");
+                n += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Turn kiosk mode on or off as asked and keep the choice, or as it was
+     * kept if not asked. Reads the settings, so not on the main thread.
+     *
+     * @param requested EXTRA_KIOSK of the start intent, or null if it had none
+     */
+    private synchronized void applyKioskMode(Boolean requested) {
+        Context storage = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ? createDeviceProtectedStorageContext() : this;
+        SharedPreferences preferences = storage.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        boolean on = requested != null ? requested : preferences.getBoolean(PREF_KIOSK, false);
+        if (requested != null)
+            preferences.edit().putBoolean(PREF_KIOSK, on).apply();
+        if (on && kiosk == null) {
+            Log.i(LOG_TAG, "Kiosk mode on");
+            startKiosk();
+        } else if (!on && kiosk != null) {
+            Log.i(LOG_TAG, "Kiosk mode off");
+            kiosk.shutdown();
+            kiosk = null;
+        }
+    }
+
+    /**
+     * @return true if inserted cards are read and checked by the service
+     *          without a PIN instead of waiting for a request
+     */
+    public boolean isKioskMode() {
+        return kiosk != null;
+    }
+
+    /**
+     * Start the kiosk pipeline. Cards found from now on are read and checked
+     * by it instead of being prefetched.
+     */
+    private void startKiosk() {
+        KioskReader stages = new KioskReader(cardSessions, Pkcs15IntentService.cardCache, metrics,
+                new KioskReader.Callback() {
+                    @Override
+                    public void onCardChecked(String reader, String summary) {
+                        logText(summary);
+                        ReaderSession session = sessions.get(reader);
+                        publishEvent(CardEvent.TYPE_CARD_CHECKED, reader, session,
+                                session != null ? session.readerState : PcscJni.ReaderState.Unknown, null, summary,
+                                SystemClock.elapsedRealtimeNanos());
+                    }
+                });
+        CardPipeline<KioskReader.Card, String> pipeline = new CardPipeline<>("Kiosk", stages,
+                CardVerifier.DEFAULT_PARALLELISM, CardPipeline.DEFAULT_CAPACITY);
+        pipeline.setListener(new CardPipeline.Listener<String>() {
+            @Override
+            public void onPublishFailed(CardPipeline.Outcome<String> outcome, RuntimeException ex) {
+                Log.e(LOG_TAG, "Kiosk result for " + outcome.getReader() + " not published", ex);
+            }
+        });
+        kiosk = pipeline;
+    }
+
+    /**
+     * Register for card events. The last event of each reader is replayed
+     * first so a new listener starts with the current state.
+     *
+     * @param listener listener to call
+     * @param handler handler to call it on, or null for the main thread
+     */
+    public void registerListener(CardEventListener listener, Handler handler) {
+        if (handler == null)
+            handler = new Handler(Looper.getMainLooper());
+        ListenerRecord record = new ListenerRecord(listener, handler);
+        synchronized (listeners) {
+            listeners.add(record);
+            List<CardEvent> replay = new ArrayList<>();
+            for (ReaderSession session : sessions.values()) {
+                if (session.lastEvent != null)
+                    replay.add(session.lastEvent);
+                if (session.lastCardEvent != null)
+                    replay.add(session.lastCardEvent);
+            }
+            // keep sequence order across readers
+            Collections.sort(replay, new Comparator<CardEvent>() {
+                @Override
+                public int compare(CardEvent a, CardEvent b) {
+                    return Long.compare(a.getSequence(), b.getSequence());
+                }
+            });
+            for (CardEvent event : replay)
+                post(record, event);
+        }
+    }
 
+    public void unregisterListener(CardEventListener listener) {
+        synchronized (listeners) {
+            for (int i = listeners.size() - 1; i >= 0; i--) {
+                ListenerRecord record = listeners.get(i);
+                if (record.listener == listener) {
+                    record.active = false;
+                    listeners.remove(i);
+                }
+            }
+        }
+    }
 
+    /**
+     * Number and post an event to every listener. Numbering and posting
+     * happen under one lock so every listener gets events in sequence order
+     * even when several reader workers publish at once.
+     */
+    private void publishEvent(int type, ReaderSession session, int readerState, byte[] atr) {
+        publishEvent(type, session, readerState, atr, SystemClock.elapsedRealtimeNanos());
+    }
 
+    private void publishEvent(int type, ReaderSession session, int readerState, byte[] atr, long timestampNanos) {
+        publishEvent(type, session.reader, session, readerState, atr, null, timestampNanos);
+    }
 
+    private void publishEvent(int type, String reader, ReaderSession session, int readerState, byte[] atr,
+                              String summary, long timestampNanos) {
+        CardEvent event;
+        synchronized (listeners) {
+            event = new CardEvent(type, ++eventSequence, reader, readerState, atr, timestampNanos,
+                    session != null ? session.eventCount : -1, summary);
+            if (type == CardEvent.TYPE_CARD_FOUND) {
+                session.lastCardEvent = event;
+            } else if (type == CardEvent.TYPE_READER_STATE) {
+                session.lastEvent = event;
+                // the card is still the one found while only the way it is used changes
+                if (readerState != PcscJni.ReaderState.Inuse && readerState != PcscJni.ReaderState.Exclusive
+                        && readerState != PcscJni.ReaderState.Present)
+                    session.lastCardEvent = null;
+            }
+            for (ListenerRecord record : listeners)
+                post(record, event);
+        }
+        if (broadcastBridge && (type == CardEvent.TYPE_CARD_FOUND || type == CardEvent.TYPE_READER_STATE))
+            sendLegacyBroadcast(event);
+    }
 
+    private static void post(final ListenerRecord record, final CardEvent event) {
+        record.handler.post(new Runnable() {
+            public void run() {
+                if (record.active)
+                    record.listener.onCardEvent(event);
             }
-        }).start();
-        return START_REDELIVER_INTENT;
+        });
+    }
+
+    /**
+     * Publish an event the old way for consumers that still listen for broadcasts
+     */
+    private void sendLegacyBroadcast(CardEvent event) {
+        Intent intent;
+        if (event.getType() == CardEvent.TYPE_CARD_FOUND) {
+            intent = new Intent(MainActivity.mBroadcastStringAction);
+            intent.putExtra("Data", "Card Found");
+        } else {
+            intent = new Intent(MainActivity.mBroadcastIntegerAction);
+            intent.putExtra("Data", event.getReaderState());
+        }
+        intent.putExtra(EXTRA_READER, event.getReader());
+        intent.putExtra(EXTRA_TIMESTAMP, event.getTimestampNanos());
+        sendBroadcast(intent);
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        // won't be called as service is not bound
-        // TODO: Return the communication channel to the service.
-        throw new UnsupportedOperationException("Not yet implemented");
+        Log.i(LOG_TAG, "In onBind");
+        return binder;
     }
     @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
     @Override
@@ -296,5 +1096,38 @@ public class CardService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Log.i(LOG_TAG, "In onDestroy");
+
+        // wake up the monitors blocked in getStatus so they can exit
+        stopThread = true;
+        try {
+            if (context != 0)
+                PcscJni.cancel(context);
+        } catch (PcscException ex) {
+            Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+        }
+        final List<String> readers = new ArrayList<>();
+        for (ReaderSession session : sessions.values()) {
+            session.cancelPrefetch();
+            jobs.cancelReader(session.reader);
+            readers.add(session.reader);
+            try {
+                if (session.context != 0)
+                    PcscJni.cancel(session.context);
+            } catch (PcscException ex) {
+                Log.v(LOG_TAG,"PcscException: " + ex.getMessage() + "\n");
+            }
+        }
+        // closing waits for the cancelled reads to stop and disconnects, not on the main thread
+        readerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String reader : readers)
+                    cardSessions.close(reader);
+            }
+        });
+        readerExecutor.shutdown();
+        CardPipeline<KioskReader.Card, String> pipeline = kiosk;
+        if (pipeline != null)
+            pipeline.shutdown();
     }
 }
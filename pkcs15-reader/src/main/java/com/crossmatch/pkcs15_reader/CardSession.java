@@ -0,0 +1,295 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.util.Log;
+
+import com.crossmatch.pkcs15_engine.Apdu;
+import com.crossmatch.pkcs15_engine.ApduProfiles;
+import com.crossmatch.pkcs15_engine.BufferPool;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardIdentity;
+import com.crossmatch.pkcs15_engine.Pkcs15Index;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.ReadPlan;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscException;
+import org.simalliance.openmobileapi.service.pcsc.PcscJni;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One PC/SC connection to the card in a reader, kept open from insertion to
+ * removal so that reads do not pay for connect, ATR/PPS and SELECT every time.
+ * <p>
+ *     Reads are grouped between {@link #begin(Object)} and {@link #end()}, which
+ *     hold the session lock and a PC/SC transaction. The selected applet, the
+ *     card identity and the object index carry over from one group to the
+ *     next. The PIN status does not: a group that brings no PIN resets it on
+ *     the card when it ends, so protected data always needs the PIN of the
+ *     request asking for it.
+ *     If another application resets the card in between, beginTransaction
+ *     reports it, the connection is re-established with reconnect and the card
+ *     state is forgotten. The session closes itself once the card is gone.
+ * <p>
+ *     Like the CardService reader monitors, each session has its own PCSC
+ *     context so reads on different readers do not serialize on one context.
+ */
+class CardSession {
+    private static final String LOG_TAG = "CardSession";
+
+    final String reader;
+    private final long context;
+    private final PcscCardTransport transport;
+    private final PivCardReader piv;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private CardIdentity identity = null;
+    private Pkcs15Index index = null;
+    // a PIN was verified in the running group
+    private boolean pinInGroup = false;
+    private boolean disconnected = false;
+
+    private volatile boolean closed = false;
+    // owner of the running group, for cancel(); guarded by cancelLock
+    private final Object cancelLock = new Object();
+    private Object owner = null;
+
+    private CardSession(String reader, long context, PcscCardTransport transport, ApduProfiles profiles) {
+        this.reader = reader;
+        this.context = context;
+        this.transport = transport;
+        this.piv = new PivCardReader(transport, new BufferPool(), profiles);
+    }
+
+    /**
+     * Connect to the card in the reader
+     *
+     * @param profiles APDU profiles learned from earlier cards
+     * @throws PcscException if there is no card or the connect fails
+     */
+    static CardSession open(String reader, ApduProfiles profiles) throws PcscException {
+        long context = PcscJni.establishContext(PcscJni.Scope.User);
+        try {
+            return new CardSession(reader, context, PcscCardTransport.connect(context, reader), profiles);
+        } catch (PcscException ex) {
+            PcscJni.releaseContext(context);
+            throw ex;
+        }
+    }
+
+    /**
+     * Start a group of reads. Must be followed by {@link #end()} in a finally block.
+     *
+     * @param owner identifies the caller for {@link #cancel(Object)}
+     * @return reader with the state left by the previous group
+     * @throws CardException if the session is closed or the transaction fails
+     */
+    PivCardReader begin(Object owner) throws CardException {
+        lock.lock();
+        try {
+            if (closed)
+                throw new CardException("Card session on " + reader + " is closed");
+            synchronized (cancelLock) {
+                this.owner = owner;
+            }
+            transport.beginTransaction();
+            pinInGroup = false;
+        } catch (CardException ex) {
+            finish();
+            throw ex;
+        }
+        if (transport.takeReset()) {
+            Log.v(LOG_TAG, "Card on " + reader + " was reset, selecting again");
+            forgetState();
+        }
+        return piv;
+    }
+
+    /**
+     * End the group started by {@link #begin(Object)}, leaving the card as it is
+     */
+    void end() throws CardException {
+        try {
+            if (!pinInGroup && piv.isPinVerified())
+                resetPin();
+        } finally {
+            try {
+                transport.endTransaction();
+            } finally {
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Drop the PIN status on the card. A card without the VERIFY reset is
+     * selected again at the next group instead.
+     */
+    private void resetPin() {
+        try {
+            if (!piv.resetPin())
+                piv.forgetState();
+        } catch (CardException ex) {
+            Log.v(LOG_TAG, "PIN reset on " + reader + " failed: " + ex.getMessage());
+            piv.forgetState();
+        }
+    }
+
+    private void finish() {
+        synchronized (cancelLock) {
+            owner = null;
+            transport.clearCancel();
+        }
+        try {
+            if (transport.isCardGone())
+                close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the running group at its next APDU if it was started by owner,
+     * and cancel any blocking PCSC call on the session context
+     */
+    void cancel(Object owner) {
+        synchronized (cancelLock) {
+            if (this.owner != owner)
+                return;
+            transport.cancel();
+        }
+        try {
+            PcscJni.cancel(context);
+        } catch (PcscException ex) {
+            Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+        }
+    }
+
+    byte[] getAtr() {
+        return transport.getAtr();
+    }
+
+    /**
+     * @return read plan of the card model, or null if it is not known yet
+     */
+    ReadPlan getPlan() {
+        return CardService.cardProfiles.findPlan(transport.getAtr());
+    }
+
+    /**
+     * Read a container inside a group and record what the read found, so a
+     * card model without a configured profile gets a learned plan and the
+     * object index has the size, or loses an object the card does not have
+     */
+    byte[] readContainer(PivContainer container) throws CardException {
+        try {
+            byte[] data = piv.readContainer(container);
+            CardService.cardProfiles.learn(transport.getAtr(), transport.getProtocol(), container, data.length, 0);
+            if (index != null)
+                index.setSize(container.getPath(), data.length);
+            return data;
+        } catch (CardException ex) {
+            CardService.cardProfiles.learn(transport.getAtr(), transport.getProtocol(), container,
+                    ReadPlan.SIZE_UNKNOWN, ex.getStatusWord());
+            if (index != null && ex.getStatusWord() == Apdu.SW_FILE_NOT_FOUND)
+                index.remove(container.getPath());
+            else if (index != null && ex.getStatusWord() == Apdu.SW_SECURITY_NOT_SATISFIED)
+                index.confirm(container.getPath());
+            throw ex;
+        }
+    }
+
+    /**
+     * Data objects of the card, inside a group. Taken from the card cache if
+     * the card was indexed before, otherwise built from the read plan of the
+     * card model, and kept until the card is removed or reset.
+     */
+    Pkcs15Index getIndex() {
+        if (index == null) {
+            index = Pkcs15IntentService.cardCache.getIndex(identity);
+            if (index == null) {
+                index = Pkcs15Index.forPiv(getPlan());
+                Pkcs15IntentService.cardCache.putIndex(identity, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return identity validated earlier in this session, or null
+     */
+    CardIdentity getIdentity() {
+        return identity;
+    }
+
+    void setIdentity(CardIdentity identity) {
+        this.identity = identity;
+        if (identity == null)
+            return;
+        Pkcs15Index cached = Pkcs15IntentService.cardCache.getIndex(identity);
+        if (cached != null)
+            index = cached;
+        else if (index != null)
+            Pkcs15IntentService.cardCache.putIndex(identity, index);
+    }
+
+    /**
+     * Verify the PIN for this group. It is always sent to the card, nothing of
+     * it is kept here, and a wrong PIN fails and clears the security status.
+     */
+    void verifyPin(String pin) throws CardException {
+        pinInGroup = false;
+        piv.verifyPin(pin);
+        pinInGroup = true;
+    }
+
+    /**
+     * @return true if the PIN of the running group is verified, whatever
+     *          an earlier group left on the card
+     */
+    boolean isPinVerified() {
+        return pinInGroup && piv.isPinVerified();
+    }
+
+    private void forgetState() {
+        piv.forgetState();
+        identity = null;
+        index = null;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Disconnect without resetting the card. Waits for a running group, which
+     * is cancelled first.
+     */
+    void close() {
+        closed = true;
+        transport.cancel();
+        lock.lock();
+        try {
+            if (disconnected)
+                return;
+            disconnected = true;
+            forgetState();
+            try {
+                transport.disconnect(PcscJni.Disposition.Leave);
+            } catch (PcscException ex) {
+                Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+            }
+            try {
+                PcscJni.releaseContext(context);
+            } catch (PcscException ex) {
+                Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import com.crossmatch.pkcs15_engine.ApduProfiles;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one {@link CardSession} per reader for as long as the card stays in
+ * it. CardService closes the session when the card is removed; everyone who
+ * reads the card opens it here instead of connecting on their own.
+ * <p>
+ *     The APDU profiles learned by the sessions outlive them, so the next
+ *     card of a known model goes straight to extended or short APDUs.
+ */
+class CardSessionManager {
+    private final Map<String, CardSession> sessions = new HashMap<>();
+    private final ApduProfiles profiles = new ApduProfiles();
+
+    /**
+     * @return the open session for the card in the reader, connecting if there is none
+     * @throws PcscException if there is no card or the connect fails
+     */
+    synchronized CardSession open(String reader) throws PcscException {
+        CardSession session = sessions.get(reader);
+        if (session != null && !session.isClosed())
+            return session;
+        session = CardSession.open(reader, profiles);
+        sessions.put(reader, session);
+        return session;
+    }
+
+    /**
+     * Close the session of a reader, e.g. when its card was removed
+     */
+    void close(String reader) {
+        CardSession session;
+        synchronized (this) {
+            session = sessions.remove(reader);
+        }
+        // outside the manager lock, close waits for a running read to stop
+        if (session != null)
+            session.close();
+    }
+
+    void closeAll() {
+        List<CardSession> all;
+        synchronized (this) {
+            all = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        for (CardSession session : all)
+            session.close();
+    }
+}
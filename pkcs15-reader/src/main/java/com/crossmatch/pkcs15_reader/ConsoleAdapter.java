@@ -0,0 +1,67 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.crossmatch.pkcs15_engine.ConsoleLog;
+
+/**
+ * Shows a {@link ConsoleLog} in a ListView, one row per line. The ListView
+ * only creates and binds the rows on screen and recycles them while
+ * scrolling, so the cost of an update does not grow with the log.
+ */
+class ConsoleAdapter extends BaseAdapter {
+    private final ConsoleLog log;
+    private final LayoutInflater inflater;
+
+    ConsoleAdapter(ConsoleLog log, LayoutInflater inflater) {
+        this.log = log;
+        this.inflater = inflater;
+    }
+
+    /**
+     * Add text to the log and refresh the visible rows. UI thread only.
+     */
+    void append(CharSequence text) {
+        log.append(text);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Empty the log. UI thread only.
+     */
+    void clear() {
+        log.clear();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return log.getLineCount();
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return log.getLine(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView line = (TextView) convertView;
+        if (line == null)
+            line = (TextView) inflater.inflate(R.layout.console_line, parent, false);
+        line.setText(log.getLine(position));
+        return line;
+    }
+}
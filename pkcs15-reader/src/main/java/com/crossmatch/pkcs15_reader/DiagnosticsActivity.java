@@ -0,0 +1,47 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.widget.TextView;
+
+/**
+ * Shows the card pipeline latency histograms and failure counters,
+ * refreshed once a second while visible.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+    private static final long REFRESH_MS = 1000;
+
+    private TextView tvDiagnostics;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            tvDiagnostics.setText(CardService.metrics.dump());
+            mHandler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        tvDiagnostics = findViewById(R.id.diagnostics_text);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.util.Log;
+
+import com.crossmatch.pkcs15_engine.CardCache;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardIdentity;
+import com.crossmatch.pkcs15_engine.CardMetrics;
+import com.crossmatch.pkcs15_engine.CardPipeline;
+import com.crossmatch.pkcs15_engine.CardVerifier;
+import com.crossmatch.pkcs15_engine.Chuid;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.ReadPlan;
+import com.crossmatch.pkcs15_engine.RevocationIndex;
+import com.crossmatch.pkcs15_engine.RevocationStore;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The stages of kiosk mode, where cards follow each other into the readers
+ * and nobody enters a PIN: the public containers are read on the reader's
+ * pipeline thread, then checked against the revocation list and the trust
+ * store on a worker while the next card is read, then reported in order.
+ */
+class KioskReader implements CardPipeline.Stages<KioskReader.Card, String> {
+    private static final String LOG_TAG = "KioskReader";
+
+    interface Callback {
+        /**
+         * @param summary lines describing the card and its checks
+         */
+        void onCardChecked(String reader, String summary);
+    }
+
+    /** what was read off one card */
+    static final class Card {
+        final String reader;
+        final CardIdentity identity;
+        final Map<PivContainer, byte[]> containers = new EnumMap<>(PivContainer.class);
+
+        Card(String reader, CardIdentity identity) {
+            this.reader = reader;
+            this.identity = identity;
+        }
+    }
+
+    private final CardSessionManager sessions;
+    private final CardCache cache;
+    private final CardMetrics metrics;
+    private final Callback callback;
+
+    KioskReader(CardSessionManager sessions, CardCache cache, CardMetrics metrics, Callback callback) {
+        this.sessions = sessions;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.callback = callback;
+    }
+
+    @Override
+    public Card read(String reader) throws Exception {
+        long start = System.nanoTime();
+        CardSession session = sessions.open(reader);
+        session.begin(this);
+        try {
+            CardIdentity identity = session.getIdentity();
+            if (identity == null) {
+                identity = cache.validate(session.getAtr(), session.readContainer(PivContainer.CHUID));
+                session.setIdentity(identity);
+            }
+            Card card = new Card(reader, identity);
+            ReadPlan plan = session.getPlan();
+            List<PivContainer> toRead = plan != null && plan.isComplete()
+                    ? plan.getContainers(false) : Arrays.asList(PivPrefetcher.PUBLIC_CONTAINERS);
+            for (PivContainer container : toRead) {
+                if (plan != null && plan.isAbsent(container))
+                    continue;
+                byte[] data = cache.get(identity, container);
+                if (data == null) {
+                    try {
+                        data = session.readContainer(container);
+                    } catch (CardException ex) {
+                        if (ex.getStatusWord() == CardException.NO_STATUS)
+                            throw ex;
+                        continue;
+                    }
+                    cache.put(identity, container, data);
+                }
+                card.containers.put(container, data);
+            }
+            return card;
+        } finally {
+            session.end();
+            metrics.since(CardMetrics.Phase.CARD_READ, start);
+        }
+    }
+
+    @Override
+    public String process(Card card) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        byte[] chuid = card.containers.get(PivContainer.CHUID);
+        String fascn = chuid == null ? null : Chuid.parse(chuid).getFascnString();
+        sb.append("Card ").append(fascn != null ? fascn : "without FASC-N").append(" on ").append(card.reader)
+                .append('\n');
+
+        RevocationStore revocation = CardService.revocation;
+        RevocationIndex revoked = revocation == null ? null : revocation.get();
+        if (revoked != null && card.identity != null && revoked.isRevoked(card.identity))
+            sb.append("REVOKED: this card's FASC-N or GUID is on the revocation list\n");
+
+        CardVerifier verifier = CardService.verifier;
+        if (verifier != null) {
+            CardVerifier.Session checks = verifier.newSession();
+            for (Map.Entry<PivContainer, byte[]> entry : card.containers.entrySet())
+                checks.submit(entry.getKey(), entry.getValue());
+            for (CardVerifier.Result result : checks.getResults())
+                sb.append(result).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void publish(CardPipeline.Outcome<String> outcome) {
+        String summary;
+        if (outcome.getError() != null) {
+            Log.v(LOG_TAG, "Card on " + outcome.getReader() + " failed: " + outcome.getError().getMessage());
+            summary = "Card on " + outcome.getReader() + " not read: " + outcome.getError().getMessage() + "\n";
+        } else {
+            summary = outcome.getResult() + String.format(Locale.US, "(read %.0f ms, checked %.0f ms, total %.0f ms)\n",
+                    outcome.getReadNanos() / 1e6, outcome.getProcessNanos() / 1e6, outcome.getTotalNanos() / 1e6);
+        }
+        callback.onCardChecked(outcome.getReader(), summary);
+    }
+}
@@ -10,6 +10,12 @@
  *
  * The pkcs15-tool is invoked using Androids ProcessBuilder.
  *
+ * The PIV containers can also be read in-process through the pkcs15-engine
+ * module, which talks to the card directly using PcscJni. This avoids
+ * starting a new pkcs15-tool process, re-selecting the applet and
+ * re-verifying the PIN for every read. Set USE_PKCS15_TOOL to go back to
+ * the pkcs15-tool commands.
+ *
  * As long as the smartcard you are trying to read is PKCS#15 compliant,
  * such as a Javacard, CAC Card, TWIC card, etc. It should be able to
  * read the containers on the card directly.
@@ -53,6 +59,10 @@
  *
  * NOTE: you must create the output file into a place your application can write to.
  *
+ * The in-process engine does the same for large containers such as the facial
+ * image: the raw bytes are written to a file in the app cache and passed back as
+ * a file descriptor, which is mapped here rather than sent as hex text.
+ *
  * This same command can be used in the program.
  * Keep in mind that card reading operations can take some time so this should be done
  * in a background thread and the results sent back to the main thread
@@ -77,12 +87,17 @@ package com.crossmatch.pkcs15_reader;
 
 import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Build;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AlertDialog;
@@ -92,11 +107,25 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.crossmatch.pkcs15_engine.CardMetrics;
+import com.crossmatch.pkcs15_engine.ConsoleLog;
+import com.crossmatch.pkcs15_engine.ContainerFile;
+import com.crossmatch.pkcs15_engine.DataObjectRecord;
+import com.crossmatch.pkcs15_engine.Hex;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.Pkcs15ToolOutputParser;
+
 import org.simalliance.openmobileapi.service.pcsc.PcscJni;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
 
 public class MainActivity extends AppCompatActivity {
     private String LOG_TAG = null;
@@ -105,17 +134,37 @@ public class MainActivity extends AppCompatActivity {
     public static final String mBroadcastIntegerAction = "com.crossmatch.broadcast.integer";
     public static final String mBroadcastArrayListAction = "com.crossmatch.broadcast.arraylist";
     public static final String mBroadcastCardEvent = "com.crossmatch.cardservice.CARD_EVENT";
+
+    // read with the pkcs15-tool command line program instead of the in-process engine
+    private static final boolean USE_PKCS15_TOOL = false;
+    // bytes of a large container shown in the console, the rest stays in the file
+    private static final int CONTENTS_SHOWN = 256;
+
     private IntentFilter mIntentFilter;
     public Pkcs15Receiver pkcs15Receiver;
+    // parses pkcs15-tool output as it streams in, null when no command is running
+    Pkcs15ToolOutputParser mToolParser = null;
     PkcsSpinnerDialog pkcsSpinner = new PkcsSpinnerDialog();
 
-    TextView tvConsole;
+    // console lines, bounded, shown by a ListView that only draws the visible ones
+    ConsoleAdapter mConsole;
     TextView tvCardStatus;
     EditText mPin;
     Handler mHandler;
     AlertDialog alertDialog = null;
     Button mDumpButton;
     Button mFingersButton;
+    // reader of the last card found, card reads go to this reader
+    String mCardReader = null;
+    CardService mCardService = null;
+    // sequence of the last card event handled, replayed events are skipped
+    long mLastEventSequence = 0;
+    // service instance the sequence belongs to, a recreated service counts from 1 again
+    int mServiceInstance = 0;
+    // System.nanoTime() at onCreate until the first card event arrives, then 0
+    long mLaunchNanos = 0;
+    // true if the card service was already running when the app was opened
+    boolean mServiceWarm = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -124,11 +173,14 @@ public class MainActivity extends AppCompatActivity {
 
         LOG_TAG = this.getClass().getSimpleName();
         Log.i(LOG_TAG, "In onCreate");
+        mLaunchNanos = System.nanoTime();
 
         mHandler = new Handler();
 
         // Setup UI
-        tvConsole = findViewById(R.id.console);
+        mConsole = new ConsoleAdapter(new ConsoleLog(), getLayoutInflater());
+        ListView console = findViewById(R.id.console);
+        console.setAdapter(mConsole);
         tvCardStatus = findViewById(R.id.tvCardStatus);
         mDumpButton = findViewById(R.id.btn_display);
         mDumpButton.setEnabled(false);
@@ -146,13 +198,16 @@ public class MainActivity extends AppCompatActivity {
         setupServiceReceiver();
 
         // check if the card service is running and start it if not
-        if (isMyServiceRunning(CardService.class)) {
+        mServiceWarm = isMyServiceRunning(CardService.class);
+        if (mServiceWarm) {
             Log.i(LOG_TAG, "Service is already running");
-            tvConsole.setText("Service is running\n");
+            mConsole.clear();
+            mConsole.append("Service is running\n");
         } else {
             Log.i(LOG_TAG, "Service is not running we need to start it");
-            tvConsole.setText("Service is not running so start it\n");
-            // This starts the service when app launches --> moved to start on power up
+            mConsole.clear();
+            mConsole.append("Service is not running so start it\n");
+            // normally started at boot by BootReceiver, this is the cold start
             Intent serviceIntent = new Intent(this, CardService.class);
             startService(serviceIntent);
         }
@@ -188,7 +243,8 @@ public class MainActivity extends AppCompatActivity {
 
         }
 
-        tvConsole.setText("Waiting for card...\n");
+        mConsole.clear();
+        mConsole.append("Waiting for card...\n");
 
     }
 
@@ -203,16 +259,22 @@ public class MainActivity extends AppCompatActivity {
         /* build up command string to pass to pkcs15 service to run*/
 
         // dump everything
-        tvConsole.setText("");   // clear console
-        tvConsole.append("Dumping All:\n");
+        mConsole.clear();
+        mConsole.append("Dumping All:\n");
+
+        if (!USE_PKCS15_TOOL) {
+            // every container the card's read plan lists, or all of them for an unknown card
+            RunPivRead(null);
+            return;
+        }
         String cmd = "pkcs15-tool --dump --pin "+ mPin.getText();
 
         // dump CHUID (doesn't need PIN)
-        //tvConsole.append("Dumping CHUID:\n");
+        //mConsole.append("Dumping CHUID:\n");
         //String cmd = "pkcs15-tool --read-data-object 2.16.840.1.101.3.7.2.48.0 ";
 
         // dump fingerprint container (needs PIN)
-        //tvConsole.append("Dumping Fingerprint Container:\n");
+        //mConsole.append("Dumping Fingerprint Container:\n");
         //String cmd = "pkcs15-tool  --read-data-object 2.16.840.1.101.3.7.2.96.16 --verify-pin --pin "+ mPin.getText();
 
         RunPkcs15Command(cmd);
@@ -228,19 +290,50 @@ public class MainActivity extends AppCompatActivity {
 
         /* build up command string to pass to pkcs15 service to run*/
         // dump fingerprint container (needs PIN)
-        tvConsole.setText("");   // clear console
-        tvConsole.append("Dumping Fingerprint Container:\n");
+        mConsole.clear();
+        mConsole.append("Dumping Fingerprint Container:\n");
+
+        if (!USE_PKCS15_TOOL) {
+            RunPivRead(new String[] { PivContainer.FINGERPRINTS.getOid() });
+            return;
+        }
         String cmd = "pkcs15-tool  --read-data-object 2.16.840.1.101.3.7.2.96.16 --verify-pin --pin "+ mPin.getText();
         RunPkcs15Command(cmd);
     }
 
+    /**
+     * Called when the user selects the Diagnostics button
+     *
+     * @param view
+     */
+    public void ShowDiagnostics(View view) {
+        startActivity(new Intent(this, DiagnosticsActivity.class));
+    }
+
+    private void RunPivRead(String[] containers) {
+        // setup a progress dialog spinner
+        FragmentManager fm = getSupportFragmentManager();
+        pkcsSpinner.show(fm, "some_tag");
+
+        Log.v(LOG_TAG, "Reading PIV containers: " + (containers == null ? "read plan" : Arrays.asList(containers)));
+        mToolParser = null;
+        Pkcs15IntentService.startActionReadPiv(getApplicationContext(), pkcs15Receiver, mCardReader,
+                containers, mPin.getText().toString());
+    }
+
     private void RunPkcs15Command(String cmd) {
         // setup a progress dialog spinner
         FragmentManager fm = getSupportFragmentManager();
         pkcsSpinner.show(fm, "some_tag");
 
         Log.v(LOG_TAG, "Running pkcs15-tool command: " + cmd);
-        Pkcs15IntentService.startActionRunCmd(getApplicationContext(), pkcs15Receiver, cmd, "bar");
+        mToolParser = new Pkcs15ToolOutputParser(new Pkcs15ToolOutputParser.Listener() {
+            @Override
+            public void onDataObject(DataObjectRecord record) {
+                Log.v(LOG_TAG, "Data object: " + record);
+            }
+        });
+        Pkcs15IntentService.startActionStreamCmd(getApplicationContext(), pkcs15Receiver, cmd, "bar");
     }
 
     /**
@@ -253,16 +346,71 @@ public class MainActivity extends AppCompatActivity {
         pkcs15Receiver.setReceiver(new Pkcs15Receiver.Receiver() {
             @Override
             public void onReceiveResult(int resultCode, Bundle resultData) {
-                pkcsSpinner.dismiss();
                 if (resultCode == RESULT_OK) {
-                    String resultValue = resultData.getString("resultValue");
-                    tvConsole.append("Got result: "+resultValue+"\n");
+                    pkcsSpinner.dismiss();
+                    String resultValue = resultData.getString(Pkcs15IntentService.RESULT_VALUE);
+                    mConsole.append("Got result: "+resultValue+"\n");
+                } else if (resultCode == Pkcs15IntentService.RESULT_CHUNK) {
+                    // show output as it arrives, the spinner only covers the wait for the first chunk
+                    if (resultData.getInt(Pkcs15IntentService.RESULT_SEQUENCE) == 0) {
+                        pkcsSpinner.dismiss();
+                        mConsole.append("Got result: ");
+                    }
+                    String chunk = resultData.getString(Pkcs15IntentService.RESULT_VALUE);
+                    mConsole.append(chunk);
+                    if (mToolParser != null) {
+                        long start = System.nanoTime();
+                        mToolParser.feed(chunk);
+                        CardService.metrics.since(CardMetrics.Phase.PARSE, start);
+                    }
+                } else if (resultCode == Pkcs15IntentService.RESULT_BINARY) {
+                    if (resultData.getInt(Pkcs15IntentService.RESULT_SEQUENCE) == 0) {
+                        pkcsSpinner.dismiss();
+                        mConsole.append("Got result: ");
+                    }
+                    mConsole.append(resultData.getString(Pkcs15IntentService.RESULT_VALUE));
+                    ParcelFileDescriptor fd = resultData.getParcelable(Pkcs15IntentService.RESULT_FD);
+                    mConsole.append(describeContents(fd));
+                } else if (resultCode == Pkcs15IntentService.RESULT_COMPLETE) {
+                    if (resultData.getInt(Pkcs15IntentService.RESULT_SEQUENCE) == 0)
+                        pkcsSpinner.dismiss();
+                    int exitCode = resultData.getInt(Pkcs15IntentService.RESULT_EXIT_CODE);
+                    if (mToolParser != null) {
+                        mToolParser.finish();
+                        mToolParser = null;
+                    }
+                    mConsole.append("\nDone, exit code " + exitCode + "\n");
                 }
             }
         });
 
     }
 
+    /**
+     * Map the raw container contents passed as a descriptor and show the
+     * start of them. The contents stay in the mapping, off the Java heap.
+     */
+    private String describeContents(ParcelFileDescriptor fd) {
+        if (fd == null)
+            return "Contents not received\n";
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+        try {
+            MappedByteBuffer contents = ContainerFile.map(in.getChannel());
+            byte[] head = new byte[Math.min(CONTENTS_SHOWN, contents.remaining())];
+            contents.get(head);
+            return Hex.dump(head) + "... " + contents.capacity() + " bytes mapped\n";
+        } catch (IOException ex) {
+            Log.v(LOG_TAG, "IOException: " + ex.getMessage());
+            return "Contents not readable: " + ex.getMessage() + "\n";
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                Log.v(LOG_TAG, "IOException: " + ex.getMessage());
+            }
+        }
+    }
+
     private boolean isMyServiceRunning(Class<?> serviceClass) {
         ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
         for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
@@ -292,7 +440,7 @@ public class MainActivity extends AppCompatActivity {
                 public void onClick(View view) {
                     if(!mPin.getText().toString().isEmpty()) {
                         Log.v(LOG_TAG, "Accepted user PIN = " + mPin.getText());
-                        tvConsole.append("New card PIN: "+ mPin.getText()+ "\n");
+                        mConsole.append("New card PIN: "+ mPin.getText()+ "\n");
                         mDumpButton.setEnabled(true);
                         mFingersButton.setEnabled(true);
                     } else {
@@ -309,51 +457,126 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Card events delivered directly by the bound CardService
+     */
+    private final CardEventListener mCardEventListener = new CardEventListener() {
+        @Override
+        public void onCardEvent(CardEvent event) {
+            if (event.getSequence() <= mLastEventSequence)
+                return;
+            mLastEventSequence = event.getSequence();
+            logEventLatency(event.getSequence(), event.getTimestampNanos());
+            logFirstEvent();
+            mConsole.append("Event From Service: \n");
+            if (event.getType() == CardEvent.TYPE_CARD_FOUND)
+                onCardFound(event.getReader(), "Card Found");
+            else if (event.getType() == CardEvent.TYPE_PREFETCHED)
+                mConsole.append("Public containers prefetched on " + event.getReader() + "\n");
+            else if (event.getType() == CardEvent.TYPE_CARD_CHECKED)
+                mConsole.append(event.getSummary());
+            else
+                onReaderState(event.getReader(), event.getReaderState());
+        }
+    };
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.i(LOG_TAG, "Bound to CardService");
+            CardService.LocalBinder binder = (CardService.LocalBinder) service;
+            if (binder.getInstanceId() != mServiceInstance) {
+                mServiceInstance = binder.getInstanceId();
+                mLastEventSequence = 0;
+            }
+            mCardService = binder.getService();
+            mCardService.registerListener(mCardEventListener, mHandler);
+            if (CardService.startError != null)
+                mConsole.append(CardService.startError + "\n");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            Log.i(LOG_TAG, "CardService disconnected");
+            mCardService = null;
+        }
+    };
+
+    private void onCardFound(String reader, String status) {
+        mConsole.append(status + "\n\n");
+        mCardReader = reader;
+        tvCardStatus.setText(getString(R.string.card_insert_txt));
+        // in kiosk mode the service reads the card by itself, without a PIN
+        if (mCardService == null || !mCardService.isKioskMode())
+            launchPinEntry();
+    }
+
+    private void onReaderState(String reader, int reader_state) {
+        mConsole.append(reader_state + "\n\n");
+        // a card pulled from another slot does not affect the card we are working with
+        if (reader_state == PcscJni.ReaderState.Empty
+                && (mCardReader == null || mCardReader.equals(reader))) {
+            mCardReader = null;
+            tvCardStatus.setText(getString(R.string.card_empty_txt));
+            mDumpButton.setEnabled(false);
+            mFingersButton.setEnabled(false);
+            if (alertDialog != null)
+                alertDialog.dismiss();
+        }
+    }
+
+    /* time from the service seeing a card event to the UI handling it */
+    private void logEventLatency(long sequence, long timestampNanos) {
+        if (timestampNanos == 0)
+            return;
+        long latencyUs = (SystemClock.elapsedRealtimeNanos() - timestampNanos) / 1000;
+        Log.v(LOG_TAG, "Card event " + sequence + " delivered in " + latencyUs + " us");
+    }
+
+    /* time from the app being opened to the first card event, the reader state replayed by a warm service */
+    private void logFirstEvent() {
+        if (mLaunchNanos == 0)
+            return;
+        long elapsed = System.nanoTime() - mLaunchNanos;
+        mLaunchNanos = 0;
+        CardService.metrics.record(CardMetrics.Phase.FIRST_EVENT, elapsed);
+        String message = "First card event " + elapsed / 1000000 + " ms after launch, service "
+                + (mServiceWarm ? "warm" : "cold");
+        Log.i(LOG_TAG, message);
+        mConsole.append(message + "\n");
+    }
+
     /**
      * BroadcastReceiver to receive card reader events
      *
-     *
+     * Only used for events from CardService when it was started with the
+     * broadcast bridge enabled, and for CARD_EVENT from other services.
      */
     private BroadcastReceiver mReceiver;
     {
         mReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                tvConsole.setText(tvConsole.getText()
-                        + "Broadcast From Service: \n");
+                logEventLatency(-1, intent.getLongExtra(CardService.EXTRA_TIMESTAMP, 0));
+                mConsole.append("Broadcast From Service: \n");
                 if (intent.getAction().equals(mBroadcastStringAction)) {
                     String status = intent.getStringExtra("Data");
-                    tvConsole.setText(tvConsole.getText() + status + "\n\n");
-                    if (status.equals("Card Found")) {
-                        tvCardStatus.setText(getString(R.string.card_insert_txt));
-                        launchPinEntry();
-                    }
+                    if (status.equals("Card Found"))
+                        onCardFound(intent.getStringExtra(CardService.EXTRA_READER), status);
+                    else
+                        mConsole.append(status + "\n\n");
                 } else if (intent.getAction().equals(mBroadcastIntegerAction)) {
                     int reader_state = intent.getIntExtra("Data", 0);
-                    tvConsole.setText(tvConsole.getText().toString() + reader_state + "\n\n");
-                    if (reader_state == PcscJni.ReaderState.Empty) {
-                        tvCardStatus.setText(getString(R.string.card_empty_txt));
-                        mDumpButton.setEnabled(false);
-                        mFingersButton.setEnabled(false);
-                        if (alertDialog != null)
-                            alertDialog.dismiss();
-                    }
+                    onReaderState(intent.getStringExtra(CardService.EXTRA_READER), reader_state);
                 } else if (intent.getAction().equals(mBroadcastArrayListAction)) {
-                    tvConsole.setText(tvConsole.getText()
-                            + intent.getStringArrayListExtra("Data").toString()
+                    mConsole.append(intent.getStringArrayListExtra("Data").toString()
                             + "\n\n");
                 } else if  (intent.getAction().equals(mBroadcastCardEvent)) {
                     byte[] atr = intent.getByteArrayExtra("ATR");
-                    StringBuilder s_atr = new StringBuilder();
-                    if (atr == null) {
-                        s_atr.append("no ATR");
-                    } else {
-                        for (int i = 0; i < atr.length; ++i)
-                            s_atr.append(Integer.toHexString(0x0100 + (atr[i] & 0x00FF)).substring(1));
-                    }
+                    String s_atr = atr == null ? "no ATR" : Hex.encode(atr);
 
                     final String msg = "Action: "+intent.getAction()+" Extra: "+intent.getCharSequenceExtra("Data")+" ATR:"+s_atr;
-                    tvConsole.setText(tvConsole.getText()+msg+"\n\n");
+                    mConsole.append(msg+"\n\n");
                     Log.d(LOG_TAG, msg);
                     // Handle here so we don't get notification from CardBroadcastReceiver
                     mReceiver.abortBroadcast();
@@ -366,11 +589,17 @@ public class MainActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
         registerReceiver(mReceiver, mIntentFilter);
+        bindService(new Intent(this, CardService.class), mConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onPause() {
         unregisterReceiver(mReceiver);
+        if (mCardService != null) {
+            mCardService.unregisterListener(mCardEventListener);
+            mCardService = null;
+        }
+        unbindService(mConnection);
         super.onPause();
     }
 
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Writes the card pipeline metrics to the log so they can be collected from
+ * a field unit without the UI:
+ * <pre>
+ *   adb shell am broadcast -a com.crossmatch.pkcs15_reader.action.DUMP_METRICS
+ * </pre>
+ * The report is also returned as the broadcast result data. RESET_METRICS
+ * clears the histograms and counters after a dump. Senders need the DUMP
+ * permission, which the adb shell has.
+ */
+public class MetricsDumpReceiver extends BroadcastReceiver {
+    private static final String LOG_TAG = "MetricsDumpReceiver";
+
+    public static final String ACTION_DUMP_METRICS = "com.crossmatch.pkcs15_reader.action.DUMP_METRICS";
+    public static final String ACTION_RESET_METRICS = "com.crossmatch.pkcs15_reader.action.RESET_METRICS";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ACTION_RESET_METRICS.equals(intent.getAction())) {
+            CardService.metrics.reset();
+            Log.i(LOG_TAG, "Metrics reset");
+            setResultData("reset");
+            return;
+        }
+        String report = CardService.metrics.dump();
+        // logcat truncates long lines, log the report line by line
+        for (String line : report.split("\n"))
+            Log.i(LOG_TAG, line);
+        setResultData(report);
+    }
+}
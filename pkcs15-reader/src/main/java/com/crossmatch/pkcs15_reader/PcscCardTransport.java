@@ -0,0 +1,169 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import com.crossmatch.pkcs15_engine.Atr;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardMetrics;
+import com.crossmatch.pkcs15_engine.CardProfile;
+import com.crossmatch.pkcs15_engine.CardTransport;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscException;
+import org.simalliance.openmobileapi.service.pcsc.PcscJni;
+
+/**
+ * {@link CardTransport} backed by the Sentry PC/SC JNI library
+ */
+public class PcscCardTransport implements CardTransport {
+    private final long card;
+    private volatile int protocol;
+    private final byte[] atr;
+    private volatile boolean cancelled = false;
+    // set when another handle reset the card and we reconnected, see takeReset()
+    private boolean reset = false;
+    // set when the card was removed or the handle became invalid
+    private volatile boolean cardGone = false;
+
+    private PcscCardTransport(long card, int protocol, byte[] atr) {
+        this.card = card;
+        this.protocol = protocol;
+        this.atr = atr;
+    }
+
+    /**
+     * Connect to the card in the given reader in shared mode using T=0 or T=1,
+     * or the protocol its card profile prefers
+     *
+     * @param context PCSC context from establishContext
+     * @param reader reader name from listReaders
+     * @return connected transport
+     * @throws PcscException if there is no card or the connect fails
+     */
+    public static PcscCardTransport connect(long context, String reader) throws PcscException {
+        int[] status = new int[] { PcscJni.Status.Unknown, 0 };
+        byte[] atr = PcscJni.getStatusChange(context, 0, reader, status);
+
+        int[] protocol = new int[] { PcscJni.Protocol.T0 | PcscJni.Protocol.T1 };
+        CardProfile profile = CardService.cardProfiles.find(atr);
+        if (profile != null && profile.getProtocol() == Atr.PROTOCOL_T0)
+            protocol[0] = PcscJni.Protocol.T0;
+        else if (profile != null && profile.getProtocol() == Atr.PROTOCOL_T1)
+            protocol[0] = PcscJni.Protocol.T1;
+        long start = System.nanoTime();
+        long card = PcscJni.connect(context, reader, PcscJni.ShareMode.Shared, protocol);
+        CardService.metrics.since(CardMetrics.Phase.CONNECT, start);
+        return new PcscCardTransport(card, protocol[0], atr);
+    }
+
+    @Override
+    public byte[] getAtr() {
+        return atr;
+    }
+
+    @Override
+    public int getProtocol() {
+        // PcscJni.Protocol uses the PC/SC values, same as Atr.PROTOCOL_T0/T1
+        return protocol;
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws CardException {
+        if (cancelled)
+            throw new CardException("Cancelled");
+        long start = System.nanoTime();
+        try {
+            byte[] response = PcscJni.transmit(card, protocol, command);
+            CardService.metrics.since(CardMetrics.Phase.TRANSMIT, start);
+            return response;
+        } catch (PcscException ex) {
+            CardService.metrics.failure(ex.errorCode());
+            cardGone |= ex.isCardClosed();
+            throw new CardException("transmit failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void beginTransaction() throws CardException {
+        try {
+            PcscJni.beginTransaction(card);
+        } catch (PcscException ex) {
+            if (ex.errorCode() != PcscException.ErrorCode.W_RESET_CARD) {
+                cardGone |= ex.isCardClosed();
+                throw new CardException("beginTransaction failed: " + ex.getMessage(), ex);
+            }
+            // someone else reset the card, pick up the new state and try again
+            try {
+                reconnect();
+                PcscJni.beginTransaction(card);
+            } catch (PcscException ex2) {
+                cardGone |= ex2.isCardClosed();
+                throw new CardException("beginTransaction after reset failed: " + ex2.getMessage(), ex2);
+            }
+            reset = true;
+        }
+    }
+
+    @Override
+    public void endTransaction() throws CardException {
+        try {
+            PcscJni.endTransaction(card, PcscJni.Disposition.Leave);
+        } catch (PcscException ex) {
+            cardGone |= ex.isCardClosed();
+            throw new CardException("endTransaction failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Make every following transmit fail so a running read stops at the
+     * next APDU, until {@link #clearCancel()}. Safe to call from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    void clearCancel() {
+        cancelled = false;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Re-establish the connection after the card was reset, without
+     * resetting it again. The ATR does not change on a warm reset.
+     */
+    void reconnect() throws PcscException {
+        int[] negotiated = new int[] { PcscJni.Protocol.T0 | PcscJni.Protocol.T1 };
+        PcscJni.reconnect(card, PcscJni.ShareMode.Shared, PcscJni.Disposition.Leave, negotiated);
+        protocol = negotiated[0];
+    }
+
+    /**
+     * @return true if the card was reset by someone else since the last
+     *         call, in which case the applet selection and PIN status are lost
+     */
+    boolean takeReset() {
+        boolean r = reset;
+        reset = false;
+        return r;
+    }
+
+    /**
+     * @return true once the card was removed or the handle is no longer valid
+     */
+    boolean isCardGone() {
+        return cardGone;
+    }
+
+    /**
+     * Disconnect from the card
+     *
+     * @param disposition one of PcscJni.Disposition
+     * @throws PcscException if the disconnect fails
+     */
+    public void disconnect(int disposition) throws PcscException {
+        PcscJni.disconnect(card, disposition);
+    }
+}
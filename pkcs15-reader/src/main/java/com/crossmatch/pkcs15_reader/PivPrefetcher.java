@@ -0,0 +1,136 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import android.util.Log;
+
+import com.crossmatch.pkcs15_engine.CardCache;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardIdentity;
+import com.crossmatch.pkcs15_engine.CardJob;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.ReadPlan;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscException;
+
+/**
+ * Reads the containers that do not need the PIN as soon as a card is
+ * inserted, while the user is still typing the PIN, and leaves them in the
+ * card cache for the on-demand read to pick up.
+ * <p>
+ *     Runs once per insertion as a background job through the card session,
+ *     so the on-demand read finds the card connected, the PIV application
+ *     selected and the card identified. Cancelling the job stops it at the
+ *     next APDU, which happens when the card is removed or the deadline passes.
+ * <p>
+ *     With a read plan for the card model only the unprotected containers the
+ *     card has are read, in plan order; without one the usual PIV set is tried.
+ */
+class PivPrefetcher extends CardJob {
+    private static final String LOG_TAG = "PivPrefetcher";
+    private static final long TIMEOUT_MS = 15000;
+
+    /** the unprotected containers, CHUID first since it identifies the card */
+    static final PivContainer[] PUBLIC_CONTAINERS = new PivContainer[] {
+            PivContainer.CHUID,
+            PivContainer.CARD_CAPABILITY_CONTAINER,
+            PivContainer.CERT_PIV_AUTHENTICATION,
+            PivContainer.CERT_CARD_AUTHENTICATION,
+            PivContainer.CERT_DIGITAL_SIGNATURE,
+            PivContainer.CERT_KEY_MANAGEMENT,
+    };
+
+    interface Callback {
+        /**
+         * @param containers number of containers now in the cache for this card
+         * @param bytes total size of those containers
+         */
+        void onPrefetchDone(String reader, int containers, int bytes);
+    }
+
+    private final String reader;
+    private final CardSessionManager sessions;
+    private final CardCache cache;
+    private final Callback callback;
+    private volatile CardSession session = null;
+
+    PivPrefetcher(String reader, CardSessionManager sessions, CardCache cache, Callback callback) {
+        super(reader, "prefetch " + reader, PRIORITY_BACKGROUND, TIMEOUT_MS);
+        this.reader = reader;
+        this.sessions = sessions;
+        this.cache = cache;
+        this.callback = callback;
+    }
+
+    @Override
+    protected void onCancel() {
+        CardSession s = session;
+        if (s != null)
+            s.cancel(this);
+    }
+
+    @Override
+    protected void run() {
+        int containers = 0;
+        int bytes = 0;
+
+        try {
+            if (isCancelled())
+                return;
+            session = sessions.open(reader);
+            session.begin(this);
+            try {
+                // cancel() may have missed the session while it was opening
+                if (isCancelled())
+                    return;
+                CardIdentity identity = session.getIdentity();
+                if (identity == null) {
+                    byte[] chuid = session.readContainer(PivContainer.CHUID);
+                    identity = cache.validate(session.getAtr(), chuid);
+                    session.setIdentity(identity);
+                }
+                if (identity == null) {
+                    Log.v(LOG_TAG, "Card on " + reader + " has no usable CHUID, nothing to prefetch");
+                    return;
+                }
+
+                ReadPlan plan = session.getPlan();
+                List<PivContainer> toRead = plan != null && plan.isComplete()
+                        ? plan.getContainers(false) : Arrays.asList(PUBLIC_CONTAINERS);
+                for (PivContainer container : toRead) {
+                    if (plan != null && plan.isAbsent(container))
+                        continue;
+                    byte[] data = cache.get(identity, container);
+                    if (data == null) {
+                        try {
+                            data = session.readContainer(container);
+                        } catch (CardException ex) {
+                            if (isCancelled() || ex.getStatusWord() == CardException.NO_STATUS)
+                                throw ex;
+                            // not every card has every certificate
+                            Log.v(LOG_TAG, container.getLabel() + ": " + ex.getMessage());
+                            continue;
+                        }
+                        cache.put(identity, container, data, CardCache.SOURCE_PREFETCH);
+                    }
+                    containers++;
+                    bytes += data.length;
+                }
+            } finally {
+                session.end();
+            }
+        } catch (PcscException ex) {
+            CardService.metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+        } catch (CardException ex) {
+            Log.v(LOG_TAG, "Prefetch on " + reader + " stopped: " + ex.getMessage());
+        }
+
+        if (!isCancelled() && containers > 0)
+            callback.onPrefetchDone(reader, containers, bytes);
+    }
+}
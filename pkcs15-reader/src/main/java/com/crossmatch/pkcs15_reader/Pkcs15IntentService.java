@@ -4,46 +4,130 @@
 package com.crossmatch.pkcs15_reader;
 
 import android.app.Activity;
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Intent;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.ResultReceiver;
 import android.util.Log;
 
+import com.crossmatch.pkcs15_engine.BiometricContainer;
+import com.crossmatch.pkcs15_engine.CardCache;
+import com.crossmatch.pkcs15_engine.CardException;
+import com.crossmatch.pkcs15_engine.CardIdentity;
+import com.crossmatch.pkcs15_engine.CardJob;
+import com.crossmatch.pkcs15_engine.CardMetrics;
+import com.crossmatch.pkcs15_engine.CardVerifier;
+import com.crossmatch.pkcs15_engine.CertificateContainer;
+import com.crossmatch.pkcs15_engine.Chuid;
+import com.crossmatch.pkcs15_engine.ContainerFile;
+import com.crossmatch.pkcs15_engine.DataObjectRecord;
+import com.crossmatch.pkcs15_engine.Hex;
+import com.crossmatch.pkcs15_engine.MinutiaeGallery;
+import com.crossmatch.pkcs15_engine.MinutiaeMatcher;
+import com.crossmatch.pkcs15_engine.MinutiaeTemplate;
+import com.crossmatch.pkcs15_engine.PivCardReader;
+import com.crossmatch.pkcs15_engine.PivContainer;
+import com.crossmatch.pkcs15_engine.Pkcs15Index;
+import com.crossmatch.pkcs15_engine.PrintedInformation;
+import com.crossmatch.pkcs15_engine.ReadPlan;
+import com.crossmatch.pkcs15_engine.RevocationIndex;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscException;
+import org.simalliance.openmobileapi.service.pcsc.PcscJni;
+
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
+ * Service for handling asynchronous card requests. Each request becomes a
+ * {@link CardJob} on the CardService job scheduler, so interactive reads go
+ * before background work, identical queued requests are answered once and
+ * every request has a deadline.
  * <p>
  *     run the input "cmd" as specified using the Android ProcessBuilder
  *     This is intended to run the pkcs15-tool command line program in a
  *     separate thread and return the result to the caller
+ * <p>
+ *     ACTION_READPIV reads PIV containers in-process through {@link PivCardReader}
+ *     on one PC/SC connection instead of spawning pkcs15-tool.
+ * <p>
+ *     ACTION_LISTOBJECTS lists the data objects of the card session's object
+ *     index that the card has confirmed, in the pkcs15-tool --short format.
  */
-public class Pkcs15IntentService extends IntentService {
+public class Pkcs15IntentService extends Service {
     final String LOG_TAG = "Pkcs15IntentService";
 
     private static final String ACTION_RUNCMD = "com.crossmatch.pkcs15_reader.action.RUNCMD";
+    private static final String ACTION_READPIV = "com.crossmatch.pkcs15_reader.action.READPIV";
+    private static final String ACTION_LISTOBJECTS = "com.crossmatch.pkcs15_reader.action.LISTOBJECTS";
 
     // TODO: Rename parameters
     private static final String EXTRA_RUNCMD = "com.crossmatch.pkcs15_reader.extra.PARAM1";
     private static final String EXTRA_PARAM2 = "com.crossmatch.pkcs15_reader.extra.PARAM2";
     private static final String EXTRA_RECVR = "com.crossmatch.pkcs15_reader.extra.RECEIVER";
+    private static final String EXTRA_CONTAINERS = "com.crossmatch.pkcs15_reader.extra.CONTAINERS";
+    private static final String EXTRA_PIN = "com.crossmatch.pkcs15_reader.extra.PIN";
+    private static final String EXTRA_STREAM = "com.crossmatch.pkcs15_reader.extra.STREAM";
+    private static final String EXTRA_READER = "com.crossmatch.pkcs15_reader.extra.READER";
+
+    /** result codes sent to the ResultReceiver in streaming mode */
+    public static final int RESULT_CHUNK = Activity.RESULT_FIRST_USER;
+    public static final int RESULT_COMPLETE = Activity.RESULT_FIRST_USER + 1;
+    /**
+     * a container too large for the Bundle: RESULT_VALUE has the heading and
+     * decoded fields, RESULT_FD a read-only ParcelFileDescriptor of the raw
+     * contents, which the receiver maps with ContainerFile.map and closes
+     */
+    public static final int RESULT_BINARY = Activity.RESULT_FIRST_USER + 2;
 
-    private ResultReceiver resultReceiver;
+    /** keys of the result Bundle */
+    public static final String RESULT_VALUE = "resultValue";
+    public static final String RESULT_SEQUENCE = "sequence";
+    public static final String RESULT_EXIT_CODE = "exitCode";
+    public static final String RESULT_FD = "fd";
+    public static final String RESULT_SIZE = "size";
+    public static final String RESULT_CONTAINER = "container";
 
-    public Pkcs15IntentService() {
-        super("Pkcs15IntentService");
-    }
+    // read size for process output, also the largest chunk sent to the receiver
+    private static final int CHUNK_SIZE = 4096;
+
+    // containers of recently seen cards, outlives this service between requests.
+    // Shared with the CardService prefetch.
+    private static final long CACHE_BYTES = 4 * 1024 * 1024;
+    static final CardCache cardCache = new CardCache(CACHE_BYTES);
+
+    // raw contents of large containers on their way to the receivers, under getCacheDir()
+    private static final String CONTAINER_DIR = "containers";
+
+    // deadlines, after which the job is cancelled and the caller told so
+    private static final long RUNCMD_TIMEOUT_MS = 60000;
+    private static final long READPIV_TIMEOUT_MS = 30000;
+    private static final long LISTOBJECTS_TIMEOUT_MS = 10000;
+
+    /** exit code sent with RESULT_COMPLETE when a request was cancelled or timed out */
+    public static final int EXIT_CANCELLED = -2;
+
+    // jobs submitted and not finished, the service stops when this drops to 0
+    private int pendingJobs = 0;
+    private int lastStartId = 0;
+    // set once the container files left by an earlier process are removed
+    private static boolean containersCleaned = false;
 
     /**
      * Starts this service to perform action Foo with the given parameters. If
      * the service is already performing a task this action will be queued.
-     *
-     * @see IntentService
      */
     // TODO: Customize helper method
     public static void startActionRunCmd(Context context, ResultReceiver receiver, String cmd, String param2) {
@@ -55,45 +139,412 @@ public class Pkcs15IntentService extends IntentService {
         context.startService(intent);
     }
 
+    /**
+     * Same as {@link #startActionRunCmd} but the output is delivered in
+     * RESULT_CHUNK pieces while the command is running, followed by a
+     * RESULT_COMPLETE with the exit code.
+     */
+    public static void startActionStreamCmd(Context context, ResultReceiver receiver, String cmd, String param2) {
+        Intent intent = new Intent(context, Pkcs15IntentService.class);
+        intent.setAction(ACTION_RUNCMD);
+        intent.putExtra(EXTRA_RECVR, receiver);
+        intent.putExtra(EXTRA_RUNCMD, cmd);
+        intent.putExtra(EXTRA_PARAM2, param2);
+        intent.putExtra(EXTRA_STREAM, true);
+        context.startService(intent);
+    }
+
+    /**
+     * Starts this service to read PIV containers with the in-process engine.
+     * If the service is already performing a task this action will be queued.
+     *
+     * @param reader reader holding the card, or null for the first reader
+     * @param containers OIDs, paths or labels of the containers to read, or null
+     *                   for every container the card's read plan lists
+     * @param pin card holder PIN, or null to read only the unprotected containers
+     */
+    public static void startActionReadPiv(Context context, ResultReceiver receiver, String reader,
+                                          String[] containers, String pin) {
+        Intent intent = new Intent(context, Pkcs15IntentService.class);
+        intent.setAction(ACTION_READPIV);
+        intent.putExtra(EXTRA_RECVR, receiver);
+        intent.putExtra(EXTRA_READER, reader);
+        intent.putExtra(EXTRA_CONTAINERS, containers);
+        intent.putExtra(EXTRA_PIN, pin);
+        context.startService(intent);
+    }
+
+    /**
+     * Starts this service to list the data objects the card has shown it has,
+     * from the object index of its card session, as pkcs15-tool
+     * --list-data-objects --short prints them. The listing comes as a
+     * RESULT_CHUNK followed by a RESULT_COMPLETE. Objects that were never read
+     * or asked for are not in it; run pkcs15-tool for the card's own directory.
+     *
+     * @param reader reader holding the card, or null for the first reader
+     */
+    public static void startActionListObjects(Context context, ResultReceiver receiver, String reader) {
+        Intent intent = new Intent(context, Pkcs15IntentService.class);
+        intent.setAction(ACTION_LISTOBJECTS);
+        intent.putExtra(EXTRA_RECVR, receiver);
+        intent.putExtra(EXTRA_READER, reader);
+        context.startService(intent);
+    }
+
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Pkcs15Job job = null;
         if (intent != null) {
             final String action = intent.getAction();
             // extract the receiver passed into the service
-            resultReceiver = intent.getParcelableExtra(EXTRA_RECVR);
+            ResultReceiver resultReceiver = intent.getParcelableExtra(EXTRA_RECVR);
 
             if (ACTION_RUNCMD.equals(action)) {
                 final String param1 = intent.getStringExtra(EXTRA_RUNCMD);
                 final String param2 = intent.getStringExtra(EXTRA_PARAM2);
-                handleActionRunCmd(param1, param2);
+                final boolean stream = intent.getBooleanExtra(EXTRA_STREAM, false);
+                job = new RunCmdJob(resultReceiver, param1, param2, stream);
+            } else if (ACTION_READPIV.equals(action)) {
+                final String[] containers = intent.getStringArrayExtra(EXTRA_CONTAINERS);
+                final String pin = intent.getStringExtra(EXTRA_PIN);
+                final String reader = intent.getStringExtra(EXTRA_READER);
+                job = new ReadPivJob(resultReceiver, reader, containers, pin);
+            } else if (ACTION_LISTOBJECTS.equals(action)) {
+                final String reader = intent.getStringExtra(EXTRA_READER);
+                job = new ListObjectsJob(resultReceiver, reader);
             } else {
                 Log.e(LOG_TAG,"unknown intent received");
             }
         }
+
+        synchronized (this) {
+            lastStartId = startId;
+            if (job != null)
+                pendingJobs++;
+        }
+        if (job != null && CardService.jobs.submit(job) != job) {
+            Log.v(LOG_TAG, "Same request already queued, answering both at once");
+            jobDone();
+        } else if (job == null) {
+            stopIfIdle();
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private synchronized void jobDone() {
+        pendingJobs--;
+        stopIfIdle();
+    }
+
+    private synchronized void stopIfIdle() {
+        // stopSelf(startId) does nothing if a newer request came in meanwhile
+        if (pendingJobs == 0)
+            stopSelf(lastStartId);
+    }
+
+    /**
+     * A request from a caller: sends its results to every caller that asked
+     * for the same thing while it was queued, and tells them if it never ran.
+     */
+    private abstract class Pkcs15Job extends CardJob {
+        private final List<ResultReceiver> receivers = new ArrayList<>();
+
+        Pkcs15Job(ResultReceiver receiver, String reader, String key, long timeoutMillis) {
+            super(reader, key, PRIORITY_INTERACTIVE, timeoutMillis);
+            if (receiver != null)
+                receivers.add(receiver);
+        }
+
+        abstract void handle();
+
+        @Override
+        protected final void run() {
+            try {
+                handle();
+            } finally {
+                jobDone();
+            }
+        }
+
+        @Override
+        protected void onFailed(RuntimeException ex) {
+            // a bug must not leave the callers waiting for RESULT_COMPLETE,
+            // the scheduler listener logs it
+            sendChunk(0, "Internal error: " + ex + "\n");
+            sendComplete(1, 1);
+        }
+
+        @Override
+        protected boolean merge(CardJob duplicate) {
+            if (duplicate.getClass() != getClass())
+                return false;
+            synchronized (receivers) {
+                for (ResultReceiver receiver : ((Pkcs15Job) duplicate).receivers)
+                    if (!receivers.contains(receiver))
+                        receivers.add(receiver);
+            }
+            return true;
+        }
+
+        @Override
+        protected void onDropped(int reason) {
+            String why = reason == DROPPED_EXPIRED ? "Timed out waiting for the card\n" : "Cancelled\n";
+            Log.v(LOG_TAG, this + ": " + why);
+            sendFailure(why);
+            jobDone();
+        }
+
+        /** tell the callers the request failed without a result */
+        void sendFailure(String message) {
+            sendChunk(0, message);
+            sendComplete(1, EXIT_CANCELLED);
+        }
+
+        void send(int resultCode, Bundle bundle) {
+            synchronized (receivers) {
+                for (ResultReceiver receiver : receivers)
+                    receiver.send(resultCode, bundle);
+            }
+        }
+
+        void sendChunk(int sequence, String text) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(RESULT_SEQUENCE, sequence);
+            bundle.putString(RESULT_VALUE, text);
+            send(RESULT_CHUNK, bundle);
+        }
+
+        /**
+         * Send a container as a file descriptor instead of text. The contents
+         * are written once to an app-private file, every receiver gets its own
+         * read-only descriptor, and the file is unlinked, so it disappears
+         * when the last receiver closes its descriptor.
+         */
+        void sendBinary(int sequence, String text, PivContainer container, byte[] data) {
+            File file;
+            try {
+                file = ContainerFile.write(containerDir(), container, ByteBuffer.wrap(data));
+            } catch (IOException ex) {
+                Log.v(LOG_TAG, "IOException: " + ex.getMessage());
+                sendChunk(sequence, text + "Contents not passed: " + ex.getMessage() + "\n");
+                return;
+            }
+            try {
+                synchronized (receivers) {
+                    for (ResultReceiver receiver : receivers) {
+                        Bundle bundle = new Bundle();
+                        bundle.putInt(RESULT_SEQUENCE, sequence);
+                        bundle.putString(RESULT_VALUE, text);
+                        bundle.putString(RESULT_CONTAINER, container.getOid());
+                        bundle.putInt(RESULT_SIZE, data.length);
+                        bundle.putParcelable(RESULT_FD, new HandOffDescriptor(
+                                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)));
+                        receiver.send(RESULT_BINARY, bundle);
+                    }
+                }
+            } catch (FileNotFoundException ex) {
+                Log.v(LOG_TAG, "FileNotFoundException: " + ex.getMessage());
+            } finally {
+                file.delete();
+            }
+        }
+
+        /**
+         * The directory for container files, created on first use. Files are
+         * unlinked once the receivers have a descriptor, so anything found
+         * here the first time was left by a crash. This runs on the job
+         * worker, which keeps the file I/O off the main thread and finishes
+         * before the first container is written.
+         */
+        private File containerDir() throws IOException {
+            File dir = new File(getCacheDir(), CONTAINER_DIR);
+            synchronized (Pkcs15IntentService.class) {
+                if (!containersCleaned) {
+                    File[] stale = dir.listFiles();
+                    if (stale != null) {
+                        for (File file : stale)
+                            file.delete();
+                    }
+                    containersCleaned = true;
+                }
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("Cannot create " + dir);
+            }
+            return dir;
+        }
+
+        void sendComplete(int sequence, int exitCode) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(RESULT_SEQUENCE, sequence);
+            bundle.putInt(RESULT_EXIT_CODE, exitCode);
+            send(RESULT_COMPLETE, bundle);
+        }
+    }
+
+    private class RunCmdJob extends Pkcs15Job {
+        final String cmd;
+        final String param2;
+        final boolean stream;
+        // set while the process runs, destroyed on cancel
+        volatile Process process = null;
+
+        RunCmdJob(ResultReceiver receiver, String cmd, String param2, boolean stream) {
+            // pkcs15-tool picks the reader itself, so these are not cancelled with a card
+            super(receiver, null, "runcmd " + stream + " " + cmd, RUNCMD_TIMEOUT_MS);
+            this.cmd = cmd;
+            this.param2 = param2;
+            this.stream = stream;
+        }
+
+        @Override
+        void handle() {
+            handleActionRunCmd(this);
+        }
+
+        @Override
+        protected void onCancel() {
+            Process p = process;
+            if (p != null)
+                p.destroy();
+        }
+
+        @Override
+        void sendFailure(String message) {
+            if (stream) {
+                super.sendFailure(message);
+                return;
+            }
+            Bundle bundle = new Bundle();
+            bundle.putString(RESULT_VALUE, message);
+            bundle.putInt(RESULT_EXIT_CODE, EXIT_CANCELLED);
+            send(Activity.RESULT_OK, bundle);
+        }
+    }
+
+    private class ReadPivJob extends Pkcs15Job {
+        final String[] containers;
+        final String pin;
+        // session the job is reading from, cancelled through it
+        volatile CardSession session = null;
+
+        ReadPivJob(ResultReceiver receiver, String reader, String[] containers, String pin) {
+            super(receiver, reader, "readpiv " + reader + " " + Arrays.toString(containers), READPIV_TIMEOUT_MS);
+            this.containers = containers;
+            this.pin = pin;
+        }
+
+        @Override
+        void handle() {
+            handleActionReadPiv(this);
+        }
+
+        @Override
+        protected boolean merge(CardJob duplicate) {
+            // the same read with another PIN must still verify that PIN
+            if (!(duplicate instanceof ReadPivJob) || !equal(pin, ((ReadPivJob) duplicate).pin))
+                return false;
+            return super.merge(duplicate);
+        }
+
+        @Override
+        protected void onCancel() {
+            CardSession s = session;
+            if (s != null)
+                s.cancel(this);
+        }
+
+        // visible to the service, which resolves the reader for the job
+        @Override
+        protected void setReader(String reader) {
+            super.setReader(reader);
+        }
+    }
+
+    private class ListObjectsJob extends Pkcs15Job {
+        ListObjectsJob(ResultReceiver receiver, String reader) {
+            super(receiver, reader, "listobjects " + reader, LISTOBJECTS_TIMEOUT_MS);
+        }
+
+        @Override
+        void handle() {
+            handleActionListObjects(this);
+        }
+
+        // visible to the service, which resolves the reader for the job
+        @Override
+        protected void setReader(String reader) {
+            super.setReader(reader);
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     /**
      * Handle action Foo in the provided background thread with the provided
      * parameters.
+     * <p>
+     *     The process output is read in blocks. In streaming mode each block is
+     *     sent to the receiver as a RESULT_CHUNK as soon as it is read and a
+     *     final RESULT_COMPLETE carries the exit code, so nothing is held here.
+     *     Otherwise the whole output is sent in one RESULT_OK when the process exits.
      */
-    private void handleActionRunCmd(String cmd, String param2) {
+    private void handleActionRunCmd(RunCmdJob job) {
         Log.i(LOG_TAG, "Starting handleActionRunCmd()");
+        String cmd = job.cmd;
+        boolean stream = job.stream;
 
         String[] command = cmd.split(" ");
         Log.v(LOG_TAG, "Cmd to run input: "+cmd+" command: "+ Arrays.asList(command));
 
         StringBuilder cmdReturn = new StringBuilder();
+        int sequence = 0;
+        int exitCode = -1;
 
         try {
             ProcessBuilder processBuilder = new ProcessBuilder(command);
             processBuilder.redirectErrorStream(true);   // send error output to input stream
+            long start = System.nanoTime();
             Process process = processBuilder.start();
+            CardService.metrics.since(CardMetrics.Phase.PROCESS_SPAWN, start);
+            job.process = process;
+            // cancelled while starting, onCancel had nothing to destroy yet
+            if (job.isCancelled())
+                process.destroy();
 
             InputStream inputStream = process.getInputStream();
-            int c;
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int n;
 
-            while ((c = inputStream.read()) != -1) {
-                cmdReturn.append((char) c);
+            boolean first = true;
+            while ((n = readChunk(inputStream, buffer)) != -1) {
+                if (first) {
+                    CardService.metrics.since(CardMetrics.Phase.FIRST_OUTPUT, start);
+                    first = false;
+                }
+                // pkcs15-tool output is ASCII, keep one char per byte as before
+                String text = new String(buffer, 0, n, StandardCharsets.ISO_8859_1);
+                if (stream)
+                    job.sendChunk(sequence++, text);
+                else
+                    cmdReturn.append(text);
+            }
+            exitCode = process.waitFor();
+            CardService.metrics.since(CardMetrics.Phase.PROCESS_EXIT, start);
+            job.process = null;
+            if (job.isCancelled()) {
+                String why = job.isExpired() ? "\nTimed out, command stopped\n" : "\nCancelled, command stopped\n";
+                if (stream)
+                    job.sendChunk(sequence++, why);
+                else
+                    cmdReturn.append(why);
+                exitCode = EXIT_CANCELLED;
             }
 
             //tvConsole.setText(cmdReturn.toString());
@@ -101,14 +552,356 @@ public class Pkcs15IntentService extends IntentService {
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
         // send results back to Activity
-        Bundle bundle = new Bundle();
-        bundle.putString("resultValue", cmdReturn.toString());
-        resultReceiver.send(Activity.RESULT_OK, bundle);
+        if (stream) {
+            job.sendComplete(sequence, exitCode);
+        } else {
+            Bundle bundle = new Bundle();
+            bundle.putString(RESULT_VALUE, cmdReturn.toString());
+            bundle.putInt(RESULT_EXIT_CODE, exitCode);
+            job.send(Activity.RESULT_OK, bundle);
+        }
+
+        Log.i(LOG_TAG, "handleActionRunCmd() is complete, exit code " + exitCode);
+    }
+
+    /**
+     * List the objects of the card session's index that the card has
+     * confirmed by a read, or by refusing one for want of the PIN. Nothing is
+     * read from the card, so the listing is no longer than what was read
+     * before; pkcs15-tool remains the way to list the card's own directory.
+     */
+    private void handleActionListObjects(ListObjectsJob job) {
+        Log.i(LOG_TAG, "Starting handleActionListObjects()");
+        String reader = job.getReader();
+        try {
+            if (reader == null) {
+                reader = firstReader();
+                // from now on the job is cancelled with this reader's card
+                job.setReader(reader);
+            }
+            CardSession session = CardService.cardSessions.open(reader);
+            session.begin(job);
+            try {
+                job.sendChunk(0, session.getIndex().formatShort(true));
+            } finally {
+                session.end();
+            }
+            job.sendComplete(1, 0);
+        } catch (PcscException ex) {
+            CardService.metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+            job.sendChunk(0, "PcscException: " + ex.getMessage() + "\n");
+            job.sendComplete(1, 1);
+        } catch (CardException ex) {
+            Log.v(LOG_TAG, "CardException: " + ex.getMessage());
+            job.sendChunk(0, "CardException: " + ex.getMessage() + "\n");
+            job.sendComplete(1, 1);
+        }
+        Log.i(LOG_TAG, "handleActionListObjects() is complete");
+    }
+
+    /**
+     * Block for at least one byte, then take whatever else is already
+     * available up to the size of the buffer so a burst of output goes out
+     * as one chunk instead of many small ones.
+     *
+     * @return number of bytes read or -1 at end of stream
+     */
+    private static int readChunk(InputStream inputStream, byte[] buffer) throws IOException {
+        int n = inputStream.read(buffer, 0, buffer.length);
+        if (n <= 0)
+            return n;
+        while (n < buffer.length && inputStream.available() > 0) {
+            int more = inputStream.read(buffer, n, buffer.length - n);
+            if (more <= 0)
+                break;
+            n += more;
+        }
+        return n;
+    }
+
+    /**
+     * Read the requested containers from the card in the given reader in one PC/SC
+     * transaction on the card session kept by CardService: the PIV application
+     * stays selected and the PIN stays verified from the previous read, so
+     * usually only GET DATA goes to the card. Each container is sent as a
+     * RESULT_CHUNK as soon as it has been read, or as a RESULT_BINARY file
+     * descriptor if it is larger than ContainerFile.DEFAULT_THRESHOLD.
+     * <p>
+     *     The CHUID is read once per session to identify the card. If the same card
+     *     was read before, containers are served from the cache instead of the
+     *     card, PIN protected ones only after the PIN was verified again.
+     * <p>
+     *     Containers are looked up in the object index of the card session.
+     *     Those the index does not have, and PIN protected ones without a
+     *     verified PIN if the card model has a read plan, are answered without
+     *     asking the card. Without a plan every container is tried and the
+     *     outcome learned.
+     * <p>
+     *     If a trust store is installed, the signed containers are checked on
+     *     the CardService verifier while the reads go on, and the results are
+     *     sent after the last container. The card and its certificates are
+     *     looked up in the offline revocation index as soon as they are read.
+     */
+    private void handleActionReadPiv(ReadPivJob job) {
+        Log.i(LOG_TAG, "Starting handleActionReadPiv()");
+        String reader = job.getReader();
+        String pin = job.pin;
 
-        Log.i(LOG_TAG, "handleActionRunCmd() is complete");
+        int sequence = 0;
+        int exitCode = 0;
+        long start = System.nanoTime();
+
+        try {
+            if (reader == null) {
+                reader = firstReader();
+                // from now on the job is cancelled with this reader's card
+                job.setReader(reader);
+            }
+
+            CardVerifier.Session checks = null;
+            CardSession session = CardService.cardSessions.open(reader);
+            job.session = session;
+            session.begin(job);
+            // cancelled before begin took the session, cancel(job) found no owner
+            if (job.isCancelled())
+                session.cancel(job);
+            try {
+                CardIdentity identity = session.getIdentity();
+                if (identity == null) {
+                    try {
+                        identity = cardCache.validate(session.getAtr(), session.readContainer(PivContainer.CHUID));
+                        session.setIdentity(identity);
+                    } catch (CardException ex) {
+                        Log.v(LOG_TAG, "No CHUID, not caching: " + ex.getMessage());
+                    }
+                }
+                RevocationIndex revoked = CardService.revocation == null ? null : CardService.revocation.get();
+                if (revoked != null && identity != null && revoked.isRevoked(identity))
+                    job.sendChunk(sequence++, "REVOKED: this card's FASC-N or GUID is on the revocation list\n");
+                if (pin != null && !pin.isEmpty())
+                    session.verifyPin(pin);
+                CardVerifier verifier = CardService.verifier;
+                if (verifier != null) {
+                    checks = verifier.newSession();
+                    // biometric signature blocks may rely on the CHUID signer, check it even if not asked for
+                    byte[] chuid = cardCache.get(identity, PivContainer.CHUID);
+                    if (chuid != null)
+                        checks.submit(PivContainer.CHUID, chuid);
+                }
+
+                ReadPlan plan = session.getPlan();
+                String[] containers = job.containers;
+                if (containers == null) {
+                    List<PivContainer> all = plan != null && plan.isComplete()
+                            ? plan.getContainers(true) : Arrays.asList(PivContainer.values());
+                    containers = new String[all.size()];
+                    for (int i = 0; i < containers.length; i++)
+                        containers[i] = all.get(i).getOid();
+                }
+
+                Pkcs15Index index = session.getIndex();
+                for (String id : containers) {
+                    DataObjectRecord record = index.find(id);
+                    PivContainer container = PivContainer.find(record != null ? record.getPath() : id);
+                    if (container == null) {
+                        job.sendChunk(sequence++, "Unknown container " + id + "\n");
+                        continue;
+                    }
+                    // a container asked for by name is tried even if the index does not list it
+                    if (record == null && job.containers == null) {
+                        job.sendChunk(sequence++, container.getLabel() + ": not on this card\n");
+                        continue;
+                    }
+                    ReadPlan.Step step = plan == null ? null : plan.getStep(container);
+                    if (step != null && step.isPinRequired() && !session.isPinVerified()) {
+                        job.sendChunk(sequence++, container.getLabel() + ": PIN required\n");
+                        continue;
+                    }
+                    try {
+                        String source = " (";
+                        // protected data always comes from the card, the cache never has it
+                        boolean pinRequired = step != null && step.isPinRequired();
+                        byte[] data = pinRequired ? null : cardCache.get(identity, container);
+                        if (data != null) {
+                            source = cardCache.getSource(identity, container) == CardCache.SOURCE_PREFETCH
+                                    ? " (prefetched, " : " (cached, ";
+                        } else {
+                            data = session.readContainer(container);
+                            if (!pinRequired)
+                                cardCache.put(identity, container, data);
+                        }
+                        // checked on the verifier pool while the next container is read
+                        if (checks != null)
+                            checks.submit(container, data);
+                        if (revoked != null && isCertificate(container) && isRevoked(revoked, data))
+                            job.sendChunk(sequence++, "REVOKED: " + container.getLabel() + " certificate\n");
+                        long parse = System.nanoTime();
+                        String description = describe(container, data);
+                        CardService.metrics.since(CardMetrics.Phase.PARSE, parse);
+                        String heading = container.getLabel() + source + data.length + " bytes):\n";
+                        // large containers never go through the Bundle or a hex String
+                        if (data.length > ContainerFile.DEFAULT_THRESHOLD)
+                            job.sendBinary(sequence++, heading + description, container, data);
+                        else
+                            job.sendChunk(sequence++, heading + description + Hex.dump(data) + "\n");
+                    } catch (CardException ex) {
+                        if (job.isCancelled())
+                            break;
+                        // keep going, a missing or protected container should not stop the others
+                        job.sendChunk(sequence++, container.getLabel() + ": " + ex.getMessage() + "\n");
+                    }
+                }
+            } finally {
+                session.end();
+            }
+            if (checks != null && !job.isCancelled()) {
+                long wait = System.nanoTime();
+                StringBuilder sb = new StringBuilder("Signatures:\n");
+                for (CardVerifier.Result result : checks.getResults())
+                    sb.append(result).append('\n');
+                CardService.metrics.since(CardMetrics.Phase.VERIFY_WAIT, wait);
+                job.sendChunk(sequence++, sb.toString());
+            }
+        } catch (PcscException ex) {
+            CardService.metrics.failure(ex.errorCode());
+            Log.v(LOG_TAG, "PcscException: " + ex.getMessage());
+            job.sendChunk(sequence++, "PcscException: " + ex.getMessage() + "\n");
+            exitCode = 1;
+        } catch (CardException ex) {
+            Log.v(LOG_TAG, "CardException: " + ex.getMessage());
+            job.sendChunk(sequence++, "CardException: " + ex.getMessage() + "\n");
+            exitCode = 1;
+        }
+
+        if (job.isCancelled()) {
+            job.sendChunk(sequence++, job.isExpired() ? "Timed out reading the card\n" : "Cancelled\n");
+            exitCode = EXIT_CANCELLED;
+        }
+        CardService.metrics.since(CardMetrics.Phase.CARD_READ, start);
+        job.sendComplete(sequence, exitCode);
+
+        Log.i(LOG_TAG, "handleActionReadPiv() is complete");
     }
 
+    private static boolean isCertificate(PivContainer container) {
+        return container == PivContainer.CERT_PIV_AUTHENTICATION || container == PivContainer.CERT_DIGITAL_SIGNATURE
+                || container == PivContainer.CERT_KEY_MANAGEMENT || container == PivContainer.CERT_CARD_AUTHENTICATION;
+    }
+
+    /**
+     * @return true if the certificate in the container is on the revocation list,
+     *         false if it is not or cannot be decoded
+     */
+    private boolean isRevoked(RevocationIndex index, byte[] data) {
+        try {
+            return index.isRevoked(CertificateContainer.parse(data).toX509Certificate());
+        } catch (CardException ex) {
+            Log.v(LOG_TAG, "No certificate to check for revocation: " + ex.getMessage());
+        } catch (CertificateException ex) {
+            Log.v(LOG_TAG, "Cannot check certificate revocation: " + ex.getMessage());
+        } catch (IOException ex) {
+            Log.v(LOG_TAG, "Cannot check certificate revocation: " + ex.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return name of the first reader, for callers that did not say which one
+     * @throws PcscException if there are no readers
+     */
+    private static String firstReader() throws PcscException {
+        long start = System.nanoTime();
+        long context = PcscJni.establishContext(PcscJni.Scope.User);
+        CardService.metrics.since(CardMetrics.Phase.ESTABLISH_CONTEXT, start);
+        try {
+            long list = System.nanoTime();
+            String[] readers = PcscJni.listReaders(context, null);
+            CardService.metrics.since(CardMetrics.Phase.LIST_READERS, list);
+            if (readers == null || readers.length == 0)
+                throw new PcscException("No readers found");
+            return readers[0];
+        } finally {
+            PcscJni.releaseContext(context);
+        }
+    }
+
+    /**
+     * Decode the fields of the containers we know the layout of
+     *
+     * @return one line per field, empty if there is nothing to decode
+     */
+    private static String describe(PivContainer container, byte[] data) {
+        try {
+            switch (container) {
+                case CHUID:
+                    Chuid chuid = Chuid.parse(data);
+                    return "FASC-N: " + chuid.getFascnString() + "\n"
+                            + "GUID: " + Hex.encode(chuid.getGuid()) + "\n"
+                            + "Expires: " + chuid.getExpirationDate() + "\n"
+                            + "Signed: " + chuid.hasIssuerSignature() + "\n";
+                case PRINTED_INFORMATION:
+                    PrintedInformation info = PrintedInformation.parse(data);
+                    return "Name: " + info.getName() + "\n"
+                            + "Affiliation: " + info.getEmployeeAffiliation() + "\n"
+                            + "Expires: " + info.getExpirationDate() + "\n";
+                case FINGERPRINTS:
+                case FACIAL_IMAGE:
+                    BiometricContainer bio = BiometricContainer.parse(data);
+                    String header = "Format: " + Integer.toHexString(bio.getFormatOwner()) + "/"
+                            + Integer.toHexString(bio.getFormatType()) + "\n"
+                            + "Created: " + bio.getCreationDate() + " by " + bio.getCreator() + "\n"
+                            + "Data: " + bio.getBiometricDataLength() + " bytes, signed: " + bio.isSigned() + "\n";
+                    return container == PivContainer.FINGERPRINTS ? header + describeFingers(bio) : header;
+                default:
+                    return "";
+            }
+        } catch (CardException ex) {
+            return "Cannot decode: " + ex.getMessage() + "\n";
+        }
+    }
+
+    /**
+     * The finger views of a fingerprint container, and the enrolled template
+     * they match if a gallery is loaded
+     */
+    private static String describeFingers(BiometricContainer bio) throws CardException {
+        MinutiaeTemplate template = MinutiaeTemplate.parse(bio);
+        StringBuilder sb = new StringBuilder();
+        for (int v = 0; v < template.getViewCount(); v++)
+            sb.append(MinutiaeTemplate.fingerName(template.getFingerPosition(v))).append(": ")
+                    .append(template.getMinutiaCount(v)).append(" minutiae, quality ")
+                    .append(template.getFingerQuality(v)).append('\n');
+        MinutiaeGallery gallery = CardService.gallery;
+        if (gallery != null && gallery.size() > 0) {
+            long start = System.nanoTime();
+            MinutiaeGallery.Match match = gallery.identify(template, MinutiaeMatcher.DEFAULT_THRESHOLD);
+            CardService.metrics.since(CardMetrics.Phase.MATCH, start);
+            sb.append(match.getScore() >= MinutiaeMatcher.DEFAULT_THRESHOLD ? "Matches " : "No match, closest ")
+                    .append(match).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The descriptor passed to one receiver. A receiver in another process
+     * gets a duplicate when the Bundle is parcelled, so this copy closes
+     * itself once written; a receiver in this process gets this object and
+     * closes it itself, as documented for RESULT_BINARY.
+     */
+    private static final class HandOffDescriptor extends ParcelFileDescriptor {
+        HandOffDescriptor(ParcelFileDescriptor fd) {
+            super(fd);
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags | PARCELABLE_WRITE_RETURN_VALUE);
+        }
+    }
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2018 Crossmatch Technologies, Inc. All rights reserved.
+ **/
+package com.crossmatch.pkcs15_reader;
+
+import com.crossmatch.pkcs15_engine.ReaderStateMachine;
+
+import org.simalliance.openmobileapi.service.pcsc.PcscJni;
+
+/**
+ * State kept by {@link CardService} for one reader.
+ * <p>
+ *     Each reader is watched by its own worker with its own PCSC context,
+ *     because pcsc-lite does not allow one context to be used by several
+ *     threads at once. Only the worker for this reader writes these fields.
+ */
+class ReaderSession {
+    final String reader;
+    final int index;
+    volatile long context = 0;
+    // set when the reader disappears from the reader list
+    volatile boolean removed = false;
+    // monitors of this reader in a row that stopped on an error, for the retry backoff
+    int failures = 0;
+
+    // state as last reported by getStatus, the input for the next call
+    int currentStatus = PcscJni.ReaderState.Unaware;
+    // debounces the raw states into the transitions that are broadcast
+    final ReaderStateMachine states = new ReaderStateMachine(CardService.STATE_DEBOUNCE_MS);
+    // decoded state that was last broadcast, one of PcscJni.ReaderState
+    volatile int readerState = PcscJni.ReaderState.Unknown;
+    // PC/SC insertion and removal count of the last broadcast state, -1 before the first
+    volatile int eventCount = -1;
+    volatile byte[] atr = null;
+    // read of the public containers started when the card was found,
+    // kept until the card is removed so it runs once per insertion
+    volatile PivPrefetcher prefetch = null;
+    // card handed to the kiosk pipeline, the same once per insertion rule
+    volatile boolean kioskQueued = false;
+
+    // last events published for this reader, replayed to new listeners.
+    // Written and read under the CardService listener lock.
+    CardEvent lastEvent = null;
+    CardEvent lastCardEvent = null;
+
+    ReaderSession(String reader, int index) {
+        this.reader = reader;
+        this.index = index;
+    }
+
+    void cancelPrefetch() {
+        PivPrefetcher p = prefetch;
+        prefetch = null;
+        if (p != null)
+            p.cancel();
+    }
+
+    boolean isCardPresent() {
+        return atr != null;
+    }
+}